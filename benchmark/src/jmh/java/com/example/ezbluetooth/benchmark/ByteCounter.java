@@ -0,0 +1,37 @@
+package com.example.ezbluetooth.benchmark;
+
+/**
+ *  Counts bytes arriving on a receiver thread and lets the benchmark thread wait for them,
+ *  so each benchmark op completes only when its message has actually been delivered.
+ */
+
+class ByteCounter {
+
+    private static final long AWAIT_TIMEOUT = 10000L;
+
+    private long mCount;
+
+    synchronized void add(int length) {
+        mCount += length;
+        notifyAll();
+    }
+
+    synchronized long get() {
+        return mCount;
+    }
+
+    /**
+     *  blocks until at least {@code target} bytes have been counted
+     * @throws IllegalStateException if the receiver stalls, which means the path under test is broken
+     */
+    synchronized void await(long target) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + AWAIT_TIMEOUT;
+        while(mCount < target) {
+            long remaining = deadline - System.currentTimeMillis();
+            if(remaining <= 0) {
+                throw new IllegalStateException("Receiver stalled at " + mCount + " / " + target + " bytes");
+            }
+            wait(remaining);
+        }
+    }
+}
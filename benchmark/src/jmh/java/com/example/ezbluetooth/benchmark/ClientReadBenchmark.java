@@ -0,0 +1,78 @@
+package com.example.ezbluetooth.benchmark;
+
+import com.example.ezbluetooth.transport.Channel;
+import com.example.ezbluetooth.transport.LoopbackTransport;
+import com.example.ezbluetooth.transport.ServerChannel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Raw loopback peer streaming into AbsBluetoothClient. One op is one message counted by the
+ *  client's read loop, with up to {@link ServerDispatchBenchmark#IN_FLIGHT_BYTES} outstanding.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ClientReadBenchmark {
+
+    private static final long CONNECT_TIMEOUT = 5000L;
+
+    @Param({"16", "256", "4096"})
+    public int payloadSize;
+
+    @Param({"1", "64", "1024"})
+    public int readSize;
+
+    private ServerChannel mServerChannel;
+    private Channel mPeer;
+    private OutputStream mOutputStream;
+    private CountingClient mClient;
+    private ByteCounter mReceived;
+    private byte[] mPayload;
+    private long mSent;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        final LoopbackTransport transport = new LoopbackTransport();
+        mServerChannel = transport.listen("bench-peer", EchoServer.SERVICE_UUID);
+        mReceived = new ByteCounter();
+        mClient = new CountingClient(readSize, mReceived);
+        mClient.setTransport(transport);
+        mClient.start("bench");
+        mPeer = mServerChannel.accept();
+        if(!mClient.getConnectLatch().await(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            throw new IllegalStateException("Client is not connected");
+        }
+        mOutputStream = mPeer.getOutputStream();
+        mPayload = new byte[payloadSize];
+        mSent = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mClient.stop();
+        mPeer.close();
+        mServerChannel.close();
+    }
+
+    @Benchmark
+    public void read(ServerDispatchBenchmark.Throughput throughput) throws Exception {
+        mOutputStream.write(mPayload);
+        mSent += payloadSize;
+        throughput.bytes += payloadSize;
+        mReceived.await(mSent - ServerDispatchBenchmark.IN_FLIGHT_BYTES);
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.ezbluetooth.benchmark;
+
+import android.os.Parcel;
+
+import com.example.ezbluetooth.client.AbsBluetoothClient;
+import com.example.ezbluetooth.io.OutputSink;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ *  client that only counts what it reads, so the benchmark measures the client read path.
+ */
+
+class CountingClient extends AbsBluetoothClient {
+
+    private final int mReadSize;
+    private final ByteCounter mCounter;
+    private final CountDownLatch mConnectLatch;
+
+    CountingClient(int readSize, ByteCounter counter) {
+        mReadSize = readSize;
+        mCounter = counter;
+        mConnectLatch = new CountDownLatch(1);
+    }
+
+    CountDownLatch getConnectLatch() {
+        return mConnectLatch;
+    }
+
+    @Override
+    protected int getReadSize() {
+        return mReadSize;
+    }
+
+    @Override
+    protected void onDataReceived(byte[] buffer, int offset, int length, OutputSink sink) {
+        mCounter.add(length);
+    }
+
+    @Override
+    protected byte[] onDataReceived(byte[] rxBuffer) {
+        mCounter.add(rxBuffer.length);
+        return null;
+    }
+
+    @Override
+    public void onConnected() {
+        mConnectLatch.countDown();
+    }
+
+    @Override
+    public void onDisconnected() {
+    }
+
+    @Override
+    public UUID getServiceUuid() {
+        return EchoServer.SERVICE_UUID;
+    }
+
+    @Override
+    public String getServiceName() {
+        return "bench-client";
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+    }
+}
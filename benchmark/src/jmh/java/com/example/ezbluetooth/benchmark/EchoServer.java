@@ -0,0 +1,49 @@
+package com.example.ezbluetooth.benchmark;
+
+import com.example.ezbluetooth.io.OutputSink;
+import com.example.ezbluetooth.service.AbsBluetoothServer;
+
+import java.util.UUID;
+
+/**
+ *  echoes every read straight back through the reply sink, so the benchmark measures
+ *  the server read / dispatch / write path and nothing else.
+ */
+
+class EchoServer extends AbsBluetoothServer {
+
+    static final UUID SERVICE_UUID = UUID.fromString("6f1c0ad4-3a8b-4d1a-9e6b-5c0f3b7a2e10");
+    private static final String SERVICE_NAME = "bench-echo";
+
+    private final int mReadSize;
+
+    EchoServer(int readSize) {
+        super(1);
+        mReadSize = readSize;
+    }
+
+    @Override
+    protected int getReadSize() {
+        return mReadSize;
+    }
+
+    @Override
+    protected void onDataReceived(int clientId, byte[] buffer, int offset, int length, OutputSink sink) {
+        sink.write(buffer, offset, length);
+    }
+
+    @Override
+    protected byte[] onDataReceived(int clientId, byte[] data) {
+        return data;
+    }
+
+    @Override
+    public String getServiceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public UUID getServiceUuid() {
+        return SERVICE_UUID;
+    }
+}
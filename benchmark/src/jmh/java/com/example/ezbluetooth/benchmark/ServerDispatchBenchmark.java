@@ -0,0 +1,135 @@
+package com.example.ezbluetooth.benchmark;
+
+import com.example.ezbluetooth.BluetoothServiceManager;
+import com.example.ezbluetooth.exec.ServiceScheduler;
+import com.example.ezbluetooth.transport.Channel;
+import com.example.ezbluetooth.transport.LoopbackTransport;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Echo through AbsBluetoothServer from a raw loopback channel. One op is one message whose
+ *  echo has come back; up to {@link #IN_FLIGHT_BYTES} may be outstanding so the pipeline stays full.
+ *  ops/s is messages/sec, the bytes counter bytes/sec and gc.alloc.rate.norm allocations per message.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ServerDispatchBenchmark {
+
+    static final int IN_FLIGHT_BYTES = 16 * 1024;
+    private static final long START_TIMEOUT = 5000L;
+
+    @Param({"16", "256", "4096"})
+    public int payloadSize;
+
+    /** 1 is what SimpleEchoServer reads with */
+    @Param({"1", "64", "1024"})
+    public int readSize;
+
+    private BluetoothServiceManager mServiceManager;
+    private Channel mChannel;
+    private OutputStream mOutputStream;
+    private Thread mDrainThread;
+    private ByteCounter mReceived;
+    private byte[] mPayload;
+    private long mSent;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Throughput {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        final LoopbackTransport transport = new LoopbackTransport();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        mServiceManager = new BluetoothServiceManager(transport, new BluetoothServiceManager.Callback() {
+            @Override
+            public void onServiceStarted(int svcId) {
+                startLatch.countDown();
+            }
+
+            @Override
+            public boolean onClientConnected(int svcId, int clientId) {
+                return true;
+            }
+
+            @Override
+            public void onServiceError(int svcId, IOException e) {
+            }
+
+            @Override
+            public void onServiceClosed(int svcId) {
+            }
+        }, ServiceScheduler.getDefault());
+        mServiceManager.start(new EchoServer(readSize));
+        if(!startLatch.await(START_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            throw new IllegalStateException("Echo service is not started");
+        }
+
+        mChannel = transport.connect("bench", EchoServer.SERVICE_UUID);
+        mOutputStream = mChannel.getOutputStream();
+        mReceived = new ByteCounter();
+        mPayload = new byte[payloadSize];
+        mSent = 0;
+
+        final InputStream inputStream = mChannel.getInputStream();
+        mDrainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[8192];
+                try {
+                    int read;
+                    while((read = inputStream.read(buffer)) > 0) {
+                        mReceived.add(read);
+                    }
+                } catch (IOException ignored) {
+                    /**
+                     *  channel closed on tear down
+                     */
+                }
+            }
+        }, "bench-drain");
+        mDrainThread.setDaemon(true);
+        mDrainThread.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mChannel.close();
+        mServiceManager.stop();
+        mDrainThread.join(START_TIMEOUT);
+    }
+
+    @Benchmark
+    public void echo(Throughput throughput) throws Exception {
+        mOutputStream.write(mPayload);
+        mSent += payloadSize;
+        throughput.bytes += payloadSize;
+        mReceived.await(mSent - IN_FLIGHT_BYTES);
+    }
+}
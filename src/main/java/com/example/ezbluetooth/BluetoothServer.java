@@ -1,11 +1,22 @@
 package com.example.ezbluetooth;
 
-import android.bluetooth.BluetoothServerSocket;
+import android.support.annotation.Nullable;
+
+import com.example.ezbluetooth.exec.ServiceScheduler;
+import com.example.ezbluetooth.metrics.MetricsSnapshot;
+import com.example.ezbluetooth.transport.ServerChannel;
 
 import java.io.IOException;
 import java.util.UUID;
 
 /**
+ *  A service run by {@link BluetoothServiceManager}. Extend {@link com.example.ezbluetooth.service.AbsBluetoothServer}
+ *  rather than implementing this directly, it provides everything below but the service name and UUID.
+ *
+ *  Incompatible with earlier versions : {@link #onCreate(ServerChannel)} replaces onCreate(BluetoothServerSocket),
+ *  and {@link #getLoad()}, {@link #getMetrics()}, {@link #getMetrics(int)} and {@link #setScheduler(ServiceScheduler)}
+ *  are added. Direct implementations have to add them, subclasses of AbsBluetoothServer only have to move
+ *  an override of onCreate to the new signature.
  *
  * Created by innocentevil on 17. 1. 30.
  */
@@ -22,7 +33,7 @@ public interface BluetoothServer {
 
     void onDestroy();
 
-    void onCreate(BluetoothServerSocket serverSocket);
+    void onCreate(ServerChannel serverChannel);
 
     int onWaitClient() throws IOException ;
 
@@ -30,8 +41,25 @@ public interface BluetoothServer {
 
     void onHandleClient(int clientId);
 
+    ServiceLoad getLoad();
+
+    /**
+     *  @return metrics merged over every client this service has handled
+     */
+    MetricsSnapshot getMetrics();
+
+    /**
+     *  @return metrics of a connected client, or null if no such client
+     */
+    @Nullable MetricsSnapshot getMetrics(int clientId);
+
     void setId(int svcId);
 
+    /**
+     *  gives the scheduler client handling of this service runs on, called before {@link #onCreate(ServerChannel)}
+     */
+    void setScheduler(ServiceScheduler scheduler);
+
     int getId();
 
 }
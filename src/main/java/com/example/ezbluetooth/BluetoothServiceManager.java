@@ -1,19 +1,23 @@
 package com.example.ezbluetooth;
 
-import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothServerSocket;
 import android.content.Context;
 import android.util.Log;
-import android.util.SparseArray;
+
+import com.example.ezbluetooth.exec.ServiceExecutor;
+import com.example.ezbluetooth.exec.ServiceScheduler;
+import com.example.ezbluetooth.metrics.MetricsSnapshot;
+import com.example.ezbluetooth.transport.BluetoothTransport;
+import com.example.ezbluetooth.transport.ServerChannel;
+import com.example.ezbluetooth.transport.Transport;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  *
@@ -23,43 +27,66 @@ import java.util.concurrent.TimeUnit;
 public class BluetoothServiceManager {
     private static final String TAG = BluetoothServiceManager.class.getCanonicalName();
 
-    private BluetoothAdapter mBluetoothAdapter;
-    private BluetoothManager mBluetoothManager;
-    private ThreadPoolExecutor mPoolExecutor;
+    private final Transport mTransport;
+    private final ServiceScheduler mScheduler;
+    private ServiceExecutor mCallbackExecutor;
+    private ConcurrentHashMap<Integer, ServiceExecutor> mAcceptExecutors;
     private List<BluetoothServer> mServices;
-    private SparseArray<BluetoothServerSocket> mServiceConnections;
-    private WeakReference<Callback> wrCallback;
+    private ConcurrentHashMap<Integer, ServerChannel> mServiceConnections;
+    private final Callback mCallback;
 
 
 
     public BluetoothServiceManager(Context context, Callback callback) {
-        wrCallback = new WeakReference<Callback>(new SyncCallback(callback));
-        mBluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
-        mBluetoothAdapter = mBluetoothManager.getAdapter();
+        this(context, callback, ServiceScheduler.getDefault());
+    }
+
+    /**
+     *
+     * @param scheduler runs accept loops, client handling and callback dispatch of every service
+     */
+    public BluetoothServiceManager(Context context, Callback callback, ServiceScheduler scheduler) {
+        this(new BluetoothTransport(((BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE)).getAdapter()), callback, scheduler);
+    }
+
+    /**
+     *
+     * @param transport transport services listen on, e.g. {@link com.example.ezbluetooth.transport.LoopbackTransport} to run off-device
+     * @param scheduler runs accept loops, client handling and callback dispatch of every service
+     */
+    public BluetoothServiceManager(Transport transport, Callback callback, ServiceScheduler scheduler) {
+        mTransport = transport;
+        mScheduler = scheduler;
+        mCallback = new SyncCallback(callback);
     }
 
     public synchronized void start(BluetoothServer...services) {
-        mPoolExecutor = new ThreadPoolExecutor(services.length, services.length << 1, 1000L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(services.length << 1));
         mServices = Arrays.asList(services);
-        mServiceConnections = new SparseArray<>(services.length);
+        mServiceConnections = new ConcurrentHashMap<>(services.length);
+        mAcceptExecutors = new ConcurrentHashMap<>(services.length);
+        /**
+         *  notifications are dispatched one at a time, in order
+         */
+        mCallbackExecutor = mScheduler.newExecutor(TAG, "callback", 1);
 
 
         for(final BluetoothServer service : mServices) {
             final int svcId = mServices.indexOf(service);
-            mPoolExecutor.execute(new Runnable() {
+            final ServiceExecutor acceptExecutor = mScheduler.newExecutor(service.getServiceName(), "accept", 1);
+            mAcceptExecutors.put(svcId, acceptExecutor);
+            acceptExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
-                    BluetoothServerSocket serverSocket;
-                    final Callback callback = wrCallback.get();
+                    ServerChannel serverSocket;
+                    final Callback callback = mCallback;
                     try {
                         service.setId(svcId);
-                        serverSocket = mBluetoothAdapter.listenUsingRfcommWithServiceRecord(service.getServiceName(), service.getServiceUuid());
-                        synchronized (this) {
-                            mServiceConnections.put(svcId, serverSocket);
-                        }
+                        service.setScheduler(mScheduler);
+                        serverSocket = mTransport.listen(service.getServiceName(), service.getServiceUuid());
+                        mServiceConnections.put(svcId, serverSocket);
 
                         service.onCreate(serverSocket);
-                        callback.onServiceStarted(svcId);
+                        dispatchServiceStarted(callback, svcId);
                     } catch (IOException e) {
                         Log.e(TAG, e.getLocalizedMessage());
                         return;
@@ -75,15 +102,13 @@ public class BluetoothServiceManager {
                         } catch (IOException e) {
                             Log.e(TAG, e.getLocalizedMessage());
                             service.onServerError(e);
-                            callback.onServiceError(svcId, e);
+                            dispatchServiceError(callback, svcId, e);
                         }
                     }
                     try {
                         serverSocket.close();
-                        synchronized (this) {
-                            mServiceConnections.delete(svcId);
-                        }
-                        callback.onServiceClosed(svcId);
+                        mServiceConnections.remove(svcId);
+                        dispatchServiceClosed(callback, svcId);
                     } catch (IOException e) {
                         Log.e(TAG, e.getLocalizedMessage());
                     }
@@ -94,11 +119,14 @@ public class BluetoothServiceManager {
 
     public synchronized void stop() {
         for(final BluetoothServer service : mServices) {
-            mPoolExecutor.execute(new Runnable() {
+            mScheduler.execute(new Runnable() {
                 @Override
                 public void run() {
-                    BluetoothServerSocket socket = mServiceConnections.get(service.getId());
+                    ServerChannel socket = mServiceConnections.get(service.getId());
                     service.onDestroy();
+                    if(socket == null) {
+                        return;
+                    }
                     try {
                         socket.close();
                     } catch (IOException e) {
@@ -106,13 +134,14 @@ public class BluetoothServiceManager {
                     }
                 }
             });
+            shutdownAcceptExecutor(service.getId());
         }
-        mPoolExecutor.shutdown();
+        mCallbackExecutor.shutdown();
     }
 
     public synchronized void stopService(int svcId) {
         BluetoothServer serviceServer = mServices.remove(svcId);
-        BluetoothServerSocket socket = mServiceConnections.get(svcId);
+        ServerChannel socket = mServiceConnections.get(svcId);
         if((serviceServer == null) || (socket == null)) {
             return;
         }
@@ -120,38 +149,146 @@ public class BluetoothServiceManager {
         try {
             socket.close();
             serviceServer.onDestroy();
-            if(mServiceConnections.size() == 0) {
-                mPoolExecutor.shutdown();
+            shutdownAcceptExecutor(svcId);
+            if(mServiceConnections.isEmpty()) {
+                mCallbackExecutor.shutdown();
             }
         } catch (IOException e) {
             Log.e(TAG, e.getLocalizedMessage());
         }
     }
 
+    /**
+     *  gives current load of a service, can be consulted from {@link Callback#onClientConnected(int, int)}
+     *  to shed load before a client is handled.
+     * @return load of the service, or null if no such service is running
+     */
+    public synchronized ServiceLoad getServiceLoad(int svcId) {
+        if((mServices == null) || (svcId < 0) || (svcId >= mServices.size())) {
+            return null;
+        }
+        return mServices.get(svcId).getLoad();
+    }
+
+    /**
+     *  @return metrics merged over every client the service has handled, or null if no such service is running
+     */
+    public synchronized MetricsSnapshot getServiceMetrics(int svcId) {
+        if((mServices == null) || (svcId < 0) || (svcId >= mServices.size())) {
+            return null;
+        }
+        return mServices.get(svcId).getMetrics();
+    }
+
+    /**
+     *  @return metrics of a client connected to the service, or null if no such service or client
+     */
+    public synchronized MetricsSnapshot getConnectionMetrics(int svcId, int clientId) {
+        if((mServices == null) || (svcId < 0) || (svcId >= mServices.size())) {
+            return null;
+        }
+        return mServices.get(svcId).getMetrics(clientId);
+    }
+
+    /**
+     *  gives thread usage of a service, both of its accept loop and of its client handling
+     * @return executors of the service with their thread counts and queue depths
+     */
+    public synchronized List<ServiceExecutor> getServiceExecutors(int svcId) {
+        if((mServices == null) || (svcId < 0) || (svcId >= mServices.size())) {
+            return Collections.emptyList();
+        }
+        return mScheduler.getExecutors(mServices.get(svcId).getServiceName());
+    }
+
+    public ServiceScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    private void shutdownAcceptExecutor(int svcId) {
+        ServiceExecutor acceptExecutor = mAcceptExecutors.get(svcId);
+        if(acceptExecutor != null) {
+            acceptExecutor.shutdown();
+            mAcceptExecutors.remove(svcId);
+        }
+    }
+
+    private void dispatchServiceStarted(final Callback callback, final int svcId) {
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                callback.onServiceStarted(svcId);
+            }
+        });
+    }
+
+    private void dispatchServiceError(final Callback callback, final int svcId, final IOException e) {
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                callback.onServiceError(svcId, e);
+            }
+        });
+    }
+
+    private void dispatchServiceClosed(final Callback callback, final int svcId) {
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                callback.onServiceClosed(svcId);
+            }
+        });
+    }
+
+    private void dispatch(Runnable notification) {
+        try {
+            mCallbackExecutor.execute(notification);
+        } catch (RejectedExecutionException e) {
+            /**
+             *  manager is already stopped, deliver the last notifications inline
+             */
+            notification.run();
+        }
+    }
+
+    /**
+     *  serializes notifications and holds the callback weakly, so that the manager doesn't keep e.g.
+     *  an activity alive. clients are rejected once the callback is gone.
+     */
     private static class SyncCallback implements Callback {
-        private Callback mCallback;
+        private final WeakReference<Callback> wrCallback;
         SyncCallback(Callback callback) {
-            mCallback = callback;
+            wrCallback = new WeakReference<>(callback);
         }
 
         @Override
         public synchronized void onServiceStarted(int svcId) {
-            mCallback.onServiceStarted(svcId);
+            final Callback callback = wrCallback.get();
+            if(callback != null) {
+                callback.onServiceStarted(svcId);
+            }
         }
 
         @Override
         public synchronized boolean onClientConnected(int svcId, int clientId) {
-            return mCallback.onClientConnected(svcId, clientId);
+            final Callback callback = wrCallback.get();
+            return (callback != null) && callback.onClientConnected(svcId, clientId);
         }
 
         @Override
         public synchronized void onServiceError(int svcId, IOException e) {
-            mCallback.onServiceError(svcId, e);
+            final Callback callback = wrCallback.get();
+            if(callback != null) {
+                callback.onServiceError(svcId, e);
+            }
         }
 
         @Override
         public synchronized void onServiceClosed(int svcId) {
-            mCallback.onServiceClosed(svcId);
+            final Callback callback = wrCallback.get();
+            if(callback != null) {
+                callback.onServiceClosed(svcId);
+            }
         }
     }
 
@@ -6,6 +6,8 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcel;
 import android.os.ParcelUuid;
 import android.os.Parcelable;
@@ -13,9 +15,14 @@ import android.util.Log;
 import android.util.SparseArray;
 import android.widget.Toast;
 
+import java.io.File;
 import java.lang.ref.WeakReference;
-import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
@@ -32,6 +39,28 @@ import static android.content.ContentValues.TAG;
 
 public class BluetoothServiceScanner extends BroadcastReceiver {
 
+    private static final String UUID_CACHE_FILE = "ezbt_service_uuids";
+
+    public static final int DEFAULT_MAX_PARALLEL_SDP = 2;
+    public static final long DEFAULT_SDP_TIMEOUT = 10000L;
+    public static final long DEFAULT_DISCOVERY_TIMEOUT = 30000L;
+    private static final long CANCEL_TIMEOUT = 2000L;
+
+    /**
+     *  no discovery is started yet
+     */
+    public static final int STATE_IDLE = 0;
+    /**
+     *  waiting for an inquiry already running, e.g. of another app, to be cancelled
+     */
+    public static final int STATE_CANCELLING = 1;
+    public static final int STATE_INQUIRING = 2;
+    /**
+     *  inquiry is over, waiting for SDP of devices found
+     */
+    public static final int STATE_RESOLVING = 3;
+    public static final int STATE_DONE = 4;
+
     private static IntentFilter BT_FILTER;
     private static BluetoothServiceScanner SINGLETON;
     static {
@@ -44,28 +73,63 @@ public class BluetoothServiceScanner extends BroadcastReceiver {
         BT_FILTER.addAction(BluetoothDevice.ACTION_FOUND);
     }
 
-    private List<BluetoothClient> mServices;
-    private List<BluetoothDevice> mDevices;
+    private HashMap<UUID, List<BluetoothClient>> mServiceIndex;
+    private LinkedHashMap<String, DiscoveredDevice> mDevices;
     private HashMap<BluetoothDevice, LinkedList<BluetoothServiceWrapper>> mServiceMap;
     private BluetoothAdapter mBluetoothAdapter;
     private WeakReference<DiscoveryListener> wrCallback;
-    private int uuidsWaitQueue;
+    private volatile ServiceUuidCache mUuidCache;
+    private HashSet<String> mRefreshing;
+    private ArrayDeque<BluetoothDevice> mSdpQueue;
+    private HashSet<String> mSdpRequested;
+    private HashSet<String> mSdpInFlight;
+    private HashMap<String, Runnable> mSdpDeadlines;
+    private int mMaxParallelSdp = DEFAULT_MAX_PARALLEL_SDP;
+    private long mSdpTimeout = DEFAULT_SDP_TIMEOUT;
+    private long mDiscoveryTimeout = DEFAULT_DISCOVERY_TIMEOUT;
+    private final Handler mHandler;
+    private final Runnable mDiscoveryDeadline;
+    private final Runnable mCancelDeadline;
+    private volatile int mState = STATE_IDLE;
+    private boolean isStreaming = false;
     private boolean isDiscoveryStarted = false;
+    private boolean isOverdue = false;
 
     public BluetoothServiceScanner() {
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         mServiceMap = new HashMap<>();
-        mDevices = new LinkedList<>();
+        mDevices = new LinkedHashMap<>();
+        mRefreshing = new HashSet<>();
+        mSdpQueue = new ArrayDeque<>();
+        mSdpRequested = new HashSet<>();
+        mSdpInFlight = new HashSet<>();
+        mSdpDeadlines = new HashMap<>();
+        /**
+         *  every state change happens on the main thread, where the broadcasts are received
+         */
+        mHandler = new Handler(Looper.getMainLooper());
+        mDiscoveryDeadline = new Runnable() {
+            @Override
+            public void run() {
+                onDiscoveryDeadline();
+            }
+        };
+        mCancelDeadline = new Runnable() {
+            @Override
+            public void run() {
+                Log.e(TAG, "Running inquiry is not cancelled in time, discovery is started anyway");
+                startInquiry();
+            }
+        };
     }
 
     @Override
     public void onReceive(Context context, Intent intent) {
         final String action = intent.getAction();
-        final DiscoveryListener discoveryListener = wrCallback.get();
         Log.e(TAG, action);
         if(action.equalsIgnoreCase(BluetoothDevice.ACTION_FOUND)) {
             final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-            final short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI,(short) 0);
+            final short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) DiscoveredDevice.NO_RSSI);
             onDeviceFound(context, device, rssi);
         } else if(action.equalsIgnoreCase(BluetoothAdapter.ACTION_DISCOVERY_FINISHED)) {
             onDiscoveryFinished();
@@ -78,19 +142,17 @@ public class BluetoothServiceScanner extends BroadcastReceiver {
         } else if(action.equalsIgnoreCase(BluetoothDevice.ACTION_UUID)){
             final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
             Log.e(TAG, String.format(Locale.getDefault(), "UUIDs are fetched from Device %s ", device.getName()));
-            tryBindDevice(device.getUuids(), device);
-            synchronized (this) {
-                uuidsWaitQueue--;
-            }
-            if(uuidsWaitQueue == 0) {
-                discoveryListener.onDiscoveryFinished();
-            }
+            onUuidsFetched(device);
         } else {
             Log.e(TAG, "Unexpected Action is received");
         }
     }
 
     private void onDeviceBondStateChanged(BluetoothDevice device, int bondState) {
+        final DiscoveredDevice discovered = mDevices.get(device.getAddress());
+        if(discovered != null) {
+            discovered.setBondState(bondState);
+        }
         switch(bondState) {
             case BluetoothDevice.BOND_BONDED:
                 Log.d(TAG, String.format(Locale.getDefault(), "Device %s is bonded!" , device.getName()));
@@ -108,114 +170,468 @@ public class BluetoothServiceScanner extends BroadcastReceiver {
         }
     }
 
-    private void tryBindDevice(ParcelUuid[] uuids, BluetoothDevice device) {
+    private void tryBindDevice(ParcelUuid[] uuids, BluetoothDevice device, boolean skipBound) {
+        if(uuids == null) {
+            return;
+        }
         int devId;
         final DiscoveryListener discoveryListener = wrCallback.get();
-        for(BluetoothClient service : mServices) {
-            if(searchUuid(uuids, service.getServiceUuid())) {
-                if((devId = service.onBindDevice(device)) >= 0) {
-                    LinkedList<BluetoothServiceWrapper> serviceWrappers = mServiceMap.get(device);
-                    if(serviceWrappers == null) {
-                        serviceWrappers = new LinkedList<>();
-                        mServiceMap.put(device, serviceWrappers);
+        /**
+         *  a single hash lookup per UUID of the device, however many services are registered
+         */
+        HashSet<UUID> matched = null;
+        for(ParcelUuid uuid : uuids) {
+            final List<BluetoothClient> services = mServiceIndex.get(uuid.getUuid());
+            if(services == null) {
+                continue;
+            }
+            if(matched == null) {
+                matched = new HashSet<>();
+            }
+            if(!matched.add(uuid.getUuid())) {
+                continue;
+            }
+            for(BluetoothClient service : services) {
+                /**
+                 *  a device bound in an earlier discovery keeps its binding and devId, it's only reported again
+                 */
+                final BluetoothServiceWrapper bound = getBinding(device, service);
+                if(bound != null) {
+                    if(!skipBound && (discoveryListener != null)) {
+                        discoveryListener.onServiceFound(bound);
                     }
-                    BluetoothServiceWrapper serviceWrapper = new BluetoothServiceWrapper(service, devId);
-                    serviceWrappers.add(serviceWrapper);
+                    continue;
+                }
+                if((devId = service.onBindDevice(device)) < 0) {
+                    continue;
+                }
+                LinkedList<BluetoothServiceWrapper> serviceWrappers = mServiceMap.get(device);
+                if(serviceWrappers == null) {
+                    serviceWrappers = new LinkedList<>();
+                    mServiceMap.put(device, serviceWrappers);
+                }
+                BluetoothServiceWrapper serviceWrapper = new BluetoothServiceWrapper(service, devId);
+                serviceWrappers.add(serviceWrapper);
+                if(discoveryListener != null) {
                     discoveryListener.onServiceFound(serviceWrapper);
                 }
             }
         }
     }
 
+    private BluetoothServiceWrapper getBinding(BluetoothDevice device, BluetoothClient service) {
+        final LinkedList<BluetoothServiceWrapper> serviceWrappers = mServiceMap.get(device);
+        if(serviceWrappers == null) {
+            return null;
+        }
+        for(BluetoothServiceWrapper serviceWrapper : serviceWrappers) {
+            if(serviceWrapper.client == service) {
+                return serviceWrapper;
+            }
+        }
+        return null;
+    }
+
     private void onDiscoveryStarted() {
-        if(isDiscoveryStarted) {
+        if((mState != STATE_INQUIRING) || isDiscoveryStarted) {
             return;
         }
         isDiscoveryStarted = true;
         final DiscoveryListener callback = wrCallback.get();
-        uuidsWaitQueue = 0;
         Log.d(TAG, String.format(Locale.getDefault(), "Discovery started /w %d Devices found", mDevices.size()));
-        callback.onDiscoveryStarted();
+        if(callback != null) {
+            callback.onDiscoveryStarted();
+        }
+        if(isStreaming) {
+            /**
+             *  bonded devices are known before any inquiry response
+             */
+            for(DiscoveredDevice discovered : mDevices.values()) {
+                resolve(discovered.getDevice());
+            }
+        }
     }
 
     private void onDiscoveryFinished() {
-        if(!isDiscoveryStarted) {
-            return;
+        switch (mState) {
+            case STATE_CANCELLING:
+                startInquiry();
+                break;
+            case STATE_INQUIRING:
+                onInquiryFinished();
+                break;
         }
-        isDiscoveryStarted = false;
+    }
+
+    private void onInquiryFinished() {
         Log.d(TAG, String.format(Locale.getDefault(), "Discovery Finished /w %d Devices found", mDevices.size()));
+        setState(STATE_RESOLVING);
+        if(!isStreaming || !isDiscoveryStarted) {
+            /**
+             *  best devices first, so are their services to the listener
+             */
+            for(DiscoveredDevice discovered : getDevices()) {
+                resolve(discovered.getDevice());
+            }
+        }
+        isDiscoveryStarted = false;
+        checkResolved();
+    }
+
+    /**
+     *  the scan ends on time with whatever is resolved by then, however many devices don't answer SDP
+     */
+    private void onDiscoveryDeadline() {
+        Log.e(TAG, String.format(Locale.getDefault(), "Discovery isn't finished in %d ms", mDiscoveryTimeout));
+        isOverdue = true;
+        if((mState == STATE_CANCELLING) || (mState == STATE_INQUIRING)) {
+            mHandler.removeCallbacks(mCancelDeadline);
+            mBluetoothAdapter.cancelDiscovery();
+            onInquiryFinished();
+        }
+        if(mState == STATE_RESOLVING) {
+            finish();
+        }
+    }
+
+    private void finish() {
+        mHandler.removeCallbacks(mDiscoveryDeadline);
+        mHandler.removeCallbacks(mCancelDeadline);
+        for(Runnable deadline : mSdpDeadlines.values()) {
+            mHandler.removeCallbacks(deadline);
+        }
+        mSdpDeadlines.clear();
+        mSdpQueue.clear();
+        mSdpRequested.clear();
+        mSdpInFlight.clear();
+        mRefreshing.clear();
+        isDiscoveryStarted = false;
+        setState(STATE_DONE);
         final DiscoveryListener callback = wrCallback.get();
-        for(BluetoothDevice device : mDevices) {
-            ParcelUuid uuids[] = device.getUuids();
-            if(uuids == null || !(uuids.length > 0)) {
-                if(device.fetchUuidsWithSdp()) {
-                    uuidsWaitQueue++;
-                    Log.e(TAG, String.format(Locale.getDefault(), "Fetching UUID from %d device(s)", uuidsWaitQueue + 1));
-                } else {
-                    Log.e(TAG, String.format(Locale.getDefault(), "Fetching UUID Fail : %s", device.getName()));
-                }
-            } else {
-                tryBindDevice(uuids, device);
+        if(callback != null) {
+            callback.onDiscoveryFinished(getDevices());
+        }
+    }
+
+    private void setState(int state) {
+        Log.d(TAG, String.format(Locale.getDefault(), "Discovery state %d -> %d", mState, state));
+        mState = state;
+    }
+
+    /**
+     *  binds given device to matching services from the UUIDs the platform or the cache has,
+     *  or requests them with SDP
+     */
+    private void resolve(BluetoothDevice device) {
+        final ServiceUuidCache uuidCache = mUuidCache;
+        ParcelUuid uuids[] = device.getUuids();
+        if(uuids != null && uuids.length > 0) {
+            if(uuidCache != null) {
+                /**
+                 *  not taken as fetched now, or entries of bonded devices would never age
+                 */
+                uuidCache.offer(device.getAddress(), toUuids(uuids));
+            }
+            tryBindDevice(uuids, device, false);
+            return;
+        }
+        final UUID[] cached = (uuidCache == null) ? null : uuidCache.get(device.getAddress());
+        if(cached != null) {
+            /**
+             *  bound right away from the cache, an aging entry is refreshed without holding the discovery back
+             */
+            tryBindDevice(toParcelUuids(cached), device, false);
+            if(uuidCache.isRefreshDue(device.getAddress())) {
+                mRefreshing.add(device.getAddress());
+                requestSdp(device);
+            }
+            return;
+        }
+        requestSdp(device);
+    }
+
+    private void requestSdp(BluetoothDevice device) {
+        if(isOverdue || !mSdpRequested.add(device.getAddress())) {
+            return;
+        }
+        mSdpQueue.offer(device);
+        startSdp();
+    }
+
+    /**
+     *  SDP competes with inquiry and with each other for the radio, so only a few run at once
+     */
+    private void startSdp() {
+        BluetoothDevice device;
+        while((mSdpInFlight.size() < mMaxParallelSdp) && ((device = mSdpQueue.poll()) != null)) {
+            if(device.fetchUuidsWithSdp()) {
+                final BluetoothDevice fetching = device;
+                final Runnable deadline = new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.e(TAG, String.format(Locale.getDefault(), "No UUID from %s in %d ms", fetching.getName(), mSdpTimeout));
+                        onSdpFailed(fetching);
+                        startSdp();
+                        checkResolved();
+                    }
+                };
+                mSdpInFlight.add(device.getAddress());
+                mSdpDeadlines.put(device.getAddress(), deadline);
+                mHandler.postDelayed(deadline, mSdpTimeout);
+                Log.e(TAG, String.format(Locale.getDefault(), "Fetching UUID from %d device(s)", mSdpInFlight.size()));
+                continue;
             }
+            Log.e(TAG, String.format(Locale.getDefault(), "Fetching UUID Fail : %s", device.getName()));
+            onSdpFailed(device);
+        }
+    }
+
+    private void onSdpFailed(BluetoothDevice device) {
+        final String address = device.getAddress();
+        mSdpInFlight.remove(address);
+        mSdpDeadlines.remove(address);
+        mSdpRequested.remove(address);
+        mRefreshing.remove(address);
+        final ServiceUuidCache uuidCache = mUuidCache;
+        if(uuidCache != null) {
+            uuidCache.invalidate(address);
+        }
+    }
+
+    private void onUuidsFetched(BluetoothDevice device) {
+        final String address = device.getAddress();
+        final ParcelUuid[] uuids = device.getUuids();
+        final ServiceUuidCache uuidCache = mUuidCache;
+        if(uuidCache != null) {
+            /**
+             *  no UUIDs means SDP failed, the device is looked up again next time
+             */
+            uuidCache.put(address, toUuids(uuids));
+        }
+        if(!mSdpInFlight.remove(address)) {
+            /**
+             *  fetched on behalf of someone else
+             */
+            return;
         }
-        if(uuidsWaitQueue > 0) {
+        mSdpRequested.remove(address);
+        mHandler.removeCallbacks(mSdpDeadlines.remove(address));
+        /**
+         *  a refresh of a device bound from the cache is new to the listener only for services the cache didn't have
+         */
+        tryBindDevice(uuids, device, mRefreshing.remove(address));
+        startSdp();
+        checkResolved();
+    }
+
+    /**
+     *  finishes the discovery once the inquiry is over and no awaited SDP is left, background refreshes aren't awaited
+     */
+    private void checkResolved() {
+        if(mState != STATE_RESOLVING) {
             return;
         }
-        callback.onDiscoveryFinished();
+        for(String address : mSdpRequested) {
+            if(!mRefreshing.contains(address)) {
+                return;
+            }
+        }
+        finish();
     }
 
     private void onDeviceFound(Context context, BluetoothDevice device, short rssi) {
-        mDevices.add(device);
+        if(mState != STATE_INQUIRING) {
+            return;
+        }
+        DiscoveredDevice discovered = mDevices.get(device.getAddress());
+        final boolean isNew = (discovered == null);
+        if(isNew) {
+            discovered = new DiscoveredDevice(device, device.getBondState());
+            mDevices.put(device.getAddress(), discovered);
+        }
+        discovered.onSighted(device, rssi, device.getBondState());
         final DiscoveryListener discoveryListener = wrCallback.get();
         if(discoveryListener != null) {
             discoveryListener.onDeviceFound(device, rssi, device.getBondState() == BluetoothDevice.BOND_BONDED);
         }
         Log.d(TAG, String.format(Locale.getDefault(), "%s", device.getName()));
         Toast.makeText(context, String.format(Locale.getDefault(), "%s", device.getName()), Toast.LENGTH_SHORT).show();
+        if(isStreaming && isNew) {
+            resolve(device);
+        }
+    }
+
+    /**
+     *  in streaming mode each device is matched to services as soon as it's found, while the inquiry goes on,
+     *  rather than all of them after it ends, so the first service is found about one inquiry response in.
+     *  {@link DiscoveryListener#onDiscoveryFinished(List)} still comes once the inquiry and the awaited SDP are over.
+     */
+    public void setStreaming(boolean streaming) {
+        isStreaming = streaming;
+    }
+
+    /**
+     *  @param maxParallelSdp max number of devices whose UUIDs are fetched with SDP at once, the rest wait in line
+     */
+    public void setMaxParallelSdp(int maxParallelSdp) {
+        if(maxParallelSdp <= 0) {
+            throw new IllegalArgumentException(String.format(Locale.getDefault(), "Invalid SDP limit (%d)", maxParallelSdp));
+        }
+        mMaxParallelSdp = maxParallelSdp;
+    }
+
+    /**
+     *  @param sdpTimeout time a device is given to answer SDP, after which it's taken as failed
+     */
+    public void setSdpTimeout(long sdpTimeout) {
+        mSdpTimeout = sdpTimeout;
+    }
+
+    /**
+     *  @param discoveryTimeout time from start after which the discovery finishes with whatever is resolved by then
+     */
+    public void setDiscoveryTimeout(long discoveryTimeout) {
+        mDiscoveryTimeout = discoveryTimeout;
+    }
+
+    /**
+     *  @return one of {@link #STATE_IDLE}, {@link #STATE_CANCELLING}, {@link #STATE_INQUIRING},
+     *  {@link #STATE_RESOLVING} or {@link #STATE_DONE}
+     */
+    public int getState() {
+        return mState;
     }
 
-    public void startDiscovery(DiscoveryListener listener, BluetoothClient...services) {
+    /**
+     *  starts a discovery, replacing the one in progress if any. returns right away, the discovery
+     *  runs on the main thread and always ends with {@link DiscoveryListener#onDiscoveryFinished(List)},
+     *  at the latest when the discovery timeout passes. a replaced discovery ends that way too, before the new one starts.
+     */
+    public void startDiscovery(final DiscoveryListener listener, final BluetoothClient...services) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                begin(listener, services);
+            }
+        });
+    }
+
+    private void begin(DiscoveryListener listener, BluetoothClient...services) {
+        if((mState != STATE_IDLE) && (mState != STATE_DONE)) {
+            Log.d(TAG, "Discovery in progress is replaced");
+            /**
+             *  the listener of the replaced discovery is told it's over, with the devices found so far
+             */
+            finish();
+        }
         wrCallback = new WeakReference<>(listener);
         mDevices.clear();
-        mServices = Arrays.asList(services);
+        isOverdue = false;
+        mServiceIndex = new HashMap<>(services.length * 2);
+        for(BluetoothClient service : services) {
+            List<BluetoothClient> indexed = mServiceIndex.get(service.getServiceUuid());
+            if(indexed == null) {
+                indexed = new ArrayList<>(1);
+                mServiceIndex.put(service.getServiceUuid(), indexed);
+            }
+            indexed.add(service);
+        }
         Set<BluetoothDevice> devices = mBluetoothAdapter.getBondedDevices();
         for(BluetoothDevice device : devices) {
-            mDevices.add(device);
+            mDevices.put(device.getAddress(), new DiscoveredDevice(device, BluetoothDevice.BOND_BONDED));
         }
-        while(mBluetoothAdapter.isDiscovering()) {
+        mHandler.postDelayed(mDiscoveryDeadline, mDiscoveryTimeout);
+        if(mBluetoothAdapter.isDiscovering()) {
+            /**
+             *  the inquiry is started once the running one reports it's finished
+             */
+            setState(STATE_CANCELLING);
+            mHandler.postDelayed(mCancelDeadline, CANCEL_TIMEOUT);
             mBluetoothAdapter.cancelDiscovery();
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                Log.e(TAG, e.getLocalizedMessage());
-            }
+            return;
         }
-        mBluetoothAdapter.startDiscovery();
+        startInquiry();
     }
 
-
-    private boolean searchUuid(ParcelUuid[] uuids, UUID svcUuid) {
-        if(uuids == null) {
-            return false;
-        }
-        for(ParcelUuid uuid : uuids) {
-            Log.d(TAG, uuid.toString());
-            if(uuid.getUuid().compareTo(svcUuid) == 0)
-                return true;
+    private void startInquiry() {
+        mHandler.removeCallbacks(mCancelDeadline);
+        setState(STATE_INQUIRING);
+        if(!mBluetoothAdapter.startDiscovery()) {
+            Log.e(TAG, "Fail to start inquiry, devices known so far are resolved");
+            onInquiryFinished();
         }
-        return false;
     }
 
+    /**
+     *  must be called on the main thread, e.g. from a {@link DiscoveryListener} callback, as the discovery
+     *  updates the devices there while it runs. the list returned is a copy, the devices in it are not.
+     *  @return devices known in the current or last discovery, each once, ranked by {@link DiscoveredDevice#BY_SIGNAL}
+     */
+    public List<DiscoveredDevice> getDevices() {
+        final List<DiscoveredDevice> devices = new ArrayList<>(mDevices.values());
+        Collections.sort(devices, DiscoveredDevice.BY_SIGNAL);
+        return devices;
+    }
+
+    /**
+     *  cancels the discovery in progress without waiting for the radio,
+     *  the listener gets {@link DiscoveryListener#onDiscoveryFinished(List)} with the devices found so far
+     */
     public void cancelDiscovery() {
-        Log.d(TAG, "Discovery canceled");
-        mBluetoothAdapter.cancelDiscovery();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if((mState == STATE_IDLE) || (mState == STATE_DONE)) {
+                    return;
+                }
+                Log.d(TAG, "Discovery canceled");
+                if((mState == STATE_CANCELLING) || (mState == STATE_INQUIRING)) {
+                    mBluetoothAdapter.cancelDiscovery();
+                }
+                finish();
+            }
+        });
     }
 
     public void register(Context context) {
         Log.d(TAG, "listening on bluetooth action");
+        if(mUuidCache == null) {
+            setUuidCache(new ServiceUuidCache(new File(context.getFilesDir(), UUID_CACHE_FILE)));
+        }
         context.registerReceiver(this, BT_FILTER);
     }
 
+    /**
+     *  replaces the cache service UUIDs of devices are looked up in before fetching them with SDP,
+     *  by default a file in the app's files directory set up on {@link #register(Context)}.
+     *  the cache is loaded in background right away.
+     */
+    public void setUuidCache(ServiceUuidCache uuidCache) {
+        mUuidCache = uuidCache;
+        if(uuidCache != null) {
+            uuidCache.preload();
+        }
+    }
+
+    private static UUID[] toUuids(ParcelUuid[] uuids) {
+        if(uuids == null) {
+            return null;
+        }
+        final UUID[] result = new UUID[uuids.length];
+        for(int idx = 0; idx < uuids.length; idx++) {
+            result[idx] = uuids[idx].getUuid();
+        }
+        return result;
+    }
+
+    private static ParcelUuid[] toParcelUuids(UUID[] uuids) {
+        final ParcelUuid[] result = new ParcelUuid[uuids.length];
+        for(int idx = 0; idx < uuids.length; idx++) {
+            result[idx] = new ParcelUuid(uuids[idx]);
+        }
+        return result;
+    }
+
     public void unregister(Context context) {
         Log.d(TAG, "stop listening on bluetooth action");
         context.unregisterReceiver(this);
@@ -316,9 +732,15 @@ public class BluetoothServiceScanner extends BroadcastReceiver {
 
         void onServiceFound(BluetoothServiceWrapper service);
 
+        /**
+         * @param rssi in dBm, or {@link DiscoveredDevice#NO_RSSI} if the inquiry response carries none
+         */
         void onDeviceFound(BluetoothDevice device, short rssi, boolean isbonded);
 
-        void onDiscoveryFinished();
+        /**
+         * @param devices every device known in this discovery, best signal first, see {@link DiscoveredDevice#BY_SIGNAL}
+         */
+        void onDiscoveryFinished(List<DiscoveredDevice> devices);
 
         void onDiscoveryStarted();
     }
@@ -0,0 +1,148 @@
+package com.example.ezbluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ *  A remote device seen by {@link BluetoothServiceScanner} during a discovery, one per address however
+ *  many times it's reported. RSSI of inquiry responses fluctuates by several dB from one to the next,
+ *  so devices are compared by an exponentially weighted moving average of it rather than the latest.
+ *  It's updated in place on the main thread while the discovery runs, so is to be read there too.
+ */
+
+public class DiscoveredDevice {
+
+    /**
+     *  RSSI of a device not heard from in this discovery, e.g. a bonded one out of range,
+     *  or whose inquiry responses carry none
+     */
+    public static final int NO_RSSI = Short.MIN_VALUE;
+
+    /**
+     *  weight of the latest RSSI in the moving average
+     */
+    private static final float RSSI_ALPHA = 0.3f;
+
+    /**
+     *  strongest smoothed signal first, devices without RSSI last. among equals, the one heard
+     *  more often and then a bonded one is preferred, as it's more likely to accept a connection.
+     */
+    public static final Comparator<DiscoveredDevice> BY_SIGNAL = new Comparator<DiscoveredDevice>() {
+        @Override
+        public int compare(DiscoveredDevice lhs, DiscoveredDevice rhs) {
+            if(lhs.hasRssi() != rhs.hasRssi()) {
+                return lhs.hasRssi() ? -1 : 1;
+            }
+            final int bySignal = Math.round(rhs.mSmoothedRssi) - Math.round(lhs.mSmoothedRssi);
+            if(bySignal != 0) {
+                return bySignal;
+            }
+            if(lhs.mSightings != rhs.mSightings) {
+                return rhs.mSightings - lhs.mSightings;
+            }
+            return (rhs.isBonded() ? 1 : 0) - (lhs.isBonded() ? 1 : 0);
+        }
+    };
+
+    private BluetoothDevice mDevice;
+    private final long mFirstSeen;
+    private long mLastSeen;
+    private int mRssi;
+    private float mSmoothedRssi;
+    private int mSightings;
+    private int mBondState;
+
+    DiscoveredDevice(BluetoothDevice device, int bondState) {
+        mDevice = device;
+        mBondState = bondState;
+        mFirstSeen = mLastSeen = SystemClock.elapsedRealtime();
+        mRssi = NO_RSSI;
+        mSmoothedRssi = NO_RSSI;
+    }
+
+    /**
+     *  records an inquiry response of the device, a response without RSSI is counted but leaves the average as is
+     */
+    void onSighted(BluetoothDevice device, int rssi, int bondState) {
+        mDevice = device;
+        mBondState = bondState;
+        mLastSeen = SystemClock.elapsedRealtime();
+        mSightings++;
+        if(rssi == NO_RSSI) {
+            return;
+        }
+        mSmoothedRssi = hasRssi() ? mSmoothedRssi + RSSI_ALPHA * (rssi - mSmoothedRssi) : rssi;
+        mRssi = rssi;
+    }
+
+    void setBondState(int bondState) {
+        mBondState = bondState;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    public String getAddress() {
+        return mDevice.getAddress();
+    }
+
+    /**
+     *  @return RSSI of the latest inquiry response in dBm, or {@link #NO_RSSI}
+     */
+    public int getRssi() {
+        return mRssi;
+    }
+
+    /**
+     *  @return moving average of RSSI in dBm, or {@link #NO_RSSI}
+     */
+    public float getSmoothedRssi() {
+        return mSmoothedRssi;
+    }
+
+    /**
+     *  @return true if an inquiry response of the device carried RSSI
+     */
+    public boolean hasRssi() {
+        return mRssi != NO_RSSI;
+    }
+
+    /**
+     *  @return number of inquiry responses received from the device
+     */
+    public int getSightings() {
+        return mSightings;
+    }
+
+    /**
+     *  @return time the device is first known in this discovery, in {@link SystemClock#elapsedRealtime()} base
+     */
+    public long getFirstSeen() {
+        return mFirstSeen;
+    }
+
+    /**
+     *  @return time of the latest inquiry response, in {@link SystemClock#elapsedRealtime()} base
+     */
+    public long getLastSeen() {
+        return mLastSeen;
+    }
+
+    public int getBondState() {
+        return mBondState;
+    }
+
+    public boolean isBonded() {
+        return mBondState == BluetoothDevice.BOND_BONDED;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.getDefault(), "%s rssi %d (avg %.1f, %d sightings)%s", getAddress(),
+                mRssi, mSmoothedRssi, mSightings, isBonded() ? " bonded" : "");
+    }
+}
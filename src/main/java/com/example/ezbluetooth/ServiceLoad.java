@@ -0,0 +1,63 @@
+package com.example.ezbluetooth;
+
+import java.util.Locale;
+
+/**
+ *  Point-in-time load of a {@link BluetoothServer}, used to shed load before a client is handled.
+ */
+
+public class ServiceLoad {
+
+    private final int mActiveCount;
+    private final int mQueuedCount;
+    private final int mMaxActiveCount;
+    private final int mMaxQueuedCount;
+    private final long mAdmittedCount;
+    private final long mRejectedCount;
+
+    public ServiceLoad(int activeCount, int queuedCount, int maxActiveCount, int maxQueuedCount, long admittedCount, long rejectedCount) {
+        mActiveCount = activeCount;
+        mQueuedCount = queuedCount;
+        mMaxActiveCount = maxActiveCount;
+        mMaxQueuedCount = maxQueuedCount;
+        mAdmittedCount = admittedCount;
+        mRejectedCount = rejectedCount;
+    }
+
+    public int getActiveCount() {
+        return mActiveCount;
+    }
+
+    public int getQueuedCount() {
+        return mQueuedCount;
+    }
+
+    public int getMaxActiveCount() {
+        return mMaxActiveCount;
+    }
+
+    public int getMaxQueuedCount() {
+        return mMaxQueuedCount;
+    }
+
+    public long getAdmittedCount() {
+        return mAdmittedCount;
+    }
+
+    public long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    /**
+     *  @return true if a new client would be rejected right away
+     */
+    public boolean isSaturated() {
+        return (mActiveCount >= mMaxActiveCount) && (mQueuedCount >= mMaxQueuedCount);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.getDefault(), "active %d/%d, queued %d/%d, admitted %d, rejected %d",
+                mActiveCount, mMaxActiveCount, mQueuedCount, mMaxQueuedCount, mAdmittedCount, mRejectedCount);
+    }
+}
@@ -0,0 +1,378 @@
+package com.example.ezbluetooth;
+
+import android.util.Log;
+
+import com.example.ezbluetooth.exec.ServiceScheduler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Service UUIDs of remote devices by address, kept across runs so that discovery can bind devices
+ *  seen before without an SDP round-trip. Entries expire after the TTL and are dropped when SDP fails
+ *  for the device. The file is loaded in background, started by {@link #preload()} or else the first use,
+ *  and saved shortly after changes, so that no call waits for file I/O. Lookups miss until the file is
+ *  loaded, while changes made meanwhile take precedence over its content.
+ *
+ *  File format is big endian, a header of magic (4), version (1) and entry count (4), then per entry
+ *  address (6), fetch time in epoch millis (8), UUID count (1) and the UUIDs (16 each).
+ */
+
+public class ServiceUuidCache {
+
+    private static final String TAG = ServiceUuidCache.class.getCanonicalName();
+
+    public static final long DEFAULT_TTL = TimeUnit.DAYS.toMillis(7);
+    public static final long DEFAULT_REFRESH_AFTER = TimeUnit.DAYS.toMillis(1);
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    private static final int MAGIC = 0x455A5543;
+    private static final int VERSION = 1;
+    private static final int MAX_UUIDS = 255;
+    private static final long SAVE_DELAY = 1000L;
+
+    private final File mFile;
+    private final long mTtlMillis;
+    private final long mRefreshAfterMillis;
+    private final LinkedHashMap<Long, CachedUuids> mEntries;
+    /**
+     *  devices invalidated before the file is loaded, their entries in the file are ignored
+     */
+    private final HashSet<Long> mDropped;
+    private volatile boolean isLoaded;
+    private boolean isLoading;
+    private boolean isSaveScheduled;
+
+    public ServiceUuidCache(File file) {
+        this(file, DEFAULT_TTL, DEFAULT_REFRESH_AFTER, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     *
+     * @param file file the cache is persisted to
+     * @param ttlMillis age after which an entry isn't used anymore
+     * @param refreshAfterMillis age after which an entry is still used but due for a refresh
+     * @param maxEntries max number of devices kept, least recently used ones are dropped beyond it
+     */
+    public ServiceUuidCache(File file, long ttlMillis, long refreshAfterMillis, final int maxEntries) {
+        if((ttlMillis <= 0) || (refreshAfterMillis > ttlMillis) || (maxEntries <= 0)) {
+            throw new IllegalArgumentException(String.format(Locale.getDefault(), "Invalid settings (%d / %d / %d)",
+                    ttlMillis, refreshAfterMillis, maxEntries));
+        }
+        mFile = file;
+        mTtlMillis = ttlMillis;
+        mRefreshAfterMillis = refreshAfterMillis;
+        mEntries = new LinkedHashMap<Long, CachedUuids>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CachedUuids> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        mDropped = new HashSet<>();
+    }
+
+    /**
+     *  starts loading the file in background, so that it's likely loaded by the first lookup
+     */
+    public synchronized void preload() {
+        startLoading();
+    }
+
+    /**
+     *  @return true once the file is loaded, lookups miss until then
+     */
+    public boolean isLoaded() {
+        return isLoaded;
+    }
+
+    /**
+     *  @return cached service UUIDs of given device, or null if there are none, they are expired or the file isn't loaded yet
+     */
+    public synchronized UUID[] get(String address) {
+        final CachedUuids entry = getEntry(address);
+        return (entry == null) ? null : entry.uuids.clone();
+    }
+
+    /**
+     *  @return true if the UUIDs of given device are cached but old enough to be fetched again
+     */
+    public synchronized boolean isRefreshDue(String address) {
+        final CachedUuids entry = getEntry(address);
+        return (entry != null) && (System.currentTimeMillis() - entry.fetchedAt >= mRefreshAfterMillis);
+    }
+
+    /**
+     *  caches service UUIDs of given device as fetched now, an empty set invalidates the device
+     */
+    public synchronized void put(String address, UUID[] uuids) {
+        final long key = toKey(address);
+        if(key < 0) {
+            return;
+        }
+        if((uuids == null) || (uuids.length == 0)) {
+            invalidate(address);
+            return;
+        }
+        startLoading();
+        final UUID[] kept = (uuids.length > MAX_UUIDS) ? Arrays.copyOf(uuids, MAX_UUIDS) : uuids.clone();
+        mEntries.put(key, new CachedUuids(kept, System.currentTimeMillis()));
+        mDropped.remove(key);
+        scheduleSave();
+    }
+
+    /**
+     *  caches service UUIDs of given device known without a fetch, e.g. kept by the platform. unlike
+     *  {@link #put(String, UUID[])} an entry with the same UUIDs is left as is, so it keeps aging and
+     *  is refreshed in time. ignored until the file is loaded, as the file may have the device already.
+     */
+    public synchronized void offer(String address, UUID[] uuids) {
+        if((uuids == null) || (uuids.length == 0)) {
+            return;
+        }
+        if(!isLoaded) {
+            startLoading();
+            return;
+        }
+        final CachedUuids entry = getEntry(address);
+        if((entry != null) && new HashSet<>(Arrays.asList(entry.uuids)).equals(new HashSet<>(Arrays.asList(uuids)))) {
+            return;
+        }
+        put(address, uuids);
+    }
+
+    /**
+     *  drops the cached UUIDs of given device, e.g. on SDP failure, so that they are fetched on next discovery
+     */
+    public synchronized void invalidate(String address) {
+        final long key = toKey(address);
+        if(key < 0) {
+            return;
+        }
+        startLoading();
+        if(!isLoaded) {
+            mDropped.add(key);
+        }
+        if((mEntries.remove(key) != null) || !isLoaded) {
+            scheduleSave();
+        }
+    }
+
+    /**
+     *  @return number of devices cached, counting only those made so far if the file isn't loaded yet
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     *  writes the cache to its file now, replacing the previous content atomically.
+     *  loads the file first if it isn't yet, so must not be called on the main thread.
+     */
+    public void save() throws IOException {
+        load();
+        final List<Map.Entry<Long, CachedUuids>> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(mEntries.entrySet());
+        }
+        synchronized (mFile) {
+            write(entries);
+        }
+    }
+
+    private void write(List<Map.Entry<Long, CachedUuids>> entries) throws IOException {
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            dos.writeInt(MAGIC);
+            dos.writeByte(VERSION);
+            dos.writeInt(entries.size());
+            for(Map.Entry<Long, CachedUuids> entry : entries) {
+                final long key = entry.getKey();
+                dos.writeShort((int) (key >>> 32));
+                dos.writeInt((int) key);
+                dos.writeLong(entry.getValue().fetchedAt);
+                dos.writeByte(entry.getValue().uuids.length);
+                for(UUID uuid : entry.getValue().uuids) {
+                    dos.writeLong(uuid.getMostSignificantBits());
+                    dos.writeLong(uuid.getLeastSignificantBits());
+                }
+            }
+        } finally {
+            dos.close();
+        }
+        if(!tmp.renameTo(mFile)) {
+            throw new IOException(String.format(Locale.getDefault(), "Fail to replace %s", mFile.getPath()));
+        }
+    }
+
+    private CachedUuids getEntry(String address) {
+        final long key = toKey(address);
+        if(key < 0) {
+            return null;
+        }
+        startLoading();
+        final CachedUuids entry = mEntries.get(key);
+        if(entry == null) {
+            return null;
+        }
+        if(System.currentTimeMillis() - entry.fetchedAt >= mTtlMillis) {
+            mEntries.remove(key);
+            scheduleSave();
+            return null;
+        }
+        return entry;
+    }
+
+    private void scheduleSave() {
+        if(isSaveScheduled) {
+            return;
+        }
+        isSaveScheduled = true;
+        /**
+         *  changes made during a discovery are written together
+         */
+        ServiceScheduler.getDefault().getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ServiceUuidCache.this) {
+                    isSaveScheduled = false;
+                }
+                try {
+                    save();
+                } catch (IOException e) {
+                    Log.e(TAG, e.getLocalizedMessage());
+                }
+            }
+        }, SAVE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     *  starts loading the file on the shared pool unless it's loaded or being loaded, called holding the lock
+     */
+    private void startLoading() {
+        if(isLoaded || isLoading) {
+            return;
+        }
+        isLoading = true;
+        ServiceScheduler.getDefault().execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     *  reads the file without holding the lock, then merges what's read under changes made meanwhile
+     */
+    private void load() {
+        synchronized (mFile) {
+            if(isLoaded) {
+                return;
+            }
+            final LinkedHashMap<Long, CachedUuids> loaded = read();
+            synchronized (this) {
+                loaded.keySet().removeAll(mDropped);
+                for(Map.Entry<Long, CachedUuids> entry : mEntries.entrySet()) {
+                    /**
+                     *  changes made meanwhile are the most recently used
+                     */
+                    loaded.remove(entry.getKey());
+                    loaded.put(entry.getKey(), entry.getValue());
+                }
+                mEntries.clear();
+                mEntries.putAll(loaded);
+                mDropped.clear();
+                isLoaded = true;
+                isLoading = false;
+            }
+        }
+    }
+
+    private LinkedHashMap<Long, CachedUuids> read() {
+        final LinkedHashMap<Long, CachedUuids> loaded = new LinkedHashMap<>();
+        DataInputStream dis;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        } catch (FileNotFoundException e) {
+            return loaded;
+        }
+        final long now = System.currentTimeMillis();
+        try {
+            if((dis.readInt() != MAGIC) || (dis.readUnsignedByte() != VERSION)) {
+                Log.e(TAG, String.format(Locale.getDefault(), "Unknown format of %s, ignored", mFile.getPath()));
+                return loaded;
+            }
+            final int count = dis.readInt();
+            for(int idx = 0; idx < count; idx++) {
+                final long key = ((long) dis.readUnsignedShort() << 32) | (dis.readInt() & 0xFFFFFFFFL);
+                final long fetchedAt = dis.readLong();
+                final UUID[] uuids = new UUID[dis.readUnsignedByte()];
+                for(int i = 0; i < uuids.length; i++) {
+                    uuids[i] = new UUID(dis.readLong(), dis.readLong());
+                }
+                if(now - fetchedAt < mTtlMillis) {
+                    loaded.put(key, new CachedUuids(uuids, fetchedAt));
+                }
+            }
+        } catch (IOException e) {
+            /**
+             *  a truncated file keeps the entries read so far
+             */
+            Log.e(TAG, e.getLocalizedMessage());
+        } finally {
+            try {
+                dis.close();
+            } catch (IOException e) {
+                Log.e(TAG, e.getLocalizedMessage());
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     *  packs an address of the form 00:11:22:AA:BB:CC into its 48 bits
+     * @return the packed address, or -1 if malformed
+     */
+    private static long toKey(String address) {
+        if((address == null) || (address.length() != 17)) {
+            return -1;
+        }
+        long key = 0;
+        for(int idx = 0; idx < 17; idx += 3) {
+            final int hi = Character.digit(address.charAt(idx), 16);
+            final int lo = Character.digit(address.charAt(idx + 1), 16);
+            if((hi < 0) || (lo < 0) || ((idx < 15) && (address.charAt(idx + 2) != ':'))) {
+                return -1;
+            }
+            key = (key << 8) | (hi << 4) | lo;
+        }
+        return key;
+    }
+
+    private static class CachedUuids {
+        final UUID[] uuids;
+        final long fetchedAt;
+
+        CachedUuids(UUID[] uuids, long fetchedAt) {
+            this.uuids = uuids;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+}
@@ -1,20 +1,40 @@
 package com.example.ezbluetooth.client;
 
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.os.Parcel;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import android.util.SparseArray;
 
 import com.example.ezbluetooth.BluetoothClient;
+import com.example.ezbluetooth.exec.ServiceScheduler;
+import com.example.ezbluetooth.io.AsyncWriter;
+import com.example.ezbluetooth.io.BufferPool;
+import com.example.ezbluetooth.io.CoalescingOutputStream;
+import com.example.ezbluetooth.io.FrameCompressor;
+import com.example.ezbluetooth.io.FrameDecoder;
+import com.example.ezbluetooth.io.FrameEncoder;
+import com.example.ezbluetooth.io.OutputSink;
+import com.example.ezbluetooth.io.WriteFuture;
+import com.example.ezbluetooth.metrics.ConnectionMetrics;
+import com.example.ezbluetooth.metrics.MetricsSnapshot;
+import com.example.ezbluetooth.transport.BluetoothTransport;
+import com.example.ezbluetooth.transport.Channel;
+import com.example.ezbluetooth.transport.Transport;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.InvalidParameterException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.Deflater;
 
 /**
  * Created by innocentevil on 17. 2. 1.
@@ -25,28 +45,40 @@ public abstract class AbsBluetoothClient implements BluetoothClient {
 
     private static final String TAG = AbsBluetoothClient.class.getCanonicalName();
 
-    private volatile Thread mClientThread;
-    private BluetoothSocket mClientSocket;
-    private boolean isConnected;
-    private DataOutputStream mOutputStream;
+    /**
+     *  device Id reported when there is no session
+     */
+    public static final int NO_DEVICE = -1;
+
+    private volatile Transport mTransport;
+    /**
+     *  guarded by this, like the device table
+     */
+    private final HashMap<Integer, ClientSession> mSessions;
+    private final HashMap<String, Integer> mAddressIds;
+    private final ThreadLocal<ClientSession> mCurrentSession;
+    private volatile MetricsSnapshot mLastMetrics;
     private int mDevId;
     private SparseArray<BluetoothDevice> mDevices;
     private HashSet<Integer> mDevIds;
-    private int currentDevId;
 
 
     protected AbsBluetoothClient() {
         mDevId = 0;
-        currentDevId = 0;
         mDevices = new SparseArray<>();
         mDevIds = new HashSet<>();
+        mSessions = new HashMap<>();
+        mAddressIds = new HashMap<>();
+        mCurrentSession = new ThreadLocal<>();
     }
 
     public AbsBluetoothClient(Parcel source) {
         int devId, size = source.readInt();
         mDevices = new SparseArray<>(size);
         mDevIds = new HashSet<>(size);
-        currentDevId = 0;
+        mSessions = new HashMap<>();
+        mAddressIds = new HashMap<>();
+        mCurrentSession = new ThreadLocal<>();
         for(int idx = 0;idx < size; idx++) {
             devId = source.readInt();
             BluetoothDevice device = source.readParcelable(BluetoothDevice.class.getClassLoader());
@@ -73,6 +105,11 @@ public abstract class AbsBluetoothClient implements BluetoothClient {
 
 
 
+    /**
+     *  starts a session to given device. sessions to different devices run in parallel, each on a thread
+     *  of the shared {@link ServiceScheduler}, and share the buffer pool of this client.
+     * @throws IllegalStateException if a session to the device is already started
+     */
     @Override
     public synchronized void start(int devId) throws IllegalStateException, IOException, InvalidParameterException {
 
@@ -87,87 +124,531 @@ public abstract class AbsBluetoothClient implements BluetoothClient {
             throw new IllegalStateException(String.format(Locale.getDefault(), "No device is bound to service %s", getServiceName()));
         }
 
-        isConnected = false;
-        mOutputStream = null;
+        start(device.getAddress(), devId);
+    }
+
+    /**
+     *  connects to given address directly over the transport of this client, without any bound device.
+     *  used with transports other than Bluetooth, e.g. to run the client off-device.
+     *  every address gets a device Id of its own, kept across restarts, so sessions to several addresses run side by side.
+     * @return device Id the session is identified by
+     * @throws IllegalStateException if a session to the address is already started
+     */
+    public synchronized int start(String address) throws IllegalStateException {
+        Integer devId = mAddressIds.get(address);
+        if(devId == null) {
+            /**
+             *  taken from the same sequence as bound devices, so they never collide
+             */
+            devId = mDevId++;
+            mAddressIds.put(address, devId);
+        }
+        start(address, devId);
+        return devId;
+    }
+
+    private void start(final String address, final int devId) throws IllegalStateException {
+        final ClientSession session;
         synchronized (this) {
-            if(mClientThread != null) {
-                throw new IllegalStateException(String.format(Locale.getDefault(), "Client is already started %d", currentDevId));
+            if(mSessions.containsKey(devId)) {
+                throw new IllegalStateException(String.format(Locale.getDefault(), "Client is already started %d", devId));
             }
-            mClientThread = new Thread(new Runnable() {
+            session = new ClientSession(devId, address);
+            mSessions.put(devId, session);
+        }
+        try {
+            ServiceScheduler.getDefault().execute(new Runnable() {
                 @Override
                 public void run() {
+                    final Thread thread = Thread.currentThread();
+                    final String threadName = thread.getName();
+                    thread.setName(String.format(Locale.getDefault(), "%s-session-%d", getServiceName(), devId));
+                    mCurrentSession.set(session);
                     try {
-                        mClientSocket = device.createRfcommSocketToServiceRecord(getServiceUuid());
-                        mClientSocket.connect();
-                        isConnected = true;
-                        mOutputStream = new DataOutputStream(mClientSocket.getOutputStream());
-                        DataInputStream dis = new DataInputStream(mClientSocket.getInputStream());
-                        onConnected();
-                        Log.e(TAG, "Service Ready");
-                        byte[] rxBuffer = new byte[getReadSize()];
-                        while (isConnected) {
-                            if (dis.read(rxBuffer) > 0) {
-                                byte[] txData = onDataReceived(rxBuffer);
-                                if (txData != null) {
-                                    mOutputStream.write(txData);
-                                }
-                            }
-                        }
-                    } catch (IOException e) {
-                        Log.e(TAG, e.getLocalizedMessage());
+                        runSession(session);
                     } finally {
-                        if (mClientSocket.isConnected()) {
-                            try {
-                                mClientSocket.close();
-                                synchronized (AbsBluetoothClient.this) {
-                                    mClientSocket = null;
-                                }
-                            } catch (IOException e) {
-                                Log.e(TAG, e.getLocalizedMessage());
-                            }
-                        }
-                        isConnected = false;
-                        onDisconnected();
+                        mCurrentSession.remove();
+                        thread.setName(threadName);
                     }
                 }
             });
-            mClientThread.start();
-            currentDevId = devId;
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                mSessions.remove(devId);
+            }
+            Log.e(TAG, e.getLocalizedMessage());
+            throw new IllegalStateException(String.format(Locale.getDefault(), "Session %d can't be run", devId), e);
         }
     }
 
-    protected void write(byte[] data) throws IOException {
-        if(mOutputStream == null) {
-            throw new IOException("OutputStream is not ready");
+    private void runSession(final ClientSession session) {
+        final BufferPool bufferPool = getBufferPool();
+        final int maxFrameSize = isFramingEnabled() ? getMaxFrameSize() : FrameDecoder.NO_FRAMING;
+        final ConnectionMetrics metrics = session.getLiveMetrics();
+        final FrameCompressor compressor = (isFramingEnabled() && isCompressionEnabled()) ? new FrameCompressor(bufferPool, maxFrameSize,
+                getCompressionLevel(), getCompressionThreshold(), metrics.getCompression()) : null;
+        final FrameDecoder decoder = new FrameDecoder(bufferPool, (compressor == null) ? maxFrameSize : maxFrameSize + FrameCompressor.OVERHEAD, getReadSize());
+        final OutputSink sink = new OutputSink(bufferPool, getReadSize());
+        final DataSubscriber subscriber = getSubscriber();
+        /**
+         *  frames completed by a read beyond the demand, never more than a single read
+         */
+        final ArrayDeque<byte[]> backlog = new ArrayDeque<>();
+        boolean isSubscribed = false;
+        CoalescingOutputStream outputStream = null;
+        try {
+            final long connectStart = System.nanoTime();
+            final Channel channel = getTransport().connect(session.getAddress(), getServiceUuid());
+            if(!session.setChannel(channel)) {
+                throw new IOException(String.format(Locale.getDefault(), "Session %d is stopped while connecting", session.getDevId()));
+            }
+            metrics.onConnected(System.nanoTime() - connectStart);
+            final InboundSubscription subscription = (subscriber == null) ? null : new InboundSubscription(channel);
+            session.setSubscription(subscription);
+            session.setConnected(true);
+            outputStream = new CoalescingOutputStream(channel.getOutputStream(), bufferPool, getFlushThreshold(), getMaxFlushDelay());
+            final AsyncWriter writer = new AsyncWriter(outputStream, new FrameEncoder(maxFrameSize), bufferPool, ServiceScheduler.getDefault(),
+                    getLowWatermark(), getHighWatermark(), getMaxQueuedBytes(), new AsyncWriter.Listener() {
+                @Override
+                public void onWritabilityChanged(boolean writable) {
+                    AbsBluetoothClient.this.onWritabilityChanged(session.getDevId(), writable);
+                }
+
+                @Override
+                public void onWriteError(IOException e) {
+                    Log.e(TAG, e.getLocalizedMessage());
+                }
+            });
+            writer.setMetrics(metrics);
+            if (compressor != null) {
+                /**
+                 *  hello goes out before the writer is exposed to other threads, and right away
+                 *  since the service answers nothing before the first frame of the client
+                 */
+                FrameCompressor.writeHello(outputStream);
+                outputStream.flush();
+                writer.setCompressor(compressor);
+            }
+            session.setWriter(writer);
+            DataInputStream dis = new DataInputStream(channel.getInputStream());
+            final FrameDecoder.FrameHandler dataHandler = new FrameDecoder.FrameHandler() {
+                @Override
+                public void onFrame(byte[] buffer, int offset, int length) throws IOException {
+                    final long handleStart = System.nanoTime();
+                    if (subscription != null) {
+                        if (!backlog.isEmpty() || !subscription.tryTake()) {
+                            backlog.offer(Arrays.copyOfRange(buffer, offset, offset + length));
+                            return;
+                        }
+                        subscriber.onNext(buffer, offset, length);
+                    } else {
+                        onDataReceived(buffer, offset, length, sink);
+                        if (!sink.isEmpty()) {
+                            sink.flushTo(writer);
+                            session.hasPendingReply = true;
+                        }
+                    }
+                    metrics.onMessageReceived(System.nanoTime() - handleStart);
+                }
+            };
+            final FrameDecoder.FrameHandler frameHandler = (compressor == null) ? dataHandler : new FrameDecoder.FrameHandler() {
+                @Override
+                public void onFrame(byte[] buffer, int offset, int length) throws IOException {
+                    compressor.decode(buffer, offset, length, dataHandler);
+                }
+            };
+            onConnected();
+            Log.e(TAG, "Service Ready");
+            if (subscription != null) {
+                isSubscribed = true;
+                subscriber.onSubscribe(subscription);
+            }
+            int len;
+            while (session.isConnected()) {
+                if (subscription != null) {
+                    /**
+                     *  nothing is read without demand, so unread data stays in the transport
+                     *  and its flow control holds the peer back
+                     */
+                    if (!subscription.awaitDemand()) {
+                        break;
+                    }
+                    if (!backlog.isEmpty()) {
+                        if (subscription.tryTake()) {
+                            final long handleStart = System.nanoTime();
+                            final byte[] message = backlog.poll();
+                            subscriber.onNext(message, 0, message.length);
+                            metrics.onMessageReceived(System.nanoTime() - handleStart);
+                        }
+                        continue;
+                    }
+                }
+                if (subscription == null) {
+                    /**
+                     *  replies are queued without blocking the handler, reading waits for them instead
+                     */
+                    writer.awaitWritable();
+                }
+                if ((len = decoder.decode(dis, frameHandler)) < 0) {
+                    if (subscription != null) {
+                        subscriber.onComplete();
+                    }
+                    break;
+                }
+                metrics.onRead(len);
+                if (session.hasPendingReply) {
+                    /**
+                     *  replies to frames decoded from a single read are sent together
+                     */
+                    session.hasPendingReply = false;
+                    writer.flush();
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, e.getLocalizedMessage());
+            if (isSubscribed && !session.getSubscription().isCancelled()) {
+                subscriber.onError(e);
+            }
+        } finally {
+            session.setSubscription(null);
+            decoder.release();
+            sink.release();
+            final AsyncWriter writer = session.getWriter();
+            final Channel openChannel = session.getChannel();
+            if (writer != null) {
+                if ((openChannel != null) && openChannel.isConnected() && !writer.awaitFlushed(AsyncWriter.DEFAULT_DRAIN_TIMEOUT)) {
+                    Log.e(TAG, String.format(Locale.getDefault(), "Writes to %s are not written within %d ms, dropped", session.getAddress(), AsyncWriter.DEFAULT_DRAIN_TIMEOUT));
+                }
+                writer.close();
+            }
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    Log.e(TAG, e.getLocalizedMessage());
+                }
+            }
+            final Channel channel = session.getChannel();
+            if ((channel != null) && channel.isConnected()) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    Log.e(TAG, e.getLocalizedMessage());
+                }
+            }
+            if (compressor != null) {
+                compressor.release();
+            }
+            session.setConnected(false);
+            mLastMetrics = session.getMetrics();
+            synchronized (this) {
+                if (mSessions.get(session.getDevId()) == session) {
+                    mSessions.remove(session.getDevId());
+                }
+            }
+            onConnectionClosed(session.getDevId());
+            onDisconnected();
         }
-        mOutputStream.write(data);
+    }
+
+    protected void write(byte[] data) throws IOException {
+        write(data, 0, data.length);
+    }
+
+    /**
+     *  writes given data to the peer, as a single frame if framing is enabled.
+     *  data is queued and sent according to the flush policy of this client, see
+     *  {@link #getFlushThreshold()} and {@link #getMaxFlushDelay()}. the caller is blocked
+     *  only while the write queue is above its high watermark.
+     *  written to the session of the calling thread when called from a callback of this client,
+     *  otherwise to the only running session, see {@link #write(int, byte[], int, int)} to pick one.
+     * @throws IllegalStateException if called from another thread while more than one session is running
+     */
+    protected void write(byte[] data, int offset, int length) throws IOException {
+        getWriter().write(data, offset, length, false);
     }
 
     protected void write(int b) throws IOException {
-        if(mOutputStream == null) {
+        getWriter().write(new byte[] {(byte) b}, 0, 1, false);
+    }
+
+    /**
+     *  writes given data to the session of given device, blocking only while its write queue is above the high watermark
+     */
+    protected void write(int devId, byte[] data, int offset, int length) throws IOException {
+        getWriter(devId).write(data, offset, length, false);
+    }
+
+    protected void writeAndFlush(byte[] data) throws IOException {
+        writeAndFlush(data, 0, data.length);
+    }
+
+    /**
+     *  writes given data and sends it along with any buffered data immediately
+     */
+    protected void writeAndFlush(byte[] data, int offset, int length) throws IOException {
+        getWriter().write(data, offset, length, true);
+    }
+
+    /**
+     *  writes the remaining bytes of given buffers as a single message, e.g. a header and its payload,
+     *  without concatenating them first. the buffers can be direct or read-only, their positions are left unchanged.
+     */
+    protected void write(ByteBuffer... parts) throws IOException {
+        getWriter().write(parts, false);
+    }
+
+    protected void writeAndFlush(ByteBuffer... parts) throws IOException {
+        getWriter().write(parts, true);
+    }
+
+    /**
+     *  sends buffered data immediately
+     */
+    protected void flush() throws IOException {
+        getWriter().flush();
+    }
+
+    protected WriteFuture send(byte[] data) {
+        return send(data, 0, data.length);
+    }
+
+    /**
+     *  queues given data without blocking, the data is copied and can be reused on return.
+     * @return future completed when the data is written, failed if not connected or the write queue is full
+     */
+    protected WriteFuture send(byte[] data, int offset, int length) {
+        final AsyncWriter writer = getWriter(getSession());
+        if(writer == null) {
+            return WriteFuture.failed(new IOException("OutputStream is not ready"));
+        }
+        return writer.send(data, offset, length, false);
+    }
+
+    /**
+     *  queues the remaining bytes of given buffers as a single message without blocking, see {@link #write(ByteBuffer...)}
+     */
+    protected WriteFuture send(ByteBuffer... parts) {
+        final AsyncWriter writer = getWriter(getSession());
+        if(writer == null) {
+            return WriteFuture.failed(new IOException("OutputStream is not ready"));
+        }
+        return writer.send(parts, false);
+    }
+
+    /**
+     *  queues data to the session of given device without blocking and sends it immediately.
+     *  the data is copied and can be reused on return.
+     * @return future completed when the data is written, failed if the session is gone or its write queue is full
+     */
+    protected WriteFuture send(int devId, byte[] data, int offset, int length) {
+        final AsyncWriter writer = getWriter(getSession(devId));
+        if(writer == null) {
+            return WriteFuture.failed(new IOException(String.format(Locale.getDefault(), "No session (%d)", devId)));
+        }
+        WriteFuture future = writer.send(data, offset, length, false);
+        writer.flush();
+        return future;
+    }
+
+    /**
+     *  queues data to the sessions of given devices, or of every device if none is given, without blocking.
+     *  sessions whose write queue is full are skipped, so a slow device doesn't hold the others back.
+     * @return the number of sessions the data is queued to
+     */
+    protected int broadcast(byte[] data, int offset, int length, int... devIds) {
+        int count = 0;
+        for(ClientSession session : (devIds.length == 0) ? getSessions() : getSessions(devIds)) {
+            final AsyncWriter writer = session.isConnected() ? session.getWriter() : null;
+            if(writer == null) {
+                continue;
+            }
+            if(writer.offer(data, offset, length, false)) {
+                writer.flush();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    protected boolean offer(byte[] data) {
+        return offer(data, 0, data.length);
+    }
+
+    /**
+     *  queues given data without blocking, the data is copied and can be reused on return.
+     * @return false if not connected or the write queue is full, in which case nothing is queued
+     */
+    protected boolean offer(byte[] data, int offset, int length) {
+        final AsyncWriter writer = getWriter(getSession());
+        return (writer != null) && writer.offer(data, offset, length, false);
+    }
+
+    /**
+     *  @return false while the write queue is above its high watermark
+     */
+    protected boolean isWritable() {
+        final AsyncWriter writer = getWriter(getSession());
+        return (writer != null) && writer.isWritable();
+    }
+
+    /**
+     *  @return bytes queued and not yet written
+     */
+    public long getWriteQueueBytes() {
+        final ClientSession session = getSession();
+        return (session == null) ? 0 : session.getWriteQueueBytes();
+    }
+
+    /**
+     *  switches the connection to pull mode, in which inbound data is delivered to the returned subscriber
+     *  only as far as it requests, and {@link #onDataReceived(byte[], int, int, OutputSink)} is not called.
+     *  the socket isn't read while there is no demand, so a slow consumer throttles the peer through
+     *  the flow control of the transport instead of buffering data on the heap.
+     *  called once per connection on the client thread.
+     * @return subscriber of the connection, or null to have data pushed as it arrives
+     */
+    protected DataSubscriber getSubscriber() {
+        return null;
+    }
+
+    /**
+     *  called on the client thread once the connection is torn down, before {@link #onDisconnected()}
+     */
+    protected void onConnectionClosed() {
+    }
+
+    /**
+     *  called on the thread of the session of given device once its connection is torn down,
+     *  default implementation adapts to {@link #onConnectionClosed()}
+     */
+    protected void onConnectionClosed(int devId) {
+        onConnectionClosed();
+    }
+
+    /**
+     *  called when the write queue crosses the high watermark, with writable false,
+     *  or drains below the low watermark, with writable true.
+     */
+    protected void onWritabilityChanged(boolean writable) {
+    }
+
+    /**
+     *  called when the write queue of the session of given device crosses a watermark,
+     *  default implementation adapts to {@link #onWritabilityChanged(boolean)}
+     */
+    protected void onWritabilityChanged(int devId, boolean writable) {
+        onWritabilityChanged(writable);
+    }
+
+    /**
+     *  @return device Id of the session the calling callback is made for, e.g. {@link #onConnected()}
+     *  or {@link #onDataReceived(byte[])}, or of the only running session when called from any other thread
+     * @throws IllegalStateException if called from another thread while more than one session is running
+     */
+    protected int getCurrentDevId() {
+        final ClientSession session = getSession();
+        return (session == null) ? NO_DEVICE : session.getDevId();
+    }
+
+    /**
+     *  the session of the calling thread if it's a session thread, otherwise the only running session.
+     *  with more sessions running, which one is meant can't be told, the variants taking a device Id are to be used.
+     */
+    private ClientSession getSession() {
+        final ClientSession session = mCurrentSession.get();
+        if(session != null) {
+            return session;
+        }
+        synchronized (this) {
+            if(mSessions.size() > 1) {
+                throw new IllegalStateException(String.format(Locale.getDefault(), "%d sessions are running, device Id has to be given", mSessions.size()));
+            }
+            return mSessions.isEmpty() ? null : mSessions.values().iterator().next();
+        }
+    }
+
+    private synchronized ClientSession getSession(int devId) {
+        return mSessions.get(devId);
+    }
+
+    private static AsyncWriter getWriter(ClientSession session) {
+        return (session == null) ? null : session.getWriter();
+    }
+
+    private AsyncWriter getWriter() throws IOException {
+        final AsyncWriter writer = getWriter(getSession());
+        if(writer == null) {
             throw new IOException("OutputStream is not ready");
         }
-        mOutputStream.write(b);
+        return writer;
+    }
+
+    private AsyncWriter getWriter(int devId) throws IOException {
+        final AsyncWriter writer = getWriter(getSession(devId));
+        if(writer == null) {
+            throw new IOException(String.format(Locale.getDefault(), "No session (%d)", devId));
+        }
+        return writer;
     }
 
     protected boolean isConnected() {
-        return isConnected;
+        final ClientSession session = getSession();
+        return (session != null) && session.isConnected();
     }
 
+    /**
+     *  @return true if the session of given device is connected
+     */
+    public boolean isConnected(int devId) {
+        final ClientSession session = getSession(devId);
+        return (session != null) && session.isConnected();
+    }
+
+    /**
+     *  stops every session of this client
+     */
     public synchronized void stop() {
-        if(mClientThread == null ||
-           mClientSocket == null) {
-            return;
+        for(ClientSession session : getSessions()) {
+            stop(session.getDevId());
+        }
+    }
+
+    /**
+     *  stops the session of given device, other sessions keep running.
+     *  the device can be started again right away, while the stopped session winds down.
+     */
+    public synchronized void stop(int devId) {
+        final ClientSession session = mSessions.get(devId);
+        if(session != null) {
+            mSessions.remove(devId);
+            session.stop();
         }
+    }
 
-        synchronized (this) {
-            try {
-                mClientSocket.close();
-                mClientThread = null;
-            } catch (IOException e) {
-                Log.e(TAG, e.getLocalizedMessage());
+    /**
+     *  @return point-in-time copy of sessions started and not yet closed
+     */
+    public synchronized List<ClientSession> getSessions() {
+        return new ArrayList<>(mSessions.values());
+    }
+
+    private synchronized List<ClientSession> getSessions(int[] devIds) {
+        final List<ClientSession> sessions = new ArrayList<>(devIds.length);
+        for(int devId : devIds) {
+            final ClientSession session = mSessions.get(devId);
+            if(session != null) {
+                sessions.add(session);
             }
         }
+        return sessions;
+    }
+
+    /**
+     *  @return the number of sessions started and not yet closed
+     */
+    public synchronized int getSessionCount() {
+        return mSessions.size();
     }
 
     @Override
@@ -178,6 +659,140 @@ public abstract class AbsBluetoothClient implements BluetoothClient {
         return mDevices.get(id);
     }
 
+    /**
+     *  @return metrics of current sessions merged together, or of the session closed last if none is running
+     */
+    public MetricsSnapshot getMetrics() {
+        final List<ClientSession> sessions = getSessions();
+        if(sessions.isEmpty()) {
+            final MetricsSnapshot metrics = mLastMetrics;
+            return (metrics == null) ? MetricsSnapshot.EMPTY : metrics;
+        }
+        MetricsSnapshot metrics = MetricsSnapshot.EMPTY;
+        for(ClientSession session : sessions) {
+            metrics = metrics.merge(session.getMetrics());
+        }
+        return metrics;
+    }
+
+    /**
+     *  @return metrics of the session of given device, or null if there is no such session
+     */
+    @Nullable public MetricsSnapshot getMetrics(int devId) {
+        final ClientSession session = getSession(devId);
+        return (session == null) ? null : session.getMetrics();
+    }
+
+    /**
+     *  replaces the transport connections are made on, RFCOMM of the default adapter by default.
+     *  sharing a {@link com.example.ezbluetooth.transport.MuxTransport} among clients keeps connections
+     *  to recently used devices warm, so restarting a client doesn't connect again.
+     */
+    public void setTransport(Transport transport) {
+        mTransport = transport;
+    }
+
+    protected Transport getTransport() {
+        final Transport transport = mTransport;
+        return (transport == null) ? BluetoothTransport.getDefault() : transport;
+    }
+
+    /**
+     *  @return pool receive and reply buffers of the connection are borrowed from
+     */
+    protected BufferPool getBufferPool() {
+        return BufferPool.getDefault();
+    }
+
+    /**
+     *  @return size of buffered data which triggers sending it
+     */
+    protected int getFlushThreshold() {
+        return CoalescingOutputStream.DEFAULT_FLUSH_THRESHOLD;
+    }
+
+    /**
+     *  @return max time in milliseconds buffered data waits before being sent,
+     *  or {@link CoalescingOutputStream#NO_MAX_DELAY} to wait for threshold or explicit flush
+     */
+    protected long getMaxFlushDelay() {
+        return CoalescingOutputStream.DEFAULT_MAX_FLUSH_DELAY;
+    }
+
+    protected int getLowWatermark() {
+        return AsyncWriter.DEFAULT_LOW_WATERMARK;
+    }
+
+    protected int getHighWatermark() {
+        return AsyncWriter.DEFAULT_HIGH_WATERMARK;
+    }
+
+    /**
+     *  @return limit of queued bytes, beyond which {@link #send(byte[])} and {@link #offer(byte[])} fail
+     */
+    protected int getMaxQueuedBytes() {
+        return AsyncWriter.DEFAULT_MAX_QUEUED_BYTES;
+    }
+
+    /**
+     *  enables varint length-prefixed framing, in which case every inbound message is
+     *  delivered as a whole frame and every write is sent as a single frame.
+     * @return true if the stream of this client is framed, false for a raw byte stream
+     */
+    protected boolean isFramingEnabled() {
+        return false;
+    }
+
+    protected int getMaxFrameSize() {
+        return FrameDecoder.DEFAULT_MAX_FRAME_SIZE;
+    }
+
+    /**
+     *  enables per-frame compression, which takes effect with framing enabled and only once
+     *  the service answers the hello of the client with its own, see {@link FrameCompressor}.
+     *  it's to be enabled only towards services which have it enabled too, a session to a service
+     *  without it fails on the first frame from the service, rejections for load included.
+     */
+    protected boolean isCompressionEnabled() {
+        return false;
+    }
+
+    protected int getCompressionLevel() {
+        return Deflater.BEST_SPEED;
+    }
+
+    /**
+     *  @return frames smaller than this many bytes are sent without compression
+     */
+    protected int getCompressionThreshold() {
+        return FrameCompressor.DEFAULT_THRESHOLD;
+    }
+
+    /**
+     *  called with the valid region of the receive buffer, which is a single frame if framing
+     *  is enabled, otherwise the bytes of a single read. the buffer is reused after return.
+     *  anything written to the sink is sent back to the peer as a single message.
+     *  override this to handle data without allocation, default implementation adapts to
+     *  {@link #onDataReceived(byte[], int, int)}.
+     */
+    protected void onDataReceived(byte[] buffer, int offset, int length, OutputSink sink) {
+        byte[] txData = onDataReceived(buffer, offset, length);
+        if(txData != null) {
+            sink.write(txData);
+        }
+    }
+
+    /**
+     *  adapts to {@link #onDataReceived(byte[])}, copying the valid region only when it
+     *  does not span the whole receive buffer.
+     */
+    protected byte[] onDataReceived(byte[] buffer, int offset, int length) {
+        if((offset == 0) && (length == buffer.length)) {
+            return onDataReceived(buffer);
+        }
+        return onDataReceived(Arrays.copyOfRange(buffer, offset, offset + length));
+    }
+
     protected abstract int getReadSize();
     protected abstract byte[] onDataReceived(byte[] rxBuffer);
 
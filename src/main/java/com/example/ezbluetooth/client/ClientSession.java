@@ -0,0 +1,145 @@
+package com.example.ezbluetooth.client;
+
+import android.util.Log;
+
+import com.example.ezbluetooth.io.AsyncWriter;
+import com.example.ezbluetooth.metrics.ConnectionMetrics;
+import com.example.ezbluetooth.metrics.MetricsSnapshot;
+import com.example.ezbluetooth.transport.Channel;
+
+import java.io.IOException;
+
+/**
+ *  State of a single connection started by {@link AbsBluetoothClient}, one per device Id.
+ *  Everything a connection owns lives here, so a client can run sessions to several devices
+ *  at once, each on a thread of the shared scheduler, sharing the buffer pool of the client.
+ */
+
+public class ClientSession {
+
+    private static final String TAG = ClientSession.class.getCanonicalName();
+
+    private final int mDevId;
+    private final String mAddress;
+    private final ConnectionMetrics mMetrics;
+    private volatile Channel mChannel;
+    private volatile AsyncWriter mWriter;
+    private volatile InboundSubscription mSubscription;
+    private volatile boolean isConnected;
+    private volatile boolean isStopped;
+    boolean hasPendingReply;
+
+    ClientSession(int devId, String address) {
+        mDevId = devId;
+        mAddress = address;
+        mMetrics = new ConnectionMetrics();
+    }
+
+    /**
+     *  @return Id of the device this session is connected to, or the Id given to its address if started with an address directly
+     */
+    public int getDevId() {
+        return mDevId;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public boolean isConnected() {
+        return isConnected;
+    }
+
+    public MetricsSnapshot getMetrics() {
+        return mMetrics.snapshot();
+    }
+
+    /**
+     *  @return bytes queued and not yet written
+     */
+    public long getWriteQueueBytes() {
+        final AsyncWriter writer = mWriter;
+        return (writer == null) ? 0 : writer.getQueuedBytes();
+    }
+
+    ConnectionMetrics getLiveMetrics() {
+        return mMetrics;
+    }
+
+    Channel getChannel() {
+        return mChannel;
+    }
+
+    /**
+     *  @return false if the session is stopped before being connected, in which case given channel is closed
+     */
+    boolean setChannel(Channel channel) {
+        synchronized (this) {
+            if(!isStopped) {
+                mChannel = channel;
+                return true;
+            }
+        }
+        closeQuietly(channel);
+        return false;
+    }
+
+    AsyncWriter getWriter() {
+        return mWriter;
+    }
+
+    void setWriter(AsyncWriter writer) {
+        mWriter = writer;
+    }
+
+    InboundSubscription getSubscription() {
+        return mSubscription;
+    }
+
+    void setSubscription(InboundSubscription subscription) {
+        mSubscription = subscription;
+        if((subscription != null) && isStopped) {
+            /**
+             *  stopped in between, before there was any subscription to cancel
+             */
+            subscription.cancel();
+        }
+    }
+
+    void setConnected(boolean connected) {
+        isConnected = connected;
+    }
+
+    /**
+     *  closes the channel, which ends the read loop of the session. a session still connecting
+     *  closes its channel as soon as it's connected.
+     */
+    void stop() {
+        final Channel channel;
+        synchronized (this) {
+            if(isStopped) {
+                return;
+            }
+            isStopped = true;
+            channel = mChannel;
+        }
+        final InboundSubscription subscription = mSubscription;
+        if(subscription != null) {
+            /**
+             *  read loop may be waiting for demand rather than blocked on the socket
+             */
+            subscription.cancel();
+        }
+        if(channel != null) {
+            closeQuietly(channel);
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, e.getLocalizedMessage());
+        }
+    }
+}
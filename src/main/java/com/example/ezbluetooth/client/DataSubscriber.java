@@ -0,0 +1,32 @@
+package com.example.ezbluetooth.client;
+
+import java.io.IOException;
+
+/**
+ *  Consumer of inbound data which pulls it at its own pace, see {@link AbsBluetoothClient#getSubscriber()}.
+ *  every callback is made on the client thread, one at a time.
+ */
+
+public interface DataSubscriber {
+
+    /**
+     *  called once connected, nothing is delivered until demand is signalled through the subscription
+     */
+    void onSubscribe(Subscription subscription);
+
+    /**
+     *  called with the valid region of a message, a single frame if framing is enabled, otherwise
+     *  the bytes of a single read. each call consumes one unit of demand. the buffer is reused after return.
+     */
+    void onNext(byte[] buffer, int offset, int length);
+
+    /**
+     *  called when the connection fails, unless the subscription is cancelled
+     */
+    void onError(IOException e);
+
+    /**
+     *  called when the peer closes the connection
+     */
+    void onComplete();
+}
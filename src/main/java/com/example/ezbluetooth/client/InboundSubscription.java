@@ -0,0 +1,97 @@
+package com.example.ezbluetooth.client;
+
+import android.util.Log;
+
+import com.example.ezbluetooth.transport.Channel;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ *  Demand counter the read loop of a pulling client waits on before every read.
+ */
+
+class InboundSubscription implements Subscription {
+
+    private static final String TAG = InboundSubscription.class.getCanonicalName();
+
+    private final Channel mChannel;
+    private final Object mLock;
+    private long mDemand;
+    private boolean isCancelled;
+
+    InboundSubscription(Channel channel) {
+        mChannel = channel;
+        mLock = new Object();
+    }
+
+    @Override
+    public void request(long n) {
+        if(n <= 0) {
+            throw new IllegalArgumentException(String.format(Locale.getDefault(), "Invalid demand (%d)", n));
+        }
+        synchronized (mLock) {
+            mDemand = (mDemand > UNBOUNDED - n) ? UNBOUNDED : mDemand + n;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void cancel() {
+        synchronized (mLock) {
+            if(isCancelled) {
+                return;
+            }
+            isCancelled = true;
+            mLock.notifyAll();
+        }
+        /**
+         *  wakes the read loop up if it is blocked on the socket rather than waiting for demand
+         */
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, e.getLocalizedMessage());
+        }
+    }
+
+    boolean isCancelled() {
+        synchronized (mLock) {
+            return isCancelled;
+        }
+    }
+
+    /**
+     *  blocks until there is demand
+     * @return false if cancelled or interrupted meanwhile
+     */
+    boolean awaitDemand() {
+        synchronized (mLock) {
+            while((mDemand == 0) && !isCancelled) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return !isCancelled;
+        }
+    }
+
+    /**
+     *  consumes a unit of demand
+     * @return false if there is none
+     */
+    boolean tryTake() {
+        synchronized (mLock) {
+            if((mDemand == 0) || isCancelled) {
+                return false;
+            }
+            if(mDemand != UNBOUNDED) {
+                mDemand--;
+            }
+            return true;
+        }
+    }
+}
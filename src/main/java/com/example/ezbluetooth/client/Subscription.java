@@ -0,0 +1,20 @@
+package com.example.ezbluetooth.client;
+
+/**
+ *  Demand of a {@link DataSubscriber}, it can be used from any thread.
+ */
+
+public interface Subscription {
+
+    long UNBOUNDED = Long.MAX_VALUE;
+
+    /**
+     *  allows n more messages to be delivered, demand adds up and is capped at {@link #UNBOUNDED}
+     */
+    void request(long n);
+
+    /**
+     *  stops delivery and closes the connection
+     */
+    void cancel();
+}
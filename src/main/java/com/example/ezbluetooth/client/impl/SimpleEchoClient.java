@@ -5,10 +5,10 @@ import android.util.Log;
 
 import com.example.ezbluetooth.client.AbsBluetoothClient;
 
-import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -34,6 +34,7 @@ public class SimpleEchoClient extends AbsBluetoothClient {
     private static final UUID SVC_UUID = UUID.fromString("604388f7-2241-45fa-9e78-e472b90b62d6");
     private static final String SVC_NAME = "SimpleEchoServer";
     private static final byte[] TEST_DATA;
+    private static final long WRITABILITY_WAIT_TIMEOUT = 100L;
 
     static {
         TEST_DATA = new byte[256];
@@ -47,6 +48,7 @@ public class SimpleEchoClient extends AbsBluetoothClient {
     private int totalReceived;
     private int totalErrorCount;
     private WeakReference<Callback> wrCallback;
+    private final Object mWritabilityLock = new Object();
 
     public SimpleEchoClient() {
         super();
@@ -100,9 +102,9 @@ public class SimpleEchoClient extends AbsBluetoothClient {
         totalReceived += rxBuffer.length;
         totalErrorCount += errCnt;
         if(totalReceived % (TEST_DATA.length << 3) == 0) {
-            long timeStamp = System.currentTimeMillis();
+            long timeStamp = System.nanoTime();
             if(callback != null) {
-                callback.onScoreUpdate(totalErrorCount, TEST_DATA.length << 3, timeStamp - lastTimeStamp);
+                callback.onScoreUpdate(totalErrorCount, TEST_DATA.length << 3, TimeUnit.NANOSECONDS.toMillis(timeStamp - lastTimeStamp));
             }
             lastTimeStamp = timeStamp;
             totalErrorCount = 0;
@@ -127,7 +129,7 @@ public class SimpleEchoClient extends AbsBluetoothClient {
         Log.e(TAG, "Connected");
         totalReceived = 0;
         totalErrorCount = 0;
-        lastTimeStamp = System.currentTimeMillis();
+        lastTimeStamp = System.nanoTime();
         if(wrCallback == null) {
             wrCallback = new WeakReference<Callback>(new Callback() {
                 @Override
@@ -140,10 +142,19 @@ public class SimpleEchoClient extends AbsBluetoothClient {
             @Override
             public void run() {
                 while(isConnected()) {
-                    try {
-                        write(TEST_DATA);
-                    } catch (IOException e) {
-                        Log.e(TAG, e.getLocalizedMessage());
+                    if(isWritable() && offer(TEST_DATA)) {
+                        continue;
+                    }
+                    /**
+                     *  write queue is full, wait until it drains below the low watermark
+                     */
+                    synchronized (mWritabilityLock) {
+                        try {
+                            mWritabilityLock.wait(WRITABILITY_WAIT_TIMEOUT);
+                        } catch (InterruptedException e) {
+                            Log.e(TAG, e.getLocalizedMessage());
+                            return;
+                        }
                     }
                 }
             }
@@ -151,6 +162,16 @@ public class SimpleEchoClient extends AbsBluetoothClient {
         mClientThread.start();
     }
 
+    @Override
+    protected void onWritabilityChanged(boolean writable) {
+        if(!writable) {
+            return;
+        }
+        synchronized (mWritabilityLock) {
+            mWritabilityLock.notifyAll();
+        }
+    }
+
     @Override
     public UUID getServiceUuid() {
         return SVC_UUID;
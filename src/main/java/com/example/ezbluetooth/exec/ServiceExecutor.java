@@ -0,0 +1,166 @@
+package com.example.ezbluetooth.exec;
+
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Named view of a {@link ServiceScheduler} running at most a quota of tasks at once.
+ *  Tasks beyond the quota wait in its own queue without holding a thread.
+ *
+ *  A task the shared pool refuses to take goes back to the head of the queue and is retried when
+ *  a running task of this executor completes or another is submitted. When nothing of this executor
+ *  is running to retry it, the submitted task is taken out again and rejected to its caller.
+ */
+
+public class ServiceExecutor implements Executor {
+
+    /**
+     *  executor each pooled thread is currently named after
+     */
+    private static final ThreadLocal<ServiceExecutor> THREAD_OWNER = new ThreadLocal<>();
+
+    private final ServiceScheduler mScheduler;
+    private final String mOwner;
+    private final String mName;
+    private final int mQuota;
+    private final LinkedBlockingDeque<Runnable> mQueue;
+    private final AtomicInteger mRunningCount;
+    private final AtomicInteger mQueuedCount;
+    private final AtomicLong mCompletedCount;
+    private final AtomicInteger mThreadSeq;
+    private final String mThreadPrefix;
+    private volatile boolean isShutdown;
+
+    ServiceExecutor(ServiceScheduler scheduler, String owner, String name, int quota) {
+        mScheduler = scheduler;
+        mOwner = owner;
+        mName = name;
+        mQuota = Math.max(quota, 1);
+        mQueue = new LinkedBlockingDeque<>();
+        mRunningCount = new AtomicInteger();
+        mQueuedCount = new AtomicInteger();
+        mCompletedCount = new AtomicLong();
+        mThreadSeq = new AtomicInteger();
+        mThreadPrefix = owner + "-" + name + "-";
+        isShutdown = false;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if(isShutdown) {
+            throw new RejectedExecutionException(String.format(Locale.getDefault(), "Executor %s-%s is shut down", mOwner, mName));
+        }
+        mQueue.offer(command);
+        mQueuedCount.incrementAndGet();
+        final RejectedExecutionException rejected = schedule();
+        if((rejected != null) && (mRunningCount.get() == 0) && mQueue.removeLastOccurrence(command)) {
+            mQueuedCount.decrementAndGet();
+            throw rejected;
+        }
+    }
+
+    /**
+     *  rejects further tasks, tasks already queued or running are not affected
+     */
+    public void shutdown() {
+        isShutdown = true;
+        mScheduler.unregister(this);
+    }
+
+    public boolean isShutdown() {
+        return isShutdown;
+    }
+
+    public String getOwner() {
+        return mOwner;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getQuota() {
+        return mQuota;
+    }
+
+    /**
+     *  @return the number of threads currently running tasks of this executor
+     */
+    public int getThreadCount() {
+        return mRunningCount.get();
+    }
+
+    /**
+     *  @return the number of tasks waiting for a thread
+     */
+    public int getQueueDepth() {
+        return mQueuedCount.get();
+    }
+
+    public long getCompletedCount() {
+        return mCompletedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.getDefault(), "%s-%s : threads %d/%d, queued %d, completed %d",
+                mOwner, mName, mRunningCount.get(), mQuota, mQueuedCount.get(), mCompletedCount.get());
+    }
+
+    /**
+     *  starts queued tasks up to the quota
+     * @return rejection of the shared pool if it refused a task, which is then back at the head of the queue
+     */
+    private RejectedExecutionException schedule() {
+        while(!mQueue.isEmpty()) {
+            int running = mRunningCount.get();
+            if(running >= mQuota) {
+                return null;
+            }
+            if(!mRunningCount.compareAndSet(running, running + 1)) {
+                continue;
+            }
+            final Runnable task = mQueue.poll();
+            if(task == null) {
+                mRunningCount.decrementAndGet();
+                continue;
+            }
+            try {
+                mScheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        runTask(task);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                mQueue.offerFirst(task);
+                mRunningCount.decrementAndGet();
+                return e;
+            }
+            mQueuedCount.decrementAndGet();
+        }
+        return null;
+    }
+
+    /**
+     *  a pooled thread is renamed only when it moves to another executor and keeps the name in between,
+     *  so tasks running back to back on one executor, e.g. writer drains, don't pay for it
+     */
+    private void runTask(Runnable task) {
+        if(THREAD_OWNER.get() != this) {
+            THREAD_OWNER.set(this);
+            Thread.currentThread().setName(mThreadPrefix + mThreadSeq.getAndIncrement());
+        }
+        try {
+            task.run();
+        } finally {
+            mCompletedCount.incrementAndGet();
+            mRunningCount.decrementAndGet();
+            schedule();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.ezbluetooth.exec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  Single source of threads for every service, client connection and callback dispatch.
+ *  Threads come from one shared pool which grows with the number of running tasks and shrinks
+ *  when idle, so total thread count follows active connections rather than configured limits.
+ *
+ *  Each user carves a {@link ServiceExecutor} out of it with its own name and thread quota.
+ *  Callers may inject their own pool and timer, otherwise {@link #getDefault()} is used.
+ */
+
+public class ServiceScheduler implements Executor {
+
+    private static final long DEFAULT_KEEP_ALIVE = 30L;
+
+    private static ServiceScheduler SINGLETON;
+
+    private final ExecutorService mExecutor;
+    private final ScheduledExecutorService mTimer;
+    private final CopyOnWriteArrayList<ServiceExecutor> mServiceExecutors;
+
+    public ServiceScheduler() {
+        this(createDefaultExecutor(), createDefaultTimer());
+    }
+
+    /**
+     *
+     * @param executor shared pool every task runs on, should not queue tasks when all threads are busy
+     * @param timer executor of delayed tasks, which are expected to be short
+     */
+    public ServiceScheduler(ExecutorService executor, ScheduledExecutorService timer) {
+        mExecutor = executor;
+        mTimer = timer;
+        mServiceExecutors = new CopyOnWriteArrayList<>();
+    }
+
+    public static synchronized ServiceScheduler getDefault() {
+        if(SINGLETON == null) {
+            SINGLETON = new ServiceScheduler();
+        }
+        return SINGLETON;
+    }
+
+    /**
+     *  runs given task on the shared pool without any quota
+     */
+    @Override
+    public void execute(Runnable command) {
+        mExecutor.execute(command);
+    }
+
+    public ScheduledExecutorService getTimer() {
+        return mTimer;
+    }
+
+    /**
+     *  creates an executor running at most quota tasks at once on the shared pool, others wait in its queue
+     * @param owner name of the service owning the executor, used to group statistics
+     * @param name role of the executor within the service, threads are named after owner and role
+     * @param quota max number of tasks running at once
+     */
+    public ServiceExecutor newExecutor(String owner, String name, int quota) {
+        ServiceExecutor executor = new ServiceExecutor(this, owner, name, quota);
+        mServiceExecutors.add(executor);
+        return executor;
+    }
+
+    /**
+     *  @return executors created from this scheduler and not yet shut down
+     */
+    public List<ServiceExecutor> getExecutors() {
+        return new ArrayList<>(mServiceExecutors);
+    }
+
+    /**
+     *  @return executors owned by given service
+     */
+    public List<ServiceExecutor> getExecutors(String owner) {
+        List<ServiceExecutor> executors = new ArrayList<>();
+        for(ServiceExecutor executor : mServiceExecutors) {
+            if(executor.getOwner().equals(owner)) {
+                executors.add(executor);
+            }
+        }
+        return executors;
+    }
+
+    /**
+     *  @return current number of threads of the shared pool, or -1 if not known
+     */
+    public int getThreadCount() {
+        if(mExecutor instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) mExecutor).getPoolSize();
+        }
+        return -1;
+    }
+
+    void unregister(ServiceExecutor executor) {
+        mServiceExecutors.remove(executor);
+    }
+
+    private static ExecutorService createDefaultExecutor() {
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, DEFAULT_KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new NamedThreadFactory("bt-worker"));
+    }
+
+    private static ScheduledExecutorService createDefaultTimer() {
+        return new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("bt-timer"));
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mPrefix;
+        private final AtomicInteger mCount;
+
+        NamedThreadFactory(String prefix) {
+            mPrefix = prefix;
+            mCount = new AtomicInteger();
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, String.format(Locale.getDefault(), "%s-%d", mPrefix, mCount.getAndIncrement()));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,517 @@
+package com.example.ezbluetooth.io;
+
+import com.example.ezbluetooth.metrics.ConnectionMetrics;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Writer stage of a single connection. Outbound messages are copied into pooled buffers and
+ *  queued, then written to the output stream by a drain task running on the given executor, so
+ *  neither the read loop nor producers are stalled by a slow peer.
+ *
+ *  The queue is bounded by size in bytes. Once queued bytes exceed the high watermark the writer
+ *  becomes not writable and stays so until the queue drains below the low watermark, both
+ *  transitions are notified to {@link Listener#onWritabilityChanged(boolean)}.
+ */
+
+public class AsyncWriter {
+
+    public static final int DEFAULT_LOW_WATERMARK = 32 * 1024;
+    public static final int DEFAULT_HIGH_WATERMARK = 64 * 1024;
+    public static final int DEFAULT_MAX_QUEUED_BYTES = 256 * 1024;
+    public static final long DEFAULT_DRAIN_TIMEOUT = 5000L;
+
+    private final OutputStream mOutputStream;
+    private final FrameEncoder mEncoder;
+    private final BufferPool mBufferPool;
+    private final Executor mExecutor;
+    private final Listener mListener;
+    private final int mLowWatermark;
+    private final int mHighWatermark;
+    private final int mMaxQueuedBytes;
+    private final ConcurrentLinkedQueue<Entry> mQueue;
+    private final AtomicBoolean isDrainScheduled;
+    private final AtomicLong mQueuedBytes;
+    private final AtomicInteger mQueuedCount;
+    private final AtomicLong mPeakQueuedBytes;
+    private final Object mWritabilityLock;
+    private final Runnable mDrainTask;
+    private volatile boolean isWritable;
+    /**
+     *  set by the drain when it writes data without flushing it, cleared when it flushes
+     */
+    private volatile boolean hasUnflushed;
+    private volatile IOException mCloseCause;
+    private volatile ConnectionMetrics mMetrics;
+    private volatile FrameCompressor mCompressor;
+
+    public AsyncWriter(OutputStream os, FrameEncoder encoder, BufferPool bufferPool, Executor executor,
+                       int lowWatermark, int highWatermark, int maxQueuedBytes, Listener listener) {
+        if((lowWatermark > highWatermark) || (highWatermark > maxQueuedBytes)) {
+            throw new IllegalArgumentException(String.format(Locale.getDefault(), "Invalid watermarks (%d / %d / %d)", lowWatermark, highWatermark, maxQueuedBytes));
+        }
+        mOutputStream = os;
+        mEncoder = encoder;
+        mBufferPool = bufferPool;
+        mExecutor = executor;
+        mListener = listener;
+        mLowWatermark = lowWatermark;
+        mHighWatermark = highWatermark;
+        mMaxQueuedBytes = maxQueuedBytes;
+        mQueue = new ConcurrentLinkedQueue<>();
+        isDrainScheduled = new AtomicBoolean(false);
+        mQueuedBytes = new AtomicLong();
+        mQueuedCount = new AtomicInteger();
+        mPeakQueuedBytes = new AtomicLong();
+        mWritabilityLock = new Object();
+        isWritable = true;
+        mDrainTask = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+    }
+
+    /**
+     *  queues given data without blocking, the data is copied and can be reused on return
+     * @param flush whether the data and everything queued before it is sent without waiting for coalescing
+     * @return future completed when the data is written, or failed immediately if the queue is full
+     */
+    public WriteFuture send(byte[] data, int offset, int length, boolean flush) {
+        if(mCloseCause != null) {
+            return WriteFuture.failed(mCloseCause);
+        }
+        final long queued = reserve(length, true);
+        if(queued < 0) {
+            return WriteFuture.failed(new IOException("Write queue is full"));
+        }
+        WriteFuture future = new WriteFuture();
+        enqueue(data, offset, length, flush, future, queued);
+        return future;
+    }
+
+    /**
+     *  queues given data without blocking, the data is copied and can be reused on return
+     * @return false if the queue is full or closed, in which case nothing is queued
+     */
+    public boolean offer(byte[] data, int offset, int length, boolean flush) {
+        if(mCloseCause != null) {
+            return false;
+        }
+        final long queued = reserve(length, true);
+        if(queued < 0) {
+            return false;
+        }
+        enqueue(data, offset, length, flush, null, queued);
+        return true;
+    }
+
+    /**
+     *  queues the remaining bytes of given buffers as a single message without blocking. the parts are
+     *  gathered straight into the queued buffer, they can be direct or read-only and their positions are left unchanged.
+     * @return future completed when the data is written, or failed immediately if the queue is full
+     */
+    public WriteFuture send(ByteBuffer[] parts, boolean flush) {
+        if(mCloseCause != null) {
+            return WriteFuture.failed(mCloseCause);
+        }
+        final int length = remaining(parts);
+        final long queued = reserve(length, true);
+        if(queued < 0) {
+            return WriteFuture.failed(new IOException("Write queue is full"));
+        }
+        WriteFuture future = new WriteFuture();
+        enqueue(parts, length, flush, future, queued);
+        return future;
+    }
+
+    /**
+     *  queues the remaining bytes of given buffers as a single message without blocking
+     * @return false if the queue is full or closed, in which case nothing is queued
+     */
+    public boolean offer(ByteBuffer[] parts, boolean flush) {
+        if(mCloseCause != null) {
+            return false;
+        }
+        final int length = remaining(parts);
+        final long queued = reserve(length, true);
+        if(queued < 0) {
+            return false;
+        }
+        enqueue(parts, length, flush, null, queued);
+        return true;
+    }
+
+    /**
+     *  queues given data, blocking the caller while the writer is not writable
+     */
+    public void write(byte[] data, int offset, int length, boolean flush) throws IOException {
+        awaitWritable();
+        enqueue(data, offset, length, flush, null, reserve(length, false));
+    }
+
+    /**
+     *  queues the remaining bytes of given buffers as a single message, blocking the caller while
+     *  the writer is not writable. see {@link #send(ByteBuffer[], boolean)}.
+     */
+    public void write(ByteBuffer[] parts, boolean flush) throws IOException {
+        final int length = remaining(parts);
+        awaitWritable();
+        enqueue(parts, length, flush, null, reserve(length, false));
+    }
+
+    /**
+     *  queues given data whatever the writability, for a caller which must not block and holds its
+     *  producer back by other means, e.g. a read loop waiting with {@link #awaitWritable()} before each read.
+     *  the data is copied and can be reused on return.
+     */
+    public void push(byte[] data, int offset, int length, boolean flush) throws IOException {
+        if(mCloseCause != null) {
+            throw mCloseCause;
+        }
+        enqueue(data, offset, length, flush, null, reserve(length, false));
+    }
+
+    /**
+     *  queues the remaining bytes of given buffers as a single message whatever the writability,
+     *  see {@link #push(byte[], int, int, boolean)}
+     */
+    public void push(ByteBuffer[] parts, boolean flush) throws IOException {
+        if(mCloseCause != null) {
+            throw mCloseCause;
+        }
+        final int length = remaining(parts);
+        enqueue(parts, length, flush, null, reserve(length, false));
+    }
+
+    /**
+     *  blocks the caller while the writer is not writable
+     * @throws IOException if the writer is closed
+     */
+    public void awaitWritable() throws IOException {
+        if(!isWritable) {
+            final long blockedAt = System.nanoTime();
+            synchronized (mWritabilityLock) {
+                while(!isWritable && (mCloseCause == null)) {
+                    try {
+                        mWritabilityLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for writability");
+                    }
+                }
+            }
+            final ConnectionMetrics metrics = mMetrics;
+            if(metrics != null) {
+                metrics.onWriteBlocked(System.nanoTime() - blockedAt);
+            }
+        }
+        if(mCloseCause != null) {
+            throw mCloseCause;
+        }
+    }
+
+    /**
+     *  requests everything queued so far to be sent without waiting for coalescing.
+     *  does nothing, and costs no drain task, when nothing is queued or left unflushed.
+     */
+    public void flush() {
+        if(mCloseCause != null) {
+            return;
+        }
+        /**
+         *  the drain marks data unflushed before it takes it off the count, so it's seen in this order
+         */
+        if((mQueuedCount.get() == 0) && !hasUnflushed) {
+            return;
+        }
+        mQueue.offer(new Entry(null, 0, true, null));
+        scheduleDrain();
+    }
+
+    /**
+     *  flushes everything queued so far and waits until it's written, e.g. before closing at the end of a stream
+     * @return false if not written within given time, or failed
+     */
+    public boolean awaitFlushed(long timeoutMillis) {
+        if(mCloseCause != null) {
+            return false;
+        }
+        final WriteFuture future = new WriteFuture();
+        mQueue.offer(new Entry(null, 0, true, future));
+        scheduleDrain();
+        try {
+            future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    public boolean isWritable() {
+        return isWritable;
+    }
+
+    public long getQueuedBytes() {
+        return mQueuedBytes.get();
+    }
+
+    public int getQueuedCount() {
+        return mQueuedCount.get();
+    }
+
+    public long getPeakQueuedBytes() {
+        return mPeakQueuedBytes.get();
+    }
+
+    /**
+     *  @param metrics receives sent messages and time blocked in {@link #write(byte[], int, int, boolean)}, may be null
+     */
+    public void setMetrics(ConnectionMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     *  @param compressor encodes frames in place of the frame encoder, to be set before the first write
+     */
+    public void setCompressor(FrameCompressor compressor) {
+        mCompressor = compressor;
+    }
+
+    /**
+     *  fails every pending write and rejects further writes, the output stream is left open
+     */
+    public void close() {
+        close(new IOException("Writer is closed"));
+    }
+
+    private void close(IOException cause) {
+        if(mCloseCause != null) {
+            return;
+        }
+        mCloseCause = cause;
+        synchronized (mWritabilityLock) {
+            mWritabilityLock.notifyAll();
+        }
+        scheduleDrain();
+    }
+
+    /**
+     *  adds given length to the queued bytes before anything is copied, so that concurrent producers
+     *  can't take the queue over its bound together
+     * @param isBounded whether to refuse the length if it doesn't fit under the max queued bytes
+     * @return queued bytes including given length, or -1 if refused
+     */
+    private long reserve(int length, boolean isBounded) {
+        while(true) {
+            final long queued = mQueuedBytes.get();
+            if(isBounded && (queued + length > mMaxQueuedBytes)) {
+                return -1;
+            }
+            if(mQueuedBytes.compareAndSet(queued, queued + length)) {
+                return queued + length;
+            }
+        }
+    }
+
+    private void enqueue(byte[] data, int offset, int length, boolean flush, WriteFuture future, long queued) {
+        byte[] buffer = mBufferPool.acquire(length);
+        System.arraycopy(data, offset, buffer, 0, length);
+        enqueue(buffer, length, flush, future, queued);
+    }
+
+    private void enqueue(ByteBuffer[] parts, int length, boolean flush, WriteFuture future, long queued) {
+        byte[] buffer = mBufferPool.acquire(length);
+        int offset = 0;
+        for(ByteBuffer part : parts) {
+            final int remaining = part.remaining();
+            /**
+             *  bulk get of a duplicate works for direct and read-only buffers alike
+             */
+            part.duplicate().get(buffer, offset, remaining);
+            offset += remaining;
+        }
+        enqueue(buffer, length, flush, future, queued);
+    }
+
+    /**
+     *  @param queued queued bytes returned by the reservation of this entry
+     */
+    private void enqueue(byte[] buffer, int length, boolean flush, WriteFuture future, long queued) {
+        mQueue.offer(new Entry(buffer, length, flush, future));
+        mQueuedCount.incrementAndGet();
+        long peak;
+        while(queued > (peak = mPeakQueuedBytes.get())) {
+            if(mPeakQueuedBytes.compareAndSet(peak, queued)) {
+                break;
+            }
+        }
+        if((queued > mHighWatermark) && isWritable) {
+            setUnwritable();
+        }
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if(isDrainScheduled.compareAndSet(false, true)) {
+            try {
+                mExecutor.execute(mDrainTask);
+            } catch (RejectedExecutionException e) {
+                /**
+                 *  executor went down with the service while writes were still coming,
+                 *  close and fail them here instead of throwing into the caller
+                 */
+                close(new IOException("Writer executor is shut down"));
+                drain();
+            }
+        }
+    }
+
+    private void drain() {
+        while(true) {
+            Entry entry;
+            while((entry = mQueue.poll()) != null) {
+                writeEntry(entry);
+            }
+            isDrainScheduled.set(false);
+            /**
+             *  entries queued after the last poll may have seen the drain still scheduled
+             */
+            if(mQueue.isEmpty() || !isDrainScheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private void writeEntry(Entry entry) {
+        try {
+            if(mCloseCause != null) {
+                if(entry.future != null) {
+                    entry.future.fail(mCloseCause);
+                }
+                return;
+            }
+            try {
+                if(entry.buffer != null) {
+                    final FrameCompressor compressor = mCompressor;
+                    if(compressor != null) {
+                        compressor.encode(mOutputStream, entry.buffer, 0, entry.length);
+                    } else {
+                        mEncoder.encode(mOutputStream, entry.buffer, 0, entry.length);
+                    }
+                    final ConnectionMetrics metrics = mMetrics;
+                    if(metrics != null) {
+                        metrics.onMessageSent(entry.length);
+                    }
+                    if(!entry.flush) {
+                        hasUnflushed = true;
+                    }
+                }
+                if(entry.flush) {
+                    hasUnflushed = false;
+                    mOutputStream.flush();
+                }
+                if(entry.future != null) {
+                    entry.future.complete();
+                }
+            } catch (IOException e) {
+                if(entry.future != null) {
+                    entry.future.fail(e);
+                }
+                close(e);
+                mListener.onWriteError(e);
+            }
+        } finally {
+            if(entry.buffer != null) {
+                mBufferPool.release(entry.buffer);
+                mQueuedCount.decrementAndGet();
+                long queued = mQueuedBytes.addAndGet(-entry.length);
+                if((queued < mLowWatermark) && !isWritable) {
+                    setWritable();
+                }
+            }
+        }
+    }
+
+    private static int remaining(ByteBuffer[] parts) {
+        long length = 0;
+        for(ByteBuffer part : parts) {
+            length += part.remaining();
+        }
+        if(length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format(Locale.getDefault(), "Message is too large (%d)", length));
+        }
+        return (int) length;
+    }
+
+    /**
+     *  transitions are decided on the queued bytes read under the lock, not on what the caller saw
+     *  before taking it, since the drain may have emptied the queue in between. listeners are notified
+     *  under the lock so that they see transitions in order.
+     */
+    private void setUnwritable() {
+        synchronized (mWritabilityLock) {
+            if(!isWritable || (mQueuedBytes.get() <= mHighWatermark)) {
+                return;
+            }
+            isWritable = false;
+            mListener.onWritabilityChanged(false);
+            /**
+             *  a drain that went below the low watermark before the flag was cleared saw the writer
+             *  writable and left it alone, so it's up to this side to switch back
+             */
+            if(mQueuedBytes.get() < mLowWatermark) {
+                isWritable = true;
+                mWritabilityLock.notifyAll();
+                mListener.onWritabilityChanged(true);
+            }
+        }
+    }
+
+    private void setWritable() {
+        synchronized (mWritabilityLock) {
+            if(isWritable || (mQueuedBytes.get() >= mLowWatermark)) {
+                return;
+            }
+            isWritable = true;
+            mWritabilityLock.notifyAll();
+            mListener.onWritabilityChanged(true);
+        }
+    }
+
+    private static class Entry {
+        private final byte[] buffer;
+        private final int length;
+        private final boolean flush;
+        private final WriteFuture future;
+
+        Entry(byte[] buffer, int length, boolean flush, WriteFuture future) {
+            this.buffer = buffer;
+            this.length = length;
+            this.flush = flush;
+            this.future = future;
+        }
+    }
+
+    public interface Listener {
+        void onWritabilityChanged(boolean writable);
+        void onWriteError(IOException e);
+    }
+}
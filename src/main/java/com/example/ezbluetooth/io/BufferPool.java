@@ -0,0 +1,259 @@
+package com.example.ezbluetooth.io;
+
+import android.util.Log;
+
+import com.example.ezbluetooth.BuildConfig;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Pool of byte arrays in power-of-two size classes, shared by every server client task and
+ *  client connection. Each thread keeps a few buffers of its own in front of the shared free
+ *  lists, so a connection borrowing and returning buffers on its own thread doesn't contend.
+ *
+ *  Requests larger than the largest size class are allocated without pooling.
+ *  With leak detection enabled, buffers which are garbage collected without being released are
+ *  reported along with the stack trace of their acquisition. It's off by default outside of debug
+ *  builds of the library itself, applications turn it on with {@link #setLeakDetectionDefault(boolean)}.
+ */
+
+public class BufferPool {
+
+    private static final String TAG = BufferPool.class.getCanonicalName();
+
+    private static final int MIN_SHIFT = 6;                 // 64 bytes
+    private static final int MAX_SHIFT = 20;                // 1 MB
+    private static final int MAX_THREAD_CACHED_SHIFT = 16;  // 64 KB
+    private static final int THREAD_CACHE_SIZE = 2;
+    private static final int DEFAULT_MAX_POOLED_BYTES_PER_CLASS = 512 * 1024;
+
+    private static BufferPool SINGLETON;
+    private static volatile boolean isLeakDetectionDefault = BuildConfig.DEBUG;
+
+    private final ConcurrentLinkedQueue<byte[]>[] mFreeLists;
+    private final AtomicInteger[] mFreeCounts;
+    private final int[] mMaxFreeCounts;
+    private final ThreadLocal<ArrayDeque<byte[]>[]> mThreadCaches;
+    private final AtomicLong mHitCount;
+    private final AtomicLong mMissCount;
+    private final AtomicLong mOutstandingBytes;
+    private volatile LeakDetector mLeakDetector;
+
+    @SuppressWarnings("unchecked")
+    public BufferPool(int maxPooledBytesPerClass) {
+        final int classCount = MAX_SHIFT - MIN_SHIFT + 1;
+        mFreeLists = new ConcurrentLinkedQueue[classCount];
+        mFreeCounts = new AtomicInteger[classCount];
+        mMaxFreeCounts = new int[classCount];
+        for(int idx = 0; idx < classCount; idx++) {
+            mFreeLists[idx] = new ConcurrentLinkedQueue<>();
+            mFreeCounts[idx] = new AtomicInteger();
+            /**
+             *  keep at least a couple of buffers in every class, even the largest ones
+             */
+            mMaxFreeCounts[idx] = Math.max(2, maxPooledBytesPerClass >> (idx + MIN_SHIFT));
+        }
+        mThreadCaches = new ThreadLocal<ArrayDeque<byte[]>[]>() {
+            @Override
+            protected ArrayDeque<byte[]>[] initialValue() {
+                ArrayDeque<byte[]>[] caches = new ArrayDeque[MAX_THREAD_CACHED_SHIFT - MIN_SHIFT + 1];
+                for(int idx = 0; idx < caches.length; idx++) {
+                    caches[idx] = new ArrayDeque<>(THREAD_CACHE_SIZE);
+                }
+                return caches;
+            }
+        };
+        mHitCount = new AtomicLong();
+        mMissCount = new AtomicLong();
+        mOutstandingBytes = new AtomicLong();
+        setLeakDetectionEnabled(isLeakDetectionDefault);
+    }
+
+    /**
+     *  sets whether pools created from now on detect leaks, the default pool included unless it's already
+     *  in use. called early by an application, e.g. with its own BuildConfig.DEBUG, since the library's is
+     *  false in a release AAR whatever the build of the application.
+     */
+    public static void setLeakDetectionDefault(boolean enabled) {
+        isLeakDetectionDefault = enabled;
+    }
+
+    public static synchronized BufferPool getDefault() {
+        if(SINGLETON == null) {
+            SINGLETON = new BufferPool(DEFAULT_MAX_POOLED_BYTES_PER_CLASS);
+        }
+        return SINGLETON;
+    }
+
+    /**
+     *  should be changed before any buffer is borrowed, buffers acquired while disabled are
+     *  rejected on release while enabled.
+     */
+    public void setLeakDetectionEnabled(boolean enabled) {
+        mLeakDetector = enabled ? new LeakDetector() : null;
+    }
+
+    /**
+     *  borrows a buffer of at least given size, which has to be returned with {@link #release(byte[])}
+     * @param minSize minimum length of the buffer
+     * @return buffer whose length is the smallest power of two not less than minSize
+     */
+    public byte[] acquire(int minSize) {
+        final int classIdx = getSizeClass(minSize);
+        byte[] buffer = null;
+        if(classIdx >= 0) {
+            if(classIdx <= MAX_THREAD_CACHED_SHIFT - MIN_SHIFT) {
+                buffer = mThreadCaches.get()[classIdx].pollFirst();
+            }
+            if(buffer == null) {
+                buffer = mFreeLists[classIdx].poll();
+                if(buffer != null) {
+                    mFreeCounts[classIdx].decrementAndGet();
+                }
+            }
+        }
+
+        if(buffer != null) {
+            mHitCount.incrementAndGet();
+        } else {
+            mMissCount.incrementAndGet();
+            buffer = new byte[(classIdx < 0) ? minSize : (1 << (classIdx + MIN_SHIFT))];
+        }
+        mOutstandingBytes.addAndGet(buffer.length);
+
+        final LeakDetector leakDetector = mLeakDetector;
+        if(leakDetector != null) {
+            leakDetector.track(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     *  returns a buffer borrowed from this pool, the buffer must not be used afterwards
+     */
+    public void release(byte[] buffer) {
+        if(buffer == null) {
+            return;
+        }
+        final LeakDetector leakDetector = mLeakDetector;
+        if((leakDetector != null) && !leakDetector.untrack(buffer)) {
+            Log.e(TAG, String.format(Locale.getDefault(), "Buffer (%d bytes) released twice or not acquired from the pool", buffer.length));
+            return;
+        }
+        mOutstandingBytes.addAndGet(-buffer.length);
+
+        final int classIdx = getSizeClass(buffer.length);
+        if((classIdx < 0) || (buffer.length != (1 << (classIdx + MIN_SHIFT)))) {
+            return;
+        }
+        if(classIdx <= MAX_THREAD_CACHED_SHIFT - MIN_SHIFT) {
+            final ArrayDeque<byte[]> cache = mThreadCaches.get()[classIdx];
+            if(cache.size() < THREAD_CACHE_SIZE) {
+                cache.offerFirst(buffer);
+                return;
+            }
+        }
+        if(mFreeCounts[classIdx].incrementAndGet() <= mMaxFreeCounts[classIdx]) {
+            mFreeLists[classIdx].offer(buffer);
+        } else {
+            mFreeCounts[classIdx].decrementAndGet();
+        }
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     *  @return total size of buffers currently borrowed and not yet released
+     */
+    public long getOutstandingBytes() {
+        return mOutstandingBytes.get();
+    }
+
+    /**
+     * @return index of the size class for given size, or -1 if it exceeds the largest class
+     */
+    private static int getSizeClass(int size) {
+        if(size <= (1 << MIN_SHIFT)) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        if(shift > MAX_SHIFT) {
+            return -1;
+        }
+        return shift - MIN_SHIFT;
+    }
+
+    private class LeakDetector {
+        private final ReferenceQueue<byte[]> mQueue;
+        private final WeakHashMap<byte[], LeakReference> mTracked;
+        private final Set<LeakReference> mLiveReferences;
+
+        LeakDetector() {
+            mQueue = new ReferenceQueue<>();
+            mTracked = new WeakHashMap<>();
+            mLiveReferences = Collections.synchronizedSet(new HashSet<LeakReference>());
+        }
+
+        void track(byte[] buffer) {
+            reportLeaks();
+            LeakReference reference = new LeakReference(buffer, mQueue);
+            mLiveReferences.add(reference);
+            synchronized (mTracked) {
+                mTracked.put(buffer, reference);
+            }
+        }
+
+        boolean untrack(byte[] buffer) {
+            LeakReference reference;
+            synchronized (mTracked) {
+                reference = mTracked.remove(buffer);
+            }
+            if(reference == null) {
+                return false;
+            }
+            reference.clear();
+            mLiveReferences.remove(reference);
+            return true;
+        }
+
+        private void reportLeaks() {
+            Reference<? extends byte[]> reference;
+            while((reference = mQueue.poll()) != null) {
+                LeakReference leak = (LeakReference) reference;
+                if(!mLiveReferences.remove(leak)) {
+                    continue;
+                }
+                mOutstandingBytes.addAndGet(-leak.size);
+                Log.e(TAG, String.format(Locale.getDefault(), "Buffer (%d bytes) was garbage collected without release", leak.size), leak.trace);
+            }
+        }
+    }
+
+    private static class LeakReference extends WeakReference<byte[]> {
+        private final int size;
+        private final Throwable trace;
+
+        LeakReference(byte[] buffer, ReferenceQueue<byte[]> queue) {
+            super(buffer, queue);
+            size = buffer.length;
+            trace = new Throwable("Buffer acquired here");
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.example.ezbluetooth.io;
+
+import com.example.ezbluetooth.exec.ServiceScheduler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Output stage which gathers small writes into one buffer, so that many small messages share a
+ *  single RFCOMM packet instead of being sent one by one. Buffered data is sent to the underlying
+ *  stream when any of the followings happens,
+ *  <ul>
+ *      <li>buffered size reaches the flush threshold</li>
+ *      <li>the oldest buffered byte has waited for the max delay</li>
+ *      <li>{@link #flush()} is called</li>
+ *  </ul>
+ *  writes not smaller than the threshold bypass the buffer when it is empty.
+ */
+
+public class CoalescingOutputStream extends OutputStream {
+
+    /**
+     *  size of RFCOMM payload with default MTU, rounded up
+     */
+    public static final int DEFAULT_FLUSH_THRESHOLD = 1024;
+    public static final long DEFAULT_MAX_FLUSH_DELAY = 5L;
+    /**
+     *  disables max delay policy, buffered data waits for threshold or explicit flush
+     */
+    public static final long NO_MAX_DELAY = 0L;
+
+    private final OutputStream mOutputStream;
+    private final BufferPool mBufferPool;
+    private final int mFlushThreshold;
+    private final long mMaxDelay;
+    private final ScheduledExecutorService mTimer;
+    private final Runnable mDelayedFlush;
+    private byte[] mBuffer;
+    private int mCount;
+    private boolean isFlushScheduled;
+    private IOException mDelayedFlushError;
+
+    public CoalescingOutputStream(OutputStream os, BufferPool bufferPool, int flushThreshold, long maxDelayMillis) {
+        this(os, bufferPool, flushThreshold, maxDelayMillis, ServiceScheduler.getDefault().getTimer());
+    }
+
+    /**
+     *
+     * @param timer executor running delayed flushes
+     */
+    public CoalescingOutputStream(OutputStream os, BufferPool bufferPool, int flushThreshold, long maxDelayMillis, ScheduledExecutorService timer) {
+        mOutputStream = os;
+        mTimer = timer;
+        mBufferPool = bufferPool;
+        mFlushThreshold = Math.max(flushThreshold, 1);
+        mMaxDelay = maxDelayMillis;
+        mBuffer = bufferPool.acquire(mFlushThreshold);
+        mCount = 0;
+        isFlushScheduled = false;
+        mDelayedFlush = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CoalescingOutputStream.this) {
+                    isFlushScheduled = false;
+                    if(mBuffer == null) {
+                        return;
+                    }
+                    try {
+                        flushBuffer();
+                        mOutputStream.flush();
+                    } catch (IOException e) {
+                        mDelayedFlushError = e;
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        ensureOpen();
+        mBuffer[mCount++] = (byte) b;
+        onBuffered();
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if((mCount == 0) && (len >= mFlushThreshold)) {
+            mOutputStream.write(b, off, len);
+            return;
+        }
+        while(len > 0) {
+            int chunk = Math.min(len, mFlushThreshold - mCount);
+            System.arraycopy(b, off, mBuffer, mCount, chunk);
+            mCount += chunk;
+            off += chunk;
+            len -= chunk;
+            onBuffered();
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        ensureOpen();
+        flushBuffer();
+        mOutputStream.flush();
+    }
+
+    /**
+     *  @return the number of bytes waiting to be sent
+     */
+    public synchronized int getBufferedSize() {
+        return mCount;
+    }
+
+    /**
+     *  flushes remaining data, returns the buffer to the pool and closes the underlying stream
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if(mBuffer == null) {
+            return;
+        }
+        try {
+            flushBuffer();
+            mOutputStream.close();
+        } finally {
+            mBufferPool.release(mBuffer);
+            mBuffer = null;
+        }
+    }
+
+    private void onBuffered() throws IOException {
+        if(mCount >= mFlushThreshold) {
+            flushBuffer();
+        } else if((mMaxDelay > NO_MAX_DELAY) && !isFlushScheduled) {
+            isFlushScheduled = true;
+            mTimer.schedule(mDelayedFlush, mMaxDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if(mCount == 0) {
+            return;
+        }
+        final int count = mCount;
+        mCount = 0;
+        mOutputStream.write(mBuffer, 0, count);
+    }
+
+    private void ensureOpen() throws IOException {
+        if(mBuffer == null) {
+            throw new IOException("Stream is closed");
+        }
+        if(mDelayedFlushError != null) {
+            IOException e = mDelayedFlushError;
+            mDelayedFlushError = null;
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.example.ezbluetooth.io;
+
+import com.example.ezbluetooth.metrics.CompressionMetrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ *  Per-frame deflate stage of a framed connection. Once negotiated, every frame payload is led by
+ *  a flag byte telling whether the rest is raw or deflated, the deflated ones also carrying their
+ *  inflated length as a varint. Each end compresses only after it has seen the hello of the peer.
+ *
+ *  Compression is negotiated per connection. The client sends a hello as its first frame. A service
+ *  with compression enabled answers with a hello of its own as its first frame, and keeps plain framing
+ *  towards a client whose first frame isn't a hello. A client with compression enabled fails with an
+ *  IOException if the first frame of the service isn't a hello, rather than misreading its frames,
+ *  so it's to be enabled only towards services which have it enabled too.
+ *
+ *  Frames below the threshold are sent raw, as are frames deflate doesn't shrink by at least
+ *  1/8; after such a frame the next 1, 2, 4 .. up to {@link #MAX_SKIP} frames are sent raw without
+ *  trying, so incompressible streams cost little CPU. One deflater and one inflater live as long as
+ *  the connection, reset between frames rather than re-allocated with their native state.
+ *
+ *  {@link #encode(OutputStream, byte[], int, int)} is to be called from a single writer,
+ *  {@link #decode(byte[], int, int, FrameDecoder.FrameHandler)} from a single reader.
+ */
+
+public class FrameCompressor {
+
+    public static final int DEFAULT_THRESHOLD = 128;
+
+    /**
+     *  bytes the flag adds to every frame, decoders have to accept frames as much larger
+     */
+    public static final int OVERHEAD = 1;
+
+    static final byte FLAG_RAW = 0;
+    static final byte FLAG_DEFLATE = 1;
+    static final byte FLAG_HELLO = 2;
+
+    private static final byte CODEC_DEFLATE = 1;
+
+    /**
+     *  follows the hello flag, so that a first frame of a peer without compression is hardly taken for a hello
+     */
+    private static final byte[] HELLO_MAGIC = {'E', 'Z'};
+    private static final int HELLO_SIZE = OVERHEAD + HELLO_MAGIC.length + 1;
+    private static final int MAX_SKIP = 32;
+
+    private final BufferPool mBufferPool;
+    private final int mMaxFrameSize;
+    private final int mThreshold;
+    private final Deflater mDeflater;
+    private final Inflater mInflater;
+    private final CompressionMetrics mMetrics;
+    private final byte[] mHeader;
+    private volatile boolean isPeerInflating;
+    private boolean isPeerHelloSeen;
+    private boolean isReleased;
+    private int mSkip;
+    private int mSkipRemaining;
+
+    /**
+     *
+     * @param maxFrameSize max payload size, before compression and without the flag
+     * @param level deflate level, e.g. {@link Deflater#BEST_SPEED}
+     * @param threshold frames smaller than this are never compressed
+     */
+    public FrameCompressor(BufferPool bufferPool, int maxFrameSize, int level, int threshold, CompressionMetrics metrics) {
+        mBufferPool = bufferPool;
+        mMaxFrameSize = maxFrameSize;
+        mThreshold = threshold;
+        mDeflater = new Deflater(level);
+        mInflater = new Inflater();
+        mMetrics = metrics;
+        mHeader = new byte[FrameEncoder.MAX_HEADER_SIZE + OVERHEAD];
+    }
+
+    /**
+     *  announces to the peer that this end inflates, to be written once before any other frame.
+     *  the frame is complete, a service answers the hello of a client with it before its writer is used.
+     */
+    public static void writeHello(OutputStream os) throws IOException {
+        byte[] hello = new byte[FrameEncoder.MAX_HEADER_SIZE + HELLO_SIZE];
+        int pos = FrameEncoder.writeHeader(hello, 0, HELLO_SIZE);
+        hello[pos++] = FLAG_HELLO;
+        for(byte b : HELLO_MAGIC) {
+            hello[pos++] = b;
+        }
+        hello[pos++] = CODEC_DEFLATE;
+        os.write(hello, 0, pos);
+    }
+
+    /**
+     *  @return true once the peer has announced it inflates
+     */
+    public boolean isActive() {
+        return isPeerInflating;
+    }
+
+    /**
+     *  writes given payload as a single frame, compressed if it pays off
+     */
+    public synchronized void encode(OutputStream os, byte[] data, int offset, int length) throws IOException {
+        if(isReleased) {
+            throw new IOException("Compressor is released");
+        }
+        if(length > mMaxFrameSize) {
+            throw new IOException(String.format(Locale.getDefault(), "Frame size exceeds the limit (%d > %d)", length, mMaxFrameSize));
+        }
+        if(!isPeerInflating || (length < mThreshold)) {
+            writeRaw(os, data, offset, length);
+            mMetrics.onSkipped(length, 0);
+            return;
+        }
+        if(mSkipRemaining > 0) {
+            mSkipRemaining--;
+            writeRaw(os, data, offset, length);
+            mMetrics.onSkipped(length, 0);
+            return;
+        }
+
+        final long compressStart = System.nanoTime();
+        final int lengthSize = FrameEncoder.getHeaderSize(length);
+        /**
+         *  output is cut at 7/8 of the input, deflate that can't finish within it isn't worth it
+         */
+        final int limit = OVERHEAD + lengthSize + length - (length >> 3);
+        final byte[] out = mBufferPool.acquire(limit);
+        try {
+            out[0] = FLAG_DEFLATE;
+            int pos = OVERHEAD + FrameEncoder.writeHeader(out, OVERHEAD, length);
+            mDeflater.setInput(data, offset, length);
+            mDeflater.finish();
+            while(!mDeflater.finished() && (pos < limit)) {
+                pos += mDeflater.deflate(out, pos, limit - pos);
+            }
+            final boolean isCompressed = mDeflater.finished();
+            mDeflater.reset();
+            final long compressTime = System.nanoTime() - compressStart;
+            if(!isCompressed) {
+                mSkip = (mSkip == 0) ? 1 : Math.min(mSkip << 1, MAX_SKIP);
+                mSkipRemaining = mSkip;
+                writeRaw(os, data, offset, length);
+                mMetrics.onSkipped(length, compressTime);
+                return;
+            }
+            mSkip = 0;
+            os.write(mHeader, 0, FrameEncoder.writeHeader(mHeader, 0, pos));
+            os.write(out, 0, pos);
+            mMetrics.onCompressed(length, pos - OVERHEAD, compressTime);
+        } finally {
+            mBufferPool.release(out);
+        }
+    }
+
+    /**
+     *  strips the flag of a received frame, inflating it if needed, and hands the payload over.
+     *  hello frames are consumed here.
+     * @throws IOException also when the first frame of the peer is not a hello
+     */
+    public void decode(byte[] buffer, int offset, int length, FrameDecoder.FrameHandler handler) throws IOException {
+        if(!isPeerHelloSeen) {
+            if(!isHello(buffer, offset, length)) {
+                throw new IOException("Peer doesn't have compression enabled, its first frame is not a hello");
+            }
+            isPeerHelloSeen = true;
+        }
+        if(length < OVERHEAD) {
+            throw new IOException("Frame without compression flag");
+        }
+        switch (buffer[offset]) {
+            case FLAG_RAW:
+                handler.onFrame(buffer, offset + OVERHEAD, length - OVERHEAD);
+                break;
+            case FLAG_DEFLATE:
+                inflate(buffer, offset + OVERHEAD, length - OVERHEAD, handler);
+                break;
+            case FLAG_HELLO:
+                if(!isHello(buffer, offset, length)) {
+                    throw new IOException("Malformed compression hello");
+                }
+                isPeerInflating = (buffer[offset + HELLO_SIZE - 1] & CODEC_DEFLATE) != 0;
+                break;
+            default:
+                throw new IOException(String.format(Locale.getDefault(), "Unknown compression flag (%d)", buffer[offset]));
+        }
+    }
+
+    /**
+     *  frees the native state of the deflater and the inflater, the compressor must not be used afterwards
+     */
+    public synchronized void release() {
+        if(isReleased) {
+            return;
+        }
+        isReleased = true;
+        mDeflater.end();
+        mInflater.end();
+    }
+
+    /**
+     *  @return true if given frame is a hello, e.g. the first frame of a client to tell whether it compresses
+     */
+    public static boolean isHello(byte[] buffer, int offset, int length) {
+        if((length < HELLO_SIZE) || (buffer[offset] != FLAG_HELLO)) {
+            return false;
+        }
+        for(int i = 0; i < HELLO_MAGIC.length; i++) {
+            if(buffer[offset + OVERHEAD + i] != HELLO_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeRaw(OutputStream os, byte[] data, int offset, int length) throws IOException {
+        int headerSize = FrameEncoder.writeHeader(mHeader, 0, length + OVERHEAD);
+        mHeader[headerSize++] = FLAG_RAW;
+        os.write(mHeader, 0, headerSize);
+        os.write(data, offset, length);
+    }
+
+    private void inflate(byte[] buffer, int offset, int length, FrameDecoder.FrameHandler handler) throws IOException {
+        final int end = offset + length;
+        int inflatedLength = 0;
+        int shift = 0;
+        int pos = offset;
+        while(true) {
+            if((pos == end) || (shift >= 7 * FrameEncoder.MAX_HEADER_SIZE)) {
+                throw new IOException("Malformed compressed frame");
+            }
+            byte b = buffer[pos++];
+            inflatedLength |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+        }
+        if((inflatedLength < 0) || (inflatedLength > mMaxFrameSize)) {
+            throw new IOException(String.format(Locale.getDefault(), "Inflated frame size exceeds the limit (%d > %d)", inflatedLength, mMaxFrameSize));
+        }
+
+        final long inflateStart = System.nanoTime();
+        final byte[] out = mBufferPool.acquire(inflatedLength);
+        try {
+            int inflated = 0;
+            mInflater.setInput(buffer, pos, end - pos);
+            try {
+                while((inflated < inflatedLength) && !mInflater.finished()) {
+                    int n = mInflater.inflate(out, inflated, inflatedLength - inflated);
+                    if((n == 0) && (mInflater.needsInput() || mInflater.needsDictionary())) {
+                        break;
+                    }
+                    inflated += n;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(e.getLocalizedMessage());
+            } finally {
+                mInflater.reset();
+            }
+            if(inflated != inflatedLength) {
+                throw new IOException(String.format(Locale.getDefault(), "Corrupted compressed frame (%d of %d bytes)", inflated, inflatedLength));
+            }
+            mMetrics.onInflated(length, inflatedLength, System.nanoTime() - inflateStart);
+            handler.onFrame(out, 0, inflatedLength);
+        } finally {
+            mBufferPool.release(out);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.ezbluetooth.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ *  Splits an inbound byte stream into frames prefixed with an unsigned varint length.
+ *  Every frame is handed to {@link FrameHandler} as a slice of one receive buffer which is
+ *  reused for the life time of the connection, so a single read carrying many small frames
+ *  costs no allocation. Frames spanning several reads are reassembled in place.
+ *
+ *  When constructed with {@link #NO_FRAMING}, each read is passed through as-is with its
+ *  exact byte count.
+ */
+
+public class FrameDecoder {
+
+    public static final int NO_FRAMING = 0;
+    /**
+     *  largest payload whose receive buffer, with the header and the compression flag, still fits the 64 KiB
+     *  size class of {@link BufferPool} rather than taking a buffer of twice the size
+     */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024 - FrameEncoder.MAX_HEADER_SIZE - FrameCompressor.OVERHEAD;
+
+    private final BufferPool mBufferPool;
+    private final int mMaxFrameSize;
+    private final int mReadSize;
+    private byte[] mBuffer;
+    private int mReadIndex;
+    private int mWriteIndex;
+
+    /**
+     *
+     * @param maxFrameSize largest frame payload accepted, or {@link #NO_FRAMING} to pass reads through
+     * @param readSize preferred size of a single read from the stream
+     */
+    public FrameDecoder(int maxFrameSize, int readSize) {
+        this(BufferPool.getDefault(), maxFrameSize, readSize);
+    }
+
+    /**
+     *
+     * @param bufferPool pool the receive buffer is borrowed from, returned by {@link #release()}
+     * @param maxFrameSize largest frame payload accepted, or {@link #NO_FRAMING} to pass reads through
+     * @param readSize preferred size of a single read from the stream
+     */
+    public FrameDecoder(BufferPool bufferPool, int maxFrameSize, int readSize) {
+        if(readSize <= 0) {
+            readSize = 1;
+        }
+        mBufferPool = bufferPool;
+        mMaxFrameSize = maxFrameSize;
+        mReadSize = readSize;
+        if(maxFrameSize > NO_FRAMING) {
+            /**
+             *  receive buffer must be able to hold one complete frame with its header
+             */
+            mBuffer = bufferPool.acquire(Math.max(readSize, maxFrameSize + FrameEncoder.MAX_HEADER_SIZE));
+        } else {
+            mBuffer = bufferPool.acquire(readSize);
+        }
+        mReadIndex = 0;
+        mWriteIndex = 0;
+    }
+
+    public boolean isFramed() {
+        return mMaxFrameSize > NO_FRAMING;
+    }
+
+    public int getMaxFrameSize() {
+        return mMaxFrameSize;
+    }
+
+    /**
+     *  performs a single read from the stream and dispatches every frame completed by it
+     * @param is stream to read from
+     * @param handler receiver of decoded frames
+     * @return the number of bytes read, or -1 at the end of the stream
+     * @throws IOException on read failure or when a malformed / oversized frame is seen
+     */
+    public int decode(InputStream is, FrameHandler handler) throws IOException {
+        if(!isFramed()) {
+            int len = is.read(mBuffer, 0, mReadSize);
+            if(len > 0) {
+                handler.onFrame(mBuffer, 0, len);
+            }
+            return len;
+        }
+
+        if(mWriteIndex == mBuffer.length) {
+            compact();
+        }
+        int len = is.read(mBuffer, mWriteIndex, mBuffer.length - mWriteIndex);
+        if(len <= 0) {
+            return len;
+        }
+        mWriteIndex += len;
+
+        while(mReadIndex < mWriteIndex) {
+            int frameLength = 0;
+            int shift = 0;
+            int idx = mReadIndex;
+            boolean isHeaderComplete = false;
+            while(idx < mWriteIndex) {
+                byte b = mBuffer[idx++];
+                frameLength |= (b & 0x7F) << shift;
+                if((b & 0x80) == 0) {
+                    isHeaderComplete = true;
+                    break;
+                }
+                shift += 7;
+                if(shift >= 7 * FrameEncoder.MAX_HEADER_SIZE) {
+                    throw new IOException("Malformed frame header");
+                }
+            }
+            if(!isHeaderComplete) {
+                break;
+            }
+            if((frameLength < 0) || (frameLength > mMaxFrameSize)) {
+                throw new IOException(String.format(Locale.getDefault(), "Frame size exceeds the limit (%d > %d)", frameLength, mMaxFrameSize));
+            }
+            if(mWriteIndex - idx < frameLength) {
+                break;
+            }
+            mReadIndex = idx + frameLength;
+            handler.onFrame(mBuffer, idx, frameLength);
+        }
+
+        if(mReadIndex == mWriteIndex) {
+            mReadIndex = 0;
+            mWriteIndex = 0;
+        }
+        return len;
+    }
+
+    /**
+     *  @return the number of bytes belonging to a frame not yet completed
+     */
+    public int getPendingSize() {
+        return mWriteIndex - mReadIndex;
+    }
+
+    /**
+     *  returns the receive buffer to the pool, the decoder must not be used afterwards
+     */
+    public void release() {
+        if(mBuffer == null) {
+            return;
+        }
+        mBufferPool.release(mBuffer);
+        mBuffer = null;
+    }
+
+    private void compact() {
+        int pending = mWriteIndex - mReadIndex;
+        if(pending > 0) {
+            System.arraycopy(mBuffer, mReadIndex, mBuffer, 0, pending);
+        }
+        mReadIndex = 0;
+        mWriteIndex = pending;
+    }
+
+    public interface FrameHandler {
+        void onFrame(byte[] buffer, int offset, int length) throws IOException;
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.ezbluetooth.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ *  Writes frames prefixed with an unsigned varint length, the counterpart of {@link FrameDecoder}.
+ *  When constructed with {@link FrameDecoder#NO_FRAMING}, data is written to the stream untouched.
+ *
+ *  not thread-safe, callers sharing an encoder must serialize writes on it.
+ */
+
+public class FrameEncoder {
+
+    /**
+     *  a 32-bit length never takes more than 5 bytes of varint
+     */
+    public static final int MAX_HEADER_SIZE = 5;
+
+    private final byte[] mHeader;
+    private final int mMaxFrameSize;
+
+    public FrameEncoder(int maxFrameSize) {
+        mMaxFrameSize = maxFrameSize;
+        mHeader = new byte[MAX_HEADER_SIZE];
+    }
+
+    public boolean isFramed() {
+        return mMaxFrameSize > FrameDecoder.NO_FRAMING;
+    }
+
+    public void encode(OutputStream os, byte[] data) throws IOException {
+        encode(os, data, 0, data.length);
+    }
+
+    public void encode(OutputStream os, byte[] data, int offset, int length) throws IOException {
+        if(isFramed()) {
+            if(length > mMaxFrameSize) {
+                throw new IOException(String.format(Locale.getDefault(), "Frame size exceeds the limit (%d > %d)", length, mMaxFrameSize));
+            }
+            os.write(mHeader, 0, writeHeader(mHeader, 0, length));
+        }
+        os.write(data, offset, length);
+    }
+
+    /**
+     *  writes varint encoded frame length into given array
+     * @return the number of bytes written
+     */
+    public static int writeHeader(byte[] dst, int offset, int length) {
+        int idx = offset;
+        while((length & ~0x7F) != 0) {
+            dst[idx++] = (byte) ((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        dst[idx++] = (byte) length;
+        return idx - offset;
+    }
+
+    public static int getHeaderSize(int length) {
+        int size = 1;
+        while((length & ~0x7F) != 0) {
+            length >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.ezbluetooth.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ *  Reusable reply buffer handed to data handlers. Whatever is written into it during a single
+ *  handler call is sent to the peer as one message when the handler returns, then the sink is
+ *  cleared for the next call. The backing buffer is borrowed from a {@link BufferPool} and
+ *  only grows, so steady state replies are free of allocation.
+ */
+
+public class OutputSink {
+
+    private static final int MIN_CAPACITY = 64;
+
+    private final BufferPool mBufferPool;
+    private ByteBuffer mBuffer;
+
+    public OutputSink(int initialCapacity) {
+        this(BufferPool.getDefault(), initialCapacity);
+    }
+
+    public OutputSink(BufferPool bufferPool, int initialCapacity) {
+        mBufferPool = bufferPool;
+        mBuffer = ByteBuffer.wrap(bufferPool.acquire(Math.max(initialCapacity, MIN_CAPACITY)));
+    }
+
+    /**
+     *  gives direct access to the backing buffer, bytes between 0 and its position are sent.
+     *  call {@link #ensureCapacity(int)} before putting into it directly.
+     */
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    public OutputSink ensureCapacity(int remaining) {
+        if(mBuffer.remaining() >= remaining) {
+            return this;
+        }
+        int capacity = mBuffer.capacity();
+        while(capacity - mBuffer.position() < remaining) {
+            capacity <<= 1;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(mBufferPool.acquire(capacity));
+        mBuffer.flip();
+        buffer.put(mBuffer);
+        mBufferPool.release(mBuffer.array());
+        mBuffer = buffer;
+        return this;
+    }
+
+    public OutputSink write(int b) {
+        ensureCapacity(1);
+        mBuffer.put((byte) b);
+        return this;
+    }
+
+    public OutputSink write(byte[] data) {
+        return write(data, 0, data.length);
+    }
+
+    public OutputSink write(byte[] data, int offset, int length) {
+        ensureCapacity(length);
+        mBuffer.put(data, offset, length);
+        return this;
+    }
+
+    /**
+     *  appends the remaining bytes of given buffers, which can be direct or read-only.
+     *  positions of the buffers are left unchanged.
+     */
+    public OutputSink write(ByteBuffer... parts) {
+        for(ByteBuffer part : parts) {
+            ensureCapacity(part.remaining());
+            mBuffer.put(part.duplicate());
+        }
+        return this;
+    }
+
+    public int size() {
+        return mBuffer.position();
+    }
+
+    public boolean isEmpty() {
+        return mBuffer.position() == 0;
+    }
+
+    public void clear() {
+        mBuffer.clear();
+    }
+
+    /**
+     *  returns the backing buffer to the pool, the sink must not be used afterwards
+     */
+    public void release() {
+        if(mBuffer == null) {
+            return;
+        }
+        mBufferPool.release(mBuffer.array());
+        mBuffer = null;
+    }
+
+    /**
+     *  queues the content of this sink as a single message to given writer and clears it.
+     *  never blocks, the read loop calling it waits for writability before its next read instead.
+     */
+    public void flushTo(AsyncWriter writer) throws IOException {
+        if(isEmpty()) {
+            return;
+        }
+        try {
+            writer.push(mBuffer.array(), mBuffer.arrayOffset(), mBuffer.position(), false);
+        } finally {
+            mBuffer.clear();
+        }
+    }
+}
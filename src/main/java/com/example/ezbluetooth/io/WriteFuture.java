@@ -0,0 +1,84 @@
+package com.example.ezbluetooth.io;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ *  Result of a queued write, completed once the data is handed to the output stream
+ *  or failed when the connection is closed before that.
+ */
+
+public class WriteFuture implements Future<Void> {
+
+    private final CountDownLatch mLatch;
+    private volatile IOException mError;
+
+    WriteFuture() {
+        mLatch = new CountDownLatch(1);
+    }
+
+    public static WriteFuture failed(IOException e) {
+        WriteFuture future = new WriteFuture();
+        future.fail(e);
+        return future;
+    }
+
+    void complete() {
+        mLatch.countDown();
+    }
+
+    void fail(IOException e) {
+        mError = e;
+        mLatch.countDown();
+    }
+
+    /**
+     *  @return true if the data is written, false if still pending or failed
+     */
+    public boolean isSuccess() {
+        return isDone() && (mError == null);
+    }
+
+    public IOException getError() {
+        return mError;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mLatch.getCount() == 0;
+    }
+
+    @Override
+    public Void get() throws InterruptedException, ExecutionException {
+        mLatch.await();
+        if(mError != null) {
+            throw new ExecutionException(mError);
+        }
+        return null;
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if(!mLatch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        if(mError != null) {
+            throw new ExecutionException(mError);
+        }
+        return null;
+    }
+}
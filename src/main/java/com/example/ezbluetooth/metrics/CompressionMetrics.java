@@ -0,0 +1,64 @@
+package com.example.ezbluetooth.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Live counters of the compression stage of a connection. Outbound frames are counted by the
+ *  writer, inbound ones by the read loop; times are {@link System#nanoTime()} differences
+ *  around deflate / inflate, which are CPU bound and so stand for their CPU cost.
+ */
+
+public class CompressionMetrics {
+
+    private final AtomicLong mFramesCompressed;
+    private final AtomicLong mFramesSkipped;
+    private final AtomicLong mBytesBeforeCompression;
+    private final AtomicLong mBytesAfterCompression;
+    private final AtomicLong mBytesBeforeInflation;
+    private final AtomicLong mBytesAfterInflation;
+    private final Histogram mCompressTime;
+    private final Histogram mInflateTime;
+
+    public CompressionMetrics() {
+        mFramesCompressed = new AtomicLong();
+        mFramesSkipped = new AtomicLong();
+        mBytesBeforeCompression = new AtomicLong();
+        mBytesAfterCompression = new AtomicLong();
+        mBytesBeforeInflation = new AtomicLong();
+        mBytesAfterInflation = new AtomicLong();
+        mCompressTime = new Histogram();
+        mInflateTime = new Histogram();
+    }
+
+    /**
+     *  @param compressTime time spent on the attempt, zero if it was not attempted
+     */
+    public void onSkipped(int length, long compressTime) {
+        mFramesSkipped.incrementAndGet();
+        mBytesBeforeCompression.addAndGet(length);
+        mBytesAfterCompression.addAndGet(length);
+        if(compressTime > 0) {
+            mCompressTime.record(compressTime);
+        }
+    }
+
+    public void onCompressed(int length, int compressedLength, long compressTime) {
+        mFramesCompressed.incrementAndGet();
+        mBytesBeforeCompression.addAndGet(length);
+        mBytesAfterCompression.addAndGet(compressedLength);
+        mCompressTime.record(compressTime);
+    }
+
+    public void onInflated(int compressedLength, int length, long inflateTime) {
+        mBytesBeforeInflation.addAndGet(compressedLength);
+        mBytesAfterInflation.addAndGet(length);
+        mInflateTime.record(inflateTime);
+    }
+
+    public CompressionSnapshot snapshot() {
+        return new CompressionSnapshot(mFramesCompressed.get(), mFramesSkipped.get(),
+                mBytesBeforeCompression.get(), mBytesAfterCompression.get(),
+                mBytesBeforeInflation.get(), mBytesAfterInflation.get(),
+                mCompressTime.snapshot(), mInflateTime.snapshot());
+    }
+}
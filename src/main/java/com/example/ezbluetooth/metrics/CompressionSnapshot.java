@@ -0,0 +1,98 @@
+package com.example.ezbluetooth.metrics;
+
+import java.util.Locale;
+
+/**
+ *  Immutable copy of {@link CompressionMetrics}.
+ */
+
+public class CompressionSnapshot {
+
+    static final CompressionSnapshot EMPTY = new CompressionSnapshot(0, 0, 0, 0, 0, 0, HistogramSnapshot.EMPTY, HistogramSnapshot.EMPTY);
+
+    private final long mFramesCompressed;
+    private final long mFramesSkipped;
+    private final long mBytesBeforeCompression;
+    private final long mBytesAfterCompression;
+    private final long mBytesBeforeInflation;
+    private final long mBytesAfterInflation;
+    private final HistogramSnapshot mCompressTime;
+    private final HistogramSnapshot mInflateTime;
+
+    CompressionSnapshot(long framesCompressed, long framesSkipped, long bytesBeforeCompression, long bytesAfterCompression,
+                        long bytesBeforeInflation, long bytesAfterInflation, HistogramSnapshot compressTime, HistogramSnapshot inflateTime) {
+        mFramesCompressed = framesCompressed;
+        mFramesSkipped = framesSkipped;
+        mBytesBeforeCompression = bytesBeforeCompression;
+        mBytesAfterCompression = bytesAfterCompression;
+        mBytesBeforeInflation = bytesBeforeInflation;
+        mBytesAfterInflation = bytesAfterInflation;
+        mCompressTime = compressTime;
+        mInflateTime = inflateTime;
+    }
+
+    public long getFramesCompressed() {
+        return mFramesCompressed;
+    }
+
+    /**
+     *  @return frames sent as they are, for being too small, not compressing or the peer not inflating
+     */
+    public long getFramesSkipped() {
+        return mFramesSkipped;
+    }
+
+    public long getBytesBeforeCompression() {
+        return mBytesBeforeCompression;
+    }
+
+    public long getBytesAfterCompression() {
+        return mBytesAfterCompression;
+    }
+
+    public long getBytesBeforeInflation() {
+        return mBytesBeforeInflation;
+    }
+
+    public long getBytesAfterInflation() {
+        return mBytesAfterInflation;
+    }
+
+    /**
+     *  @return outbound bytes on the wire over bytes written, 1 when nothing is compressed
+     */
+    public double getCompressionRatio() {
+        return (mBytesBeforeCompression == 0) ? 1 : (double) mBytesAfterCompression / mBytesBeforeCompression;
+    }
+
+    /**
+     *  @return compressed inbound bytes over the bytes they inflated to, 1 when nothing is inflated
+     */
+    public double getInflationRatio() {
+        return (mBytesAfterInflation == 0) ? 1 : (double) mBytesBeforeInflation / mBytesAfterInflation;
+    }
+
+    /**
+     *  @return distribution of nanoseconds per compression attempt, failed ones included
+     */
+    public HistogramSnapshot getCompressTime() {
+        return mCompressTime;
+    }
+
+    public HistogramSnapshot getInflateTime() {
+        return mInflateTime;
+    }
+
+    public CompressionSnapshot merge(CompressionSnapshot other) {
+        return new CompressionSnapshot(mFramesCompressed + other.mFramesCompressed, mFramesSkipped + other.mFramesSkipped,
+                mBytesBeforeCompression + other.mBytesBeforeCompression, mBytesAfterCompression + other.mBytesAfterCompression,
+                mBytesBeforeInflation + other.mBytesBeforeInflation, mBytesAfterInflation + other.mBytesAfterInflation,
+                mCompressTime.merge(other.mCompressTime), mInflateTime.merge(other.mInflateTime));
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.getDefault(), "compressed %d, skipped %d, ratio %.2f, inflation ratio %.2f, compress ns [%s], inflate ns [%s]",
+                mFramesCompressed, mFramesSkipped, getCompressionRatio(), getInflationRatio(), mCompressTime, mInflateTime);
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.ezbluetooth.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Live instrumentation of a single connection, updated from its read loop and its writer.
+ *  All times are {@link System#nanoTime()} differences in nanoseconds.
+ */
+
+public class ConnectionMetrics {
+
+    private final long mStartTime;
+    private final AtomicLong mBytesIn;
+    private final AtomicLong mBytesOut;
+    private final AtomicLong mMessagesIn;
+    private final AtomicLong mMessagesOut;
+    private final Histogram mReadSize;
+    private final Histogram mHandlerTime;
+    private final Histogram mWriteBlockedTime;
+    private final Histogram mFirstByteLatency;
+    private final Histogram mConnectLatency;
+    private final CompressionMetrics mCompression;
+    private volatile boolean hasFirstByte;
+
+    public ConnectionMetrics() {
+        mStartTime = System.nanoTime();
+        mBytesIn = new AtomicLong();
+        mBytesOut = new AtomicLong();
+        mMessagesIn = new AtomicLong();
+        mMessagesOut = new AtomicLong();
+        mReadSize = new Histogram();
+        mHandlerTime = new Histogram();
+        mWriteBlockedTime = new Histogram();
+        mFirstByteLatency = new Histogram();
+        mConnectLatency = new Histogram();
+        mCompression = new CompressionMetrics();
+    }
+
+    /**
+     *  @param length bytes returned by a single read of the channel
+     */
+    public void onRead(int length) {
+        mBytesIn.addAndGet(length);
+        mReadSize.record(length);
+    }
+
+    /**
+     *  @param handlerTime time spent in the data handler for the message
+     */
+    public void onMessageReceived(long handlerTime) {
+        mMessagesIn.incrementAndGet();
+        mHandlerTime.record(handlerTime);
+    }
+
+    /**
+     *  @param length payload bytes handed to the channel
+     */
+    public void onMessageSent(int length) {
+        mMessagesOut.incrementAndGet();
+        mBytesOut.addAndGet(length);
+    }
+
+    /**
+     *  @param blockedTime time a writer waited for the queue to drain below its watermark
+     */
+    public void onWriteBlocked(long blockedTime) {
+        mWriteBlockedTime.record(blockedTime);
+    }
+
+    /**
+     *  records time from accept to the first byte read from the client, once per connection
+     * @param acceptTime accept time in {@link System#nanoTime()} base
+     */
+    public void onFirstByte(long acceptTime) {
+        if(hasFirstByte) {
+            return;
+        }
+        hasFirstByte = true;
+        mFirstByteLatency.record(System.nanoTime() - acceptTime);
+    }
+
+    public boolean hasFirstByte() {
+        return hasFirstByte;
+    }
+
+    /**
+     *  @param latency time the transport took to connect
+     */
+    public void onConnected(long latency) {
+        mConnectLatency.record(latency);
+    }
+
+    public CompressionMetrics getCompression() {
+        return mCompression;
+    }
+
+    public MetricsSnapshot snapshot() {
+        return new MetricsSnapshot(1, System.nanoTime() - mStartTime,
+                mBytesIn.get(), mBytesOut.get(), mMessagesIn.get(), mMessagesOut.get(),
+                mReadSize.snapshot(), mHandlerTime.snapshot(), mWriteBlockedTime.snapshot(),
+                mFirstByteLatency.snapshot(), mConnectLatency.snapshot(), mCompression.snapshot());
+    }
+}
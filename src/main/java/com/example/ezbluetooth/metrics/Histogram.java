@@ -0,0 +1,64 @@
+package com.example.ezbluetooth.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *  Fixed-bucket histogram of non-negative values. Bucket i counts values of bit length i, so
+ *  every bucket spans one power of two and recording is a leading-zero count plus two atomic
+ *  adds, without allocation or locking, cheap enough to sit on every read.
+ */
+
+public class Histogram {
+
+    static final int BUCKET_COUNT = 64;
+
+    private final AtomicLongArray mBuckets;
+    private final AtomicLong mSum;
+    private final AtomicLong mMax;
+
+    public Histogram() {
+        mBuckets = new AtomicLongArray(BUCKET_COUNT);
+        mSum = new AtomicLong();
+        mMax = new AtomicLong();
+    }
+
+    /**
+     *  @param value negative values are recorded as 0
+     */
+    public void record(long value) {
+        if(value < 0) {
+            value = 0;
+        }
+        mBuckets.incrementAndGet(bucketOf(value));
+        mSum.addAndGet(value);
+        long max;
+        while(value > (max = mMax.get())) {
+            if(mMax.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    public HistogramSnapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mBuckets.get(i);
+        }
+        return new HistogramSnapshot(counts, mSum.get(), mMax.get());
+    }
+
+    static int bucketOf(long value) {
+        return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    /**
+     *  @return the largest value falling into given bucket
+     */
+    static long upperBoundOf(int bucket) {
+        if(bucket >= BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        return (1L << bucket) - 1;
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.ezbluetooth.metrics;
+
+import java.util.Locale;
+
+/**
+ *  Immutable copy of a {@link Histogram}. Percentiles resolve to the upper bound of the bucket
+ *  they fall in, i.e. they are exact to within a factor of two.
+ */
+
+public class HistogramSnapshot {
+
+    static final HistogramSnapshot EMPTY = new HistogramSnapshot(new long[Histogram.BUCKET_COUNT], 0, 0);
+
+    private final long[] mCounts;
+    private final long mCount;
+    private final long mSum;
+    private final long mMax;
+
+    HistogramSnapshot(long[] counts, long sum, long max) {
+        long count = 0;
+        for (long c : counts) {
+            count += c;
+        }
+        mCounts = counts;
+        mCount = count;
+        mSum = sum;
+        mMax = max;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getSum() {
+        return mSum;
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    public double getMean() {
+        return (mCount == 0) ? 0 : (double) mSum / mCount;
+    }
+
+    /**
+     *  @param percentile in range of 0 to 100
+     *  @return upper bound of the bucket holding given percentile, never above the recorded max
+     */
+    public long getPercentile(double percentile) {
+        if(mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(mCount * Math.min(100.0, Math.max(0.0, percentile)) / 100.0);
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if((seen >= rank) && (mCounts[i] > 0)) {
+                return Math.min(Histogram.upperBoundOf(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     *  @return count of values of given bit length, see {@link Histogram}
+     */
+    public long getBucketCount(int bucket) {
+        return mCounts[bucket];
+    }
+
+    public int getBucketSize() {
+        return mCounts.length;
+    }
+
+    public HistogramSnapshot merge(HistogramSnapshot other) {
+        long[] counts = new long[mCounts.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = mCounts[i] + other.mCounts[i];
+        }
+        return new HistogramSnapshot(counts, mSum + other.mSum, Math.max(mMax, other.mMax));
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.getDefault(), "n %d, mean %.1f, p50 %d, p99 %d, max %d",
+                mCount, getMean(), getPercentile(50), getPercentile(99), mMax);
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.ezbluetooth.metrics;
+
+import java.util.Locale;
+
+/**
+ *  Immutable metrics of one connection, or of several merged together, e.g. every connection
+ *  a service has handled. Rates are over the summed lifetime of the merged connections.
+ */
+
+public class MetricsSnapshot {
+
+    public static final MetricsSnapshot EMPTY = new MetricsSnapshot(0, 0, 0, 0, 0, 0,
+            HistogramSnapshot.EMPTY, HistogramSnapshot.EMPTY, HistogramSnapshot.EMPTY,
+            HistogramSnapshot.EMPTY, HistogramSnapshot.EMPTY, CompressionSnapshot.EMPTY);
+
+    private final int mConnectionCount;
+    private final long mElapsedTime;
+    private final long mBytesIn;
+    private final long mBytesOut;
+    private final long mMessagesIn;
+    private final long mMessagesOut;
+    private final HistogramSnapshot mReadSize;
+    private final HistogramSnapshot mHandlerTime;
+    private final HistogramSnapshot mWriteBlockedTime;
+    private final HistogramSnapshot mFirstByteLatency;
+    private final HistogramSnapshot mConnectLatency;
+    private final CompressionSnapshot mCompression;
+
+    MetricsSnapshot(int connectionCount, long elapsedTime, long bytesIn, long bytesOut, long messagesIn, long messagesOut,
+                    HistogramSnapshot readSize, HistogramSnapshot handlerTime, HistogramSnapshot writeBlockedTime,
+                    HistogramSnapshot firstByteLatency, HistogramSnapshot connectLatency, CompressionSnapshot compression) {
+        mConnectionCount = connectionCount;
+        mElapsedTime = elapsedTime;
+        mBytesIn = bytesIn;
+        mBytesOut = bytesOut;
+        mMessagesIn = messagesIn;
+        mMessagesOut = messagesOut;
+        mReadSize = readSize;
+        mHandlerTime = handlerTime;
+        mWriteBlockedTime = writeBlockedTime;
+        mFirstByteLatency = firstByteLatency;
+        mConnectLatency = connectLatency;
+        mCompression = compression;
+    }
+
+    public int getConnectionCount() {
+        return mConnectionCount;
+    }
+
+    /**
+     *  @return lifetime of the connection in nanoseconds, summed over merged connections
+     */
+    public long getElapsedTime() {
+        return mElapsedTime;
+    }
+
+    public long getBytesIn() {
+        return mBytesIn;
+    }
+
+    public long getBytesOut() {
+        return mBytesOut;
+    }
+
+    public long getMessagesIn() {
+        return mMessagesIn;
+    }
+
+    public long getMessagesOut() {
+        return mMessagesOut;
+    }
+
+    public double getBytesInPerSecond() {
+        return perSecond(mBytesIn);
+    }
+
+    public double getBytesOutPerSecond() {
+        return perSecond(mBytesOut);
+    }
+
+    /**
+     *  @return distribution of bytes returned per read
+     */
+    public HistogramSnapshot getReadSize() {
+        return mReadSize;
+    }
+
+    /**
+     *  @return distribution of nanoseconds spent handling each received message
+     */
+    public HistogramSnapshot getHandlerTime() {
+        return mHandlerTime;
+    }
+
+    /**
+     *  @return distribution of nanoseconds writers were blocked on a full write queue
+     */
+    public HistogramSnapshot getWriteBlockedTime() {
+        return mWriteBlockedTime;
+    }
+
+    /**
+     *  @return nanoseconds from accept to first byte, recorded once per server connection
+     */
+    public HistogramSnapshot getFirstByteLatency() {
+        return mFirstByteLatency;
+    }
+
+    /**
+     *  @return nanoseconds taken to connect, recorded once per client connection
+     */
+    public HistogramSnapshot getConnectLatency() {
+        return mConnectLatency;
+    }
+
+    public CompressionSnapshot getCompression() {
+        return mCompression;
+    }
+
+    public MetricsSnapshot merge(MetricsSnapshot other) {
+        return new MetricsSnapshot(mConnectionCount + other.mConnectionCount, mElapsedTime + other.mElapsedTime,
+                mBytesIn + other.mBytesIn, mBytesOut + other.mBytesOut,
+                mMessagesIn + other.mMessagesIn, mMessagesOut + other.mMessagesOut,
+                mReadSize.merge(other.mReadSize), mHandlerTime.merge(other.mHandlerTime),
+                mWriteBlockedTime.merge(other.mWriteBlockedTime), mFirstByteLatency.merge(other.mFirstByteLatency),
+                mConnectLatency.merge(other.mConnectLatency), mCompression.merge(other.mCompression));
+    }
+
+    private double perSecond(long value) {
+        return (mElapsedTime == 0) ? 0 : value * 1e9 / mElapsedTime;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.getDefault(), "connections %d, in %d B / %d msg, out %d B / %d msg, read size [%s], handler ns [%s], write blocked ns [%s], %s",
+                mConnectionCount, mBytesIn, mMessagesIn, mBytesOut, mMessagesOut, mReadSize, mHandlerTime, mWriteBlockedTime, mCompression);
+    }
+}
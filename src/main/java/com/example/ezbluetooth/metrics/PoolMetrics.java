@@ -0,0 +1,52 @@
+package com.example.ezbluetooth.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Live counters of a connection pool. A hit is a connect served by a warm connection, a miss
+ *  one which had to open a new physical connection, whose time is recorded in nanoseconds.
+ */
+
+public class PoolMetrics {
+
+    private final AtomicLong mHits;
+    private final AtomicLong mMisses;
+    private final AtomicLong mEvictions;
+    private final AtomicLong mProbeFailures;
+    private final Histogram mConnectTime;
+
+    public PoolMetrics() {
+        mHits = new AtomicLong();
+        mMisses = new AtomicLong();
+        mEvictions = new AtomicLong();
+        mProbeFailures = new AtomicLong();
+        mConnectTime = new Histogram();
+    }
+
+    public void onHit() {
+        mHits.incrementAndGet();
+    }
+
+    public void onMiss(long connectTime) {
+        mMisses.incrementAndGet();
+        mConnectTime.record(connectTime);
+    }
+
+    /**
+     *  a warm connection is closed for being idle too long or beyond the limit of idle connections
+     */
+    public void onEvicted() {
+        mEvictions.incrementAndGet();
+    }
+
+    /**
+     *  a connection is found dead by a keepalive probe or by the health check before reuse
+     */
+    public void onProbeFailed() {
+        mProbeFailures.incrementAndGet();
+    }
+
+    public PoolSnapshot snapshot() {
+        return new PoolSnapshot(mHits.get(), mMisses.get(), mEvictions.get(), mProbeFailures.get(), mConnectTime.snapshot());
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.ezbluetooth.metrics;
+
+import java.util.Locale;
+
+/**
+ *  Immutable copy of {@link PoolMetrics}.
+ */
+
+public class PoolSnapshot {
+
+    private final long mHits;
+    private final long mMisses;
+    private final long mEvictions;
+    private final long mProbeFailures;
+    private final HistogramSnapshot mConnectTime;
+
+    PoolSnapshot(long hits, long misses, long evictions, long probeFailures, HistogramSnapshot connectTime) {
+        mHits = hits;
+        mMisses = misses;
+        mEvictions = evictions;
+        mProbeFailures = probeFailures;
+        mConnectTime = connectTime;
+    }
+
+    public long getHits() {
+        return mHits;
+    }
+
+    public long getMisses() {
+        return mMisses;
+    }
+
+    /**
+     *  @return hits over every connect, 0 before the first one
+     */
+    public double getHitRatio() {
+        final long total = mHits + mMisses;
+        return (total == 0) ? 0 : (double) mHits / total;
+    }
+
+    public long getEvictions() {
+        return mEvictions;
+    }
+
+    public long getProbeFailures() {
+        return mProbeFailures;
+    }
+
+    /**
+     *  @return distribution of nanoseconds spent opening new physical connections
+     */
+    public HistogramSnapshot getConnectTime() {
+        return mConnectTime;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.getDefault(), "hits %d, misses %d, hit ratio %.2f, evictions %d, probe failures %d, connect ns [%s]",
+                mHits, mMisses, getHitRatio(), mEvictions, mProbeFailures, mConnectTime);
+    }
+}
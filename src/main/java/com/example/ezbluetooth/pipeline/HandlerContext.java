@@ -0,0 +1,97 @@
+package com.example.ezbluetooth.pipeline;
+
+import java.io.IOException;
+
+/**
+ *  Position of a handler in the pipeline of one connection, through which the handler passes
+ *  events on to its neighbours and reaches state shared by the handlers of the connection.
+ */
+
+public class HandlerContext {
+
+    private final Pipeline mPipeline;
+    private final String mName;
+    private final Object mHandler;
+    private final int mIndex;
+    private final SerialExecutor mExecutor;
+
+    HandlerContext(Pipeline pipeline, String name, Object handler, int index, SerialExecutor executor) {
+        mPipeline = pipeline;
+        mName = name;
+        mHandler = handler;
+        mIndex = index;
+        mExecutor = executor;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public Pipeline getPipeline() {
+        return mPipeline;
+    }
+
+    public int getClientId() {
+        return mPipeline.getClientId();
+    }
+
+    /**
+     *  @return true if the handler runs on the blocking executor rather than the read loop
+     */
+    public boolean isBlocking() {
+        return mExecutor != null;
+    }
+
+    /**
+     *  passes a message to the next inbound handler
+     */
+    public void fireMessage(Object message) throws IOException {
+        mPipeline.fireMessage(mIndex + 1, message);
+    }
+
+    public void fireConnected() throws IOException {
+        mPipeline.fireConnected(mIndex + 1);
+    }
+
+    public void fireDisconnected() {
+        mPipeline.fireDisconnected(mIndex + 1);
+    }
+
+    /**
+     *  passes a message to the previous outbound handler, or to the connection at the head.
+     *  sent once flushed, which happens after every read and after every blocking handler call.
+     */
+    public void write(Object message) throws IOException {
+        mPipeline.write(mIndex - 1, message);
+    }
+
+    public void flush() {
+        mPipeline.flush();
+    }
+
+    /**
+     *  closes the connection once what is written so far is sent, or the drain timeout of the service elapses
+     */
+    public void close() {
+        mPipeline.close();
+    }
+
+    /**
+     *  @return per-connection state shared by the handlers of the pipeline
+     */
+    public Object getAttribute(String key) {
+        return mPipeline.getAttribute(key);
+    }
+
+    public void setAttribute(String key, Object value) {
+        mPipeline.setAttribute(key, value);
+    }
+
+    Object getHandler() {
+        return mHandler;
+    }
+
+    SerialExecutor getExecutor() {
+        return mExecutor;
+    }
+}
@@ -0,0 +1,22 @@
+package com.example.ezbluetooth.pipeline;
+
+import java.io.IOException;
+
+/**
+ *  Handles events travelling from the connection towards the application, in pipeline order.
+ *  Each handler decides whether and what to pass on with {@link HandlerContext#fireMessage(Object)}.
+ */
+
+public interface InboundHandler {
+
+    void onConnected(HandlerContext ctx) throws IOException;
+
+    /**
+     *  @param message a ByteBuffer of a received frame at the head of the pipeline, whatever
+     *                 the previous handler passed on further down. ByteBuffers from the head are
+     *                 valid only until return, copy what is kept.
+     */
+    void onMessage(HandlerContext ctx, Object message) throws IOException;
+
+    void onDisconnected(HandlerContext ctx);
+}
@@ -0,0 +1,25 @@
+package com.example.ezbluetooth.pipeline;
+
+import java.io.IOException;
+
+/**
+ *  Inbound handler passing every event on, to be extended by handlers interested in a few of them.
+ */
+
+public class InboundHandlerAdapter implements InboundHandler {
+
+    @Override
+    public void onConnected(HandlerContext ctx) throws IOException {
+        ctx.fireConnected();
+    }
+
+    @Override
+    public void onMessage(HandlerContext ctx, Object message) throws IOException {
+        ctx.fireMessage(message);
+    }
+
+    @Override
+    public void onDisconnected(HandlerContext ctx) {
+        ctx.fireDisconnected();
+    }
+}
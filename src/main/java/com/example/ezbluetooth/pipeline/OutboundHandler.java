@@ -0,0 +1,17 @@
+package com.example.ezbluetooth.pipeline;
+
+import java.io.IOException;
+
+/**
+ *  Handles messages travelling from the application towards the connection, in reverse pipeline
+ *  order. Writes may come from any thread, including executors of blocking handlers.
+ */
+
+public interface OutboundHandler {
+
+    /**
+     *  passes given message on with {@link HandlerContext#write(Object)}, what reaches the head
+     *  must be a byte[], a ByteBuffer or a ByteBuffer[] gathered into a single message
+     */
+    void write(HandlerContext ctx, Object message) throws IOException;
+}
@@ -0,0 +1,375 @@
+package com.example.ezbluetooth.pipeline;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Ordered handlers of a single connection, built once when the connection is accepted. Inbound
+ *  events run from the first handler to the last, writes from the writing handler back to the
+ *  head, where they are queued to the connection.
+ *
+ *  Handlers run on the read loop of the connection unless added with {@link #addLastBlocking(String, InboundHandler)},
+ *  in which case they, and the handlers after them, run on the blocking executor of the service,
+ *  one message at a time and in order per connection, so that slow logic doesn't stall reading.
+ *  Messages waiting for blocking handlers are copied and count against a backlog limit of the
+ *  connection, the read loop stops reading while it's exceeded, see {@link #awaitBacklog()}.
+ *  Since a pipeline is built per connection, handlers may keep connection state in fields; handlers
+ *  without state can be shared by every pipeline.
+ */
+
+public class Pipeline {
+
+    private static final String TAG = Pipeline.class.getCanonicalName();
+
+    public static final int DEFAULT_MAX_BACKLOG = 256 * 1024;
+
+    /**
+     *  counted for every message waiting for a blocking handler on top of its bytes, so that
+     *  a flood of small or non-buffer messages is bounded as well
+     */
+    private static final int MESSAGE_OVERHEAD = 64;
+
+    private final int mClientId;
+    private final Executor mBlockingExecutor;
+    private final Head mHead;
+    private final List<HandlerContext> mContexts;
+    private final ConcurrentHashMap<String, Object> mAttributes;
+    private final int mMaxBacklog;
+    private final Object mBacklogLock;
+    private long mBacklog;
+    private int mPendingTasks;
+
+    public Pipeline(int clientId, Executor blockingExecutor, Head head) {
+        this(clientId, blockingExecutor, DEFAULT_MAX_BACKLOG, head);
+    }
+
+    /**
+     *
+     * @param blockingExecutor executor of the handlers added as blocking
+     * @param maxBacklog bytes of messages waiting for blocking handlers beyond which the read loop stops reading
+     * @param head sink of the writes reaching the head of the pipeline
+     */
+    public Pipeline(int clientId, Executor blockingExecutor, int maxBacklog, Head head) {
+        mClientId = clientId;
+        mBlockingExecutor = blockingExecutor;
+        mHead = head;
+        mContexts = new ArrayList<>();
+        mAttributes = new ConcurrentHashMap<>();
+        mMaxBacklog = maxBacklog;
+        mBacklogLock = new Object();
+    }
+
+    /**
+     *  @param handler an {@link InboundHandler}, an {@link OutboundHandler} or both
+     */
+    public Pipeline addLast(String name, Object handler) {
+        if(!(handler instanceof InboundHandler) && !(handler instanceof OutboundHandler)) {
+            throw new IllegalArgumentException(String.format(Locale.getDefault(), "%s is not a handler", name));
+        }
+        mContexts.add(new HandlerContext(this, name, handler, mContexts.size(), null));
+        return this;
+    }
+
+    /**
+     *  adds a handler run off the read loop, see {@link Pipeline}
+     */
+    public Pipeline addLastBlocking(String name, InboundHandler handler) {
+        mContexts.add(new HandlerContext(this, name, handler, mContexts.size(), new SerialExecutor(mBlockingExecutor)));
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return mContexts.isEmpty();
+    }
+
+    public int getClientId() {
+        return mClientId;
+    }
+
+    /**
+     *  @return context of the handler of given name, or null if there is none
+     */
+    public HandlerContext getContext(String name) {
+        for(HandlerContext ctx : mContexts) {
+            if(ctx.getName().equals(name)) {
+                return ctx;
+            }
+        }
+        return null;
+    }
+
+    /**
+     *  passes a message in at the head, as the read loop does with every received frame
+     */
+    public void fireMessage(Object message) throws IOException {
+        fireMessage(0, message);
+    }
+
+    public void fireConnected() throws IOException {
+        fireConnected(0);
+    }
+
+    public void fireDisconnected() {
+        fireDisconnected(0);
+    }
+
+    /**
+     *  writes a message from the tail, through every outbound handler
+     */
+    public void write(Object message) throws IOException {
+        write(mContexts.size() - 1, message);
+    }
+
+    public void flush() {
+        mHead.flush();
+    }
+
+    public void close() {
+        mHead.close();
+    }
+
+    /**
+     *  blocks while the messages waiting for blocking handlers exceed the backlog limit. the read loop
+     *  calls it before every read, so a client outpacing a slow handler is held back by the transport's
+     *  flow control rather than piling copies of its frames up on the heap.
+     */
+    public void awaitBacklog() throws InterruptedIOException {
+        synchronized (mBacklogLock) {
+            while(mBacklog > mMaxBacklog) {
+                try {
+                    mBacklogLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for blocking handlers");
+                }
+            }
+        }
+    }
+
+    /**
+     *  waits until blocking handlers are done with everything fired so far, e.g. with their replies
+     *  to the last messages and {@link InboundHandler#onDisconnected(HandlerContext)} before the connection goes
+     * @return false if they are not done within given time
+     */
+    public boolean awaitIdle(long timeoutMillis) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (mBacklogLock) {
+            long remaining;
+            while(mPendingTasks > 0) {
+                if((remaining = deadline - System.nanoTime()) <= 0) {
+                    return false;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(mBacklogLock, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     *  @return bytes of messages waiting for blocking handlers
+     */
+    public long getBacklog() {
+        synchronized (mBacklogLock) {
+            return mBacklog;
+        }
+    }
+
+    Object getAttribute(String key) {
+        return mAttributes.get(key);
+    }
+
+    void setAttribute(String key, Object value) {
+        if(value == null) {
+            mAttributes.remove(key);
+        } else {
+            mAttributes.put(key, value);
+        }
+    }
+
+    void fireMessage(int from, Object message) throws IOException {
+        final HandlerContext ctx = nextInbound(from);
+        if(ctx == null) {
+            return;
+        }
+        final InboundHandler handler = (InboundHandler) ctx.getHandler();
+        if(!ctx.isBlocking()) {
+            handler.onMessage(ctx, message);
+            return;
+        }
+        final Object handoff = detach(message);
+        dispatch(ctx, weightOf(handoff), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handler.onMessage(ctx, handoff);
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, String.format(Locale.getDefault(), "Handler %s of client (%d) failed : %s", ctx.getName(), mClientId, e));
+                    close();
+                }
+                flush();
+            }
+        });
+    }
+
+    void fireConnected(int from) throws IOException {
+        final HandlerContext ctx = nextInbound(from);
+        if(ctx == null) {
+            return;
+        }
+        final InboundHandler handler = (InboundHandler) ctx.getHandler();
+        if(!ctx.isBlocking()) {
+            handler.onConnected(ctx);
+            return;
+        }
+        dispatch(ctx, 0, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handler.onConnected(ctx);
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, String.format(Locale.getDefault(), "Handler %s of client (%d) failed : %s", ctx.getName(), mClientId, e));
+                    close();
+                }
+                flush();
+            }
+        });
+    }
+
+    void fireDisconnected(int from) {
+        final HandlerContext ctx = nextInbound(from);
+        if(ctx == null) {
+            return;
+        }
+        final InboundHandler handler = (InboundHandler) ctx.getHandler();
+        if(!ctx.isBlocking()) {
+            handler.onDisconnected(ctx);
+            return;
+        }
+        dispatch(ctx, 0, new Runnable() {
+            @Override
+            public void run() {
+                handler.onDisconnected(ctx);
+            }
+        });
+    }
+
+    void write(int from, Object message) throws IOException {
+        for(int i = from; i >= 0; i--) {
+            final HandlerContext ctx = mContexts.get(i);
+            if(ctx.getHandler() instanceof OutboundHandler) {
+                ((OutboundHandler) ctx.getHandler()).write(ctx, message);
+                return;
+            }
+        }
+        if(message instanceof byte[]) {
+            byte[] data = (byte[]) message;
+            mHead.write(data, 0, data.length);
+        } else if(message instanceof ByteBuffer) {
+            mHead.write(new ByteBuffer[] {(ByteBuffer) message});
+        } else if(message instanceof ByteBuffer[]) {
+            mHead.write((ByteBuffer[]) message);
+        } else {
+            throw new IOException(String.format(Locale.getDefault(), "Unsupported message at the head of the pipeline : %s", message));
+        }
+    }
+
+    private HandlerContext nextInbound(int from) {
+        for(int i = from; i < mContexts.size(); i++) {
+            final HandlerContext ctx = mContexts.get(i);
+            if(ctx.getHandler() instanceof InboundHandler) {
+                return ctx;
+            }
+        }
+        return null;
+    }
+
+    /**
+     *  @param weight bytes the task holds on to until it has run, counted against the backlog limit
+     */
+    private void dispatch(HandlerContext ctx, final long weight, final Runnable task) {
+        synchronized (mBacklogLock) {
+            mBacklog += weight;
+            mPendingTasks++;
+        }
+        try {
+            ctx.getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        onDispatched(weight);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            onDispatched(weight);
+            Log.e(TAG, String.format(Locale.getDefault(), "Handler %s of client (%d) can't be run, service is going down", ctx.getName(), mClientId));
+            close();
+        }
+    }
+
+    private void onDispatched(long weight) {
+        synchronized (mBacklogLock) {
+            mBacklog -= weight;
+            mPendingTasks--;
+            mBacklogLock.notifyAll();
+        }
+    }
+
+    private static long weightOf(Object message) {
+        if(message instanceof ByteBuffer) {
+            return ((ByteBuffer) message).remaining() + MESSAGE_OVERHEAD;
+        }
+        if(message instanceof byte[]) {
+            return ((byte[]) message).length + MESSAGE_OVERHEAD;
+        }
+        return MESSAGE_OVERHEAD;
+    }
+
+    /**
+     *  buffers of the read loop are reused after the read, anything handed to another thread is copied
+     */
+    private static Object detach(Object message) {
+        if(!(message instanceof ByteBuffer)) {
+            return message;
+        }
+        ByteBuffer source = (ByteBuffer) message;
+        ByteBuffer copy = ByteBuffer.allocate(source.remaining());
+        copy.put(source.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     *  end of the pipeline facing the connection
+     */
+    public interface Head {
+        /**
+         *  queues data to the connection, the data is copied
+         */
+        void write(byte[] data, int offset, int length) throws IOException;
+
+        /**
+         *  queues the remaining bytes of given buffers as a single message, the data is copied
+         */
+        void write(ByteBuffer[] parts) throws IOException;
+        void flush();
+        void close();
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.ezbluetooth.pipeline;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ *  Runs tasks one at a time in submission order on a shared executor, so a blocking handler
+ *  sees the messages of its connection in order while connections still run in parallel.
+ */
+
+class SerialExecutor implements Executor {
+
+    private final Executor mExecutor;
+    private final ArrayDeque<Runnable> mTasks;
+    private boolean isRunning;
+
+    SerialExecutor(Executor executor) {
+        mExecutor = executor;
+        mTasks = new ArrayDeque<>();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        synchronized (mTasks) {
+            mTasks.offer(command);
+            if(isRunning) {
+                return;
+            }
+            isRunning = true;
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (mTasks) {
+                mTasks.clear();
+                isRunning = false;
+            }
+            throw e;
+        }
+    }
+
+    private void drain() {
+        while(true) {
+            Runnable task;
+            synchronized (mTasks) {
+                task = mTasks.poll();
+                if(task == null) {
+                    isRunning = false;
+                    return;
+                }
+            }
+            task.run();
+        }
+    }
+}
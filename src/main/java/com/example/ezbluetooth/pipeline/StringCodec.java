@@ -0,0 +1,42 @@
+package com.example.ezbluetooth.pipeline;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ *  Decodes received frames into Strings and encodes written Strings, UTF-8 by default.
+ *  stateless, a single instance can be shared by every pipeline of every service.
+ */
+
+public class StringCodec extends InboundHandlerAdapter implements OutboundHandler {
+
+    private final Charset mCharset;
+
+    public StringCodec() {
+        this(Charset.forName("UTF-8"));
+    }
+
+    public StringCodec(Charset charset) {
+        mCharset = charset;
+    }
+
+    @Override
+    public void onMessage(HandlerContext ctx, Object message) throws IOException {
+        if(message instanceof ByteBuffer) {
+            ByteBuffer buffer = (ByteBuffer) message;
+            ctx.fireMessage(mCharset.decode(buffer.duplicate()).toString());
+            return;
+        }
+        ctx.fireMessage(message);
+    }
+
+    @Override
+    public void write(HandlerContext ctx, Object message) throws IOException {
+        if(message instanceof String) {
+            ctx.write(((String) message).getBytes(mCharset));
+            return;
+        }
+        ctx.write(message);
+    }
+}
@@ -0,0 +1,234 @@
+package com.example.ezbluetooth.rpc;
+
+import android.os.Parcel;
+import android.util.Log;
+
+import com.example.ezbluetooth.client.AbsBluetoothClient;
+import com.example.ezbluetooth.exec.ServiceScheduler;
+import com.example.ezbluetooth.io.BufferPool;
+import com.example.ezbluetooth.io.OutputSink;
+import com.example.ezbluetooth.io.WriteFuture;
+
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  Request / response client over a single connection. Every call carries a correlation id, so
+ *  up to the window of calls can be in flight at once and each completes whenever its reply
+ *  arrives, in any order, instead of paying a full round trip per call.
+ *
+ *  With sessions to several devices, calls are made per device and share the window. A session
+ *  closing fails its own pending calls only.
+ */
+
+public abstract class AbsRpcClient extends AbsBluetoothClient {
+
+    private static final String TAG = AbsRpcClient.class.getCanonicalName();
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+    public static final long DEFAULT_CALL_TIMEOUT = 5000L;
+    public static final long NO_TIMEOUT = 0;
+    private static final int DEFAULT_READ_SIZE = 1024;
+
+    private final ConcurrentHashMap<Integer, RpcFuture> mPendings;
+    private final AtomicInteger mNextId;
+    private final Semaphore mWindow;
+    private final int mMaxInFlight;
+
+    protected AbsRpcClient() {
+        this(DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     *
+     * @param maxInFlight max number of calls awaiting reply, further calls block until one completes
+     */
+    protected AbsRpcClient(int maxInFlight) {
+        super();
+        mPendings = new ConcurrentHashMap<>();
+        mNextId = new AtomicInteger();
+        mWindow = new Semaphore(maxInFlight);
+        mMaxInFlight = maxInFlight;
+    }
+
+    public AbsRpcClient(Parcel source) {
+        this(source, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public AbsRpcClient(Parcel source, int maxInFlight) {
+        super(source);
+        mPendings = new ConcurrentHashMap<>();
+        mNextId = new AtomicInteger();
+        mWindow = new Semaphore(maxInFlight);
+        mMaxInFlight = maxInFlight;
+    }
+
+    public RpcFuture call(byte[] request) throws InterruptedIOException {
+        return call(request, 0, request.length, getCallTimeout());
+    }
+
+    /**
+     *  sends a request without waiting for its reply, blocking only while the window is full.
+     *  the request is copied and can be reused on return.
+     *  made on the session of the calling thread when called from a callback of this client, otherwise on the only running session.
+     * @param timeoutMillis time to wait for the reply, {@link #NO_TIMEOUT} to wait until disconnected
+     * @return future of the reply, failed with {@link RpcException} on timeout, disconnect or remote error,
+     *  or right away if more than one session is running, see {@link #call(int, byte[], int, int, long)} to pick one
+     * @throws InterruptedIOException if interrupted while waiting for the window
+     */
+    public RpcFuture call(byte[] request, int offset, int length, long timeoutMillis) throws InterruptedIOException {
+        final int devId;
+        try {
+            devId = getCurrentDevId();
+        } catch (IllegalStateException e) {
+            return RpcFuture.failed(-1, new RpcException(RpcException.REASON_REJECTED, e.getLocalizedMessage()));
+        }
+        return call(devId, request, offset, length, timeoutMillis);
+    }
+
+    /**
+     *  sends a request to the session of given device without waiting for its reply, see {@link #call(byte[], int, int, long)}
+     */
+    public RpcFuture call(int devId, byte[] request, int offset, int length, long timeoutMillis) throws InterruptedIOException {
+        if(!isConnected(devId)) {
+            return RpcFuture.failed(-1, new RpcException(RpcException.REASON_CLOSED, "Not connected"));
+        }
+        try {
+            mWindow.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the call window");
+        }
+        final int id = mNextId.getAndIncrement();
+        final RpcFuture future = new RpcFuture(id, devId);
+        mPendings.put(id, future);
+        if(timeoutMillis > NO_TIMEOUT) {
+            future.setTimeout(ServiceScheduler.getDefault().getTimer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    fail(id, RpcException.REASON_TIMEOUT, String.format(Locale.getDefault(), "Call (%d) timed out", id));
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS));
+        }
+
+        final BufferPool bufferPool = getBufferPool();
+        final byte[] frame = bufferPool.acquire(RpcHeader.SIZE + length);
+        try {
+            RpcHeader.write(frame, 0, RpcHeader.TYPE_REQUEST, id);
+            System.arraycopy(request, offset, frame, RpcHeader.SIZE, length);
+            WriteFuture written = send(devId, frame, 0, RpcHeader.SIZE + length);
+            if(written.isDone() && !written.isSuccess()) {
+                fail(id, RpcException.REASON_REJECTED, written.getError().getLocalizedMessage());
+            }
+        } catch (RuntimeException e) {
+            /**
+             *  the call is pending already, failing it gives its window slot back
+             */
+            fail(id, RpcException.REASON_REJECTED, e.getLocalizedMessage());
+        } finally {
+            bufferPool.release(frame);
+        }
+        return future;
+    }
+
+    /**
+     *  @return number of calls awaiting reply
+     */
+    public int getInFlightCount() {
+        return mPendings.size();
+    }
+
+    public int getMaxInFlight() {
+        return mMaxInFlight;
+    }
+
+    /**
+     *  @return timeout of {@link #call(byte[])} in milliseconds
+     */
+    protected long getCallTimeout() {
+        return DEFAULT_CALL_TIMEOUT;
+    }
+
+    @Override
+    protected final boolean isFramingEnabled() {
+        return true;
+    }
+
+    @Override
+    protected int getReadSize() {
+        return DEFAULT_READ_SIZE;
+    }
+
+    @Override
+    protected final void onDataReceived(byte[] buffer, int offset, int length, OutputSink sink) {
+        if(length < RpcHeader.SIZE) {
+            Log.e(TAG, String.format(Locale.getDefault(), "Malformed reply (%d bytes) is dropped", length));
+            return;
+        }
+        final int id = RpcHeader.getId(buffer, offset);
+        final RpcFuture pending = mPendings.get(id);
+        if((pending == null) || (pending.getDevId() != getCurrentDevId())) {
+            /**
+             *  reply of a call already timed out, or of a call made on another session
+             */
+            return;
+        }
+        final RpcFuture future = take(id);
+        if(future == null) {
+            return;
+        }
+        switch (RpcHeader.getType(buffer, offset)) {
+            case RpcHeader.TYPE_RESPONSE:
+                future.complete(Arrays.copyOfRange(buffer, offset + RpcHeader.SIZE, offset + length));
+                break;
+            case RpcHeader.TYPE_ERROR:
+                future.fail(new RpcException(RpcException.REASON_REMOTE, new String(buffer, offset + RpcHeader.SIZE, length - RpcHeader.SIZE, UTF_8)));
+                break;
+            default:
+                future.fail(new RpcException(RpcException.REASON_REMOTE, String.format(Locale.getDefault(), "Unknown reply type (%d)", RpcHeader.getType(buffer, offset))));
+        }
+    }
+
+    /**
+     *  replies are dispatched by correlation id, never as raw data
+     */
+    @Override
+    protected final byte[] onDataReceived(byte[] rxBuffer) {
+        return null;
+    }
+
+    @Override
+    protected void onConnectionClosed(int devId) {
+        for(RpcFuture future : mPendings.values()) {
+            if(future.getDevId() == devId) {
+                fail(future.getId(), RpcException.REASON_CLOSED, "Connection is closed");
+            }
+        }
+        super.onConnectionClosed(devId);
+    }
+
+    private void fail(int id, int reason, String message) {
+        final RpcFuture future = take(id);
+        if(future != null) {
+            future.fail(new RpcException(reason, message));
+        }
+    }
+
+    /**
+     *  removes a pending call, whoever removes it owns its completion and its window slot
+     */
+    private RpcFuture take(int id) {
+        final RpcFuture future = mPendings.remove(id);
+        if(future != null) {
+            mWindow.release();
+        }
+        return future;
+    }
+}
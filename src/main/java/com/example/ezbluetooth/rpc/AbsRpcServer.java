@@ -0,0 +1,104 @@
+package com.example.ezbluetooth.rpc;
+
+import android.util.Log;
+
+import com.example.ezbluetooth.io.BufferPool;
+import com.example.ezbluetooth.io.OutputSink;
+import com.example.ezbluetooth.io.WriteFuture;
+import com.example.ezbluetooth.service.AbsBluetoothServer;
+
+import java.util.Locale;
+
+/**
+ *  Request / response server for {@link AbsRpcClient}. Each request is answered with its own
+ *  correlation id, either right away through the reply sink or later with {@link #reply(int, int, byte[], int, int)}
+ *  from any thread, so slow requests need not hold back the ones behind them.
+ */
+
+public abstract class AbsRpcServer extends AbsBluetoothServer {
+
+    private static final String TAG = AbsRpcServer.class.getCanonicalName();
+    private static final int DEFAULT_READ_SIZE = 1024;
+
+    public AbsRpcServer(int maxClientCount) {
+        super(maxClientCount);
+    }
+
+    public AbsRpcServer(int maxActiveCount, int maxQueuedCount, long queueTimeoutMillis) {
+        super(maxActiveCount, maxQueuedCount, queueTimeoutMillis);
+    }
+
+    /**
+     *  handles a request on the client's read loop
+     * @param requestId correlation id to reply with when replying later
+     * @param reply sink taking the reply payload, may be left empty for an empty reply
+     * @return true if replied through the sink, false if the reply is sent later with {@link #reply(int, int, byte[], int, int)}
+     */
+    protected abstract boolean onRequest(int clientId, int requestId, byte[] buffer, int offset, int length, OutputSink reply);
+
+    /**
+     *  sends a deferred reply, it can be called from any thread
+     */
+    protected WriteFuture reply(int clientId, int requestId, byte[] data, int offset, int length) {
+        return sendFrame(clientId, RpcHeader.TYPE_RESPONSE, requestId, data, offset, length);
+    }
+
+    /**
+     *  fails a request, the caller gets {@link RpcException#REASON_REMOTE} with given message
+     */
+    protected WriteFuture replyError(int clientId, int requestId, String message) {
+        byte[] data = message.getBytes(AbsRpcClient.UTF_8);
+        return sendFrame(clientId, RpcHeader.TYPE_ERROR, requestId, data, 0, data.length);
+    }
+
+    @Override
+    protected final boolean isFramingEnabled() {
+        return true;
+    }
+
+    @Override
+    protected int getReadSize() {
+        return DEFAULT_READ_SIZE;
+    }
+
+    @Override
+    protected final void onDataReceived(int clientId, byte[] buffer, int offset, int length, OutputSink sink) {
+        if((length < RpcHeader.SIZE) || (RpcHeader.getType(buffer, offset) != RpcHeader.TYPE_REQUEST)) {
+            Log.e(TAG, String.format(Locale.getDefault(), "Malformed request (%d bytes) from client (%d) is dropped", length, clientId));
+            return;
+        }
+        final int requestId = RpcHeader.getId(buffer, offset);
+        RpcHeader.write(sink, RpcHeader.TYPE_RESPONSE, requestId);
+        try {
+            if(!onRequest(clientId, requestId, buffer, offset + RpcHeader.SIZE, length - RpcHeader.SIZE, sink)) {
+                sink.clear();
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, String.format(Locale.getDefault(), "Request (%d) of client (%d) failed : %s", requestId, clientId, e));
+            sink.clear();
+            RpcHeader.write(sink, RpcHeader.TYPE_ERROR, requestId);
+            byte[] message = String.valueOf(e).getBytes(AbsRpcClient.UTF_8);
+            sink.write(message, 0, message.length);
+        }
+    }
+
+    /**
+     *  requests are dispatched with their correlation id, never as raw data
+     */
+    @Override
+    protected final byte[] onDataReceived(int clientId, byte[] data) {
+        return null;
+    }
+
+    private WriteFuture sendFrame(int clientId, byte type, int requestId, byte[] data, int offset, int length) {
+        final BufferPool bufferPool = getBufferPool();
+        final byte[] frame = bufferPool.acquire(RpcHeader.SIZE + length);
+        try {
+            RpcHeader.write(frame, 0, type, requestId);
+            System.arraycopy(data, offset, frame, RpcHeader.SIZE, length);
+            return send(clientId, frame, 0, RpcHeader.SIZE + length);
+        } finally {
+            bufferPool.release(frame);
+        }
+    }
+}
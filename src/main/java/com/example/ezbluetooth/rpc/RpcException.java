@@ -0,0 +1,30 @@
+package com.example.ezbluetooth.rpc;
+
+import java.io.IOException;
+
+/**
+ *  Failure of a single call, see {@link #getReason()} for why it failed.
+ */
+
+public class RpcException extends IOException {
+
+    /** the server failed to handle the request, message is from the server */
+    public static final int REASON_REMOTE = 1;
+    /** no reply within the call timeout */
+    public static final int REASON_TIMEOUT = 2;
+    /** connection closed, or not open, before the reply */
+    public static final int REASON_CLOSED = 3;
+    /** the request could not be queued for sending */
+    public static final int REASON_REJECTED = 4;
+
+    private final int mReason;
+
+    public RpcException(int reason, String message) {
+        super(message);
+        mReason = reason;
+    }
+
+    public int getReason() {
+        return mReason;
+    }
+}
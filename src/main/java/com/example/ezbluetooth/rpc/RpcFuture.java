@@ -0,0 +1,132 @@
+package com.example.ezbluetooth.rpc;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *  Reply of a single call, completed with the reply payload or failed with {@link RpcException}.
+ *  Completes exactly once, whichever of reply, timeout or disconnect comes first.
+ */
+
+public class RpcFuture implements Future<byte[]> {
+
+    private final int mId;
+    private final int mDevId;
+    private final CountDownLatch mLatch;
+    private final AtomicBoolean isCompleted;
+    private volatile byte[] mReply;
+    private volatile RpcException mError;
+    private volatile ScheduledFuture<?> mTimeout;
+
+    RpcFuture(int id) {
+        this(id, AbsRpcClient.NO_DEVICE);
+    }
+
+    RpcFuture(int id, int devId) {
+        mId = id;
+        mDevId = devId;
+        mLatch = new CountDownLatch(1);
+        isCompleted = new AtomicBoolean(false);
+    }
+
+    static RpcFuture failed(int id, RpcException e) {
+        RpcFuture future = new RpcFuture(id);
+        future.fail(e);
+        return future;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     *  @return device Id of the session the call is sent on
+     */
+    public int getDevId() {
+        return mDevId;
+    }
+
+    void setTimeout(ScheduledFuture<?> timeout) {
+        mTimeout = timeout;
+    }
+
+    /**
+     *  @return false if the call is already completed
+     */
+    boolean complete(byte[] reply) {
+        if(!isCompleted.compareAndSet(false, true)) {
+            return false;
+        }
+        mReply = reply;
+        finish();
+        return true;
+    }
+
+    /**
+     *  @return false if the call is already completed
+     */
+    boolean fail(RpcException e) {
+        if(!isCompleted.compareAndSet(false, true)) {
+            return false;
+        }
+        mError = e;
+        finish();
+        return true;
+    }
+
+    private void finish() {
+        final ScheduledFuture<?> timeout = mTimeout;
+        if(timeout != null) {
+            timeout.cancel(false);
+        }
+        mLatch.countDown();
+    }
+
+    public boolean isSuccess() {
+        return isDone() && (mError == null);
+    }
+
+    public RpcException getError() {
+        return mError;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mLatch.getCount() == 0;
+    }
+
+    @Override
+    public byte[] get() throws InterruptedException, ExecutionException {
+        mLatch.await();
+        if(mError != null) {
+            throw new ExecutionException(mError);
+        }
+        return mReply;
+    }
+
+    @Override
+    public byte[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if(!mLatch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        if(mError != null) {
+            throw new ExecutionException(mError);
+        }
+        return mReply;
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.ezbluetooth.rpc;
+
+import com.example.ezbluetooth.io.OutputSink;
+
+/**
+ *  Header leading every RPC frame, a type byte followed by a big-endian correlation id.
+ *  The id is chosen by the caller and echoed in the reply so replies may arrive in any order.
+ */
+
+final class RpcHeader {
+
+    static final int SIZE = 5;
+
+    static final byte TYPE_REQUEST = 1;
+    static final byte TYPE_RESPONSE = 2;
+    static final byte TYPE_ERROR = 3;
+
+    private RpcHeader() {
+    }
+
+    static void write(byte[] dst, int offset, byte type, int id) {
+        dst[offset] = type;
+        dst[offset + 1] = (byte) (id >>> 24);
+        dst[offset + 2] = (byte) (id >>> 16);
+        dst[offset + 3] = (byte) (id >>> 8);
+        dst[offset + 4] = (byte) id;
+    }
+
+    static void write(OutputSink sink, byte type, int id) {
+        sink.write(type);
+        sink.write(id >>> 24);
+        sink.write(id >>> 16);
+        sink.write(id >>> 8);
+        sink.write(id);
+    }
+
+    static byte getType(byte[] src, int offset) {
+        return src[offset];
+    }
+
+    static int getId(byte[] src, int offset) {
+        return ((src[offset + 1] & 0xff) << 24) | ((src[offset + 2] & 0xff) << 16)
+                | ((src[offset + 3] & 0xff) << 8) | (src[offset + 4] & 0xff);
+    }
+}
@@ -1,19 +1,33 @@
 package com.example.ezbluetooth.service;
 
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.util.Log;
-import android.util.SparseArray;
-import android.util.SparseBooleanArray;
 
 import com.example.ezbluetooth.BluetoothServer;
+import com.example.ezbluetooth.ServiceLoad;
+import com.example.ezbluetooth.exec.ServiceExecutor;
+import com.example.ezbluetooth.exec.ServiceScheduler;
+import com.example.ezbluetooth.io.AsyncWriter;
+import com.example.ezbluetooth.io.BufferPool;
+import com.example.ezbluetooth.io.CoalescingOutputStream;
+import com.example.ezbluetooth.io.FrameCompressor;
+import com.example.ezbluetooth.io.FrameDecoder;
+import com.example.ezbluetooth.io.FrameEncoder;
+import com.example.ezbluetooth.io.OutputSink;
+import com.example.ezbluetooth.io.WriteFuture;
+import com.example.ezbluetooth.metrics.ConnectionMetrics;
+import com.example.ezbluetooth.metrics.MetricsSnapshot;
+import com.example.ezbluetooth.pipeline.Pipeline;
+import com.example.ezbluetooth.transport.Channel;
+import com.example.ezbluetooth.transport.ServerChannel;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.Deflater;
 
 /**
  *
@@ -23,23 +37,55 @@ import java.util.concurrent.TimeUnit;
 public abstract class AbsBluetoothServer implements BluetoothServer {
 
     private static final String TAG = AbsBluetoothServer.class.getCanonicalName();
+    public static final long DEFAULT_QUEUE_TIMEOUT = 10000L;
 
     private volatile boolean isAlive;
     private int svcId;
-    private BluetoothServerSocket mServerSocket;
-    private SparseArray<BluetoothSocket> mClients;
-    private SparseBooleanArray mClientIsValidArray;
-    private SparseArray<Runnable> mClientJobs;
-    private int clientId;
-    private ThreadPoolExecutor mPoolExecutor;
-
+    private ServerChannel mServerChannel;
+    private final ConnectionRegistry mConnections;
+    private final AdmissionController mAdmission;
+    private volatile ServiceScheduler mScheduler;
+    private volatile ServiceExecutor mClientExecutor;
+    private volatile ServiceExecutor mWriterExecutor;
+    private volatile ServiceExecutor mBlockingExecutor;
+    private final Object mMetricsLock;
+    private MetricsSnapshot mRetiredMetrics;
 
     public AbsBluetoothServer(int maxClientCount) {
-        mClients = new SparseArray<>();
-        mClientJobs = new SparseArray<>();
-        mClientIsValidArray = new SparseBooleanArray();
-        mPoolExecutor = new ThreadPoolExecutor(maxClientCount, maxClientCount << 1, 1000L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(maxClientCount << 1));
-        clientId = 0;
+        this(maxClientCount, maxClientCount, DEFAULT_QUEUE_TIMEOUT);
+    }
+
+    /**
+     *
+     * @param maxActiveCount max number of clients handled at once
+     * @param maxQueuedCount max number of clients waiting for an active slot, zero to reject them right away
+     * @param queueTimeoutMillis time a client may wait in the queue before rejected
+     */
+    public AbsBluetoothServer(int maxActiveCount, int maxQueuedCount, long queueTimeoutMillis) {
+        mAdmission = new AdmissionController(maxActiveCount, maxQueuedCount, queueTimeoutMillis, new AdmissionController.Handler() {
+            @Override
+            public void onAdmitted(ClientConnection connection) {
+                try {
+                    mClientExecutor.execute(new ClientHandleTask(connection));
+                } catch (RejectedExecutionException e) {
+                    Log.e(TAG, String.format(Locale.getDefault(), "Client (%d) can't be handled", connection.getId()));
+                    rejectBusy(connection);
+                    mAdmission.release();
+                }
+            }
+
+            @Override
+            public void onRejected(ClientConnection connection) {
+                rejectBusy(connection);
+            }
+        });
+        mScheduler = ServiceScheduler.getDefault();
+        /**
+         *  every active and queued client plus the one being accepted
+         */
+        mConnections = new ConnectionRegistry(mAdmission.getMaxActiveCount() + mAdmission.getMaxQueuedCount() + 1);
+        mMetricsLock = new Object();
+        mRetiredMetrics = MetricsSnapshot.EMPTY;
     }
 
     @Override
@@ -56,88 +102,446 @@ public abstract class AbsBluetoothServer implements BluetoothServer {
     @Override
     public void onDestroy() {
         isAlive = false;
+        for(ClientConnection connection : mConnections.snapshot()) {
+            connection.close();
+        }
+        if(mClientExecutor != null) {
+            mClientExecutor.shutdown();
+        }
+        if(mWriterExecutor != null) {
+            mWriterExecutor.shutdown();
+        }
+        if(mBlockingExecutor != null) {
+            mBlockingExecutor.shutdown();
+        }
     }
 
     @Override
-    public void onCreate(BluetoothServerSocket serverSocket) {
-        mServerSocket = serverSocket;
+    public void onCreate(ServerChannel serverChannel) {
+        mServerChannel = serverChannel;
+        /**
+         *  admission never runs more client tasks than active slots, so the quota is never exceeded
+         */
+        mClientExecutor = mScheduler.newExecutor(getServiceName(), "client", mAdmission.getMaxActiveCount());
+        mWriterExecutor = mScheduler.newExecutor(getServiceName(), "writer", mAdmission.getMaxActiveCount());
+        mBlockingExecutor = mScheduler.newExecutor(getServiceName(), "blocking", getBlockingQuota());
         isAlive = true;
     }
 
+    @Override
+    public void setScheduler(ServiceScheduler scheduler) {
+        mScheduler = scheduler;
+        mAdmission.setTimer(scheduler.getTimer());
+    }
+
     @Override
     public int onWaitClient() throws IOException {
-        BluetoothSocket client = mServerSocket.accept();
-        synchronized (this) {
-            mClients.put(clientId, client);
+        while(true) {
+            Channel client = mServerChannel.accept();
+            ClientConnection connection = mConnections.register(client);
+            if(connection != null) {
+                return connection.getId();
+            }
+            Log.e(TAG, String.format(Locale.getDefault(), "Too many clients (%d), connection is dropped", mConnections.getCapacity()));
+            writeBusyReply(client);
+            client.close();
         }
-        return clientId++;
     }
 
     @Override
     public void onRejectClient(int clientId) throws IOException {
-        BluetoothSocket client;
-        synchronized (this) {
-            client = mClients.get(clientId);
+        final ClientConnection connection = mConnections.get(clientId);
+        if(connection == null) {
+            return;
         }
+        mConnections.remove(connection);
+        connection.close();
+    }
 
-        if(client == null) {
+    @Override
+    public void onHandleClient(final int clientId) {
+        final ClientConnection connection = mConnections.get(clientId);
+        if(connection == null) {
             return;
         }
+        mAdmission.submit(connection);
+    }
 
-        synchronized (this) {
-            mClientIsValidArray.delete(clientId);
+    @Override
+    public ServiceLoad getLoad() {
+        return mAdmission.getLoad();
+    }
+
+    /**
+     *  @return metrics of every client handled so far, closed ones included
+     */
+    @Override
+    public MetricsSnapshot getMetrics() {
+        /**
+         *  a handled connection leaves the registry as its metrics are retired, under the same lock,
+         *  so it's counted once whichever state it's in
+         */
+        synchronized (mMetricsLock) {
+            MetricsSnapshot metrics = mRetiredMetrics;
+            for(ClientConnection connection : mConnections.snapshot()) {
+                metrics = metrics.merge(connection.getMetrics());
+            }
+            return metrics;
         }
-        client.close();
     }
 
     @Override
-    public void onHandleClient(final int clientId) {
-        final BluetoothSocket client = mClients.get(clientId);
-        if(client == null) {
+    public MetricsSnapshot getMetrics(int clientId) {
+        final ClientConnection connection = mConnections.get(clientId);
+        if(connection == null) {
+            return null;
+        }
+        return connection.getMetrics();
+    }
+
+    private class ClientHandleTask implements Runnable {
+        private final ClientConnection connection;
+
+        ClientHandleTask(ClientConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void run() {
+            try {
+                handleClient(connection);
+            } finally {
+                mAdmission.release();
+            }
+        }
+    }
+
+    private void handleClient(final ClientConnection connection) {
+        final int clientId = connection.getId();
+        final Channel client = connection.getChannel();
+        if(!connection.activate()) {
+            mConnections.remove(connection);
             return;
         }
-        final Runnable clientHandleTask = new Runnable() {
-            @Override
-            public void run() {
-                synchronized (AbsBluetoothServer.this) {
-                    mClientIsValidArray.put(clientId, true);
+        final int maxFrameSize = isFramingEnabled() ? getMaxFrameSize() : FrameDecoder.NO_FRAMING;
+        final BufferPool bufferPool = getBufferPool();
+        final ConnectionMetrics metrics = connection.getLiveMetrics();
+        final FrameCompressor compressor = isCompressed() ? new FrameCompressor(bufferPool, maxFrameSize,
+                getCompressionLevel(), getCompressionThreshold(), metrics.getCompression()) : null;
+        final FrameDecoder decoder = new FrameDecoder(bufferPool, (compressor == null) ? maxFrameSize : maxFrameSize + FrameCompressor.OVERHEAD, getReadSize());
+        final OutputSink sink = new OutputSink(bufferPool, getReadSize());
+        CoalescingOutputStream cos = null;
+        AsyncWriter writer = null;
+        Pipeline pipeline = null;
+        try {
+            DataInputStream dis = new DataInputStream(client.getInputStream());
+            cos = new CoalescingOutputStream(client.getOutputStream(), bufferPool, getFlushThreshold(), CoalescingOutputStream.NO_MAX_DELAY, mScheduler.getTimer());
+            final AsyncWriter clientWriter = writer = new AsyncWriter(cos, new FrameEncoder(maxFrameSize), bufferPool, mWriterExecutor,
+                    getLowWatermark(), getHighWatermark(), getMaxQueuedBytes(), new AsyncWriter.Listener() {
+                @Override
+                public void onWritabilityChanged(boolean writable) {
+                    AbsBluetoothServer.this.onWritabilityChanged(clientId, writable);
                 }
-                int bufferSize = getReadSize();
-                if(bufferSize <= 0 ) {
-                    /**
-                     *  guarantee buffer size is greater than zero
-                     */
-                    bufferSize = 1;
+
+                @Override
+                public void onWriteError(IOException e) {
+                    Log.e(TAG, e.getLocalizedMessage());
+                }
+            });
+            clientWriter.setMetrics(metrics);
+            final CoalescingOutputStream clientStream = cos;
+            final Thread readThread = Thread.currentThread();
+            final Pipeline clientPipeline = pipeline = new Pipeline(clientId, mBlockingExecutor, getMaxBacklog(), new Pipeline.Head() {
+                /**
+                 *  handlers on the read loop never block on writability, the loop waits before its next read.
+                 *  blocking handlers do, which is what holds them back.
+                 */
+                @Override
+                public void write(byte[] data, int offset, int length) throws IOException {
+                    if(Thread.currentThread() == readThread) {
+                        clientWriter.push(data, offset, length, false);
+                        connection.hasPendingReply = true;
+                    } else {
+                        clientWriter.write(data, offset, length, false);
+                    }
                 }
 
-                byte[] rxBuffer = new byte[bufferSize];
-                byte[] txBuffer;
-                try {
-                    DataInputStream dis = new DataInputStream(client.getInputStream());
-                    DataOutputStream dos = new DataOutputStream(client.getOutputStream());
-                    while(mClientIsValidArray.get(clientId) && isAlive) {
-                        if(dis.read(rxBuffer) > 0) {
-                            txBuffer = onDataReceived(clientId, rxBuffer);
-                            if(txBuffer != null) {
-                                dos.write(txBuffer);
-                            }
+                @Override
+                public void write(ByteBuffer[] parts) throws IOException {
+                    if(Thread.currentThread() == readThread) {
+                        clientWriter.push(parts, false);
+                        connection.hasPendingReply = true;
+                    } else {
+                        clientWriter.write(parts, false);
+                    }
+                }
+
+                @Override
+                public void flush() {
+                    clientWriter.flush();
+                }
+
+                /**
+                 *  replies queued before, e.g. a final one written right before closing, are written first
+                 */
+                @Override
+                public void close() {
+                    if(connection.isActive() && !clientWriter.awaitFlushed(getDrainTimeout())) {
+                        Log.e(TAG, String.format(Locale.getDefault(), "Replies to client (%d) are not written within %d ms, dropped", clientId, getDrainTimeout()));
+                    }
+                    connection.close();
+                }
+            });
+            onCreatePipeline(clientId, clientPipeline);
+            final boolean isPipelined = !clientPipeline.isEmpty();
+            final FrameDecoder.FrameHandler dataHandler = new FrameDecoder.FrameHandler() {
+                @Override
+                public void onFrame(byte[] buffer, int offset, int length) throws IOException {
+                    final long handleStart = System.nanoTime();
+                    if(!metrics.hasFirstByte()) {
+                        metrics.onFirstByte(connection.getAcceptTime());
+                    }
+                    if(isPipelined) {
+                        /**
+                         *  time of blocking handlers is not included, they run on their own
+                         */
+                        clientPipeline.fireMessage(ByteBuffer.wrap(buffer, offset, length));
+                    } else {
+                        onDataReceived(clientId, buffer, offset, length, sink);
+                        if(!sink.isEmpty()) {
+                            sink.flushTo(clientWriter);
+                            connection.hasPendingReply = true;
                         }
                     }
+                    metrics.onMessageReceived(System.nanoTime() - handleStart);
+                }
+            };
+            final FrameDecoder.FrameHandler frameHandler = (compressor == null) ? dataHandler : new FrameDecoder.FrameHandler() {
+                private boolean isNegotiated;
+                private boolean isCompressing;
+
+                /**
+                 *  the first frame of the client tells whether it compresses, the service answers its hello
+                 *  with a hello of its own and keeps plain framing otherwise. nothing is written before that,
+                 *  the writer is shared with other threads only once it's settled.
+                 */
+                @Override
+                public void onFrame(byte[] buffer, int offset, int length) throws IOException {
+                    if(isCompressing) {
+                        compressor.decode(buffer, offset, length, dataHandler);
+                        return;
+                    }
+                    if(!isNegotiated) {
+                        isNegotiated = true;
+                        if(FrameCompressor.isHello(buffer, offset, length)) {
+                            FrameCompressor.writeHello(clientStream);
+                            clientStream.flush();
+                            clientWriter.setCompressor(compressor);
+                            compressor.decode(buffer, offset, length, dataHandler);
+                            isCompressing = true;
+                            onConnectionStarted(connection, clientWriter, clientPipeline, isPipelined);
+                            return;
+                        }
+                        onConnectionStarted(connection, clientWriter, clientPipeline, isPipelined);
+                    }
+                    dataHandler.onFrame(buffer, offset, length);
+                }
+            };
+            if(compressor == null) {
+                onConnectionStarted(connection, clientWriter, clientPipeline, isPipelined);
+            }
+            int len;
+            while(connection.isActive() && isAlive) {
+                /**
+                 *  nothing is read while replies pile up, so the transport's flow control holds a client
+                 *  which doesn't read its replies back, rather than the handler or the heap
+                 */
+                clientWriter.awaitWritable();
+                if(isPipelined) {
+                    clientPipeline.awaitBacklog();
+                }
+                if((len = decoder.decode(dis, frameHandler)) < 0) {
+                    break;
+                }
+                /**
+                 *  frames split over reads are not dispatched until complete, first byte is still here
+                 */
+                metrics.onFirstByte(connection.getAcceptTime());
+                metrics.onRead(len);
+                if(connection.hasPendingReply) {
+                    /**
+                     *  replies to frames decoded from a single read are sent together
+                     */
+                    connection.hasPendingReply = false;
+                    clientWriter.flush();
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, e.getLocalizedMessage());
+        } finally {
+            /**
+             *  a client which never sent its first frame isn't connected to the pipeline yet
+             */
+            if((pipeline != null) && !pipeline.isEmpty() && (connection.getWriter() != null)) {
+                pipeline.fireDisconnected();
+                /**
+                 *  blocking handlers may still be replying to the last messages, the writer stays open for them
+                 */
+                if(connection.isActive() && !pipeline.awaitIdle(getDrainTimeout())) {
+                    Log.e(TAG, String.format(Locale.getDefault(), "Blocking handlers of client (%d) are not done within %d ms", clientId, getDrainTimeout()));
+                }
+            }
+            decoder.release();
+            sink.release();
+            if(writer != null) {
+                /**
+                 *  replies to the last reads are still queued at the end of the stream
+                 */
+                if(connection.isActive() && !writer.awaitFlushed(getDrainTimeout())) {
+                    Log.e(TAG, String.format(Locale.getDefault(), "Replies to client (%d) are not written within %d ms, dropped", clientId, getDrainTimeout()));
+                }
+                writer.close();
+            }
+            if(cos != null) {
+                try {
+                    cos.close();
                 } catch (IOException e) {
                     Log.e(TAG, e.getLocalizedMessage());
-                } finally {
-                    synchronized (AbsBluetoothServer.this) {
-                        mClients.remove(clientId);
-                        mClientIsValidArray.delete(clientId);
-                        AbsBluetoothServer.this.notifyAll();
-                    }
                 }
             }
-        };
-        mClientJobs.put(clientId, clientHandleTask);
-        mPoolExecutor.execute(clientHandleTask);
+            connection.close();
+            if(compressor != null) {
+                compressor.release();
+            }
+            retire(connection);
+        }
+    }
+
+    private void onConnectionStarted(ClientConnection connection, AsyncWriter writer, Pipeline pipeline, boolean isPipelined) throws IOException {
+        connection.setWriter(writer);
+        if(isPipelined) {
+            pipeline.fireConnected();
+            writer.flush();
+        }
+    }
+
+    private void retire(ClientConnection connection) {
+        MetricsSnapshot snapshot = connection.getMetrics();
+        synchronized (mMetricsLock) {
+            mRetiredMetrics = mRetiredMetrics.merge(snapshot);
+            mConnections.remove(connection);
+        }
+    }
+
+    /**
+     *  @return reply sent to clients rejected for load, framed if framing is enabled,
+     *  or null to just close the connection
+     */
+    protected byte[] getBusyReply() {
+        return null;
+    }
+
+    private void rejectBusy(ClientConnection connection) {
+        Log.e(TAG, String.format(Locale.getDefault(), "Client (%d) is rejected, server is busy (%s)", connection.getId(), mAdmission.getLoad()));
+        writeBusyReply(connection.getChannel());
+        connection.close();
+        mConnections.remove(connection);
+    }
+
+    private void writeBusyReply(Channel client) {
+        final byte[] busyReply = getBusyReply();
+        if(busyReply == null) {
+            return;
+        }
+        try {
+            /**
+             *  nothing is negotiated with a rejected client, the reply is sent with plain framing
+             */
+            new FrameEncoder(isFramingEnabled() ? getMaxFrameSize() : FrameDecoder.NO_FRAMING).encode(client.getOutputStream(), busyReply);
+        } catch (IOException e) {
+            Log.e(TAG, e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     *  queues data to given client without blocking, it can be called from any thread.
+     *  the data is copied and can be reused on return.
+     * @return future completed when the data is written, failed if the client is gone or its write queue is full
+     */
+    protected WriteFuture send(int clientId, byte[] data, int offset, int length) {
+        final ClientConnection connection = mConnections.get(clientId);
+        final AsyncWriter writer = (connection == null) ? null : connection.getWriter();
+        if(writer == null) {
+            return WriteFuture.failed(new IOException(String.format(Locale.getDefault(), "No client (%d)", clientId)));
+        }
+        WriteFuture future = writer.send(data, offset, length, false);
+        writer.flush();
+        return future;
+    }
+
+    /**
+     *  queues the remaining bytes of given buffers to given client as a single message without blocking and
+     *  without concatenating them first. the buffers can be direct or read-only, their positions are left unchanged.
+     */
+    protected WriteFuture send(int clientId, ByteBuffer... parts) {
+        final ClientConnection connection = mConnections.get(clientId);
+        final AsyncWriter writer = (connection == null) ? null : connection.getWriter();
+        if(writer == null) {
+            return WriteFuture.failed(new IOException(String.format(Locale.getDefault(), "No client (%d)", clientId)));
+        }
+        WriteFuture future = writer.send(parts, false);
+        writer.flush();
+        return future;
+    }
+
+    /**
+     *  queues data to every active client without blocking, clients whose write queue is full are skipped
+     * @return the number of clients the data is queued to
+     */
+    protected int broadcast(byte[] data, int offset, int length) {
+        int count = 0;
+        for(ClientConnection connection : mConnections.snapshot()) {
+            final AsyncWriter writer = connection.getWriter();
+            if(!connection.isActive() || (writer == null)) {
+                continue;
+            }
+            if(writer.offer(data, offset, length, false)) {
+                writer.flush();
+                count++;
+            }
+        }
+        return count;
     }
 
+    /**
+     *  @return bytes queued to given client and not yet written, or -1 if the client is gone
+     */
+    public long getWriteQueueBytes(int clientId) {
+        final ClientConnection connection = mConnections.get(clientId);
+        final AsyncWriter writer = (connection == null) ? null : connection.getWriter();
+        return (writer == null) ? -1 : writer.getQueuedBytes();
+    }
+
+    /**
+     *  @return the number of clients accepted and not yet closed
+     */
+    public int getClientCount() {
+        return mConnections.size();
+    }
+
+    /**
+     *  @return point-in-time copy of current clients
+     */
+    public List<ClientConnection> getClients() {
+        return mConnections.snapshot();
+    }
+
+    /**
+     *  called when the write queue of a client crosses the high watermark, with writable false,
+     *  or drains below the low watermark, with writable true.
+     */
+    protected void onWritabilityChanged(int clientId, boolean writable) {
+    }
 
     @Override
     public void setId(int svcId) {
@@ -149,6 +553,131 @@ public abstract class AbsBluetoothServer implements BluetoothServer {
         return svcId;
     }
 
+    /**
+     *  @return pool receive and reply buffers of client tasks are borrowed from
+     */
+    protected BufferPool getBufferPool() {
+        return BufferPool.getDefault();
+    }
+
+    /**
+     *  @return size of buffered replies which triggers sending them before the end of a read
+     */
+    protected int getFlushThreshold() {
+        return CoalescingOutputStream.DEFAULT_FLUSH_THRESHOLD;
+    }
+
+    protected int getLowWatermark() {
+        return AsyncWriter.DEFAULT_LOW_WATERMARK;
+    }
+
+    protected int getHighWatermark() {
+        return AsyncWriter.DEFAULT_HIGH_WATERMARK;
+    }
+
+    /**
+     *  @return limit of bytes queued to a single client, beyond which {@link #send(int, byte[], int, int)} fails
+     */
+    protected int getMaxQueuedBytes() {
+        return AsyncWriter.DEFAULT_MAX_QUEUED_BYTES;
+    }
+
+    /**
+     *  @return time replies still queued, or still to be made by blocking handlers, when a client
+     *  closes its stream are given to be written
+     */
+    protected long getDrainTimeout() {
+        return AsyncWriter.DEFAULT_DRAIN_TIMEOUT;
+    }
+
+    /**
+     *  enables varint length-prefixed framing, in which case every inbound message is
+     *  delivered as a whole frame and replies are framed in the same way.
+     * @return true if the stream of this service is framed, false for a raw byte stream
+     */
+    protected boolean isFramingEnabled() {
+        return false;
+    }
+
+    protected int getMaxFrameSize() {
+        return FrameDecoder.DEFAULT_MAX_FRAME_SIZE;
+    }
+
+    /**
+     *  called with the valid region of the receive buffer, which is a single frame if framing
+     *  is enabled, otherwise the bytes of a single read. the buffer is reused after return.
+     *  anything written to the sink is sent back to the client as a single reply, header and
+     *  payload buffers can be gathered into it with {@link OutputSink#write(ByteBuffer...)}.
+     *  override this to handle data without allocation, default implementation adapts to
+     *  {@link #onDataReceived(int, byte[], int, int)}.
+     */
+    protected void onDataReceived(int clientId, byte[] buffer, int offset, int length, OutputSink sink) {
+        byte[] txBuffer = onDataReceived(clientId, buffer, offset, length);
+        if(txBuffer != null) {
+            sink.write(txBuffer);
+        }
+    }
+
+    /**
+     *  adapts to {@link #onDataReceived(int, byte[])}, copying the valid region only when it
+     *  does not span the whole receive buffer.
+     */
+    protected byte[] onDataReceived(int clientId, byte[] buffer, int offset, int length) {
+        if((offset == 0) && (length == buffer.length)) {
+            return onDataReceived(clientId, buffer);
+        }
+        return onDataReceived(clientId, Arrays.copyOfRange(buffer, offset, offset + length));
+    }
+
+    /**
+     *  called for every accepted client before its first read, to add the handlers of the connection.
+     *  if any handler is added, received data goes through the pipeline as {@link ByteBuffer}s, valid
+     *  only during the call unless passed to a blocking handler, and {@link #onDataReceived(int, byte[], int, int, OutputSink)}
+     *  is not called. framing and decompression happen before the first handler.
+     */
+    protected void onCreatePipeline(int clientId, Pipeline pipeline) {
+    }
+
+    /**
+     *  @return bytes of received messages a single client may have waiting for blocking handlers,
+     *  beyond which its connection isn't read until they catch up
+     */
+    protected int getMaxBacklog() {
+        return Pipeline.DEFAULT_MAX_BACKLOG;
+    }
+
+    /**
+     *  @return max number of blocking handlers running at once, across every client of this service
+     */
+    protected int getBlockingQuota() {
+        return mAdmission.getMaxActiveCount();
+    }
+
+    /**
+     *  enables per-frame compression, which takes effect on connections with framing enabled
+     *  and only towards clients whose first frame is a hello, see {@link FrameCompressor}.
+     *  other clients are served with plain framing. the service can't speak first then,
+     *  a client can't be sent anything before its first frame is received.
+     */
+    protected boolean isCompressionEnabled() {
+        return false;
+    }
+
+    protected int getCompressionLevel() {
+        return Deflater.BEST_SPEED;
+    }
+
+    /**
+     *  @return frames smaller than this many bytes are sent without compression
+     */
+    protected int getCompressionThreshold() {
+        return FrameCompressor.DEFAULT_THRESHOLD;
+    }
+
+    private boolean isCompressed() {
+        return isFramingEnabled() && isCompressionEnabled();
+    }
+
     protected abstract int getReadSize();
     protected abstract byte[] onDataReceived(int clientId, byte[] data);
 }
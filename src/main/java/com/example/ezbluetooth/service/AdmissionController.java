@@ -0,0 +1,165 @@
+package com.example.ezbluetooth.service;
+
+import com.example.ezbluetooth.ServiceLoad;
+import com.example.ezbluetooth.exec.ServiceScheduler;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Decides whether an accepted client is handled now, queued or rejected. At most max active
+ *  clients are handled at once. Others wait in a queue, without holding a thread, for up to
+ *  the queue timeout and are rejected once the queue is full or the timeout expires.
+ *  With max queued count of zero, clients beyond max active are rejected right away.
+ */
+
+class AdmissionController {
+
+    private final int mMaxActiveCount;
+    private final int mMaxQueuedCount;
+    private final long mQueueTimeout;
+    private final Handler mHandler;
+    private final AtomicInteger mActiveCount;
+    private final AtomicInteger mQueuedCount;
+    private final AtomicLong mAdmittedCount;
+    private final AtomicLong mRejectedCount;
+    private final ConcurrentLinkedQueue<Pending> mPendings;
+    private volatile ScheduledExecutorService mTimer;
+
+    AdmissionController(int maxActiveCount, int maxQueuedCount, long queueTimeoutMillis, Handler handler) {
+        mMaxActiveCount = Math.max(maxActiveCount, 1);
+        mMaxQueuedCount = Math.max(maxQueuedCount, 0);
+        mQueueTimeout = queueTimeoutMillis;
+        mHandler = handler;
+        mActiveCount = new AtomicInteger();
+        mQueuedCount = new AtomicInteger();
+        mAdmittedCount = new AtomicLong();
+        mRejectedCount = new AtomicLong();
+        mPendings = new ConcurrentLinkedQueue<>();
+        mTimer = ServiceScheduler.getDefault().getTimer();
+    }
+
+    /**
+     *  sets executor running queue timeouts
+     */
+    void setTimer(ScheduledExecutorService timer) {
+        mTimer = timer;
+    }
+
+    int getMaxActiveCount() {
+        return mMaxActiveCount;
+    }
+
+    int getMaxQueuedCount() {
+        return mMaxQueuedCount;
+    }
+
+    void submit(ClientConnection connection) {
+        if(tryAcquire()) {
+            admit(connection);
+            return;
+        }
+        if(mQueuedCount.incrementAndGet() > mMaxQueuedCount) {
+            mQueuedCount.decrementAndGet();
+            reject(connection);
+            return;
+        }
+        final Pending pending = new Pending(connection);
+        mPendings.offer(pending);
+        if(mQueueTimeout > 0) {
+            mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if(!pending.claim()) {
+                        return;
+                    }
+                    mPendings.remove(pending);
+                    mQueuedCount.decrementAndGet();
+                    reject(pending.connection);
+                }
+            }, mQueueTimeout, TimeUnit.MILLISECONDS);
+        }
+        /**
+         *  an active client may have finished while this one was being queued
+         */
+        drain();
+    }
+
+    /**
+     *  must be called once by every admitted client when it finishes
+     */
+    void release() {
+        mActiveCount.decrementAndGet();
+        drain();
+    }
+
+    ServiceLoad getLoad() {
+        return new ServiceLoad(mActiveCount.get(), mQueuedCount.get(), mMaxActiveCount, mMaxQueuedCount, mAdmittedCount.get(), mRejectedCount.get());
+    }
+
+    private void drain() {
+        while(!mPendings.isEmpty()) {
+            if(!tryAcquire()) {
+                return;
+            }
+            final Pending pending = mPendings.poll();
+            if((pending == null) || !pending.claim()) {
+                /**
+                 *  queue emptied or the client timed out concurrently, give the slot back
+                 */
+                mActiveCount.decrementAndGet();
+                continue;
+            }
+            mQueuedCount.decrementAndGet();
+            admit(pending.connection);
+        }
+    }
+
+    private boolean tryAcquire() {
+        int count;
+        do {
+            count = mActiveCount.get();
+            if(count >= mMaxActiveCount) {
+                return false;
+            }
+        } while(!mActiveCount.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    private void admit(ClientConnection connection) {
+        mAdmittedCount.incrementAndGet();
+        mHandler.onAdmitted(connection);
+    }
+
+    private void reject(ClientConnection connection) {
+        mRejectedCount.incrementAndGet();
+        mHandler.onRejected(connection);
+    }
+
+    private static class Pending {
+        private final ClientConnection connection;
+        private final AtomicBoolean isClaimed;
+
+        Pending(ClientConnection connection) {
+            this.connection = connection;
+            isClaimed = new AtomicBoolean(false);
+        }
+
+        boolean claim() {
+            return isClaimed.compareAndSet(false, true);
+        }
+    }
+
+    interface Handler {
+        /**
+         *  called when the client may be handled, it holds an active slot until {@link #release()}
+         */
+        void onAdmitted(ClientConnection connection);
+
+        void onRejected(ClientConnection connection);
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.ezbluetooth.service;
+
+import android.util.Log;
+
+import com.example.ezbluetooth.io.AsyncWriter;
+import com.example.ezbluetooth.metrics.ConnectionMetrics;
+import com.example.ezbluetooth.metrics.MetricsSnapshot;
+import com.example.ezbluetooth.transport.Channel;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  State of a single client accepted by {@link AbsBluetoothServer}. Lifecycle moves only forward,
+ *  from accepted to active to closed, and is kept in an atomic so that the read loop can check it
+ *  on every iteration without taking any lock.
+ */
+
+public class ClientConnection {
+
+    private static final String TAG = ClientConnection.class.getCanonicalName();
+
+    public static final int STATE_ACCEPTED = 0;
+    public static final int STATE_ACTIVE = 1;
+    public static final int STATE_CLOSED = 2;
+
+    private final int mId;
+    private final Channel mChannel;
+    private final long mAcceptTime;
+    private final AtomicInteger mState;
+    private final ConnectionMetrics mMetrics;
+    private volatile AsyncWriter mWriter;
+    /**
+     *  set on the read loop when a read produced replies, touched by that thread only
+     */
+    boolean hasPendingReply;
+
+    ClientConnection(int id, Channel channel) {
+        mId = id;
+        mChannel = channel;
+        mAcceptTime = System.nanoTime();
+        mState = new AtomicInteger(STATE_ACCEPTED);
+        mMetrics = new ConnectionMetrics();
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public int getState() {
+        return mState.get();
+    }
+
+    public boolean isActive() {
+        return mState.get() == STATE_ACTIVE;
+    }
+
+    /**
+     *  @return accept time in {@link System#nanoTime()} base
+     */
+    public long getAcceptTime() {
+        return mAcceptTime;
+    }
+
+    public MetricsSnapshot getMetrics() {
+        return mMetrics.snapshot();
+    }
+
+    ConnectionMetrics getLiveMetrics() {
+        return mMetrics;
+    }
+
+    Channel getChannel() {
+        return mChannel;
+    }
+
+    AsyncWriter getWriter() {
+        return mWriter;
+    }
+
+    void setWriter(AsyncWriter writer) {
+        mWriter = writer;
+    }
+
+    /**
+     *  @return false if the connection is already active or closed
+     */
+    boolean activate() {
+        return mState.compareAndSet(STATE_ACCEPTED, STATE_ACTIVE);
+    }
+
+    /**
+     *  closes the channel on first call, subsequent calls are ignored
+     * @return true if this call closed the connection
+     */
+    boolean close() {
+        if(mState.getAndSet(STATE_CLOSED) == STATE_CLOSED) {
+            return false;
+        }
+        final AsyncWriter writer = mWriter;
+        if(writer != null) {
+            writer.close();
+        }
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, e.getLocalizedMessage());
+        }
+        return true;
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.ezbluetooth.service;
+
+import com.example.ezbluetooth.transport.Channel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  Lock-free table of the clients of a server, bounded to a fixed number of connections.
+ *  accept, read loops and shutdown touch it concurrently without contending on a monitor.
+ */
+
+class ConnectionRegistry {
+
+    private final int mCapacity;
+    private final AtomicInteger mNextId;
+    private final AtomicInteger mCount;
+    private final ConcurrentHashMap<Integer, ClientConnection> mConnections;
+
+    ConnectionRegistry(int capacity) {
+        mCapacity = capacity;
+        mNextId = new AtomicInteger();
+        mCount = new AtomicInteger();
+        mConnections = new ConcurrentHashMap<>(capacity);
+    }
+
+    /**
+     *  allocates an id for given channel and registers it
+     * @return registered connection, or null if the registry is full
+     */
+    ClientConnection register(Channel channel) {
+        int count;
+        do {
+            count = mCount.get();
+            if(count >= mCapacity) {
+                return null;
+            }
+        } while(!mCount.compareAndSet(count, count + 1));
+
+        while(true) {
+            /**
+             *  keep ids non-negative even after wrapping around
+             */
+            final int id = mNextId.getAndIncrement() & Integer.MAX_VALUE;
+            ClientConnection connection = new ClientConnection(id, channel);
+            if(mConnections.putIfAbsent(id, connection) == null) {
+                return connection;
+            }
+        }
+    }
+
+    ClientConnection get(int id) {
+        return mConnections.get(id);
+    }
+
+    boolean remove(ClientConnection connection) {
+        if(mConnections.remove(connection.getId(), connection)) {
+            mCount.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    int size() {
+        return mCount.get();
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     *  @return point-in-time copy of registered connections, safe to iterate while clients come and go
+     */
+    List<ClientConnection> snapshot() {
+        return new ArrayList<>(mConnections.values());
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.ezbluetooth.transport;
+
+import java.util.Random;
+
+/**
+ *  Exponential backoff with full jitter, every delay is drawn uniformly below a bound doubling
+ *  per attempt up to the max, so peers dropped by the same fault don't retry in lockstep.
+ */
+
+class Backoff {
+
+    private final long mBaseMillis;
+    private final long mMaxMillis;
+    private final Random mRandom;
+
+    Backoff(long baseMillis, long maxMillis) {
+        mBaseMillis = baseMillis;
+        mMaxMillis = maxMillis;
+        mRandom = new Random();
+    }
+
+    /**
+     *  @param attempt number of attempts made so far
+     * @return delay in milliseconds before the next attempt
+     */
+    long getDelay(int attempt) {
+        final long bound = (attempt >= Long.numberOfLeadingZeros(mBaseMillis) - 1) ? mMaxMillis : Math.min(mMaxMillis, mBaseMillis << attempt);
+        return (long) (mRandom.nextDouble() * bound);
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.ezbluetooth.transport;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ *  RFCOMM transport of the default Bluetooth adapter, addresses are Bluetooth MAC addresses.
+ */
+
+public class BluetoothTransport implements Transport {
+
+    private static BluetoothTransport SINGLETON;
+
+    private final BluetoothAdapter mBluetoothAdapter;
+
+    public BluetoothTransport(BluetoothAdapter adapter) {
+        mBluetoothAdapter = adapter;
+    }
+
+    public static synchronized BluetoothTransport getDefault() {
+        if(SINGLETON == null) {
+            SINGLETON = new BluetoothTransport(BluetoothAdapter.getDefaultAdapter());
+        }
+        return SINGLETON;
+    }
+
+    @Override
+    public ServerChannel listen(String serviceName, UUID serviceUuid) throws IOException {
+        final BluetoothServerSocket serverSocket = mBluetoothAdapter.listenUsingRfcommWithServiceRecord(serviceName, serviceUuid);
+        return new ServerChannel() {
+            @Override
+            public Channel accept() throws IOException {
+                return new SocketChannel(serverSocket.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public Channel connect(String address, UUID serviceUuid) throws IOException {
+        BluetoothSocket socket = mBluetoothAdapter.getRemoteDevice(address).createRfcommSocketToServiceRecord(serviceUuid);
+        socket.connect();
+        return new SocketChannel(socket);
+    }
+
+    private static class SocketChannel implements Channel {
+        private final BluetoothSocket mSocket;
+
+        SocketChannel(BluetoothSocket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mSocket.isConnected();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mSocket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.example.ezbluetooth.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ *  Connected bidirectional byte stream. closing it unblocks any pending read or write.
+ */
+
+public interface Channel extends Closeable {
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    boolean isConnected();
+
+    String getRemoteAddress();
+}
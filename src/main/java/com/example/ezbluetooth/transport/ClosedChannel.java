@@ -0,0 +1,35 @@
+package com.example.ezbluetooth.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ *  Placeholder handed to a pending accept to wake it up when the server channel is closed.
+ */
+
+class ClosedChannel implements Channel {
+    @Override
+    public InputStream getInputStream() throws IOException {
+        throw new IOException("Channel is closed");
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("Channel is closed");
+    }
+
+    @Override
+    public boolean isConnected() {
+        return false;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+    }
+}
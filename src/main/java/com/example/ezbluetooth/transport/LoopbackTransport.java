@@ -0,0 +1,145 @@
+package com.example.ezbluetooth.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ *  In-memory transport connecting services and clients living in the same JVM, for tests
+ *  and load generation. Any address reaches the service listening on the UUID.
+ */
+
+public class LoopbackTransport implements Transport {
+
+    public static final int DEFAULT_PIPE_CAPACITY = 64 * 1024;
+
+    private final ConcurrentHashMap<UUID, LoopbackServerChannel> mServers;
+    private final int mPipeCapacity;
+
+    public LoopbackTransport() {
+        this(DEFAULT_PIPE_CAPACITY);
+    }
+
+    /**
+     *
+     * @param pipeCapacity bytes buffered in each direction before writers block, like a socket send window
+     */
+    public LoopbackTransport(int pipeCapacity) {
+        mServers = new ConcurrentHashMap<>();
+        mPipeCapacity = pipeCapacity;
+    }
+
+    @Override
+    public ServerChannel listen(String serviceName, UUID serviceUuid) throws IOException {
+        LoopbackServerChannel serverChannel = new LoopbackServerChannel(serviceUuid);
+        if(mServers.putIfAbsent(serviceUuid, serverChannel) != null) {
+            throw new IOException(String.format(Locale.getDefault(), "Service %s is already listening", serviceUuid));
+        }
+        return serverChannel;
+    }
+
+    @Override
+    public Channel connect(String address, UUID serviceUuid) throws IOException {
+        LoopbackServerChannel serverChannel = mServers.get(serviceUuid);
+        if(serverChannel == null) {
+            throw new IOException(String.format(Locale.getDefault(), "Service %s is not listening", serviceUuid));
+        }
+        Pipe upstream = new Pipe(mPipeCapacity);
+        Pipe downstream = new Pipe(mPipeCapacity);
+        serverChannel.offer(new PipeChannel(upstream, downstream, address));
+        return new PipeChannel(downstream, upstream, serviceUuid.toString());
+    }
+
+    private class LoopbackServerChannel implements ServerChannel {
+        private final UUID mServiceUuid;
+        private final LinkedBlockingQueue<PipeChannel> mPendings;
+        private volatile boolean isClosed;
+
+        LoopbackServerChannel(UUID serviceUuid) {
+            mServiceUuid = serviceUuid;
+            mPendings = new LinkedBlockingQueue<>();
+        }
+
+        void offer(PipeChannel channel) throws IOException {
+            if(isClosed) {
+                throw new IOException("Connection refused");
+            }
+            mPendings.offer(channel);
+        }
+
+        @Override
+        public Channel accept() throws IOException {
+            try {
+                PipeChannel channel = mPendings.take();
+                if(isClosed) {
+                    throw new IOException("Server channel is closed");
+                }
+                return channel;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while accepting");
+            }
+        }
+
+        @Override
+        public void close() {
+            if(isClosed) {
+                return;
+            }
+            isClosed = true;
+            mServers.remove(mServiceUuid, this);
+            PipeChannel pending;
+            while((pending = mPendings.poll()) != null) {
+                pending.close();
+            }
+            /**
+             *  wakes up a pending accept
+             */
+            mPendings.offer(new PipeChannel(new Pipe(1), new Pipe(1), null));
+        }
+    }
+
+    private static class PipeChannel implements Channel {
+        private final Pipe mInbound;
+        private final Pipe mOutbound;
+        private final String mRemoteAddress;
+        private volatile boolean isClosed;
+
+        PipeChannel(Pipe inbound, Pipe outbound, String remoteAddress) {
+            mInbound = inbound;
+            mOutbound = outbound;
+            mRemoteAddress = remoteAddress;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mInbound.getSource();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mOutbound.getSink();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return !isClosed;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public void close() {
+            isClosed = true;
+            mInbound.closeSource();
+            mOutbound.closeSink();
+        }
+    }
+}
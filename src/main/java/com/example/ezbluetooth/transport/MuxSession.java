@@ -0,0 +1,379 @@
+package com.example.ezbluetooth.transport;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  One physical channel carrying many {@link MuxStream}s. Every frame is a type byte, a stream id
+ *  and a length, followed by as many payload bytes for data frames; for credit and open frames the
+ *  length is a window grant instead.
+ *
+ *  A single writer thread owns the physical output. Control frames go first, then every stream
+ *  with data and credit sends at most {@link #QUANTUM} bytes per round, so a bulk stream holds
+ *  a small message of another stream back by no more than one quantum per stream.
+ *
+ *  Either side may send a ping, answered by a pong, to find out whether the channel is still alive;
+ *  any frame received counts as a sign of life.
+ */
+
+class MuxSession {
+
+    private static final String TAG = MuxSession.class.getCanonicalName();
+
+    static final int QUANTUM = 4096;
+    static final int HEADER_SIZE = 9;
+
+    static final byte TYPE_OPEN = 1;
+    static final byte TYPE_DATA = 2;
+    static final byte TYPE_CREDIT = 3;
+    static final byte TYPE_CLOSE = 4;
+    static final byte TYPE_PING = 5;
+    static final byte TYPE_PONG = 6;
+
+    private final Channel mChannel;
+    private final int mStreamWindow;
+    private final Listener mListener;
+    private final ConcurrentHashMap<Integer, MuxStream> mStreams;
+    private final ConcurrentLinkedQueue<byte[]> mControlFrames;
+    private final AtomicInteger mNextId;
+    private final int mPeerParity;
+    private final Object mSignal;
+    private final Object mPongLock;
+    private final AtomicBoolean isClosed;
+    private boolean isSignaled;
+    private volatile boolean isPingPending;
+    private volatile long mPingSentAt;
+    private volatile long mLastReadAt;
+    private volatile long mLastUsedAt;
+
+    /**
+     *
+     * @param initiator true on the connecting side, which opens odd stream ids while the other opens even ones
+     * @param streamWindow receive window of every stream opened or accepted by this side
+     */
+    MuxSession(Channel channel, boolean initiator, int streamWindow, Listener listener) {
+        mChannel = channel;
+        mStreamWindow = streamWindow;
+        mListener = listener;
+        mStreams = new ConcurrentHashMap<>();
+        mControlFrames = new ConcurrentLinkedQueue<>();
+        mNextId = new AtomicInteger(initiator ? 1 : 2);
+        mPeerParity = initiator ? 0 : 1;
+        mSignal = new Object();
+        mPongLock = new Object();
+        isClosed = new AtomicBoolean(false);
+        mLastReadAt = mLastUsedAt = System.nanoTime();
+    }
+
+    void start() {
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "mux-reader");
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "mux-writer");
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    MuxStream openStream() throws IOException {
+        if(isClosed.get()) {
+            throw new IOException("Session is closed");
+        }
+        final int id = mNextId.getAndAdd(2);
+        /**
+         *  no credit until the peer grants its window in reply to the open
+         */
+        MuxStream stream = new MuxStream(this, id, mStreamWindow, 0);
+        mStreams.put(id, stream);
+        mLastUsedAt = System.nanoTime();
+        sendControl(TYPE_OPEN, id, mStreamWindow);
+        return stream;
+    }
+
+    boolean isClosed() {
+        return isClosed.get();
+    }
+
+    int getStreamCount() {
+        return mStreams.size();
+    }
+
+    /**
+     *  @return nanoseconds since the last stream was closed, 0 while any stream is open
+     */
+    long getIdleNanos() {
+        return mStreams.isEmpty() ? System.nanoTime() - mLastUsedAt : 0;
+    }
+
+    /**
+     *  @return {@link System#nanoTime()} a stream was last opened or closed at
+     */
+    long getLastUsedAt() {
+        return mLastUsedAt;
+    }
+
+    /**
+     *  @return nanoseconds since the last frame received
+     */
+    long getSilenceNanos() {
+        return System.nanoTime() - mLastReadAt;
+    }
+
+    /**
+     *  sends a ping without waiting for its pong
+     */
+    void sendPing() {
+        if(!isPingPending) {
+            mPingSentAt = System.nanoTime();
+            isPingPending = true;
+        }
+        sendControl(TYPE_PING, 0, 0);
+    }
+
+    /**
+     *  @return true if a ping is left without any frame received for longer than given time
+     */
+    boolean isPingOverdue(long timeoutNanos) {
+        return isPingPending && (System.nanoTime() - mPingSentAt > timeoutNanos);
+    }
+
+    /**
+     *  sends a ping and waits for any frame in reply
+     * @return false if nothing is received within given time or the session is closed
+     */
+    boolean ping(long timeoutMillis) {
+        sendPing();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (mPongLock) {
+            long remaining;
+            while(isPingPending && !isClosed.get() && ((remaining = deadline - System.nanoTime()) > 0)) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(mPongLock, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return !isPingPending && !isClosed.get();
+    }
+
+    String getRemoteAddress() {
+        return mChannel.getRemoteAddress();
+    }
+
+    void sendControl(byte type, int id, int value) {
+        byte[] frame = new byte[HEADER_SIZE];
+        writeHeader(frame, type, id, value);
+        mControlFrames.offer(frame);
+        signal();
+    }
+
+    void signal() {
+        synchronized (mSignal) {
+            isSignaled = true;
+            mSignal.notifyAll();
+        }
+    }
+
+    /**
+     *  called from the reader and the writer as they end, and by the transport; only the first call has any effect
+     */
+    void close() {
+        if(!isClosed.compareAndSet(false, true)) {
+            return;
+        }
+        for(MuxStream stream : mStreams.values()) {
+            stream.onRemoteClose();
+        }
+        mStreams.clear();
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, e.getLocalizedMessage());
+        }
+        signal();
+        synchronized (mPongLock) {
+            mPongLock.notifyAll();
+        }
+        mListener.onSessionClosed(this);
+    }
+
+    private void readLoop() {
+        byte[] buffer = new byte[QUANTUM];
+        try {
+            DataInputStream dis = new DataInputStream(mChannel.getInputStream());
+            while(!isClosed.get()) {
+                final byte type = dis.readByte();
+                final int id = dis.readInt();
+                final int value = dis.readInt();
+                mLastReadAt = System.nanoTime();
+                if(isPingPending) {
+                    synchronized (mPongLock) {
+                        isPingPending = false;
+                        mPongLock.notifyAll();
+                    }
+                }
+                MuxStream stream = mStreams.get(id);
+                switch (type) {
+                    case TYPE_OPEN:
+                        /**
+                         *  a stream of the peer would be orphaned if its id were taken over
+                         */
+                        if((id <= 0) || ((id & 1) != mPeerParity) || (stream != null)) {
+                            throw new IOException(String.format(Locale.getDefault(), "Invalid open of stream (%d)", id));
+                        }
+                        stream = new MuxStream(this, id, mStreamWindow, value);
+                        mStreams.put(id, stream);
+                        sendControl(TYPE_CREDIT, id, mStreamWindow);
+                        mListener.onStreamAccepted(stream);
+                        break;
+                    case TYPE_DATA:
+                        if((value < 0) || (value > QUANTUM)) {
+                            throw new IOException(String.format(Locale.getDefault(), "Invalid data frame (%d bytes)", value));
+                        }
+                        dis.readFully(buffer, 0, value);
+                        if((stream != null) && !stream.onData(buffer, 0, value)) {
+                            Log.e(TAG, String.format(Locale.getDefault(), "Stream (%d) overran its window, closed", id));
+                            stream.onRemoteClose();
+                            stream.close();
+                        }
+                        break;
+                    case TYPE_CREDIT:
+                        if(stream != null) {
+                            stream.onCredit(value);
+                            signal();
+                        }
+                        break;
+                    case TYPE_CLOSE:
+                        if(stream != null) {
+                            stream.onRemoteClose();
+                            if(stream.isCloseSent()) {
+                                removeStream(id);
+                            }
+                            signal();
+                        }
+                        break;
+                    case TYPE_PING:
+                        sendControl(TYPE_PONG, 0, value);
+                        break;
+                    case TYPE_PONG:
+                        break;
+                    default:
+                        throw new IOException(String.format(Locale.getDefault(), "Unknown frame type (%d)", type));
+                }
+            }
+        } catch (IOException e) {
+            if(!isClosed.get()) {
+                Log.e(TAG, e.getLocalizedMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    private void writeLoop() {
+        byte[] frame = new byte[HEADER_SIZE + QUANTUM];
+        List<MuxStream> streams = new ArrayList<>();
+        int round = 0;
+        try {
+            OutputStream os = mChannel.getOutputStream();
+            while(!isClosed.get()) {
+                synchronized (mSignal) {
+                    while(!isSignaled && !isClosed.get()) {
+                        mSignal.wait();
+                    }
+                    isSignaled = false;
+                }
+                boolean isSent = true;
+                while(isSent && !isClosed.get()) {
+                    isSent = false;
+                    byte[] control;
+                    while((control = mControlFrames.poll()) != null) {
+                        os.write(control);
+                        isSent = true;
+                    }
+                    streams.clear();
+                    streams.addAll(mStreams.values());
+                    final int count = streams.size();
+                    /**
+                     *  rotating the first stream of each round keeps round robin fair across rounds
+                     */
+                    for(int i = 0; i < count; i++) {
+                        MuxStream stream = streams.get((round + i) % count);
+                        int sendable = stream.getSendable();
+                        if(sendable > 0) {
+                            int length = stream.takeSendable(frame, HEADER_SIZE, sendable);
+                            writeHeader(frame, TYPE_DATA, stream.getId(), length);
+                            os.write(frame, 0, HEADER_SIZE + length);
+                            isSent = true;
+                        }
+                        if(stream.shouldSendClose()) {
+                            writeHeader(frame, TYPE_CLOSE, stream.getId(), 0);
+                            os.write(frame, 0, HEADER_SIZE);
+                            if(stream.isRemoteClosed()) {
+                                removeStream(stream.getId());
+                            }
+                            isSent = true;
+                        }
+                    }
+                    round++;
+                    if(isSent) {
+                        os.flush();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if(!isClosed.get()) {
+                Log.e(TAG, e.getLocalizedMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+        }
+    }
+
+    private void removeStream(int id) {
+        mStreams.remove(id);
+        mLastUsedAt = System.nanoTime();
+    }
+
+    private static void writeHeader(byte[] dst, byte type, int id, int value) {
+        dst[0] = type;
+        dst[1] = (byte) (id >>> 24);
+        dst[2] = (byte) (id >>> 16);
+        dst[3] = (byte) (id >>> 8);
+        dst[4] = (byte) id;
+        dst[5] = (byte) (value >>> 24);
+        dst[6] = (byte) (value >>> 16);
+        dst[7] = (byte) (value >>> 8);
+        dst[8] = (byte) value;
+    }
+
+    interface Listener {
+        /** a stream is opened by the peer */
+        void onStreamAccepted(MuxStream stream);
+        void onSessionClosed(MuxSession session);
+    }
+}
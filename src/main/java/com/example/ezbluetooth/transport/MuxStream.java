@@ -0,0 +1,223 @@
+package com.example.ezbluetooth.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ *  Logical stream of a {@link MuxSession}. Inbound data lands in a pipe as large as the receive
+ *  window, so the session reader never blocks on a slow stream, and consumed bytes are handed
+ *  back to the peer as credit. Outbound data waits in a pipe until the session writer sends it.
+ */
+
+class MuxStream implements Channel {
+
+    private final MuxSession mSession;
+    private final int mId;
+    private final int mReceiveWindow;
+    private final Pipe mInbound;
+    private final Pipe mOutbound;
+    private final InputStream mInputStream;
+    private final OutputStream mOutputStream;
+    private int mSendCredit;
+    private int mReceiveCredit;
+    private int mConsumed;
+    private volatile boolean isClosed;
+    private volatile boolean isRemoteClosed;
+    private volatile boolean isCloseSent;
+
+    MuxStream(MuxSession session, int id, int receiveWindow, int sendCredit) {
+        mSession = session;
+        mId = id;
+        mReceiveWindow = receiveWindow;
+        mInbound = new Pipe(receiveWindow);
+        mOutbound = new Pipe(receiveWindow);
+        mSendCredit = sendCredit;
+        mReceiveCredit = receiveWindow;
+        mInputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = mInbound.getSource().read(b, off, len);
+                if(read > 0) {
+                    onConsumed(read);
+                }
+                return read;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return mInbound.getSource().available();
+            }
+
+            @Override
+            public void close() {
+                MuxStream.this.close();
+            }
+        };
+        mOutputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while(len > 0) {
+                    if(isClosed || isRemoteClosed) {
+                        throw new IOException("Stream is closed");
+                    }
+                    /**
+                     *  the writer is signaled chunk by chunk, so a write larger than the pipe
+                     *  never waits for space the writer doesn't know it should free
+                     */
+                    int chunk = Math.min(len, MuxSession.QUANTUM);
+                    mOutbound.getSink().write(b, off, chunk);
+                    mSession.signal();
+                    off += chunk;
+                    len -= chunk;
+                }
+            }
+
+            @Override
+            public void close() {
+                MuxStream.this.close();
+            }
+        };
+    }
+
+    int getId() {
+        return mId;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return !isClosed && !isRemoteClosed;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return mSession.getRemoteAddress();
+    }
+
+    /**
+     *  data already written is still sent before the peer is told the stream is closed
+     */
+    @Override
+    public void close() {
+        if(isClosed) {
+            return;
+        }
+        isClosed = true;
+        mInbound.closeSource();
+        mOutbound.closeSink();
+        mSession.signal();
+    }
+
+    /**
+     *  called by the session reader with data of this stream
+     * @return false if the peer sent beyond the credit it was given
+     */
+    boolean onData(byte[] data, int offset, int length) {
+        synchronized (this) {
+            if(length > mReceiveCredit) {
+                return false;
+            }
+            mReceiveCredit -= length;
+        }
+        try {
+            mInbound.getSink().write(data, offset, length);
+        } catch (IOException ignored) {
+            /**
+             *  closed locally, the data has nobody to read it
+             */
+        }
+        return true;
+    }
+
+    synchronized void onCredit(int credit) {
+        mSendCredit += credit;
+    }
+
+    void onRemoteClose() {
+        isRemoteClosed = true;
+        mInbound.closeSink();
+        mOutbound.closeSource();
+    }
+
+    boolean isRemoteClosed() {
+        return isRemoteClosed;
+    }
+
+    /**
+     *  @return bytes the session writer may send now, bounded by the quantum of a scheduling round
+     */
+    synchronized int getSendable() throws IOException {
+        if(isRemoteClosed) {
+            return 0;
+        }
+        return Math.min(MuxSession.QUANTUM, Math.min(mSendCredit, mOutbound.getSource().available()));
+    }
+
+    /**
+     *  takes sendable bytes out of the outbound pipe, called from the session writer only
+     */
+    int takeSendable(byte[] dst, int offset, int length) throws IOException {
+        int read = mOutbound.getSource().read(dst, offset, length);
+        synchronized (this) {
+            mSendCredit -= read;
+        }
+        return read;
+    }
+
+    /**
+     *  @return true once, when the stream is closed locally and all its data is sent
+     */
+    boolean shouldSendClose() throws IOException {
+        if(!isClosed || isCloseSent) {
+            return false;
+        }
+        if(!isRemoteClosed && (mOutbound.getSource().available() > 0)) {
+            return false;
+        }
+        isCloseSent = true;
+        return true;
+    }
+
+    boolean isCloseSent() {
+        return isCloseSent;
+    }
+
+    private void onConsumed(int length) {
+        int credit = 0;
+        synchronized (this) {
+            mConsumed += length;
+            /**
+             *  credit goes back in halves of the window, not per read
+             */
+            if(mConsumed >= (mReceiveWindow >> 1)) {
+                credit = mConsumed;
+                mReceiveCredit += credit;
+                mConsumed = 0;
+            }
+        }
+        if(credit > 0) {
+            mSession.sendControl(MuxSession.TYPE_CREDIT, mId, credit);
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package com.example.ezbluetooth.transport;
+
+import android.util.Log;
+
+import com.example.ezbluetooth.exec.ServiceScheduler;
+import com.example.ezbluetooth.metrics.PoolMetrics;
+import com.example.ezbluetooth.metrics.PoolSnapshot;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Carries many logical streams over one physical channel of the wrapped transport. Every
+ *  {@link #connect(String, UUID)} to the same address and service opens a new stream on the shared
+ *  connection rather than a new socket, so a client set up with {@link com.example.ezbluetooth.client.AbsBluetoothClient#setTransport(Transport)}
+ *  and a service started on a {@link com.example.ezbluetooth.BluetoothServiceManager} with this transport
+ *  see each stream as a connection of their own. Both ends must use this transport.
+ *
+ *  Streams have credit based flow control, a reader that stops reading only stalls its own stream,
+ *  and a fair scheduler, see {@link MuxSession}.
+ *
+ *  Physical connections opened by this side are pooled per address and service. One left without
+ *  streams stays warm for the idle timeout, so reconnecting to the same device skips the RFCOMM connect
+ *  and SDP lookup, while no more than the given number of idle connections are kept. Connections are
+ *  pinged once silent for the keepalive interval, closed if the ping goes unanswered, and a warm one
+ *  gone silent is pinged again before reuse.
+ */
+
+public class MuxTransport implements Transport {
+
+    private static final String TAG = MuxTransport.class.getCanonicalName();
+
+    public static final int DEFAULT_STREAM_WINDOW = 32 * 1024;
+    public static final int DEFAULT_MAX_IDLE_SESSIONS = 4;
+    public static final long DEFAULT_IDLE_TIMEOUT = 60000L;
+    public static final long DEFAULT_KEEPALIVE_INTERVAL = 15000L;
+    public static final long NO_KEEPALIVE = 0;
+    /** time a ping is waited for before the connection is considered dead */
+    public static final long PROBE_TIMEOUT = 2000L;
+
+    private final Transport mTransport;
+    private final int mStreamWindow;
+    private final int mMaxIdleSessions;
+    private final long mIdleTimeoutMillis;
+    private final long mKeepAliveMillis;
+    private final ScheduledExecutorService mTimer;
+    private final ConcurrentHashMap<String, MuxSession> mSessions;
+    private final HashMap<String, PendingConnect> mConnecting;
+    private final PoolMetrics mPoolMetrics;
+    private final Runnable mMaintenanceTask;
+    private ScheduledFuture<?> mMaintenance;
+
+    public MuxTransport(Transport transport) {
+        this(transport, DEFAULT_STREAM_WINDOW);
+    }
+
+    /**
+     *
+     * @param transport transport of the physical connections
+     * @param streamWindow bytes a peer may send on a stream before it is read, per stream
+     */
+    public MuxTransport(Transport transport, int streamWindow) {
+        this(transport, streamWindow, DEFAULT_MAX_IDLE_SESSIONS, DEFAULT_IDLE_TIMEOUT, DEFAULT_KEEPALIVE_INTERVAL, ServiceScheduler.getDefault().getTimer());
+    }
+
+    /**
+     *
+     * @param transport transport of the physical connections
+     * @param streamWindow bytes a peer may send on a stream before it is read, per stream
+     * @param maxIdleSessions max number of physical connections kept without any stream
+     * @param idleTimeoutMillis time a physical connection is kept without any stream
+     * @param keepAliveMillis silence after which a physical connection is pinged, or {@link #NO_KEEPALIVE}
+     * @param timer timer of idle eviction and keepalive, whose task never blocks on I/O and so may be shared
+     */
+    public MuxTransport(Transport transport, int streamWindow, int maxIdleSessions, long idleTimeoutMillis,
+                        long keepAliveMillis, ScheduledExecutorService timer) {
+        if(streamWindow < MuxSession.QUANTUM) {
+            throw new IllegalArgumentException(String.format(Locale.getDefault(), "Stream window (%d) is smaller than a quantum (%d)", streamWindow, MuxSession.QUANTUM));
+        }
+        if((maxIdleSessions < 0) || (idleTimeoutMillis <= 0) || (keepAliveMillis < 0)) {
+            throw new IllegalArgumentException(String.format(Locale.getDefault(), "Invalid pool settings (%d / %d / %d)", maxIdleSessions, idleTimeoutMillis, keepAliveMillis));
+        }
+        mTransport = transport;
+        mStreamWindow = streamWindow;
+        mMaxIdleSessions = maxIdleSessions;
+        mIdleTimeoutMillis = idleTimeoutMillis;
+        mKeepAliveMillis = keepAliveMillis;
+        mTimer = timer;
+        mSessions = new ConcurrentHashMap<>();
+        mConnecting = new HashMap<>();
+        mPoolMetrics = new PoolMetrics();
+        mMaintenanceTask = new Runnable() {
+            @Override
+            public void run() {
+                maintain();
+            }
+        };
+    }
+
+    @Override
+    public ServerChannel listen(String serviceName, UUID serviceUuid) throws IOException {
+        MuxServerChannel serverChannel = new MuxServerChannel(mTransport.listen(serviceName, serviceUuid));
+        serverChannel.start();
+        return serverChannel;
+    }
+
+    /**
+     *  opens a stream, connecting the physical channel first if there is no live one to the address and service yet.
+     *  connecting and probing run outside the pool lock, concurrent connects to the same address and service wait
+     *  for a single physical connect while those to others go on.
+     */
+    @Override
+    public Channel connect(String address, UUID serviceUuid) throws IOException {
+        final String key = address + "/" + serviceUuid;
+        while(true) {
+            MuxSession session;
+            PendingConnect pending = null;
+            boolean isConnector = false;
+            synchronized (mSessions) {
+                session = mSessions.get(key);
+                if((session != null) && !session.isClosed() && !needsProbe(session)) {
+                    mPoolMetrics.onHit();
+                    return session.openStream();
+                }
+                if((session == null) || session.isClosed()) {
+                    pending = mConnecting.get(key);
+                    if(pending == null) {
+                        pending = new PendingConnect();
+                        mConnecting.put(key, pending);
+                        isConnector = true;
+                    }
+                }
+            }
+            if(pending == null) {
+                /**
+                 *  a warm connection gone silent answers a ping before it's reused
+                 */
+                if(!session.ping(PROBE_TIMEOUT) && !session.isClosed()) {
+                    Log.e(TAG, String.format(Locale.getDefault(), "Connection to %s doesn't answer, reconnecting", key));
+                    mPoolMetrics.onProbeFailed();
+                    session.close();
+                }
+                continue;
+            }
+            if(!isConnector) {
+                pending.await();
+                continue;
+            }
+            final long connectStart = System.nanoTime();
+            try {
+                session = new MuxSession(mTransport.connect(address, serviceUuid), true, mStreamWindow, new SessionListener(key));
+            } catch (IOException e) {
+                synchronized (mSessions) {
+                    mConnecting.remove(key);
+                }
+                pending.fail(e);
+                throw e;
+            }
+            mPoolMetrics.onMiss(System.nanoTime() - connectStart);
+            session.start();
+            synchronized (mSessions) {
+                mSessions.put(key, session);
+                mConnecting.remove(key);
+                if(mMaintenance == null) {
+                    final long period = getMaintenancePeriod();
+                    mMaintenance = mTimer.scheduleWithFixedDelay(mMaintenanceTask, period, period, TimeUnit.MILLISECONDS);
+                }
+                pending.complete();
+                return session.openStream();
+            }
+        }
+    }
+
+    /**
+     *  @return number of physical connections opened by this side
+     */
+    public int getSessionCount() {
+        return mSessions.size();
+    }
+
+    /**
+     *  @return number of physical connections opened by this side and kept without any stream
+     */
+    public int getIdleSessionCount() {
+        int count = 0;
+        for(MuxSession session : mSessions.values()) {
+            if(session.getIdleNanos() > 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public PoolSnapshot getPoolMetrics() {
+        return mPoolMetrics.snapshot();
+    }
+
+    /**
+     *  a connection heard from within the keepalive interval is taken as alive, others have to answer a ping
+     */
+    private boolean needsProbe(MuxSession session) {
+        return (mKeepAliveMillis != NO_KEEPALIVE) && (session.getSilenceNanos() >= TimeUnit.MILLISECONDS.toNanos(mKeepAliveMillis));
+    }
+
+    private long getMaintenancePeriod() {
+        final long period = (mKeepAliveMillis == NO_KEEPALIVE) ? mIdleTimeoutMillis : Math.min(mIdleTimeoutMillis, mKeepAliveMillis);
+        return Math.max(period / 2, 1);
+    }
+
+    private void maintain() {
+        final long idleTimeout = TimeUnit.MILLISECONDS.toNanos(mIdleTimeoutMillis);
+        final long keepAlive = TimeUnit.MILLISECONDS.toNanos(mKeepAliveMillis);
+        final List<MuxSession> idleSessions = new ArrayList<>();
+        final List<MuxSession> closings = new ArrayList<>();
+        /**
+         *  streams are opened under the same lock, so an idle session stays idle while it is evicted.
+         *  the lock is never held across I/O, so this short task doesn't hold up the timer it shares.
+         */
+        synchronized (mSessions) {
+            for(MuxSession session : mSessions.values()) {
+                if(session.isClosed()) {
+                    continue;
+                }
+                if(mKeepAliveMillis != NO_KEEPALIVE) {
+                    if(session.isPingOverdue(TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT))) {
+                        Log.e(TAG, String.format(Locale.getDefault(), "Connection to %s doesn't answer, closed", session.getRemoteAddress()));
+                        mPoolMetrics.onProbeFailed();
+                        closings.add(session);
+                        continue;
+                    }
+                    if(session.getSilenceNanos() >= keepAlive) {
+                        session.sendPing();
+                    }
+                }
+                final long idleNanos = session.getIdleNanos();
+                if(idleNanos > idleTimeout) {
+                    mPoolMetrics.onEvicted();
+                    closings.add(session);
+                } else if(idleNanos > 0) {
+                    idleSessions.add(session);
+                }
+            }
+            if(idleSessions.size() > mMaxIdleSessions) {
+                /**
+                 *  keeps the most recently used ones
+                 */
+                Collections.sort(idleSessions, new Comparator<MuxSession>() {
+                    @Override
+                    public int compare(MuxSession lhs, MuxSession rhs) {
+                        return Long.compare(rhs.getLastUsedAt(), lhs.getLastUsedAt());
+                    }
+                });
+                for(MuxSession session : idleSessions.subList(mMaxIdleSessions, idleSessions.size())) {
+                    mPoolMetrics.onEvicted();
+                    closings.add(session);
+                }
+            }
+            /**
+             *  evicted sessions leave the pool right away, their channels are closed outside the lock
+             */
+            for(MuxSession session : closings) {
+                mSessions.values().remove(session);
+            }
+            if(mSessions.isEmpty() && mConnecting.isEmpty() && (mMaintenance != null)) {
+                mMaintenance.cancel(false);
+                mMaintenance = null;
+            }
+        }
+        for(MuxSession session : closings) {
+            session.close();
+        }
+    }
+
+    /**
+     *  physical connect in progress to an address and service, which others connecting to the same wait for
+     */
+    private static class PendingConnect {
+        private boolean isDone;
+        private IOException mError;
+
+        synchronized void complete() {
+            isDone = true;
+            notifyAll();
+        }
+
+        synchronized void fail(IOException e) {
+            mError = e;
+            isDone = true;
+            notifyAll();
+        }
+
+        /**
+         * @throws IOException the failure of the connect waited for
+         */
+        synchronized void await() throws IOException {
+            while(!isDone) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for connect");
+                }
+            }
+            if(mError != null) {
+                throw new IOException(mError.getLocalizedMessage(), mError);
+            }
+        }
+    }
+
+    private class SessionListener implements MuxSession.Listener {
+        private final String mKey;
+
+        SessionListener(String key) {
+            mKey = key;
+        }
+
+        @Override
+        public void onStreamAccepted(MuxStream stream) {
+            Log.e(TAG, String.format(Locale.getDefault(), "Stream (%d) opened by the server is refused", stream.getId()));
+            stream.close();
+        }
+
+        @Override
+        public void onSessionClosed(MuxSession session) {
+            mSessions.remove(mKey, session);
+        }
+    }
+
+    private class MuxServerChannel implements ServerChannel, MuxSession.Listener {
+        private final ServerChannel mServerChannel;
+        private final LinkedBlockingQueue<Channel> mAccepted;
+        private final ConcurrentHashMap<MuxSession, Boolean> mAcceptedSessions;
+        private volatile boolean isClosed;
+
+        MuxServerChannel(ServerChannel serverChannel) {
+            mServerChannel = serverChannel;
+            mAccepted = new LinkedBlockingQueue<>();
+            mAcceptedSessions = new ConcurrentHashMap<>();
+        }
+
+        void start() {
+            Thread acceptThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while(!isClosed) {
+                            MuxSession session = new MuxSession(mServerChannel.accept(), false, mStreamWindow, MuxServerChannel.this);
+                            mAcceptedSessions.put(session, Boolean.TRUE);
+                            session.start();
+                        }
+                    } catch (IOException e) {
+                        if(!isClosed) {
+                            Log.e(TAG, e.getLocalizedMessage());
+                        }
+                    }
+                }
+            }, "mux-accept");
+            acceptThread.setDaemon(true);
+            acceptThread.start();
+        }
+
+        @Override
+        public Channel accept() throws IOException {
+            try {
+                Channel channel = mAccepted.take();
+                if(isClosed) {
+                    throw new IOException("Server channel is closed");
+                }
+                return channel;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while accepting");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(isClosed) {
+                return;
+            }
+            isClosed = true;
+            mServerChannel.close();
+            for(MuxSession session : mAcceptedSessions.keySet()) {
+                session.close();
+            }
+            /**
+             *  wakes up a pending accept
+             */
+            mAccepted.offer(new ClosedChannel());
+        }
+
+        @Override
+        public void onStreamAccepted(MuxStream stream) {
+            if(isClosed) {
+                stream.close();
+                return;
+            }
+            mAccepted.offer(stream);
+        }
+
+        @Override
+        public void onSessionClosed(MuxSession session) {
+            mAcceptedSessions.remove(session);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.ezbluetooth.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ *  Bounded in-memory byte pipe, one direction of a loopback connection. Unlike the piped streams
+ *  of java.io, either end can be used from any number of threads.
+ */
+
+class Pipe {
+
+    private final byte[] mBuffer;
+    private int mHead;
+    private int mCount;
+    private boolean isSinkClosed;
+    private boolean isSourceClosed;
+    private final InputStream mSource;
+    private final OutputStream mSink;
+
+    Pipe(int capacity) {
+        mBuffer = new byte[capacity];
+        mHead = 0;
+        mCount = 0;
+        mSource = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this) {
+                    return mCount;
+                }
+            }
+
+            @Override
+            public void close() {
+                closeSource();
+            }
+        };
+        mSink = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                closeSink();
+            }
+        };
+    }
+
+    InputStream getSource() {
+        return mSource;
+    }
+
+    OutputStream getSink() {
+        return mSink;
+    }
+
+    synchronized void closeSource() {
+        isSourceClosed = true;
+        notifyAll();
+    }
+
+    synchronized void closeSink() {
+        isSinkClosed = true;
+        notifyAll();
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+        while(mCount == 0) {
+            if(isSourceClosed) {
+                throw new IOException("Pipe is closed");
+            }
+            if(isSinkClosed) {
+                return -1;
+            }
+            awaitSignal();
+        }
+        int read = 0;
+        while((read < len) && (mCount > 0)) {
+            int chunk = Math.min(len - read, Math.min(mCount, mBuffer.length - mHead));
+            System.arraycopy(mBuffer, mHead, b, off + read, chunk);
+            mHead = (mHead + chunk) % mBuffer.length;
+            mCount -= chunk;
+            read += chunk;
+        }
+        notifyAll();
+        return read;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        while(len > 0) {
+            if(isSinkClosed || isSourceClosed) {
+                throw new IOException("Pipe is closed");
+            }
+            if(mCount == mBuffer.length) {
+                awaitSignal();
+                continue;
+            }
+            int tail = (mHead + mCount) % mBuffer.length;
+            int chunk = Math.min(len, Math.min(mBuffer.length - mCount, mBuffer.length - tail));
+            System.arraycopy(b, off, mBuffer, tail, chunk);
+            mCount += chunk;
+            off += chunk;
+            len -= chunk;
+            notifyAll();
+        }
+    }
+
+    /**
+     *  waits for the other end to read, write or close, called with the lock held. an interrupt ends the wait
+     *  with an IOException, so that a thread blocked on a stalled peer can be got off it
+     */
+    private void awaitSignal() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting on pipe");
+        }
+    }
+}
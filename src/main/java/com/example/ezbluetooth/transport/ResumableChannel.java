@@ -0,0 +1,638 @@
+package com.example.ezbluetooth.transport;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Logical channel surviving drops of the physical one underneath. Every frame sent is kept until
+ *  the peer acknowledges it, and once a new physical channel is attached under the same session
+ *  token, both sides exchange how much they have received and send again only what the other missed.
+ *
+ *  The connecting side reconnects by itself with jittered exponential backoff, the accepting side
+ *  waits for it to come back; either gives up after the resume timeout and fails the channel.
+ *  The bounded retransmit buffer blocks writers once full, like a socket send window.
+ *
+ *  Every frame starts with a type byte. A hello carries flags, the token and the number of bytes
+ *  received, a data frame a length and as many bytes, an ack the number of bytes received.
+ */
+
+class ResumableChannel implements Channel {
+
+    private static final String TAG = ResumableChannel.class.getCanonicalName();
+
+    static final byte TYPE_HELLO = 1;
+    static final byte TYPE_DATA = 2;
+    static final byte TYPE_ACK = 3;
+    static final byte TYPE_CLOSE = 4;
+    static final byte TYPE_RESET = 5;
+    static final int FLAG_RESUME = 1;
+
+    static final int MAX_CHUNK = 4096;
+    private static final int DATA_HEADER_SIZE = 5;
+    private static final int ACK_FRAME_SIZE = 9;
+    /** received bytes after which an ack is sent even while more data is coming */
+    private static final int ACK_THRESHOLD = 8 * 1024;
+    private static final long CLOSE_TIMEOUT = 500L;
+
+    private final UUID mToken;
+    private final Connector mConnector;
+    private final Listener mListener;
+    private final int mCapacity;
+    private final long mResumeTimeoutMillis;
+    private final Backoff mBackoff;
+    private final String mRemoteAddress;
+    private final Pipe mInbound;
+    private final OutputStream mOutputStream;
+    private final Object mLock;
+    private final Object mWriteLock;
+    private final ArrayDeque<byte[]> mUnacked;
+    private long mAckedOffset;
+    private int mUnackedBytes;
+    private long mSendOffset;
+    private long mReceived;
+    private long mLastAckSent;
+    private boolean isAckDue;
+    private Channel mPhysical;
+    private OutputStream mPhysicalOutput;
+    private Channel mPendingPhysical;
+    private long mPendingReceived;
+    private volatile boolean isClosed;
+    private boolean isCloseSent;
+    private boolean isTerminated;
+    private IOException mFailure;
+
+    /**
+     *
+     * @param physical channel the hello is already exchanged on
+     * @param connector opens a new physical channel to the peer, null on the accepting side
+     * @param capacity bytes sent and not yet acknowledged before writers block
+     */
+    ResumableChannel(UUID token, Channel physical, Connector connector, int capacity, long resumeTimeoutMillis,
+                     Backoff backoff, Listener listener) throws IOException {
+        mToken = token;
+        mConnector = connector;
+        mListener = listener;
+        mCapacity = capacity;
+        mResumeTimeoutMillis = resumeTimeoutMillis;
+        mBackoff = backoff;
+        mRemoteAddress = physical.getRemoteAddress();
+        mInbound = new Pipe(capacity);
+        mLock = new Object();
+        mWriteLock = new Object();
+        mUnacked = new ArrayDeque<>();
+        mPhysical = physical;
+        mPhysicalOutput = physical.getOutputStream();
+        mOutputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ResumableChannel.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                ResumableChannel.this.close();
+            }
+        };
+    }
+
+    void start() {
+        final Channel physical = mPhysical;
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop(physical);
+            }
+        }, "resumable-reader");
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "resumable-writer");
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    UUID getToken() {
+        return mToken;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return mInbound.getSource();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    /**
+     *  @return true until closed or failed, including while the physical channel is being resumed
+     */
+    @Override
+    public boolean isConnected() {
+        return !isClosed;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return mRemoteAddress;
+    }
+
+    /**
+     *  tells the peer the session is over, so it doesn't wait for a resume, and closes the channel
+     */
+    @Override
+    public void close() {
+        synchronized (mLock) {
+            if(isClosed) {
+                return;
+            }
+            isClosed = true;
+            mLock.notifyAll();
+            /**
+             *  data written so far and the close go out unless the link is down or stuck
+             */
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT);
+            long remaining;
+            while(!isCloseSent && (mPhysical != null) && ((remaining = deadline - System.nanoTime()) > 0)) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(mLock, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        terminate(false);
+    }
+
+    /**
+     *  attaches a physical channel the peer resumes the session on, accepting side only
+     * @param peerReceived bytes the peer has received so far
+     */
+    void offerLink(Channel physical, long peerReceived) {
+        Channel stale = null;
+        Channel current;
+        synchronized (mLock) {
+            if(isClosed) {
+                current = null;
+                stale = physical;
+            } else {
+                stale = mPendingPhysical;
+                mPendingPhysical = physical;
+                mPendingReceived = peerReceived;
+                current = mPhysical;
+                mLock.notifyAll();
+            }
+        }
+        closeQuietly(stale);
+        /**
+         *  the old link may not have failed on this side yet, closing it gets the reader off it
+         */
+        closeQuietly(current);
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        synchronized (mWriteLock) {
+            while(len > 0) {
+                final int chunk = Math.min(len, MAX_CHUNK);
+                byte[] frame = new byte[DATA_HEADER_SIZE + chunk];
+                frame[0] = TYPE_DATA;
+                writeInt(frame, 1, chunk);
+                System.arraycopy(b, off, frame, DATA_HEADER_SIZE, chunk);
+                synchronized (mLock) {
+                    while((mUnackedBytes + chunk > mCapacity) && !isClosed) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted while waiting for acks");
+                        }
+                    }
+                    if(mFailure != null) {
+                        throw mFailure;
+                    }
+                    if(isClosed) {
+                        throw new IOException("Channel is closed");
+                    }
+                    mUnacked.offer(frame);
+                    mUnackedBytes += chunk;
+                    mLock.notifyAll();
+                }
+                off += chunk;
+                len -= chunk;
+            }
+        }
+    }
+
+    private void readLoop(Channel physical) {
+        while(physical != null) {
+            try {
+                if(readFrames(physical)) {
+                    terminate(true);
+                    return;
+                }
+            } catch (IOException e) {
+                if(isClosed) {
+                    return;
+                }
+                Log.e(TAG, String.format(Locale.getDefault(), "Link of session %s is lost : %s", mToken, e.getLocalizedMessage()));
+            }
+            detach(physical);
+            physical = awaitLink();
+        }
+    }
+
+    /**
+     *  @return true if the peer closed the session, false if the physical channel ended without a close
+     */
+    private boolean readFrames(Channel physical) throws IOException {
+        final DataInputStream dis = new DataInputStream(physical.getInputStream());
+        final byte[] buffer = new byte[MAX_CHUNK];
+        while(true) {
+            final byte type = dis.readByte();
+            switch (type) {
+                case TYPE_DATA:
+                    final int length = dis.readInt();
+                    if((length <= 0) || (length > MAX_CHUNK)) {
+                        throw new IOException(String.format(Locale.getDefault(), "Invalid data frame (%d bytes)", length));
+                    }
+                    dis.readFully(buffer, 0, length);
+                    mInbound.getSink().write(buffer, 0, length);
+                    final boolean isIdle = dis.available() == 0;
+                    synchronized (mLock) {
+                        mReceived += length;
+                        /**
+                         *  acked at the end of every burst, and every so often within long ones
+                         */
+                        if(isIdle || (mReceived - mLastAckSent >= ACK_THRESHOLD)) {
+                            isAckDue = true;
+                            mLock.notifyAll();
+                        }
+                    }
+                    break;
+                case TYPE_ACK:
+                    final long received = dis.readLong();
+                    synchronized (mLock) {
+                        onAck(received);
+                    }
+                    break;
+                case TYPE_CLOSE:
+                    return true;
+                default:
+                    throw new IOException(String.format(Locale.getDefault(), "Unknown frame type (%d)", type));
+            }
+        }
+    }
+
+    private void writeLoop() {
+        final byte[] ackFrame = new byte[ACK_FRAME_SIZE];
+        final List<byte[]> frames = new ArrayList<>();
+        while(true) {
+            final Channel physical;
+            final OutputStream os;
+            long ack = -1;
+            boolean sendClose;
+            frames.clear();
+            synchronized (mLock) {
+                while(!isTerminated && ((mPhysical == null) || (!isAckDue && !hasUnsent() && !(isClosed && !isCloseSent)))) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if(isTerminated) {
+                    return;
+                }
+                physical = mPhysical;
+                os = mPhysicalOutput;
+                if(isAckDue) {
+                    ack = mLastAckSent = mReceived;
+                    isAckDue = false;
+                }
+                long offset = mAckedOffset;
+                for(byte[] frame : mUnacked) {
+                    if(offset >= mSendOffset) {
+                        frames.add(frame);
+                    }
+                    offset += frame.length - DATA_HEADER_SIZE;
+                }
+                mSendOffset = offset;
+                sendClose = isClosed && !isCloseSent;
+            }
+            try {
+                if(ack >= 0) {
+                    ackFrame[0] = TYPE_ACK;
+                    writeLong(ackFrame, 1, ack);
+                    os.write(ackFrame);
+                }
+                for(byte[] frame : frames) {
+                    os.write(frame);
+                }
+                if(sendClose) {
+                    os.write(TYPE_CLOSE);
+                }
+                os.flush();
+                if(sendClose) {
+                    synchronized (mLock) {
+                        isCloseSent = true;
+                        mLock.notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                /**
+                 *  the reader sees the same failure and resumes, frames stay for the replay
+                 */
+                detach(physical);
+            }
+        }
+    }
+
+    /**
+     *  called on the reader thread once the physical channel is lost
+     * @return new physical channel the session is resumed on, or null if it is closed or failed
+     */
+    private Channel awaitLink() {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mResumeTimeoutMillis);
+        int attempt = 0;
+        while(!isClosed) {
+            Channel physical = null;
+            long peerReceived;
+            try {
+                if(mConnector != null) {
+                    if(!sleepUntil(Math.min(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mBackoff.getDelay(attempt++)), deadline))
+                            || (System.nanoTime() - deadline >= 0)) {
+                        break;
+                    }
+                    physical = mConnector.connect();
+                    writeHello(physical.getOutputStream(), FLAG_RESUME, mToken, getReceived());
+                    final Hello hello = readHello(new DataInputStream(physical.getInputStream()));
+                    if(hello == null) {
+                        closeQuietly(physical);
+                        fail(new IOException(String.format(Locale.getDefault(), "Session %s is no longer known to the peer", mToken)));
+                        return null;
+                    }
+                    peerReceived = hello.received;
+                } else {
+                    synchronized (mLock) {
+                        long remaining;
+                        while((mPendingPhysical == null) && !isClosed && ((remaining = deadline - System.nanoTime()) > 0)) {
+                            TimeUnit.NANOSECONDS.timedWait(mLock, remaining);
+                        }
+                        if(mPendingPhysical == null) {
+                            break;
+                        }
+                        physical = mPendingPhysical;
+                        peerReceived = mPendingReceived;
+                        mPendingPhysical = null;
+                    }
+                    writeHello(physical.getOutputStream(), 0, mToken, getReceived());
+                }
+                if(resume(physical, peerReceived)) {
+                    return physical;
+                }
+                closeQuietly(physical);
+                return null;
+            } catch (IOException e) {
+                Log.e(TAG, String.format(Locale.getDefault(), "Resuming session %s failed : %s", mToken, e.getLocalizedMessage()));
+                closeQuietly(physical);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                closeQuietly(physical);
+                break;
+            }
+        }
+        if(!isClosed) {
+            fail(new IOException(String.format(Locale.getDefault(), "Session %s is not resumed in %d ms", mToken, mResumeTimeoutMillis)));
+        }
+        return null;
+    }
+
+    /**
+     *  drops what the peer has received and sends the rest again on given physical channel
+     * @return false if the peer claims more than was ever sent, in which case the channel is failed
+     */
+    private boolean resume(Channel physical, long peerReceived) throws IOException {
+        final OutputStream os = physical.getOutputStream();
+        final long replayed;
+        synchronized (mLock) {
+            if(isClosed) {
+                return false;
+            }
+            try {
+                onAck(peerReceived);
+            } catch (IOException e) {
+                mFailure = e;
+            }
+            if(mFailure == null) {
+                mSendOffset = mAckedOffset;
+                mLastAckSent = mReceived;
+                isAckDue = false;
+                mPhysical = physical;
+                mPhysicalOutput = os;
+                mLock.notifyAll();
+            }
+            replayed = mUnackedBytes;
+        }
+        if(mFailure != null) {
+            terminate(false);
+            return false;
+        }
+        Log.d(TAG, String.format(Locale.getDefault(), "Session %s is resumed, %d bytes to replay", mToken, replayed));
+        mListener.onResumed(this, replayed);
+        return true;
+    }
+
+    /**
+     *  releases frames acknowledged by the peer, called with the lock held
+     */
+    private void onAck(long received) throws IOException {
+        if((received < mAckedOffset) || (received > mAckedOffset + mUnackedBytes)) {
+            throw new IOException(String.format(Locale.getDefault(), "Invalid ack (%d), %d to %d unacked", received, mAckedOffset, mAckedOffset + mUnackedBytes));
+        }
+        byte[] frame;
+        while(((frame = mUnacked.peek()) != null) && (mAckedOffset + frame.length - DATA_HEADER_SIZE <= received)) {
+            mUnacked.poll();
+            mAckedOffset += frame.length - DATA_HEADER_SIZE;
+            mUnackedBytes -= frame.length - DATA_HEADER_SIZE;
+        }
+        if(mAckedOffset != received) {
+            throw new IOException(String.format(Locale.getDefault(), "Ack (%d) is not at a frame boundary", received));
+        }
+        if(mSendOffset < mAckedOffset) {
+            mSendOffset = mAckedOffset;
+        }
+        mLock.notifyAll();
+    }
+
+    private boolean hasUnsent() {
+        return mAckedOffset + mUnackedBytes > mSendOffset;
+    }
+
+    private long getReceived() {
+        synchronized (mLock) {
+            return mReceived;
+        }
+    }
+
+    /**
+     *  @return false if closed meanwhile
+     */
+    private boolean sleepUntil(long wakeAt) throws InterruptedException {
+        synchronized (mLock) {
+            long remaining;
+            while(!isClosed && ((remaining = wakeAt - System.nanoTime()) > 0)) {
+                TimeUnit.NANOSECONDS.timedWait(mLock, remaining);
+            }
+            return !isClosed;
+        }
+    }
+
+    private void detach(Channel physical) {
+        synchronized (mLock) {
+            if(mPhysical == physical) {
+                mPhysical = null;
+                mPhysicalOutput = null;
+            }
+        }
+        closeQuietly(physical);
+    }
+
+    private void fail(IOException e) {
+        Log.e(TAG, e.getLocalizedMessage());
+        synchronized (mLock) {
+            if(mFailure == null) {
+                mFailure = e;
+            }
+        }
+        terminate(false);
+    }
+
+    /**
+     *  @param isRemote whether the peer closed the session, in which case data received so far can still be read
+     */
+    private void terminate(boolean isRemote) {
+        final Channel physical;
+        final Channel pending;
+        synchronized (mLock) {
+            if(isTerminated) {
+                return;
+            }
+            isTerminated = true;
+            isClosed = true;
+            physical = mPhysical;
+            pending = mPendingPhysical;
+            mPhysical = null;
+            mPhysicalOutput = null;
+            mPendingPhysical = null;
+            mLock.notifyAll();
+        }
+        if(isRemote) {
+            mInbound.closeSink();
+        } else {
+            mInbound.closeSource();
+        }
+        closeQuietly(physical);
+        closeQuietly(pending);
+        mListener.onClosed(this);
+    }
+
+    static void writeHello(OutputStream os, int flags, UUID token, long received) throws IOException {
+        byte[] hello = new byte[26];
+        hello[0] = TYPE_HELLO;
+        hello[1] = (byte) flags;
+        writeLong(hello, 2, token.getMostSignificantBits());
+        writeLong(hello, 10, token.getLeastSignificantBits());
+        writeLong(hello, 18, received);
+        os.write(hello);
+        os.flush();
+    }
+
+    /**
+     *  @return hello of the peer, or null if the peer doesn't know the session
+     */
+    static Hello readHello(DataInputStream dis) throws IOException {
+        final byte type = dis.readByte();
+        if(type == TYPE_RESET) {
+            return null;
+        }
+        if(type != TYPE_HELLO) {
+            throw new IOException(String.format(Locale.getDefault(), "Hello is expected, got (%d)", type));
+        }
+        final int flags = dis.readByte();
+        final UUID token = new UUID(dis.readLong(), dis.readLong());
+        return new Hello(flags, token, dis.readLong());
+    }
+
+    static void closeQuietly(Channel channel) {
+        if(channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, e.getLocalizedMessage());
+        }
+    }
+
+    private static void writeInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) (value >>> 24);
+        dst[offset + 1] = (byte) (value >>> 16);
+        dst[offset + 2] = (byte) (value >>> 8);
+        dst[offset + 3] = (byte) value;
+    }
+
+    private static void writeLong(byte[] dst, int offset, long value) {
+        writeInt(dst, offset, (int) (value >>> 32));
+        writeInt(dst, offset + 4, (int) value);
+    }
+
+    static class Hello {
+        final int flags;
+        final UUID token;
+        final long received;
+
+        Hello(int flags, UUID token, long received) {
+            this.flags = flags;
+            this.token = token;
+            this.received = received;
+        }
+
+        boolean isResume() {
+            return (flags & FLAG_RESUME) != 0;
+        }
+    }
+
+    interface Connector {
+        /** opens a new physical channel to the peer */
+        Channel connect() throws IOException;
+    }
+
+    interface Listener {
+        /** the session is resumed on a new physical channel, replaying given number of bytes */
+        void onResumed(ResumableChannel channel, long replayedBytes);
+        void onClosed(ResumableChannel channel);
+    }
+}
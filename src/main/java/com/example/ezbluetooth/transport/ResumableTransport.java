@@ -0,0 +1,281 @@
+package com.example.ezbluetooth.transport;
+
+import android.util.Log;
+
+import com.example.ezbluetooth.exec.ServiceScheduler;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Makes connections of the wrapped transport survive link drops. A session token is exchanged on
+ *  connect, and when the physical channel drops, the connecting side reconnects with jittered
+ *  exponential backoff and resumes the session, replaying only the data the other side didn't
+ *  acknowledge, see {@link ResumableChannel}. Clients and services above see a single uninterrupted
+ *  connection unless it can't be resumed within the resume timeout. Both ends must use this transport.
+ */
+
+public class ResumableTransport implements Transport {
+
+    private static final String TAG = ResumableTransport.class.getCanonicalName();
+
+    public static final int DEFAULT_RETRANSMIT_BUFFER = 64 * 1024;
+    public static final long DEFAULT_RESUME_TIMEOUT = 30000L;
+    public static final long DEFAULT_BACKOFF_BASE = 100L;
+    public static final long DEFAULT_BACKOFF_MAX = 5000L;
+    public static final long DEFAULT_HELLO_TIMEOUT = 10000L;
+
+    private final Transport mTransport;
+    private final ServiceScheduler mScheduler;
+    private final int mRetransmitBuffer;
+    private final long mResumeTimeoutMillis;
+    private final long mHelloTimeoutMillis;
+    private final Backoff mBackoff;
+    private final AtomicLong mResumeCount;
+    private final AtomicLong mReplayedBytes;
+    private final ResumableChannel.Listener mListener;
+
+    public ResumableTransport(Transport transport) {
+        this(transport, DEFAULT_RETRANSMIT_BUFFER, DEFAULT_RESUME_TIMEOUT, DEFAULT_BACKOFF_BASE, DEFAULT_BACKOFF_MAX);
+    }
+
+    /**
+     *
+     * @param transport transport of the physical connections
+     * @param retransmitBuffer bytes kept per connection until acknowledged, writers block beyond it
+     * @param resumeTimeoutMillis time a dropped connection may take to be resumed before it fails
+     * @param backoffBaseMillis bound of the first reconnect delay, doubled on every failed attempt
+     * @param backoffMaxMillis max bound of reconnect delays
+     */
+    public ResumableTransport(Transport transport, int retransmitBuffer, long resumeTimeoutMillis,
+                              long backoffBaseMillis, long backoffMaxMillis) {
+        this(transport, retransmitBuffer, resumeTimeoutMillis, backoffBaseMillis, backoffMaxMillis, DEFAULT_HELLO_TIMEOUT, ServiceScheduler.getDefault());
+    }
+
+    /**
+     *
+     * @param helloTimeoutMillis time an accepted physical connection is given to say hello before it's closed
+     * @param scheduler runs handshakes of accepted connections and their deadlines
+     */
+    public ResumableTransport(Transport transport, int retransmitBuffer, long resumeTimeoutMillis,
+                              long backoffBaseMillis, long backoffMaxMillis, long helloTimeoutMillis, ServiceScheduler scheduler) {
+        if((retransmitBuffer < ResumableChannel.MAX_CHUNK) || (resumeTimeoutMillis <= 0) || (backoffBaseMillis <= 0)
+                || (backoffMaxMillis < backoffBaseMillis) || (helloTimeoutMillis <= 0)) {
+            throw new IllegalArgumentException(String.format(Locale.getDefault(), "Invalid settings (%d / %d / %d / %d / %d)",
+                    retransmitBuffer, resumeTimeoutMillis, backoffBaseMillis, backoffMaxMillis, helloTimeoutMillis));
+        }
+        mTransport = transport;
+        mScheduler = scheduler;
+        mRetransmitBuffer = retransmitBuffer;
+        mResumeTimeoutMillis = resumeTimeoutMillis;
+        mHelloTimeoutMillis = helloTimeoutMillis;
+        mBackoff = new Backoff(backoffBaseMillis, backoffMaxMillis);
+        mResumeCount = new AtomicLong();
+        mReplayedBytes = new AtomicLong();
+        mListener = new ResumableChannel.Listener() {
+            @Override
+            public void onResumed(ResumableChannel channel, long replayedBytes) {
+                mResumeCount.incrementAndGet();
+                mReplayedBytes.addAndGet(replayedBytes);
+            }
+
+            @Override
+            public void onClosed(ResumableChannel channel) {
+            }
+        };
+    }
+
+    @Override
+    public ServerChannel listen(String serviceName, UUID serviceUuid) throws IOException {
+        ResumableServerChannel serverChannel = new ResumableServerChannel(mTransport.listen(serviceName, serviceUuid));
+        serverChannel.start();
+        return serverChannel;
+    }
+
+    @Override
+    public Channel connect(final String address, final UUID serviceUuid) throws IOException {
+        final UUID token = UUID.randomUUID();
+        final Channel physical = mTransport.connect(address, serviceUuid);
+        try {
+            ResumableChannel.writeHello(physical.getOutputStream(), 0, token, 0);
+            if(ResumableChannel.readHello(new DataInputStream(physical.getInputStream())) == null) {
+                throw new IOException(String.format(Locale.getDefault(), "Session is refused by %s", address));
+            }
+        } catch (IOException e) {
+            ResumableChannel.closeQuietly(physical);
+            throw e;
+        }
+        ResumableChannel channel = new ResumableChannel(token, physical, new ResumableChannel.Connector() {
+            @Override
+            public Channel connect() throws IOException {
+                return mTransport.connect(address, serviceUuid);
+            }
+        }, mRetransmitBuffer, mResumeTimeoutMillis, mBackoff, mListener);
+        channel.start();
+        return channel;
+    }
+
+    /**
+     *  @return number of times connections of this side were resumed, by either end
+     */
+    public long getResumeCount() {
+        return mResumeCount.get();
+    }
+
+    /**
+     *  @return bytes sent again by this side on resumed connections
+     */
+    public long getReplayedBytes() {
+        return mReplayedBytes.get();
+    }
+
+    private class ResumableServerChannel implements ServerChannel, ResumableChannel.Listener {
+        private final ServerChannel mServerChannel;
+        private final LinkedBlockingQueue<Channel> mAccepted;
+        private final ConcurrentHashMap<UUID, ResumableChannel> mSessions;
+        private volatile boolean isClosed;
+
+        ResumableServerChannel(ServerChannel serverChannel) {
+            mServerChannel = serverChannel;
+            mAccepted = new LinkedBlockingQueue<>();
+            mSessions = new ConcurrentHashMap<>();
+        }
+
+        void start() {
+            Thread acceptThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while(!isClosed) {
+                            final Channel physical = mServerChannel.accept();
+                            /**
+                             *  a peer slow to say hello doesn't hold others back, nor a thread for longer than the hello timeout
+                             */
+                            final ScheduledFuture<?> helloDeadline = mScheduler.getTimer().schedule(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Log.e(TAG, String.format(Locale.getDefault(), "No hello from %s within %d ms, closed", physical.getRemoteAddress(), mHelloTimeoutMillis));
+                                    ResumableChannel.closeQuietly(physical);
+                                }
+                            }, mHelloTimeoutMillis, TimeUnit.MILLISECONDS);
+                            try {
+                                mScheduler.execute(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        handshake(physical, helloDeadline);
+                                    }
+                                });
+                            } catch (RejectedExecutionException e) {
+                                Log.e(TAG, String.format(Locale.getDefault(), "Handshake of %s can't be run", physical.getRemoteAddress()));
+                                helloDeadline.cancel(false);
+                                ResumableChannel.closeQuietly(physical);
+                            }
+                        }
+                    } catch (IOException e) {
+                        if(!isClosed) {
+                            Log.e(TAG, e.getLocalizedMessage());
+                        }
+                    }
+                }
+            }, "resumable-accept");
+            acceptThread.setDaemon(true);
+            acceptThread.start();
+        }
+
+        private void handshake(Channel physical, ScheduledFuture<?> helloDeadline) {
+            try {
+                final ResumableChannel.Hello hello = ResumableChannel.readHello(new DataInputStream(physical.getInputStream()));
+                if(!helloDeadline.cancel(false)) {
+                    throw new IOException("Hello came after the deadline");
+                }
+                if(hello == null) {
+                    throw new IOException("Hello is expected, got a reset");
+                }
+                if(!hello.isResume()) {
+                    ResumableChannel channel = new ResumableChannel(hello.token, physical, null, mRetransmitBuffer, mResumeTimeoutMillis, mBackoff, this);
+                    if(mSessions.putIfAbsent(hello.token, channel) != null) {
+                        /**
+                         *  a live session is never replaced, whichever peer sent the token
+                         */
+                        Log.e(TAG, String.format(Locale.getDefault(), "Session %s is already open, reset", hello.token));
+                        reset(physical);
+                        return;
+                    }
+                    ResumableChannel.writeHello(physical.getOutputStream(), 0, hello.token, 0);
+                    channel.start();
+                    if(isClosed) {
+                        channel.close();
+                        return;
+                    }
+                    mAccepted.offer(channel);
+                    return;
+                }
+                final ResumableChannel channel = mSessions.get(hello.token);
+                if(channel == null) {
+                    Log.e(TAG, String.format(Locale.getDefault(), "Session %s to resume is unknown, reset", hello.token));
+                    reset(physical);
+                    return;
+                }
+                channel.offerLink(physical, hello.received);
+            } catch (IOException e) {
+                helloDeadline.cancel(false);
+                Log.e(TAG, e.getLocalizedMessage());
+                ResumableChannel.closeQuietly(physical);
+            }
+        }
+
+        private void reset(Channel physical) throws IOException {
+            physical.getOutputStream().write(ResumableChannel.TYPE_RESET);
+            physical.getOutputStream().flush();
+            ResumableChannel.closeQuietly(physical);
+        }
+
+        @Override
+        public Channel accept() throws IOException {
+            try {
+                Channel channel = mAccepted.take();
+                if(isClosed) {
+                    throw new IOException("Server channel is closed");
+                }
+                return channel;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while accepting");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(isClosed) {
+                return;
+            }
+            isClosed = true;
+            mServerChannel.close();
+            for(ResumableChannel channel : mSessions.values()) {
+                channel.close();
+            }
+            /**
+             *  wakes up a pending accept
+             */
+            mAccepted.offer(new ClosedChannel());
+        }
+
+        @Override
+        public void onResumed(ResumableChannel channel, long replayedBytes) {
+            mListener.onResumed(channel, replayedBytes);
+        }
+
+        @Override
+        public void onClosed(ResumableChannel channel) {
+            mSessions.remove(channel.getToken(), channel);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.example.ezbluetooth.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ *  Listening end of a service, closing it unblocks a pending accept with an {@link IOException}.
+ */
+
+public interface ServerChannel extends Closeable {
+
+    Channel accept() throws IOException;
+}
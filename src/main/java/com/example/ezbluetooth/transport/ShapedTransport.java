@@ -0,0 +1,272 @@
+package com.example.ezbluetooth.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Decorates another transport to behave like a slow link, limiting the bandwidth and delaying
+ *  delivery of everything written in either direction. Used with {@link LoopbackTransport} or
+ *  {@link TcpTransport} to reproduce RFCOMM characteristics off-device.
+ */
+
+public class ShapedTransport implements Transport {
+
+    /**
+     *  typical effective throughput of an RFCOMM link
+     */
+    public static final long RFCOMM_BANDWIDTH = 200 * 1024;
+    public static final long RFCOMM_LATENCY = 15L;
+    public static final long UNLIMITED_BANDWIDTH = 0;
+
+    /**
+     *  max time closing a channel waits for chunks still in flight to be delivered, the rest is dropped
+     */
+    public static final long DEFAULT_LINGER = 500L;
+    /**
+     *  closing a channel drops chunks still in flight right away
+     */
+    public static final long NO_LINGER = 0;
+
+    private final Transport mTransport;
+    private final long mBandwidth;
+    private final long mLatency;
+    private final long mLingerMillis;
+
+    public ShapedTransport(Transport transport, long bandwidth, long latencyMillis) {
+        this(transport, bandwidth, latencyMillis, DEFAULT_LINGER);
+    }
+
+    /**
+     *
+     * @param transport transport being shaped
+     * @param bandwidth bytes per second in each direction, or {@link #UNLIMITED_BANDWIDTH}
+     * @param latencyMillis one way delay added to every write
+     * @param lingerMillis max time a close blocks its caller until chunks in flight are delivered, or {@link #NO_LINGER}
+     */
+    public ShapedTransport(Transport transport, long bandwidth, long latencyMillis, long lingerMillis) {
+        mTransport = transport;
+        mBandwidth = bandwidth;
+        mLatency = latencyMillis;
+        mLingerMillis = lingerMillis;
+    }
+
+    @Override
+    public ServerChannel listen(String serviceName, UUID serviceUuid) throws IOException {
+        final ServerChannel serverChannel = mTransport.listen(serviceName, serviceUuid);
+        return new ServerChannel() {
+            @Override
+            public Channel accept() throws IOException {
+                return new ShapedChannel(serverChannel.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverChannel.close();
+            }
+        };
+    }
+
+    @Override
+    public Channel connect(String address, UUID serviceUuid) throws IOException {
+        return new ShapedChannel(mTransport.connect(address, serviceUuid));
+    }
+
+    private class ShapedChannel implements Channel {
+        private final Channel mChannel;
+        private ShapedOutputStream mOutputStream;
+
+        ShapedChannel(Channel channel) {
+            mChannel = channel;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mChannel.getInputStream();
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if(mOutputStream == null) {
+                mOutputStream = new ShapedOutputStream(mChannel.getOutputStream());
+            }
+            return mOutputStream;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mChannel.isConnected();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mChannel.getRemoteAddress();
+        }
+
+        /**
+         *  delivers what's written so far before closing the channel underneath, like a socket lingering on close
+         */
+        @Override
+        public void close() throws IOException {
+            final ShapedOutputStream os;
+            synchronized (this) {
+                os = mOutputStream;
+            }
+            if(os != null) {
+                os.finish(mLingerMillis);
+            }
+            mChannel.close();
+        }
+    }
+
+    /**
+     *  paces writers to the bandwidth and hands written chunks to a delivery thread,
+     *  which forwards each of them once its latency has elapsed. a flush travels the same way,
+     *  so the stream underneath is flushed right after the chunks written before it.
+     */
+    private class ShapedOutputStream extends OutputStream {
+        private final OutputStream mOutputStream;
+        private final LinkedBlockingQueue<Chunk> mChunks;
+        private final Thread mDeliveryThread;
+        private long mNextSendTime;
+        private volatile IOException mError;
+        private volatile boolean isClosing;
+        private volatile boolean isStopped;
+
+        ShapedOutputStream(OutputStream os) {
+            mOutputStream = os;
+            mChunks = new LinkedBlockingQueue<>();
+            mNextSendTime = System.nanoTime();
+            mDeliveryThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    deliver();
+                }
+            }, "shaped-delivery");
+            mDeliveryThread.setDaemon(true);
+            mDeliveryThread.start();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if(mError != null) {
+                throw mError;
+            }
+            if(isClosing) {
+                throw new IOException("Stream is closed");
+            }
+            long now = System.nanoTime();
+            long sendTime = Math.max(now, mNextSendTime);
+            if(mBandwidth > UNLIMITED_BANDWIDTH) {
+                sendTime += TimeUnit.SECONDS.toNanos(len) / mBandwidth;
+            }
+            mNextSendTime = sendTime;
+            sleepUntil(sendTime);
+            mChunks.offer(new Chunk(Arrays.copyOfRange(b, off, off + len), sendTime + TimeUnit.MILLISECONDS.toNanos(mLatency), false));
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if(mError != null) {
+                throw mError;
+            }
+            if(isClosing) {
+                throw new IOException("Stream is closed");
+            }
+            mChunks.offer(new Chunk(null, mNextSendTime + TimeUnit.MILLISECONDS.toNanos(mLatency), true));
+        }
+
+        @Override
+        public void close() {
+            finish(mLingerMillis);
+        }
+
+        /**
+         *  rejects further writes and waits for the chunks written so far to be delivered, then stops delivery
+         * @param timeoutMillis max time to wait, chunks not delivered by then are dropped, or {@link #NO_LINGER}
+         */
+        void finish(long timeoutMillis) {
+            synchronized (this) {
+                if(isClosing) {
+                    return;
+                }
+                isClosing = true;
+                mChunks.offer(Chunk.END);
+            }
+            if(timeoutMillis > NO_LINGER) {
+                try {
+                    mDeliveryThread.join(timeoutMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            stop();
+        }
+
+        private void stop() {
+            isStopped = true;
+            mDeliveryThread.interrupt();
+        }
+
+        private void deliver() {
+            try {
+                while(!isStopped) {
+                    Chunk chunk = mChunks.take();
+                    if(chunk == Chunk.END) {
+                        return;
+                    }
+                    sleepUntil(chunk.dueTime);
+                    if(chunk.data != null) {
+                        mOutputStream.write(chunk.data);
+                    }
+                    if(chunk.isFlush) {
+                        mOutputStream.flush();
+                    }
+                }
+            } catch (IOException e) {
+                mError = e;
+            } catch (InterruptedException e) {
+                // stopped
+            }
+        }
+
+        private void sleepUntil(long nanoTime) throws InterruptedIOException {
+            long delay;
+            while((delay = nanoTime - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while shaping");
+                }
+            }
+        }
+    }
+
+    private static class Chunk {
+        /**
+         *  marks the end of the stream, every chunk queued before it is delivered
+         */
+        private static final Chunk END = new Chunk(null, 0, false);
+
+        private final byte[] data;
+        private final long dueTime;
+        private final boolean isFlush;
+
+        Chunk(byte[] data, long dueTime, boolean isFlush) {
+            this.data = data;
+            this.dueTime = dueTime;
+            this.isFlush = isFlush;
+        }
+    }
+}
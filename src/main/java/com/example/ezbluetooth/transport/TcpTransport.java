@@ -0,0 +1,100 @@
+package com.example.ezbluetooth.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *  TCP transport for running services off-device, addresses are host names. Each service UUID
+ *  is mapped to a port, either assigned by {@link #bind(UUID, int)} or picked when the service
+ *  starts listening, in which case only clients in the same JVM can find it.
+ */
+
+public class TcpTransport implements Transport {
+
+    private final ConcurrentHashMap<UUID, Integer> mPorts;
+
+    public TcpTransport() {
+        mPorts = new ConcurrentHashMap<>();
+    }
+
+    public TcpTransport bind(UUID serviceUuid, int port) {
+        mPorts.put(serviceUuid, port);
+        return this;
+    }
+
+    public int getPort(UUID serviceUuid) {
+        Integer port = mPorts.get(serviceUuid);
+        return (port == null) ? -1 : port;
+    }
+
+    @Override
+    public ServerChannel listen(String serviceName, UUID serviceUuid) throws IOException {
+        Integer port = mPorts.get(serviceUuid);
+        final ServerSocket serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), (port == null) ? 0 : port));
+        mPorts.put(serviceUuid, serverSocket.getLocalPort());
+        return new ServerChannel() {
+            @Override
+            public Channel accept() throws IOException {
+                return new SocketChannel(serverSocket.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public Channel connect(String address, UUID serviceUuid) throws IOException {
+        Integer port = mPorts.get(serviceUuid);
+        if(port == null) {
+            throw new IOException(String.format(Locale.getDefault(), "No port for service %s", serviceUuid));
+        }
+        Socket socket = new Socket(address, port);
+        socket.setTcpNoDelay(true);
+        return new SocketChannel(socket);
+    }
+
+    private static class SocketChannel implements Channel {
+        private final Socket mSocket;
+
+        SocketChannel(Socket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mSocket.isConnected() && !mSocket.isClosed();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mSocket.getRemoteSocketAddress().toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.example.ezbluetooth.transport;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ *  Provider of the connections servers and clients run on. RFCOMM over Bluetooth is the default,
+ *  {@link LoopbackTransport} and {@link TcpTransport} let the same services run in a plain JVM.
+ */
+
+public interface Transport {
+
+    /**
+     *  starts listening for connections to given service
+     */
+    ServerChannel listen(String serviceName, UUID serviceUuid) throws IOException;
+
+    /**
+     *  connects to given service of the peer, blocking until connected
+     * @param address address of the peer, whose format depends on the transport
+     */
+    Channel connect(String address, UUID serviceUuid) throws IOException;
+}
@@ -0,0 +1,52 @@
+package com.example.ezbluetooth;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ *  Smoothing and ranking of {@link DiscoveredDevice} sightings.
+ */
+public class DiscoveredDeviceTest {
+
+    @Test
+    public void sightingWithoutRssi_isCountedButNotAveraged() throws Exception {
+        final DiscoveredDevice device = new DiscoveredDevice(null, BluetoothDevice.BOND_NONE);
+        device.onSighted(null, DiscoveredDevice.NO_RSSI, BluetoothDevice.BOND_NONE);
+        assertFalse(device.hasRssi());
+        assertEquals(1, device.getSightings());
+
+        device.onSighted(null, -60, BluetoothDevice.BOND_NONE);
+        device.onSighted(null, DiscoveredDevice.NO_RSSI, BluetoothDevice.BOND_NONE);
+        assertTrue(device.hasRssi());
+        assertEquals(-60, device.getRssi());
+        assertEquals(-60f, device.getSmoothedRssi(), 0f);
+        assertEquals(3, device.getSightings());
+
+        device.onSighted(null, -70, BluetoothDevice.BOND_NONE);
+        assertEquals(-63f, device.getSmoothedRssi(), 0.01f);
+    }
+
+    @Test
+    public void bySignal_ranksDevicesWithoutRssiLast() throws Exception {
+        final DiscoveredDevice far = new DiscoveredDevice(null, BluetoothDevice.BOND_NONE);
+        far.onSighted(null, -90, BluetoothDevice.BOND_NONE);
+        final DiscoveredDevice near = new DiscoveredDevice(null, BluetoothDevice.BOND_NONE);
+        near.onSighted(null, -40, BluetoothDevice.BOND_NONE);
+        final DiscoveredDevice silent = new DiscoveredDevice(null, BluetoothDevice.BOND_NONE);
+        silent.onSighted(null, DiscoveredDevice.NO_RSSI, BluetoothDevice.BOND_NONE);
+        silent.onSighted(null, DiscoveredDevice.NO_RSSI, BluetoothDevice.BOND_NONE);
+        final DiscoveredDevice bonded = new DiscoveredDevice(null, BluetoothDevice.BOND_BONDED);
+
+        final List<DiscoveredDevice> devices = new ArrayList<>(Arrays.asList(bonded, silent, far, near));
+        Collections.sort(devices, DiscoveredDevice.BY_SIGNAL);
+        assertEquals(Arrays.asList(near, far, silent, bonded), devices);
+    }
+}
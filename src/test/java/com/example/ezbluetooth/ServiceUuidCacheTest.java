@@ -0,0 +1,72 @@
+package com.example.ezbluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ *  Loading and aging of {@link ServiceUuidCache} entries.
+ */
+public class ServiceUuidCacheTest {
+
+    private static final String DEV_A = "00:11:22:AA:BB:01";
+    private static final String DEV_B = "00:11:22:AA:BB:02";
+    private static final String DEV_C = "00:11:22:AA:BB:03";
+    private static final UUID[] SPP = {UUID.fromString("00001101-0000-1000-8000-00805f9b34fb")};
+    private static final UUID[] OPP = {UUID.fromString("00001105-0000-1000-8000-00805f9b34fb")};
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("uuids", ".cache");
+        assertTrue(mFile.delete());
+        mFile.deleteOnExit();
+    }
+
+    @Test(timeout = 10000)
+    public void changesMadeWhileLoading_takePrecedenceOverTheFile() throws Exception {
+        final ServiceUuidCache saved = new ServiceUuidCache(mFile);
+        awaitLoaded(saved);
+        saved.put(DEV_A, SPP);
+        saved.put(DEV_B, SPP);
+        saved.put(DEV_C, SPP);
+        saved.save();
+
+        final ServiceUuidCache cache = new ServiceUuidCache(mFile);
+        cache.put(DEV_A, OPP);
+        cache.invalidate(DEV_B);
+        awaitLoaded(cache);
+        assertArrayEquals(OPP, cache.get(DEV_A));
+        assertNull(cache.get(DEV_B));
+        assertArrayEquals(SPP, cache.get(DEV_C));
+        assertEquals(2, cache.size());
+    }
+
+    @Test(timeout = 10000)
+    public void offerOfSameUuids_keepsTheEntryAging() throws Exception {
+        final ServiceUuidCache cache = new ServiceUuidCache(mFile, 10000L, 100L, ServiceUuidCache.DEFAULT_MAX_ENTRIES);
+        awaitLoaded(cache);
+        cache.put(DEV_A, SPP);
+        Thread.sleep(150L);
+        assertTrue(cache.isRefreshDue(DEV_A));
+
+        cache.offer(DEV_A, SPP);
+        assertTrue("entry is taken as fetched again", cache.isRefreshDue(DEV_A));
+        cache.offer(DEV_A, OPP);
+        assertFalse(cache.isRefreshDue(DEV_A));
+        assertArrayEquals(OPP, cache.get(DEV_A));
+    }
+
+    private static void awaitLoaded(ServiceUuidCache cache) throws InterruptedException {
+        cache.preload();
+        while(!cache.isLoaded()) {
+            TimeUnit.MILLISECONDS.sleep(10L);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.example.ezbluetooth.client;
+
+import android.os.Parcel;
+
+import com.example.ezbluetooth.BluetoothServiceManager;
+import com.example.ezbluetooth.exec.ServiceScheduler;
+import com.example.ezbluetooth.service.AbsBluetoothServer;
+import com.example.ezbluetooth.transport.LoopbackTransport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ *  Sessions of a single {@link AbsBluetoothClient} to several addresses over {@link LoopbackTransport}.
+ */
+public class AbsBluetoothClientTest {
+
+    private static final UUID SVC_UUID = UUID.fromString("3c1e9b4e-4d2a-4a49-9a59-07b0c1c0a020");
+
+    private LoopbackTransport mTransport;
+    private BluetoothServiceManager mServiceManager;
+    /**
+     *  the manager holds its callback weakly
+     */
+    private BluetoothServiceManager.Callback mCallback;
+
+    @Before
+    public void setUp() throws Exception {
+        mTransport = new LoopbackTransport();
+        final CountDownLatch started = new CountDownLatch(1);
+        mCallback = new BluetoothServiceManager.Callback() {
+            @Override
+            public void onServiceStarted(int svcId) {
+                started.countDown();
+            }
+
+            @Override
+            public boolean onClientConnected(int svcId, int clientId) {
+                return true;
+            }
+
+            @Override
+            public void onServiceError(int svcId, IOException e) {
+            }
+
+            @Override
+            public void onServiceClosed(int svcId) {
+            }
+        };
+        mServiceManager = new BluetoothServiceManager(mTransport, mCallback, new ServiceScheduler());
+        mServiceManager.start(new EchoServer());
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServiceManager.stop();
+    }
+
+    @Test(timeout = 20000)
+    public void sessionsToTwoAddresses_runSideBySide() throws Exception {
+        final TestClient client = new TestClient(2);
+        client.setTransport(mTransport);
+        final int first = client.start("00:00:00:00:00:01");
+        final int second = client.start("00:00:00:00:00:02");
+        assertNotEquals(first, second);
+        try {
+            client.start("00:00:00:00:00:01");
+            fail("second session to the same address is started");
+        } catch (IllegalStateException expected) {
+        }
+        assertTrue("sessions are not connected", client.mConnected.await(5, TimeUnit.SECONDS));
+        assertEquals(2, client.getSessionCount());
+        assertTrue(client.isConnected(first));
+        assertTrue(client.isConnected(second));
+
+        assertEquals(2, client.broadcast(new byte[] {1, 2, 3}, 0, 3));
+        assertTrue("echo is not received by every session", client.mReceived.await(5, TimeUnit.SECONDS));
+        assertEquals(new HashSet<>(Arrays.asList(first, second)), client.mReceivedBy);
+
+        client.stop();
+        assertTrue("sessions are not closed", client.mDisconnected.await(5, TimeUnit.SECONDS));
+        assertEquals(0, client.getSessionCount());
+        assertFalse(client.isConnected(first));
+
+        /**
+         *  a stopped address can be started again, under the same device Id
+         */
+        assertEquals(first, client.start("00:00:00:00:00:01"));
+        client.stop();
+    }
+
+    private static class TestClient extends AbsBluetoothClient {
+        final CountDownLatch mConnected;
+        final CountDownLatch mReceived;
+        final CountDownLatch mDisconnected;
+        final Set<Integer> mReceivedBy;
+
+        TestClient(int sessions) {
+            mConnected = new CountDownLatch(sessions);
+            mReceived = new CountDownLatch(sessions);
+            mDisconnected = new CountDownLatch(sessions);
+            mReceivedBy = Collections.synchronizedSet(new HashSet<Integer>());
+        }
+
+        @Override
+        public void onConnected() {
+            mConnected.countDown();
+        }
+
+        @Override
+        public void onDisconnected() {
+            mDisconnected.countDown();
+        }
+
+        @Override
+        protected boolean isFramingEnabled() {
+            return true;
+        }
+
+        @Override
+        protected int getReadSize() {
+            return 1024;
+        }
+
+        @Override
+        protected byte[] onDataReceived(byte[] rxBuffer) {
+            /**
+             *  called on the session thread, which tells the session apart
+             */
+            mReceivedBy.add(getCurrentDevId());
+            mReceived.countDown();
+            return null;
+        }
+
+        @Override
+        public UUID getServiceUuid() {
+            return SVC_UUID;
+        }
+
+        @Override
+        public String getServiceName() {
+            return "TestClient";
+        }
+
+        @Override
+        public int describeContents() {
+            return 0;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+        }
+    }
+
+    private static class EchoServer extends AbsBluetoothServer {
+
+        EchoServer() {
+            super(4);
+        }
+
+        @Override
+        protected boolean isFramingEnabled() {
+            return true;
+        }
+
+        @Override
+        protected int getReadSize() {
+            return 1024;
+        }
+
+        @Override
+        protected byte[] onDataReceived(int clientId, byte[] data) {
+            return data;
+        }
+
+        @Override
+        public String getServiceName() {
+            return "EchoServer";
+        }
+
+        @Override
+        public UUID getServiceUuid() {
+            return SVC_UUID;
+        }
+    }
+}
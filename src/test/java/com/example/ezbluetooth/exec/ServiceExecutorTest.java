@@ -0,0 +1,123 @@
+package com.example.ezbluetooth.exec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ *  Quota of {@link ServiceExecutor} over a shared pool which refuses tasks at times.
+ */
+public class ServiceExecutorTest {
+
+    private RefusingPool mPool;
+    private ScheduledExecutorService mTimer;
+    private ServiceScheduler mScheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        mPool = new RefusingPool();
+        mTimer = Executors.newSingleThreadScheduledExecutor();
+        mScheduler = new ServiceScheduler(mPool, mTimer);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mPool.shutdownNow();
+        mTimer.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void refusedTask_isRetriedWhenRunningTaskCompletes() throws Exception {
+        final ServiceExecutor executor = mScheduler.newExecutor("test", "worker", 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        });
+
+        mPool.isRefusing = true;
+        final AtomicInteger order = new AtomicInteger();
+        final int[] ranAt = new int[2];
+        for(int i = 0; i < 2; i++) {
+            final int idx = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ranAt[idx] = order.getAndIncrement();
+                    done.countDown();
+                }
+            });
+        }
+        assertEquals(2, executor.getQueueDepth());
+
+        mPool.isRefusing = false;
+        release.countDown();
+        assertTrue("refused tasks never ran", done.await(5, TimeUnit.SECONDS));
+        assertEquals("refused task lost its place", 0, ranAt[0]);
+        assertEquals(1, ranAt[1]);
+        assertEquals(0, executor.getQueueDepth());
+    }
+
+    @Test(timeout = 10000)
+    public void refusedTask_withNothingRunning_isRejectedToCaller() throws Exception {
+        final ServiceExecutor executor = mScheduler.newExecutor("test", "worker", 2);
+        mPool.isRefusing = true;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    fail("rejected task ran");
+                }
+            });
+            fail("refused task is neither run nor rejected");
+        } catch (RejectedExecutionException expected) {
+        }
+        assertEquals(0, executor.getQueueDepth());
+        assertEquals(0, executor.getThreadCount());
+
+        mPool.isRefusing = false;
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    private static class RefusingPool extends ThreadPoolExecutor {
+        volatile boolean isRefusing;
+
+        RefusingPool() {
+            super(0, Integer.MAX_VALUE, 30L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if(isRefusing) {
+                throw new RejectedExecutionException("Pool is saturated");
+            }
+            super.execute(command);
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.example.ezbluetooth.io;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ *  Watermarks and writability transitions of {@link AsyncWriter}, run on the host JVM.
+ */
+public class AsyncWriterTest {
+
+    private ExecutorService mExecutor;
+    private BufferPool mBufferPool;
+
+    @Before
+    public void setUp() throws Exception {
+        mExecutor = Executors.newCachedThreadPool();
+        mBufferPool = new BufferPool(64 * 1024);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void watermarks_switchWritabilityWithHysteresis() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Transitions transitions = new Transitions();
+        final OutputStream stalled = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+            }
+        };
+        AsyncWriter writer = new AsyncWriter(stalled, new FrameEncoder(FrameDecoder.NO_FRAMING), mBufferPool, mExecutor,
+                100, 200, 1000, transitions);
+        byte[] data = new byte[50];
+        for(int i = 0; i < 4; i++) {
+            assertTrue(writer.offer(data, 0, data.length, false));
+        }
+        assertTrue("at the high watermark is still writable", writer.isWritable());
+        assertTrue(writer.offer(data, 0, data.length, false));
+        assertFalse("above the high watermark", writer.isWritable());
+        assertFalse("beyond max queued bytes", writer.offer(new byte[800], 0, 800, false));
+
+        release.countDown();
+        transitions.awaitCount(2);
+        assertTrue(writer.isWritable());
+        assertTrue(writer.getQueuedBytes() < 100);
+        assertEquals(250, writer.getPeakQueuedBytes());
+        assertEquals(2, transitions.size());
+        assertFalse(transitions.get(0));
+        assertTrue(transitions.get(1));
+    }
+
+    @Test(timeout = 10000)
+    public void write_blocksUntilDrainedBelowLowWatermark() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final OutputStream stalled = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+            }
+        };
+        final AsyncWriter writer = new AsyncWriter(stalled, new FrameEncoder(FrameDecoder.NO_FRAMING), mBufferPool, mExecutor,
+                100, 200, 1000, new Transitions());
+        writer.write(new byte[300], 0, 300, false);
+        assertFalse(writer.isWritable());
+        final CountDownLatch written = new CountDownLatch(1);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writer.write(new byte[10], 0, 10, false);
+                    written.countDown();
+                } catch (IOException e) {
+                    fail(e.getLocalizedMessage());
+                }
+            }
+        });
+        assertFalse("write returned while not writable", written.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void close_failsBlockedWriter() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final OutputStream stalled = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+            }
+        };
+        final AsyncWriter writer = new AsyncWriter(stalled, new FrameEncoder(FrameDecoder.NO_FRAMING), mBufferPool, mExecutor,
+                1, 2, 100, new Transitions());
+        /**
+         *  the first one is taken by the drain and stalls in the stream, the second waits behind it
+         */
+        WriteFuture inFlight = writer.send(new byte[10], 0, 10, false);
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        WriteFuture pending = writer.send(new byte[10], 0, 10, false);
+        final CountDownLatch failed = new CountDownLatch(1);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writer.write(new byte[1], 0, 1, false);
+                } catch (IOException e) {
+                    failed.countDown();
+                }
+            }
+        });
+        writer.close();
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        try {
+            pending.get(5, TimeUnit.SECONDS);
+            fail("queued write completed after close");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertFalse(pending.isSuccess());
+        inFlight.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test(timeout = 10000)
+    public void shutDownExecutor_failsWritesInsteadOfThrowing() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        final AsyncWriter writer = new AsyncWriter(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+            }
+        }, new FrameEncoder(FrameDecoder.NO_FRAMING), mBufferPool, executor, 1024, 4096, 64 * 1024, new Transitions());
+
+        final WriteFuture future = writer.send(new byte[16], 0, 16, true);
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("write on a shut down executor succeeded");
+        } catch (ExecutionException expected) {
+        }
+        assertFalse(writer.offer(new byte[16], 0, 16, true));
+        try {
+            writer.write(new byte[16], 0, 16, true);
+            fail("writer is not closed");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void flush_costsNoTaskWhenNothingIsLeftToSend() throws Exception {
+        final AtomicLong tasks = new AtomicLong();
+        final AtomicLong flushes = new AtomicLong();
+        final AsyncWriter writer = new AsyncWriter(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void flush() {
+                flushes.incrementAndGet();
+            }
+        }, new FrameEncoder(FrameDecoder.NO_FRAMING), mBufferPool, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.incrementAndGet();
+                command.run();
+            }
+        }, 1024, 4096, 64 * 1024, new Transitions());
+
+        writer.flush();
+        assertEquals(0, tasks.get());
+        assertTrue(writer.offer(new byte[16], 0, 16, false));
+        assertEquals(1, tasks.get());
+        /**
+         *  written but not flushed yet
+         */
+        writer.flush();
+        assertEquals(2, tasks.get());
+        assertEquals(1, flushes.get());
+        writer.flush();
+        assertEquals(2, tasks.get());
+        assertEquals(1, flushes.get());
+    }
+
+    @Test(timeout = 10000)
+    public void concurrentOffers_neverGoBeyondMaxQueuedBytes() throws Exception {
+        final int maxQueued = 64 * 1024;
+        final int length = 1000;
+        final int producers = 8;
+        /**
+         *  nothing is ever drained, every accepted byte stays queued
+         */
+        final AsyncWriter writer = new AsyncWriter(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }, new FrameEncoder(FrameDecoder.NO_FRAMING), mBufferPool, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+            }
+        }, 1024, 4096, maxQueued, new Transitions());
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(producers);
+        final AtomicLong accepted = new AtomicLong();
+        for(int p = 0; p < producers; p++) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final byte[] data = new byte[length];
+                    try {
+                        start.await();
+                        while(writer.offer(data, 0, length, false)) {
+                            accepted.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        start.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(maxQueued / length, accepted.get());
+        assertEquals(accepted.get() * length, writer.getQueuedBytes());
+        assertFalse(writer.send(new byte[length], 0, length, false).isSuccess());
+    }
+
+    /**
+     *  every message crosses the high watermark on its own and draining it goes below the low one,
+     *  so the producer deciding to turn unwritable races the drain deciding to turn writable again.
+     *  a lost transition leaves the writer unwritable with nothing queued and blocks every writer forever.
+     */
+    @Test(timeout = 60000)
+    public void writability_survivesProducerRacingDrain() throws Exception {
+        final int producers = 2;
+        final int messages = 200000;
+        final AtomicLong written = new AtomicLong();
+        final Transitions transitions = new Transitions();
+        final OutputStream sink = new OutputStream() {
+            @Override
+            public void write(int b) {
+                written.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                written.addAndGet(len);
+            }
+        };
+        final AsyncWriter writer = new AsyncWriter(sink, new FrameEncoder(FrameDecoder.NO_FRAMING), mBufferPool, mExecutor,
+                8, 16, 64 * 1024, transitions);
+        final CountDownLatch done = new CountDownLatch(producers);
+        final List<Throwable> errors = new ArrayList<>();
+        for(int p = 0; p < producers; p++) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] data = new byte[20];
+                    try {
+                        for(int i = 0; i < messages; i++) {
+                            writer.write(data, 0, data.length, false);
+                        }
+                    } catch (Throwable t) {
+                        synchronized (errors) {
+                            errors.add(t);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        assertTrue("a producer is stuck waiting for writability", done.await(50, TimeUnit.SECONDS));
+        assertTrue(errors.toString(), errors.isEmpty());
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while((written.get() < (long) producers * messages * 20) && (System.nanoTime() < deadline)) {
+            Thread.sleep(1);
+        }
+        assertEquals((long) producers * messages * 20, written.get());
+        assertEquals(0, writer.getQueuedBytes());
+        assertTrue("writer is left unwritable with an empty queue", writer.isWritable());
+        transitions.assertAlternating();
+    }
+
+    private static class Transitions implements AsyncWriter.Listener {
+        private final List<Boolean> mTransitions = new ArrayList<>();
+
+        @Override
+        public synchronized void onWritabilityChanged(boolean writable) {
+            mTransitions.add(writable);
+            notifyAll();
+        }
+
+        @Override
+        public void onWriteError(IOException e) {
+        }
+
+        synchronized int size() {
+            return mTransitions.size();
+        }
+
+        synchronized boolean get(int idx) {
+            return mTransitions.get(idx);
+        }
+
+        synchronized void awaitCount(int count) throws InterruptedException {
+            while(mTransitions.size() < count) {
+                wait();
+            }
+        }
+
+        /**
+         *  starting from writable, every transition flips the state and the last one leaves it writable
+         */
+        synchronized void assertAlternating() {
+            boolean writable = true;
+            for(boolean transition : mTransitions) {
+                assertEquals(!writable, transition);
+                writable = transition;
+            }
+            assertTrue(writable);
+        }
+    }
+}
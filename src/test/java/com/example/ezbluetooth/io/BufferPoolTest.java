@@ -0,0 +1,128 @@
+package com.example.ezbluetooth.io;
+
+import com.example.ezbluetooth.BuildConfig;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ *  Size classes, caching and leak detection of {@link BufferPool}.
+ */
+public class BufferPoolTest {
+
+    @Test
+    public void acquire_roundsUpToPowerOfTwo() throws Exception {
+        final BufferPool pool = new BufferPool(64 * 1024);
+        final int[] sizes = {1, 64, 65, 1000, 1024, 64 * 1024, 1024 * 1024};
+        final int[] lengths = {64, 64, 128, 1024, 1024, 64 * 1024, 1024 * 1024};
+        for(int i = 0; i < sizes.length; i++) {
+            final byte[] buffer = pool.acquire(sizes[i]);
+            assertEquals(lengths[i], buffer.length);
+            pool.release(buffer);
+        }
+        /**
+         *  larger than the largest class, allocated as is
+         */
+        assertEquals(1024 * 1024 + 1, pool.acquire(1024 * 1024 + 1).length);
+    }
+
+    @Test
+    public void defaultFrame_fitsThe64KiBClass() throws Exception {
+        final BufferPool pool = new BufferPool(64 * 1024);
+        final FrameDecoder decoder = new FrameDecoder(pool, FrameDecoder.DEFAULT_MAX_FRAME_SIZE + FrameCompressor.OVERHEAD, 1024);
+        assertEquals(64 * 1024, pool.getOutstandingBytes());
+        decoder.release();
+        assertEquals(0, pool.getOutstandingBytes());
+    }
+
+    @Test
+    public void release_makesTheBufferReusable() throws Exception {
+        final BufferPool pool = new BufferPool(64 * 1024);
+        final byte[] buffer = pool.acquire(4096);
+        assertEquals(4096, pool.getOutstandingBytes());
+        pool.release(buffer);
+        assertEquals(0, pool.getOutstandingBytes());
+        assertSame(buffer, pool.acquire(4000));
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+    }
+
+    @Test(timeout = 10000)
+    public void bufferReleasedOnAnotherThread_isSharedThroughTheFreeList() throws Exception {
+        final BufferPool pool = new BufferPool(64 * 1024);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            /**
+             *  the releasing thread's own cache is filled first
+             */
+            final List<byte[]> released = executor.submit(new Callable<List<byte[]>>() {
+                @Override
+                public List<byte[]> call() throws Exception {
+                    final List<byte[]> buffers = new ArrayList<>();
+                    for(int i = 0; i < 3; i++) {
+                        buffers.add(pool.acquire(2048));
+                    }
+                    for(byte[] buffer : buffers) {
+                        pool.release(buffer);
+                    }
+                    return buffers;
+                }
+            }).get();
+            assertTrue(released.contains(pool.acquire(2048)));
+            assertEquals(1, pool.getHitCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void leakDetection_rejectsDoubleRelease() throws Exception {
+        final BufferPool pool = new BufferPool(64 * 1024);
+        pool.setLeakDetectionEnabled(true);
+        final byte[] buffer = pool.acquire(256);
+        pool.release(buffer);
+        pool.release(buffer);
+        pool.release(new byte[256]);
+        assertEquals(0, pool.getOutstandingBytes());
+        assertSame(buffer, pool.acquire(256));
+        assertNotSame("released twice, handed out twice", buffer, pool.acquire(256));
+    }
+
+    @Test(timeout = 10000)
+    public void leakDetection_reclaimsGarbageCollectedBuffers() throws Exception {
+        final BufferPool pool = new BufferPool(64 * 1024);
+        pool.setLeakDetectionEnabled(true);
+        pool.acquire(8192);
+        assertEquals(8192, pool.getOutstandingBytes());
+        /**
+         *  leaks are reported on a later acquisition, once the buffer is collected
+         */
+        while(pool.getOutstandingBytes() > 64) {
+            System.gc();
+            pool.release(pool.acquire(64));
+            Thread.sleep(10L);
+        }
+        assertEquals(0, pool.getOutstandingBytes());
+    }
+
+    @Test
+    public void leakDetectionDefault_appliesToPoolsCreatedAfterwards() throws Exception {
+        BufferPool.setLeakDetectionDefault(true);
+        try {
+            final BufferPool pool = new BufferPool(64 * 1024);
+            final byte[] buffer = pool.acquire(128);
+            pool.release(buffer);
+            pool.release(buffer);
+            assertEquals(0, pool.getOutstandingBytes());
+        } finally {
+            BufferPool.setLeakDetectionDefault(BuildConfig.DEBUG);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.example.ezbluetooth.io;
+
+import com.example.ezbluetooth.metrics.CompressionMetrics;
+import com.example.ezbluetooth.metrics.CompressionSnapshot;
+import com.example.ezbluetooth.transport.Channel;
+import com.example.ezbluetooth.transport.LoopbackTransport;
+import com.example.ezbluetooth.transport.ServerChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+/**
+ *  Wire format and skip logic of {@link FrameCompressor}, frames passed through {@link FrameEncoder} and {@link FrameDecoder}.
+ */
+public class FrameCompressorTest {
+
+    private static final UUID SVC_UUID = UUID.fromString("3c1e9b4e-4d2a-4a49-9a59-07b0c1c0a014");
+    private static final int MAX_FRAME_SIZE = 64 * 1024;
+
+    private BufferPool mBufferPool;
+    private CompressionMetrics mSenderMetrics;
+    private CompressionMetrics mReceiverMetrics;
+    private FrameCompressor mSender;
+    private FrameCompressor mReceiver;
+
+    @Before
+    public void setUp() throws Exception {
+        mBufferPool = new BufferPool(256 * 1024);
+        mSenderMetrics = new CompressionMetrics();
+        mReceiverMetrics = new CompressionMetrics();
+        mSender = newCompressor(mSenderMetrics);
+        mReceiver = newCompressor(mReceiverMetrics);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSender.release();
+        mReceiver.release();
+    }
+
+    @Test
+    public void peerWithoutCompression_failsOnItsFirstFrame() throws Exception {
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        new FrameEncoder(MAX_FRAME_SIZE).encode(wire, new byte[] {FrameCompressor.FLAG_HELLO, 1, 2, 3, 4});
+        try {
+            receive(wire.toByteArray(), mReceiver);
+            fail("frame of a peer without compression is taken for a compressed one");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void hello_enablesCompressionTowardsThePeer() throws Exception {
+        final byte[] data = new byte[4096];
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FrameCompressor.writeHello(wire);
+        mSender.encode(wire, data, 0, data.length);
+        assertFalse(mSender.isActive());
+        final int rawSize = wire.size();
+
+        /**
+         *  the sender compresses only after the hello of the receiver
+         */
+        final ByteArrayOutputStream back = new ByteArrayOutputStream();
+        FrameCompressor.writeHello(back);
+        receive(back.toByteArray(), mSender);
+        assertTrue(mSender.isActive());
+        mSender.encode(wire, data, 0, data.length);
+        assertTrue(String.format("%d bytes for a compressible frame", wire.size() - rawSize), wire.size() - rawSize < data.length / 8);
+
+        final List<byte[]> frames = receive(wire.toByteArray(), mReceiver);
+        assertEquals(2, frames.size());
+        assertArrayEquals(data, frames.get(0));
+        assertArrayEquals(data, frames.get(1));
+    }
+
+    @Test(timeout = 10000)
+    public void roundTrip_overLoopback() throws Exception {
+        final LoopbackTransport transport = new LoopbackTransport();
+        final ServerChannel serverChannel = transport.listen("compression", SVC_UUID);
+        final Channel client = transport.connect("00:00:00:00:00:01", SVC_UUID);
+        final Channel server = serverChannel.accept();
+        activate(mSender);
+
+        final List<byte[]> sent = new ArrayList<>();
+        sent.add(new byte[0]);
+        sent.add(compressible(FrameCompressor.DEFAULT_THRESHOLD - 1));
+        sent.add(compressible(MAX_FRAME_SIZE));
+        sent.add(random(4096, 1));
+        sent.add(compressible(4096));
+        final OutputStream os = client.getOutputStream();
+        FrameCompressor.writeHello(os);
+        for(byte[] frame : sent) {
+            mSender.encode(os, frame, 0, frame.length);
+        }
+        client.close();
+
+        final List<byte[]> received = receive(server.getInputStream(), mReceiver);
+        assertEquals(sent.size(), received.size());
+        for(int i = 0; i < sent.size(); i++) {
+            assertArrayEquals(sent.get(i), received.get(i));
+        }
+        /**
+         *  the empty and the small frame aren't tried, the random one is tried and sent raw,
+         *  which skips the attempt on the frame after it
+         */
+        final CompressionSnapshot metrics = mSenderMetrics.snapshot();
+        assertEquals(1, metrics.getFramesCompressed());
+        assertEquals(4, metrics.getFramesSkipped());
+        assertEquals(2, metrics.getCompressTime().getCount());
+        assertEquals(metrics.getBytesAfterCompression() - (4096 + FrameCompressor.DEFAULT_THRESHOLD - 1 + 4096),
+                mReceiverMetrics.snapshot().getBytesBeforeInflation());
+        assertEquals(MAX_FRAME_SIZE, mReceiverMetrics.snapshot().getBytesAfterInflation());
+        server.close();
+        serverChannel.close();
+    }
+
+    @Test
+    public void incompressibleFrames_areTriedLessAndLessOften() throws Exception {
+        activate(mSender);
+        final OutputStream sink = new ByteArrayOutputStream();
+        for(int i = 0; i < 40; i++) {
+            final byte[] frame = random(1024, i);
+            mSender.encode(sink, frame, 0, frame.length);
+        }
+        /**
+         *  tried on frames 1, 3, 6, 11, 20 and 37, skipping 1, 2, 4 .. 32 frames after each failure
+         */
+        assertEquals(6, mSenderMetrics.snapshot().getCompressTime().getCount());
+        assertEquals(0, mSenderMetrics.snapshot().getFramesCompressed());
+
+        /**
+         *  compressible frames are compressed again after the remaining skips, every one of them
+         */
+        final byte[] frame = compressible(1024);
+        for(int i = 0; i < 40; i++) {
+            mSender.encode(sink, frame, 0, frame.length);
+        }
+        assertEquals(40 - 29, mSenderMetrics.snapshot().getFramesCompressed());
+    }
+
+    private void activate(FrameCompressor compressor) throws IOException {
+        final ByteArrayOutputStream hello = new ByteArrayOutputStream();
+        FrameCompressor.writeHello(hello);
+        receive(hello.toByteArray(), compressor);
+        assertTrue(compressor.isActive());
+    }
+
+    private static byte[] compressible(int size) {
+        final byte[] data = new byte[size];
+        for(int i = 0; i < size; i++) {
+            data[i] = (byte) ('a' + (i % 16));
+        }
+        return data;
+    }
+
+    private static byte[] random(int size, long seed) {
+        final byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private FrameCompressor newCompressor(CompressionMetrics metrics) {
+        return new FrameCompressor(mBufferPool, MAX_FRAME_SIZE, Deflater.BEST_SPEED, FrameCompressor.DEFAULT_THRESHOLD, metrics);
+    }
+
+    private List<byte[]> receive(byte[] wire, FrameCompressor compressor) throws IOException {
+        return receive(new ByteArrayInputStream(wire), compressor);
+    }
+
+    private List<byte[]> receive(InputStream is, final FrameCompressor compressor) throws IOException {
+        final List<byte[]> frames = new ArrayList<>();
+        final FrameDecoder decoder = new FrameDecoder(mBufferPool, MAX_FRAME_SIZE + FrameCompressor.OVERHEAD, 1024);
+        try {
+            while(decoder.decode(is, new FrameDecoder.FrameHandler() {
+                @Override
+                public void onFrame(byte[] buffer, int offset, int length) throws IOException {
+                    compressor.decode(buffer, offset, length, new FrameDecoder.FrameHandler() {
+                        @Override
+                        public void onFrame(byte[] buffer, int offset, int length) {
+                            frames.add(Arrays.copyOfRange(buffer, offset, offset + length));
+                        }
+                    });
+                }
+            }) >= 0) {
+                // until the end of the wire
+            }
+        } finally {
+            decoder.release();
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,195 @@
+package com.example.ezbluetooth.io;
+
+import com.example.ezbluetooth.transport.Channel;
+import com.example.ezbluetooth.transport.LoopbackTransport;
+import com.example.ezbluetooth.transport.ServerChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ *  Varint framing of {@link FrameEncoder} and {@link FrameDecoder}, over {@link LoopbackTransport}
+ *  and over streams returning short reads.
+ */
+public class FrameDecoderTest {
+
+    private static final UUID SVC_UUID = UUID.fromString("3c1e9b4e-4d2a-4a49-9a59-07b0c1c0a001");
+    private static final int MAX_FRAME_SIZE = 4096;
+
+    private BufferPool mBufferPool;
+    private FrameDecoder mDecoder;
+
+    @Before
+    public void setUp() throws Exception {
+        mBufferPool = new BufferPool(64 * 1024);
+        mDecoder = new FrameDecoder(mBufferPool, MAX_FRAME_SIZE, 256);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDecoder.release();
+    }
+
+    @Test
+    public void headerSize_growsEvery7Bits() throws Exception {
+        final int[] lengths = {0, 127, 128, 16383, 16384, Integer.MAX_VALUE};
+        final int[] sizes = {1, 1, 2, 2, 3, 5};
+        final byte[] header = new byte[FrameEncoder.MAX_HEADER_SIZE];
+        for(int i = 0; i < lengths.length; i++) {
+            assertEquals(sizes[i], FrameEncoder.getHeaderSize(lengths[i]));
+            assertEquals(sizes[i], FrameEncoder.writeHeader(header, 0, lengths[i]));
+        }
+    }
+
+    @Test
+    public void shortReads_reassembleEveryFrame() throws Exception {
+        final List<byte[]> sent = newFrames();
+        final List<byte[]> received = new ArrayList<>();
+        final InputStream is = new TrickleInputStream(encode(sent), 1);
+        while(mDecoder.decode(is, collect(received)) >= 0) {
+            // until the end of the stream
+        }
+        assertFrames(sent, received);
+        assertEquals(0, mDecoder.getPendingSize());
+    }
+
+    @Test(timeout = 10000)
+    public void singleRead_deliversManyFramesOverLoopback() throws Exception {
+        final LoopbackTransport transport = new LoopbackTransport();
+        final ServerChannel serverChannel = transport.listen("framing", SVC_UUID);
+        final Channel client = transport.connect("00:00:00:00:00:01", SVC_UUID);
+        final Channel server = serverChannel.accept();
+
+        final List<byte[]> sent = new ArrayList<>();
+        for(int i = 0; i < 100; i++) {
+            sent.add(new byte[] {(byte) i, (byte) (i + 1), (byte) (i + 2)});
+        }
+        final OutputStream os = client.getOutputStream();
+        os.write(encode(sent));
+        os.flush();
+        client.close();
+
+        final List<byte[]> received = new ArrayList<>();
+        final InputStream is = server.getInputStream();
+        int reads = 0;
+        while(mDecoder.decode(is, collect(received)) >= 0) {
+            reads++;
+        }
+        assertFrames(sent, received);
+        assertTrue(String.format("%d reads for 400 bytes", reads), reads <= 2);
+        server.close();
+        serverChannel.close();
+    }
+
+    @Test
+    public void oversizedFrame_isRejected() throws Exception {
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        new FrameEncoder(MAX_FRAME_SIZE * 2).encode(wire, new byte[MAX_FRAME_SIZE + 1]);
+        try {
+            mDecoder.decode(new ByteArrayInputStream(wire.toByteArray()), collect(new ArrayList<byte[]>()));
+            fail("frame over the limit is accepted");
+        } catch (IOException expected) {
+        }
+        try {
+            new FrameEncoder(MAX_FRAME_SIZE).encode(new ByteArrayOutputStream(), new byte[MAX_FRAME_SIZE + 1]);
+            fail("frame over the limit is sent");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void malformedHeader_isRejected() throws Exception {
+        final byte[] wire = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01};
+        try {
+            mDecoder.decode(new ByteArrayInputStream(wire), collect(new ArrayList<byte[]>()));
+            fail("header longer than 5 bytes is accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void noFraming_passesEachReadThrough() throws Exception {
+        final FrameDecoder decoder = new FrameDecoder(mBufferPool, FrameDecoder.NO_FRAMING, 16);
+        try {
+            final List<byte[]> received = new ArrayList<>();
+            final InputStream is = new TrickleInputStream(new byte[40], 7);
+            while(decoder.decode(is, collect(received)) >= 0) {
+                // until the end of the stream
+            }
+            assertEquals(6, received.size());
+            assertEquals(5, received.get(5).length);
+        } finally {
+            decoder.release();
+        }
+    }
+
+    /**
+     *  sizes around the header boundaries, up to the largest frame accepted
+     */
+    private static List<byte[]> newFrames() {
+        final List<byte[]> frames = new ArrayList<>();
+        for(int size : new int[] {0, 1, 127, 128, 300, MAX_FRAME_SIZE}) {
+            final byte[] frame = new byte[size];
+            for(int i = 0; i < size; i++) {
+                frame[i] = (byte) (size + i);
+            }
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    private static byte[] encode(List<byte[]> frames) throws IOException {
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        final FrameEncoder encoder = new FrameEncoder(MAX_FRAME_SIZE);
+        for(byte[] frame : frames) {
+            encoder.encode(wire, frame);
+        }
+        return wire.toByteArray();
+    }
+
+    private static FrameDecoder.FrameHandler collect(final List<byte[]> frames) {
+        return new FrameDecoder.FrameHandler() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                frames.add(Arrays.copyOfRange(buffer, offset, offset + length));
+            }
+        };
+    }
+
+    private static void assertFrames(List<byte[]> expected, List<byte[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for(int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    /**
+     *  returns at most a few bytes per read, like a link delivering a frame in pieces
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        private final int mMaxRead;
+
+        TrickleInputStream(byte[] data, int maxRead) {
+            super(data);
+            mMaxRead = maxRead;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, mMaxRead));
+        }
+    }
+}
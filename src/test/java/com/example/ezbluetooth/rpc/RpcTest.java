@@ -0,0 +1,303 @@
+package com.example.ezbluetooth.rpc;
+
+import android.os.Parcel;
+
+import com.example.ezbluetooth.BluetoothServiceManager;
+import com.example.ezbluetooth.exec.ServiceScheduler;
+import com.example.ezbluetooth.io.OutputSink;
+import com.example.ezbluetooth.transport.LoopbackTransport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ *  Correlation, windowing and failures of {@link AbsRpcClient} calls to an {@link AbsRpcServer} over {@link LoopbackTransport}.
+ *  Calls are made from {@link AbsRpcClient#onConnected()}, on the session thread of the client.
+ */
+public class RpcTest {
+
+    private static final UUID SVC_UUID = UUID.fromString("3c1e9b4e-4d2a-4a49-9a59-07b0c1c0a012");
+
+    /** replied right away with the rest of the request */
+    private static final byte OP_ECHO = 'E';
+    /** held until as many as given by the second byte are held, then replied in reverse order */
+    private static final byte OP_DEFER = 'D';
+    /** never replied */
+    private static final byte OP_SILENT = 'S';
+    /** the handler throws */
+    private static final byte OP_THROW = 'X';
+
+    private LoopbackTransport mTransport;
+    private BluetoothServiceManager mServiceManager;
+    /**
+     *  the manager holds its callback weakly
+     */
+    private BluetoothServiceManager.Callback mCallback;
+    private TestServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mTransport = new LoopbackTransport();
+        mServer = new TestServer();
+        final CountDownLatch started = new CountDownLatch(1);
+        mCallback = new BluetoothServiceManager.Callback() {
+            @Override
+            public void onServiceStarted(int svcId) {
+                started.countDown();
+            }
+
+            @Override
+            public boolean onClientConnected(int svcId, int clientId) {
+                return true;
+            }
+
+            @Override
+            public void onServiceError(int svcId, IOException e) {
+            }
+
+            @Override
+            public void onServiceClosed(int svcId) {
+            }
+        };
+        mServiceManager = new BluetoothServiceManager(mTransport, mCallback, new ServiceScheduler());
+        mServiceManager.start(mServer);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if(mServiceManager != null) {
+            mServiceManager.stop();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void outOfOrderReplies_completeTheirOwnCalls() throws Exception {
+        final int count = 8;
+        final TestClient client = start(16, new Script() {
+            @Override
+            public void run(TestClient client, List<RpcFuture> calls) throws IOException {
+                for(int i = 0; i < count; i++) {
+                    calls.add(client.call(new byte[] {OP_DEFER, (byte) count, (byte) i}, 0, 3, AbsRpcClient.DEFAULT_CALL_TIMEOUT));
+                }
+                calls.add(client.call(new byte[] {OP_ECHO, (byte) count}, 0, 2, AbsRpcClient.DEFAULT_CALL_TIMEOUT));
+                assertEquals("calls are not pipelined", count + 1, client.getInFlightCount());
+            }
+        });
+        final List<RpcFuture> calls = client.awaitCalls();
+        final Set<Integer> ids = new HashSet<>();
+        for(int i = 0; i <= count; i++) {
+            assertArrayEquals(new byte[] {(byte) i}, calls.get(i).get(5, TimeUnit.SECONDS));
+            assertTrue(ids.add(calls.get(i).getId()));
+        }
+        assertEquals(0, client.getInFlightCount());
+    }
+
+    @Test(timeout = 20000)
+    public void timedOutCall_failsAndFreesItsSlot() throws Exception {
+        final long timeout = 200L;
+        final long[] elapsed = new long[1];
+        final TestClient client = start(1, new Script() {
+            @Override
+            public void run(TestClient client, List<RpcFuture> calls) throws IOException {
+                final long start = System.nanoTime();
+                calls.add(client.call(new byte[] {OP_SILENT}, 0, 1, timeout));
+                /**
+                 *  waits for the window until the silent call times out
+                 */
+                calls.add(client.call(new byte[] {OP_ECHO, 7}, 0, 2, AbsRpcClient.DEFAULT_CALL_TIMEOUT));
+                elapsed[0] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            }
+        });
+        final List<RpcFuture> calls = client.awaitCalls();
+        assertEquals(RpcException.REASON_TIMEOUT, awaitFailure(calls.get(0)).getReason());
+        assertArrayEquals(new byte[] {7}, calls.get(1).get(5, TimeUnit.SECONDS));
+        assertTrue(String.format("window freed after %d ms", elapsed[0]), elapsed[0] >= timeout - 20);
+    }
+
+    @Test(timeout = 20000)
+    public void remoteErrorAndDisconnect_failPendingCalls() throws Exception {
+        final TestClient client = start(4, new Script() {
+            @Override
+            public void run(TestClient client, List<RpcFuture> calls) throws IOException {
+                calls.add(client.call(new byte[] {OP_THROW}, 0, 1, AbsRpcClient.DEFAULT_CALL_TIMEOUT));
+                calls.add(client.call(new byte[] {OP_SILENT}, 0, 1, AbsRpcClient.NO_TIMEOUT));
+            }
+        });
+        final List<RpcFuture> calls = client.awaitCalls();
+        final RpcException remote = awaitFailure(calls.get(0));
+        assertEquals(RpcException.REASON_REMOTE, remote.getReason());
+        assertTrue(remote.getMessage(), remote.getMessage().contains("Unsupported operation"));
+
+        mServiceManager.stop();
+        mServiceManager = null;
+        assertEquals(RpcException.REASON_CLOSED, awaitFailure(calls.get(1)).getReason());
+        assertEquals(0, client.getInFlightCount());
+    }
+
+    @Test(timeout = 20000)
+    public void twoSessions_callsAreMadeAndFailedPerSession() throws Exception {
+        final TestClient client = new TestClient(4, new Script() {
+            @Override
+            public void run(TestClient client, List<RpcFuture> calls) {
+            }
+        });
+        client.setTransport(mTransport);
+        final int first = client.start("00:11:22:33:44:55");
+        final int second = client.start("00:11:22:33:44:66");
+        while(!client.isConnected(first) || !client.isConnected(second)) {
+            TimeUnit.MILLISECONDS.sleep(10L);
+        }
+        /**
+         *  which session is meant can't be told off the session threads
+         */
+        assertEquals(RpcException.REASON_REJECTED, awaitFailure(client.call(new byte[] {OP_ECHO, 0}, 0, 2, AbsRpcClient.NO_TIMEOUT)).getReason());
+        assertEquals(0, client.getInFlightCount());
+        assertArrayEquals(new byte[] {1}, client.call(first, new byte[] {OP_ECHO, 1}, 0, 2, AbsRpcClient.DEFAULT_CALL_TIMEOUT).get(5, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[] {2}, client.call(second, new byte[] {OP_ECHO, 2}, 0, 2, AbsRpcClient.DEFAULT_CALL_TIMEOUT).get(5, TimeUnit.SECONDS));
+
+        final RpcFuture kept = client.call(first, new byte[] {OP_SILENT}, 0, 1, AbsRpcClient.NO_TIMEOUT);
+        final RpcFuture dropped = client.call(second, new byte[] {OP_SILENT}, 0, 1, AbsRpcClient.NO_TIMEOUT);
+        client.stop(second);
+        assertEquals(RpcException.REASON_CLOSED, awaitFailure(dropped).getReason());
+        assertFalse("call of the session still running is failed", kept.isDone());
+        assertEquals(1, client.getInFlightCount());
+        client.stop(first);
+        assertEquals(RpcException.REASON_CLOSED, awaitFailure(kept).getReason());
+        assertEquals(0, client.getInFlightCount());
+    }
+
+    private TestClient start(int maxInFlight, Script script) {
+        final TestClient client = new TestClient(maxInFlight, script);
+        client.setTransport(mTransport);
+        client.start("00:11:22:33:44:55");
+        return client;
+    }
+
+    private static RpcException awaitFailure(RpcFuture future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("call succeeded");
+        } catch (ExecutionException e) {
+            return (RpcException) e.getCause();
+        }
+        return null;
+    }
+
+    private interface Script {
+        void run(TestClient client, List<RpcFuture> calls) throws IOException;
+    }
+
+    private static class TestClient extends AbsRpcClient {
+        private final Script mScript;
+        private final List<RpcFuture> mCalls;
+        private final CountDownLatch mCalled;
+        private volatile Throwable mError;
+
+        TestClient(int maxInFlight, Script script) {
+            super(maxInFlight);
+            mScript = script;
+            mCalls = Collections.synchronizedList(new ArrayList<RpcFuture>());
+            mCalled = new CountDownLatch(1);
+        }
+
+        List<RpcFuture> awaitCalls() throws Exception {
+            assertTrue("client is not connected", mCalled.await(5, TimeUnit.SECONDS));
+            if(mError != null) {
+                throw new AssertionError(mError);
+            }
+            return mCalls;
+        }
+
+        @Override
+        public void onConnected() {
+            try {
+                mScript.run(this, mCalls);
+            } catch (Throwable e) {
+                mError = e;
+            }
+            mCalled.countDown();
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+
+        @Override
+        public UUID getServiceUuid() {
+            return SVC_UUID;
+        }
+
+        @Override
+        public String getServiceName() {
+            return "RpcTestClient";
+        }
+
+        @Override
+        public int describeContents() {
+            return 0;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+        }
+    }
+
+    private static class TestServer extends AbsRpcServer {
+        private final List<int[]> mDeferred = new ArrayList<>();
+
+        TestServer() {
+            super(4);
+        }
+
+        @Override
+        protected boolean onRequest(int clientId, int requestId, byte[] buffer, int offset, int length, OutputSink reply) {
+            switch (buffer[offset]) {
+                case OP_ECHO:
+                    reply.write(buffer, offset + 1, length - 1);
+                    return true;
+                case OP_DEFER:
+                    /**
+                     *  the read loop of a client is a single thread
+                     */
+                    mDeferred.add(new int[] {clientId, requestId, buffer[offset + 2]});
+                    if(mDeferred.size() == buffer[offset + 1]) {
+                        for(int i = mDeferred.size() - 1; i >= 0; i--) {
+                            final int[] deferred = mDeferred.get(i);
+                            reply(deferred[0], deferred[1], new byte[] {(byte) deferred[2]}, 0, 1);
+                        }
+                        mDeferred.clear();
+                    }
+                    return false;
+                case OP_SILENT:
+                    return false;
+                default:
+                    throw new UnsupportedOperationException("Unsupported operation");
+            }
+        }
+
+        @Override
+        public String getServiceName() {
+            return "RpcTestServer";
+        }
+
+        @Override
+        public UUID getServiceUuid() {
+            return SVC_UUID;
+        }
+    }
+}
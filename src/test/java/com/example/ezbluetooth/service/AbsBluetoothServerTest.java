@@ -0,0 +1,526 @@
+package com.example.ezbluetooth.service;
+
+import com.example.ezbluetooth.BluetoothServiceManager;
+import com.example.ezbluetooth.exec.ServiceScheduler;
+import com.example.ezbluetooth.io.BufferPool;
+import com.example.ezbluetooth.io.FrameCompressor;
+import com.example.ezbluetooth.io.FrameDecoder;
+import com.example.ezbluetooth.io.FrameEncoder;
+import com.example.ezbluetooth.metrics.CompressionMetrics;
+import com.example.ezbluetooth.pipeline.HandlerContext;
+import com.example.ezbluetooth.pipeline.InboundHandlerAdapter;
+import com.example.ezbluetooth.pipeline.Pipeline;
+import com.example.ezbluetooth.transport.Channel;
+import com.example.ezbluetooth.transport.LoopbackTransport;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+/**
+ *  Read loop of {@link AbsBluetoothServer} against a raw client over {@link LoopbackTransport}.
+ */
+public class AbsBluetoothServerTest {
+
+    private static final UUID SVC_UUID = UUID.fromString("3c1e9b4e-4d2a-4a49-9a59-07b0c1c0a001");
+    private static final int PIPE_CAPACITY = 4096;
+
+    private BluetoothServiceManager mServiceManager;
+    /**
+     *  the manager holds its callback weakly
+     */
+    private BluetoothServiceManager.Callback mCallback;
+
+    @After
+    public void tearDown() throws Exception {
+        if(mServiceManager != null) {
+            mServiceManager.stop();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void endOfStream_repliesToLastReadsAreWritten() throws Exception {
+        final LoopbackTransport transport = new LoopbackTransport();
+        final EchoServer server = new EchoServer();
+        start(transport, server);
+        final Channel channel = transport.connect("00:11:22:33:44:55", SVC_UUID);
+        final int count = 500;
+        final byte[] payload = new byte[100];
+        final FrameEncoder encoder = new FrameEncoder(FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+        final OutputStream os = channel.getOutputStream();
+        for(int i = 0; i < count; i++) {
+            payload[0] = (byte) i;
+            encoder.encode(os, payload);
+        }
+        /**
+         *  half close, the server sees the end of the stream with replies still queued
+         */
+        os.close();
+        final AtomicInteger replies = new AtomicInteger();
+        final FrameDecoder decoder = new FrameDecoder(FrameDecoder.DEFAULT_MAX_FRAME_SIZE, 1024);
+        final InputStream is = channel.getInputStream();
+        while(decoder.decode(is, new FrameDecoder.FrameHandler() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) throws IOException {
+                assertEquals(payload.length, length);
+                assertEquals((byte) replies.getAndIncrement(), buffer[offset]);
+            }
+        }) >= 0) {
+            // until the server closes
+        }
+        decoder.release();
+        assertEquals(count, replies.get());
+    }
+
+    @Test(timeout = 30000)
+    public void clientNotReading_readLoopStopsReadingInsteadOfQueueing() throws Exception {
+        final LoopbackTransport transport = new LoopbackTransport(PIPE_CAPACITY);
+        final EchoServer server = new EchoServer();
+        start(transport, server);
+        final Channel channel = transport.connect("00:11:22:33:44:55", SVC_UUID);
+        final int total = 2 * 1024 * 1024;
+        final AtomicLong sent = new AtomicLong();
+        final CountDownLatch sentAll = new CountDownLatch(1);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final FrameEncoder encoder = new FrameEncoder(FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+                final byte[] payload = new byte[512];
+                try {
+                    final OutputStream os = channel.getOutputStream();
+                    while(sent.get() < total) {
+                        encoder.encode(os, payload);
+                        sent.addAndGet(payload.length);
+                    }
+                    sentAll.countDown();
+                } catch (IOException e) {
+                    // closed by the test
+                }
+            }
+        });
+        writer.setDaemon(true);
+        writer.start();
+        assertFalse("server kept reading from a client not reading its replies", sentAll.await(1, TimeUnit.SECONDS));
+        final int clientId = server.awaitClient();
+        final long queued = server.getWriteQueueBytes(clientId);
+        /**
+         *  replies of a single read may go beyond the high watermark, a read never takes more than the pipe holds
+         */
+        assertTrue(String.format("%d bytes queued", queued), queued <= server.getHighWatermarkBytes() + PIPE_CAPACITY);
+
+        /**
+         *  once the client reads, everything comes back
+         */
+        final AtomicLong received = new AtomicLong();
+        final FrameDecoder decoder = new FrameDecoder(FrameDecoder.DEFAULT_MAX_FRAME_SIZE, 4096);
+        final InputStream is = channel.getInputStream();
+        while(received.get() < total) {
+            assertTrue(decoder.decode(is, new FrameDecoder.FrameHandler() {
+                @Override
+                public void onFrame(byte[] buffer, int offset, int length) {
+                    received.addAndGet(length);
+                }
+            }) > 0);
+        }
+        decoder.release();
+        assertTrue(sentAll.await(5, TimeUnit.SECONDS));
+        assertEquals(total, received.get());
+        channel.close();
+    }
+
+    @Test(timeout = 20000)
+    public void endOfStream_repliesOfBlockingHandlersAreWritten() throws Exception {
+        final LoopbackTransport transport = new LoopbackTransport();
+        final BlockingEchoServer server = new BlockingEchoServer(2);
+        start(transport, server);
+        final Channel channel = transport.connect("00:11:22:33:44:55", SVC_UUID);
+        final int count = 200;
+        final FrameEncoder encoder = new FrameEncoder(FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+        final OutputStream os = channel.getOutputStream();
+        for(int i = 0; i < count; i++) {
+            encoder.encode(os, new byte[] {(byte) i, 0, 0, 0});
+        }
+        os.close();
+        final AtomicInteger replies = new AtomicInteger();
+        final FrameDecoder decoder = new FrameDecoder(FrameDecoder.DEFAULT_MAX_FRAME_SIZE, 1024);
+        final InputStream is = channel.getInputStream();
+        while(decoder.decode(is, new FrameDecoder.FrameHandler() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) throws IOException {
+                assertEquals((byte) replies.getAndIncrement(), buffer[offset]);
+            }
+        }) >= 0) {
+            // until the server closes
+        }
+        decoder.release();
+        assertEquals(count, replies.get());
+    }
+
+    @Test(timeout = 30000)
+    public void slowBlockingHandler_readLoopStopsReadingInsteadOfCopying() throws Exception {
+        final LoopbackTransport transport = new LoopbackTransport(PIPE_CAPACITY);
+        final BlockingEchoServer server = new BlockingEchoServer(1);
+        start(transport, server);
+        final Channel channel = transport.connect("00:11:22:33:44:55", SVC_UUID);
+        final int count = 2000;
+        final int size = 512;
+        final AtomicLong received = new AtomicLong();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final FrameDecoder decoder = new FrameDecoder(FrameDecoder.DEFAULT_MAX_FRAME_SIZE, 4096);
+                try {
+                    final InputStream is = channel.getInputStream();
+                    while(decoder.decode(is, new FrameDecoder.FrameHandler() {
+                        @Override
+                        public void onFrame(byte[] buffer, int offset, int length) {
+                            received.addAndGet(length);
+                        }
+                    }) >= 0) {
+                        // until the server closes
+                    }
+                } catch (IOException e) {
+                    // closed by the test
+                } finally {
+                    decoder.release();
+                }
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+        final FrameEncoder encoder = new FrameEncoder(FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+        final OutputStream os = channel.getOutputStream();
+        final byte[] payload = new byte[size];
+        for(int i = 0; i < count; i++) {
+            encoder.encode(os, payload);
+        }
+        os.close();
+        reader.join(20000);
+        assertEquals((long) count * size, received.get());
+        /**
+         *  frames decoded from the read which crossed the limit still go to the handler,
+         *  a read never takes more than the pipe holds
+         */
+        final long bound = BlockingEchoServer.MAX_BACKLOG + PIPE_CAPACITY;
+        final long peak = server.getPeakBacklog();
+        assertTrue(String.format("%d bytes waiting for the blocking handler", peak), peak <= bound);
+    }
+
+    @Test(timeout = 30000)
+    public void metrics_neverGoBackWhileConnectionsClose() throws Exception {
+        final LoopbackTransport transport = new LoopbackTransport();
+        final EchoServer server = new EchoServer();
+        start(transport, server);
+        final int connections = 500;
+        final int count = 20;
+        final AtomicLong regressions = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread poller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long last = 0;
+                while(done.getCount() > 0) {
+                    final long messagesIn = server.getMetrics().getMessagesIn();
+                    if(messagesIn < last) {
+                        regressions.incrementAndGet();
+                    }
+                    last = messagesIn;
+                }
+            }
+        });
+        poller.setDaemon(true);
+        poller.start();
+        final FrameEncoder encoder = new FrameEncoder(FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+        final byte[] payload = new byte[16];
+        for(int c = 0; c < connections; c++) {
+            final Channel channel = transport.connect("00:11:22:33:44:55", SVC_UUID);
+            final OutputStream os = channel.getOutputStream();
+            for(int i = 0; i < count; i++) {
+                encoder.encode(os, payload);
+            }
+            os.close();
+            final InputStream is = channel.getInputStream();
+            final byte[] buffer = new byte[1024];
+            while(is.read(buffer) >= 0) {
+                // until the server closes
+            }
+        }
+        /**
+         *  the last connection is retired after its stream is closed
+         */
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while((server.getMetrics().getConnectionCount() < connections) && (System.nanoTime() < deadline)) {
+            Thread.sleep(1);
+        }
+        done.countDown();
+        poller.join();
+        assertEquals(0, regressions.get());
+        assertEquals((long) connections * count, server.getMetrics().getMessagesIn());
+    }
+
+    @Test(timeout = 20000)
+    public void handlerClosing_repliesWrittenBeforeAreSent() throws Exception {
+        final LoopbackTransport transport = new LoopbackTransport();
+        start(transport, new ClosingServer());
+        final Channel channel = transport.connect("00:11:22:33:44:55", SVC_UUID);
+        final FrameEncoder encoder = new FrameEncoder(FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+        encoder.encode(channel.getOutputStream(), new byte[] {ClosingServer.CLOSE_ON_READ_LOOP});
+        encoder.encode(channel.getOutputStream(), new byte[] {ClosingServer.CLOSE_ON_BLOCKING});
+        /**
+         *  the connection is closed by the first message, the reply to it comes back nevertheless
+         */
+        final List<byte[]> replies = readFrames(channel.getInputStream());
+        assertEquals(1, replies.size());
+        assertArrayEquals(new byte[] {ClosingServer.CLOSE_ON_READ_LOOP}, replies.get(0));
+
+        final Channel blocking = transport.connect("00:11:22:33:44:66", SVC_UUID);
+        encoder.encode(blocking.getOutputStream(), new byte[] {ClosingServer.CLOSE_ON_BLOCKING});
+        final List<byte[]> blockingReplies = readFrames(blocking.getInputStream());
+        assertEquals(1, blockingReplies.size());
+        assertArrayEquals(new byte[] {ClosingServer.CLOSE_ON_BLOCKING}, blockingReplies.get(0));
+    }
+
+    @Test(timeout = 20000)
+    public void compression_isNegotiatedOnlyWithClientsSendingAHello() throws Exception {
+        final LoopbackTransport transport = new LoopbackTransport();
+        start(transport, new CompressingEchoServer());
+        final byte[] payload = new byte[4096];
+        final FrameEncoder encoder = new FrameEncoder(FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+
+        /**
+         *  a client without compression is served with plain framing
+         */
+        final Channel plain = transport.connect("00:11:22:33:44:55", SVC_UUID);
+        encoder.encode(plain.getOutputStream(), payload);
+        plain.getOutputStream().close();
+        final List<byte[]> plainReplies = readFrames(plain.getInputStream());
+        assertEquals(1, plainReplies.size());
+        assertArrayEquals(payload, plainReplies.get(0));
+
+        /**
+         *  a client sending a hello is answered with a hello and compressed replies
+         */
+        final BufferPool bufferPool = new BufferPool(256 * 1024);
+        final FrameCompressor compressor = new FrameCompressor(bufferPool, FrameDecoder.DEFAULT_MAX_FRAME_SIZE,
+                Deflater.BEST_SPEED, FrameCompressor.DEFAULT_THRESHOLD, new CompressionMetrics());
+        final Channel compressing = transport.connect("00:11:22:33:44:66", SVC_UUID);
+        FrameCompressor.writeHello(compressing.getOutputStream());
+        compressor.encode(compressing.getOutputStream(), payload, 0, payload.length);
+        compressing.getOutputStream().close();
+        final List<byte[]> frames = readFrames(compressing.getInputStream());
+        assertEquals(2, frames.size());
+        assertTrue("first frame of the service is not a hello", FrameCompressor.isHello(frames.get(0), 0, frames.get(0).length));
+        assertTrue(String.format("%d bytes for a compressible reply", frames.get(1).length), frames.get(1).length < payload.length / 8);
+        final List<byte[]> replies = new ArrayList<>();
+        for(byte[] frame : frames) {
+            compressor.decode(frame, 0, frame.length, new FrameDecoder.FrameHandler() {
+                @Override
+                public void onFrame(byte[] buffer, int offset, int length) {
+                    replies.add(Arrays.copyOfRange(buffer, offset, offset + length));
+                }
+            });
+        }
+        assertEquals(1, replies.size());
+        assertArrayEquals(payload, replies.get(0));
+        compressor.release();
+    }
+
+    private static List<byte[]> readFrames(InputStream is) throws IOException {
+        final List<byte[]> frames = new ArrayList<>();
+        final FrameDecoder decoder = new FrameDecoder(FrameDecoder.DEFAULT_MAX_FRAME_SIZE + FrameCompressor.OVERHEAD, 1024);
+        while(decoder.decode(is, new FrameDecoder.FrameHandler() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                frames.add(Arrays.copyOfRange(buffer, offset, offset + length));
+            }
+        }) >= 0) {
+            // until the server closes
+        }
+        decoder.release();
+        return frames;
+    }
+
+    private void start(LoopbackTransport transport, final EchoServer server) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        mCallback = new BluetoothServiceManager.Callback() {
+            @Override
+            public void onServiceStarted(int svcId) {
+                started.countDown();
+            }
+
+            @Override
+            public boolean onClientConnected(int svcId, int clientId) {
+                server.onClient(clientId);
+                return true;
+            }
+
+            @Override
+            public void onServiceError(int svcId, IOException e) {
+            }
+
+            @Override
+            public void onServiceClosed(int svcId) {
+            }
+        };
+        mServiceManager = new BluetoothServiceManager(transport, mCallback, new ServiceScheduler());
+        mServiceManager.start(server);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    private static class EchoServer extends AbsBluetoothServer {
+        private final CountDownLatch mConnected = new CountDownLatch(1);
+        private volatile int mClientId;
+
+        EchoServer() {
+            super(4);
+        }
+
+        void onClient(int clientId) {
+            mClientId = clientId;
+            mConnected.countDown();
+        }
+
+        int awaitClient() throws InterruptedException {
+            assertTrue(mConnected.await(5, TimeUnit.SECONDS));
+            return mClientId;
+        }
+
+        int getHighWatermarkBytes() {
+            return getHighWatermark();
+        }
+
+        @Override
+        protected boolean isFramingEnabled() {
+            return true;
+        }
+
+        @Override
+        protected int getReadSize() {
+            return 1024;
+        }
+
+        @Override
+        protected byte[] onDataReceived(int clientId, byte[] data) {
+            return data;
+        }
+
+        @Override
+        public String getServiceName() {
+            return "EchoServer";
+        }
+
+        @Override
+        public UUID getServiceUuid() {
+            return SVC_UUID;
+        }
+    }
+
+    /**
+     *  replies to a message and closes the connection right after, from the read loop or from a blocking handler
+     */
+    private static class ClosingServer extends EchoServer {
+        static final byte CLOSE_ON_READ_LOOP = 1;
+        static final byte CLOSE_ON_BLOCKING = 2;
+
+        @Override
+        protected void onCreatePipeline(int clientId, Pipeline pipeline) {
+            pipeline.addLast("closing", new InboundHandlerAdapter() {
+                @Override
+                public void onMessage(HandlerContext ctx, Object message) throws IOException {
+                    final ByteBuffer buffer = (ByteBuffer) message;
+                    if(buffer.get(buffer.position()) != CLOSE_ON_READ_LOOP) {
+                        ctx.fireMessage(message);
+                        return;
+                    }
+                    ctx.write(new byte[] {CLOSE_ON_READ_LOOP});
+                    ctx.close();
+                }
+            });
+            pipeline.addLastBlocking("blocking", new InboundHandlerAdapter() {
+                @Override
+                public void onMessage(HandlerContext ctx, Object message) throws IOException {
+                    ctx.write(new byte[] {CLOSE_ON_BLOCKING});
+                    ctx.close();
+                }
+            });
+        }
+    }
+
+    private static class CompressingEchoServer extends EchoServer {
+
+        @Override
+        protected boolean isCompressionEnabled() {
+            return true;
+        }
+    }
+
+    /**
+     *  echoes from a blocking handler taking its time over every message
+     */
+    private static class BlockingEchoServer extends EchoServer {
+        static final int MAX_BACKLOG = 8 * 1024;
+
+        private final long mDelayMillis;
+        private final AtomicLong mFiredBytes = new AtomicLong();
+        private final AtomicLong mHandledBytes = new AtomicLong();
+        private final AtomicLong mPeakBacklog = new AtomicLong();
+
+        BlockingEchoServer(long delayMillis) {
+            mDelayMillis = delayMillis;
+        }
+
+        long getPeakBacklog() {
+            return mPeakBacklog.get();
+        }
+
+        @Override
+        protected int getMaxBacklog() {
+            return MAX_BACKLOG;
+        }
+
+        @Override
+        protected void onCreatePipeline(int clientId, Pipeline pipeline) {
+            pipeline.addLast("counter", new InboundHandlerAdapter() {
+                @Override
+                public void onMessage(HandlerContext ctx, Object message) throws IOException {
+                    mFiredBytes.addAndGet(((ByteBuffer) message).remaining());
+                    ctx.fireMessage(message);
+                }
+            });
+            pipeline.addLastBlocking("echo", new InboundHandlerAdapter() {
+                @Override
+                public void onMessage(HandlerContext ctx, Object message) throws IOException {
+                    final ByteBuffer buffer = (ByteBuffer) message;
+                    final long backlog = mFiredBytes.get() - mHandledBytes.addAndGet(buffer.remaining());
+                    long peak;
+                    while((backlog > (peak = mPeakBacklog.get())) && !mPeakBacklog.compareAndSet(peak, backlog)) {
+                        // retry
+                    }
+                    try {
+                        Thread.sleep(mDelayMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    final byte[] reply = new byte[buffer.remaining()];
+                    buffer.get(reply);
+                    ctx.write(reply);
+                }
+            });
+        }
+    }
+}
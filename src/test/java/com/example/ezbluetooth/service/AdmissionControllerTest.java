@@ -0,0 +1,162 @@
+package com.example.ezbluetooth.service;
+
+import com.example.ezbluetooth.ServiceLoad;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ *  Admission, queueing and rejection of clients by {@link AdmissionController}.
+ */
+public class AdmissionControllerTest {
+
+    private ScheduledExecutorService mTimer;
+    private List<ClientConnection> mAdmitted;
+    private List<ClientConnection> mRejected;
+    private AdmissionController.Handler mHandler;
+
+    @Before
+    public void setUp() throws Exception {
+        mTimer = Executors.newSingleThreadScheduledExecutor();
+        mAdmitted = Collections.synchronizedList(new ArrayList<ClientConnection>());
+        mRejected = Collections.synchronizedList(new ArrayList<ClientConnection>());
+        mHandler = new AdmissionController.Handler() {
+            @Override
+            public void onAdmitted(ClientConnection connection) {
+                mAdmitted.add(connection);
+            }
+
+            @Override
+            public void onRejected(ClientConnection connection) {
+                mRejected.add(connection);
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mTimer.shutdownNow();
+    }
+
+    @Test
+    public void noQueue_rejectsBeyondMaxActiveRightAway() throws Exception {
+        final AdmissionController controller = newController(2, 0, 0);
+        for(int i = 0; i < 3; i++) {
+            controller.submit(new ClientConnection(i, null));
+        }
+        assertEquals(2, mAdmitted.size());
+        assertEquals(1, mRejected.size());
+        assertEquals(2, mRejected.get(0).getId());
+
+        final ServiceLoad load = controller.getLoad();
+        assertEquals(2, load.getActiveCount());
+        assertEquals(0, load.getQueuedCount());
+        assertEquals(2, load.getAdmittedCount());
+        assertEquals(1, load.getRejectedCount());
+        assertTrue(load.isSaturated());
+    }
+
+    @Test
+    public void queuedClients_areAdmittedInOrderAsSlotsFree() throws Exception {
+        final AdmissionController controller = newController(1, 2, 0);
+        for(int i = 0; i < 4; i++) {
+            controller.submit(new ClientConnection(i, null));
+        }
+        assertEquals(1, mAdmitted.size());
+        assertEquals(1, mRejected.size());
+        assertEquals(3, mRejected.get(0).getId());
+        assertEquals(2, controller.getLoad().getQueuedCount());
+
+        controller.release();
+        controller.release();
+        assertEquals(3, mAdmitted.size());
+        assertEquals(1, mAdmitted.get(1).getId());
+        assertEquals(2, mAdmitted.get(2).getId());
+        assertEquals(0, controller.getLoad().getQueuedCount());
+        assertEquals(1, controller.getLoad().getActiveCount());
+    }
+
+    @Test(timeout = 10000)
+    public void queuedClient_isRejectedAfterTheTimeout() throws Exception {
+        final AdmissionController controller = newController(1, 1, 50);
+        controller.submit(new ClientConnection(0, null));
+        controller.submit(new ClientConnection(1, null));
+        while(mRejected.isEmpty()) {
+            TimeUnit.MILLISECONDS.sleep(10L);
+        }
+        assertEquals(1, mRejected.get(0).getId());
+        assertEquals(0, controller.getLoad().getQueuedCount());
+
+        /**
+         *  the slot freed afterwards isn't taken by the timed out client
+         */
+        controller.release();
+        assertEquals(1, mAdmitted.size());
+        assertEquals(0, controller.getLoad().getActiveCount());
+    }
+
+    @Test(timeout = 10000)
+    public void concurrentSubmitAndRelease_neverExceedMaxActive() throws Exception {
+        final int maxActive = 4;
+        final int clients = 2000;
+        final AdmissionController[] controller = new AdmissionController[1];
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final CountDownLatch done = new CountDownLatch(clients);
+        final int[] peak = new int[1];
+        controller[0] = new AdmissionController(maxActive, clients, 0, new AdmissionController.Handler() {
+            @Override
+            public void onAdmitted(ClientConnection connection) {
+                synchronized (peak) {
+                    peak[0] = Math.max(peak[0], controller[0].getLoad().getActiveCount());
+                }
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        done.countDown();
+                        controller[0].release();
+                    }
+                });
+            }
+
+            @Override
+            public void onRejected(ClientConnection connection) {
+                fail("client rejected with room in the queue");
+            }
+        });
+        controller[0].setTimer(mTimer);
+        try {
+            for(int i = 0; i < clients; i++) {
+                final int id = i;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        controller[0].submit(new ClientConnection(id, null));
+                    }
+                });
+            }
+            assertTrue("queued client never admitted", done.await(5, TimeUnit.SECONDS));
+            assertTrue(String.format("%d clients active at once", peak[0]), peak[0] <= maxActive);
+            assertEquals(clients, controller[0].getLoad().getAdmittedCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private AdmissionController newController(int maxActive, int maxQueued, long queueTimeout) {
+        final AdmissionController controller = new AdmissionController(maxActive, maxQueued, queueTimeout, mHandler);
+        controller.setTimer(mTimer);
+        return controller;
+    }
+}
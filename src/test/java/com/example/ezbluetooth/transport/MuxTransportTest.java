@@ -0,0 +1,427 @@
+package com.example.ezbluetooth.transport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ *  Connection pool, flow control and scheduling of {@link MuxTransport} over {@link LoopbackTransport}.
+ */
+public class MuxTransportTest {
+
+    private static final UUID SVC_UUID = UUID.fromString("3c1e9b4e-4d2a-4a49-9a59-07b0c1c0a013");
+    private static final String SLOW_ADDRESS = "00:00:00:00:00:01";
+    private static final String FAST_ADDRESS = "00:00:00:00:00:02";
+
+    private LoopbackTransport mLoopback;
+    private SlowTransport mSlowTransport;
+    private ServerChannel mServerChannel;
+    private ScheduledExecutorService mTimer;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() throws Exception {
+        mLoopback = new LoopbackTransport();
+        mSlowTransport = new SlowTransport(mLoopback);
+        mServerChannel = new MuxTransport(mLoopback).listen("mux", SVC_UUID);
+        mTimer = Executors.newSingleThreadScheduledExecutor();
+        mExecutor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServerChannel.close();
+        mTimer.shutdownNow();
+        mExecutor.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void slowConnect_doesNotHoldOtherConnectsOrTheTimer() throws Exception {
+        final MuxTransport transport = new MuxTransport(mSlowTransport, MuxTransport.DEFAULT_STREAM_WINDOW, 4, 200, 100, mTimer);
+        /**
+         *  starts pool maintenance on the timer
+         */
+        transport.connect(FAST_ADDRESS, SVC_UUID).close();
+
+        mSlowTransport.delayMillis = 2000;
+        Future<Channel> slow = mExecutor.submit(new Callable<Channel>() {
+            @Override
+            public Channel call() throws Exception {
+                return transport.connect(SLOW_ADDRESS, SVC_UUID);
+            }
+        });
+        assertTrue(mSlowTransport.entered.await(5, TimeUnit.SECONDS));
+
+        long start = System.nanoTime();
+        transport.connect(FAST_ADDRESS, SVC_UUID).close();
+        assertTrue("connect to another device waited for the slow one", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+
+        final CountDownLatch ticked = new CountDownLatch(3);
+        mTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                ticked.countDown();
+            }
+        }, 0, 50, TimeUnit.MILLISECONDS);
+        assertTrue("shared timer is held by the pool", ticked.await(1000, TimeUnit.MILLISECONDS));
+        assertFalse(slow.isDone());
+        slow.get(5, TimeUnit.SECONDS).close();
+    }
+
+    @Test(timeout = 10000)
+    public void concurrentConnects_shareOnePhysicalConnect() throws Exception {
+        final MuxTransport transport = new MuxTransport(mSlowTransport, MuxTransport.DEFAULT_STREAM_WINDOW, 4, 60000, MuxTransport.NO_KEEPALIVE, mTimer);
+        mSlowTransport.delayMillis = 300;
+        final List<Future<Channel>> streams = new ArrayList<>();
+        for(int i = 0; i < 8; i++) {
+            streams.add(mExecutor.submit(new Callable<Channel>() {
+                @Override
+                public Channel call() throws Exception {
+                    return transport.connect(SLOW_ADDRESS, SVC_UUID);
+                }
+            }));
+        }
+        for(Future<Channel> stream : streams) {
+            assertTrue(stream.get(5, TimeUnit.SECONDS).isConnected());
+        }
+        assertEquals(1, mSlowTransport.connects.get());
+        assertEquals(1, transport.getSessionCount());
+        assertEquals(1, transport.getPoolMetrics().getMisses());
+    }
+
+    @Test(timeout = 10000)
+    public void failedConnect_failsEveryWaiter() throws Exception {
+        final MuxTransport transport = new MuxTransport(mSlowTransport, MuxTransport.DEFAULT_STREAM_WINDOW, 4, 60000, MuxTransport.NO_KEEPALIVE, mTimer);
+        mSlowTransport.delayMillis = 300;
+        mSlowTransport.isFailing = true;
+        final List<Future<Channel>> streams = new ArrayList<>();
+        for(int i = 0; i < 4; i++) {
+            streams.add(mExecutor.submit(new Callable<Channel>() {
+                @Override
+                public Channel call() throws Exception {
+                    return transport.connect(SLOW_ADDRESS, SVC_UUID);
+                }
+            }));
+        }
+        for(Future<Channel> stream : streams) {
+            try {
+                stream.get(5, TimeUnit.SECONDS);
+                fail("connect succeeded");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+        assertEquals(0, transport.getSessionCount());
+
+        mSlowTransport.isFailing = false;
+        assertTrue(transport.connect(SLOW_ADDRESS, SVC_UUID).isConnected());
+    }
+
+    @Test(timeout = 20000)
+    public void unreadStream_stallsOnlyItself() throws Exception {
+        final MuxTransport transport = new MuxTransport(mLoopback, MuxTransport.DEFAULT_STREAM_WINDOW, 4, 60000, MuxTransport.NO_KEEPALIVE, mTimer);
+        final Channel bulk = transport.connect(FAST_ADDRESS, SVC_UUID);
+        final Channel remoteBulk = mServerChannel.accept();
+        final Channel control = transport.connect(FAST_ADDRESS, SVC_UUID);
+        final Channel remoteControl = mServerChannel.accept();
+        assertEquals(1, transport.getSessionCount());
+
+        final int total = 8 * MuxTransport.DEFAULT_STREAM_WINDOW;
+        final AtomicLong written = new AtomicLong();
+        final Future<?> bulkWriter = mExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                final OutputStream os = bulk.getOutputStream();
+                final byte[] chunk = new byte[1024];
+                while(written.get() < total) {
+                    os.write(chunk);
+                    written.addAndGet(chunk.length);
+                }
+                return null;
+            }
+        });
+
+        /**
+         *  nobody reads the bulk stream, the control stream still gets through
+         */
+        final byte[] message = new byte[] {1, 2, 3, 4};
+        control.getOutputStream().write(message);
+        assertArrayEquals(message, readFully(remoteControl.getInputStream(), message.length));
+        while(remoteBulk.getInputStream().available() < MuxTransport.DEFAULT_STREAM_WINDOW) {
+            Thread.sleep(1);
+        }
+        /**
+         *  frames arrive in the order they're sent, once the next control message is in, every round
+         *  the writer made with the bulk window used up is in too
+         */
+        control.getOutputStream().write(message);
+        assertArrayEquals(message, readFully(remoteControl.getInputStream(), message.length));
+        assertFalse("stream sent beyond its credit", bulkWriter.isDone());
+        assertEquals("bytes received without credit", MuxTransport.DEFAULT_STREAM_WINDOW, remoteBulk.getInputStream().available());
+
+        /**
+         *  reading hands credit back and the bulk stream completes
+         */
+        assertEquals(total, readFully(remoteBulk.getInputStream(), total).length);
+        bulkWriter.get(5, TimeUnit.SECONDS);
+        bulk.close();
+        control.close();
+    }
+
+    @Test(timeout = 30000)
+    public void bulkStream_holdsControlStreamBackByAQuantumAtMost() throws Exception {
+        /**
+         *  a quantum takes 40 ms on the link, the window of the bulk stream 320 ms
+         */
+        final long bandwidth = 100 * 1024;
+        final RecordingTransport recording = new RecordingTransport(new ShapedTransport(mLoopback, bandwidth, 5));
+        final MuxTransport transport = new MuxTransport(recording, MuxTransport.DEFAULT_STREAM_WINDOW, 4, 60000, MuxTransport.NO_KEEPALIVE, mTimer);
+        final Channel bulk = transport.connect(FAST_ADDRESS, SVC_UUID);
+        final Channel remoteBulk = mServerChannel.accept();
+        final Channel control = transport.connect(FAST_ADDRESS, SVC_UUID);
+        final Channel remoteControl = mServerChannel.accept();
+        final int bulkId = ((MuxStream) bulk).getId();
+        final int controlId = ((MuxStream) control).getId();
+
+        final AtomicInteger isRunning = new AtomicInteger(1);
+        final CountDownLatch windowFilled = new CountDownLatch(1);
+        mExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                final OutputStream os = bulk.getOutputStream();
+                final byte[] chunk = new byte[MuxSession.QUANTUM];
+                long written = 0;
+                while(isRunning.get() > 0) {
+                    os.write(chunk);
+                    if((written += chunk.length) >= MuxTransport.DEFAULT_STREAM_WINDOW) {
+                        windowFilled.countDown();
+                    }
+                }
+                return null;
+            }
+        });
+        mExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                final InputStream is = remoteBulk.getInputStream();
+                final byte[] buffer = new byte[MuxSession.QUANTUM];
+                while(is.read(buffer) > 0) {
+                    // drained as fast as the link delivers
+                }
+                return null;
+            }
+        });
+        /**
+         *  the bulk stream fills its window first
+         */
+        assertTrue(windowFilled.await(5, TimeUnit.SECONDS));
+
+        final InputStream is = remoteControl.getInputStream();
+        final OutputStream os = control.getOutputStream();
+        for(int i = 0; i < 10; i++) {
+            os.write(new byte[] {(byte) i});
+            final int mark = recording.mark();
+            assertEquals(i, is.read());
+            /**
+             *  the round in progress and the next one may each send a quantum of bulk data first, not its window
+             */
+            final int ahead = recording.countDataBefore(mark, bulkId, controlId);
+            assertTrue(String.format("%d bulk frames sent ahead of a control message", ahead), ahead <= 2);
+        }
+        isRunning.set(0);
+        bulk.close();
+        control.close();
+    }
+
+    @Test(timeout = 10000)
+    public void openOfAnIdInUseOrOfTheWrongSide_closesTheSession() throws Exception {
+        final int[][] opens = {{2}, {1, 1}};
+        for(int[] ids : opens) {
+            final Channel physical = mLoopback.connect(FAST_ADDRESS, SVC_UUID);
+            final DataOutputStream dos = new DataOutputStream(physical.getOutputStream());
+            for(int id : ids) {
+                dos.writeByte(MuxSession.TYPE_OPEN);
+                dos.writeInt(id);
+                dos.writeInt(MuxTransport.DEFAULT_STREAM_WINDOW);
+            }
+            dos.flush();
+            final InputStream is = physical.getInputStream();
+            try {
+                while(is.read() >= 0) {
+                    // credit granted to a valid open
+                }
+            } catch (IOException expected) {
+            }
+            physical.close();
+        }
+        /**
+         *  the first open of stream 1 is accepted, and its stream is ended along with the session
+         */
+        final Channel accepted = mServerChannel.accept();
+        try {
+            assertEquals(-1, accepted.getInputStream().read());
+        } catch (IOException expected) {
+        }
+    }
+
+    private static byte[] readFully(InputStream is, int length) throws IOException {
+        final byte[] data = new byte[length];
+        int read = 0;
+        while(read < length) {
+            final int len = is.read(data, read, length - read);
+            if(len < 0) {
+                throw new IOException(String.format("End of stream after %d bytes", read));
+            }
+            read += len;
+        }
+        return data;
+    }
+
+    /**
+     *  records the stream id of every data frame the mux writes to the physical channel, which writes a frame at a time
+     */
+    private static class RecordingTransport implements Transport {
+        private static final int MARK = 0;
+
+        private final Transport mTransport;
+        private final List<Integer> mFrames = Collections.synchronizedList(new ArrayList<Integer>());
+
+        RecordingTransport(Transport transport) {
+            mTransport = transport;
+        }
+
+        /**
+         *  @return position of the frames written from now on
+         */
+        int mark() {
+            synchronized (mFrames) {
+                mFrames.add(MARK);
+                return mFrames.size();
+            }
+        }
+
+        /**
+         *  @return number of data frames of a stream written after given mark and before the first data frame
+         *  of another, 0 if the latter is written before the mark
+         */
+        int countDataBefore(int mark, int id, int beforeId) {
+            synchronized (mFrames) {
+                int count = 0;
+                for(int i = mark; i < mFrames.size(); i++) {
+                    if(mFrames.get(i) == beforeId) {
+                        return count;
+                    }
+                    if(mFrames.get(i) == id) {
+                        count++;
+                    }
+                }
+                return 0;
+            }
+        }
+
+        @Override
+        public ServerChannel listen(String serviceName, UUID serviceUuid) throws IOException {
+            return mTransport.listen(serviceName, serviceUuid);
+        }
+
+        @Override
+        public Channel connect(String address, UUID serviceUuid) throws IOException {
+            final Channel channel = mTransport.connect(address, serviceUuid);
+            final OutputStream os = channel.getOutputStream();
+            final OutputStream recorded = new FilterOutputStream(os) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if((len >= MuxSession.HEADER_SIZE) && (b[off] == MuxSession.TYPE_DATA)) {
+                        mFrames.add(((b[off + 1] & 0xff) << 24) | ((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 8) | (b[off + 4] & 0xff));
+                    }
+                    os.write(b, off, len);
+                }
+            };
+            return new Channel() {
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    return channel.getInputStream();
+                }
+
+                @Override
+                public OutputStream getOutputStream() {
+                    return recorded;
+                }
+
+                @Override
+                public boolean isConnected() {
+                    return channel.isConnected();
+                }
+
+                @Override
+                public String getRemoteAddress() {
+                    return channel.getRemoteAddress();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    channel.close();
+                }
+            };
+        }
+    }
+
+    /**
+     *  delays the physical connects to one address, like an RFCOMM connect with SDP lookup
+     */
+    private static class SlowTransport implements Transport {
+        private final Transport mTransport;
+        final CountDownLatch entered = new CountDownLatch(1);
+        final AtomicInteger connects = new AtomicInteger();
+        volatile long delayMillis;
+        volatile boolean isFailing;
+
+        SlowTransport(Transport transport) {
+            mTransport = transport;
+        }
+
+        @Override
+        public ServerChannel listen(String serviceName, UUID serviceUuid) throws IOException {
+            return mTransport.listen(serviceName, serviceUuid);
+        }
+
+        @Override
+        public Channel connect(String address, UUID serviceUuid) throws IOException {
+            if(SLOW_ADDRESS.equals(address)) {
+                connects.incrementAndGet();
+                entered.countDown();
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+                if(isFailing) {
+                    throw new IOException("Connect failed");
+                }
+            }
+            return mTransport.connect(address, serviceUuid);
+        }
+    }
+}
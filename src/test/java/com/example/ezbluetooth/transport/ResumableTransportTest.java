@@ -0,0 +1,201 @@
+package com.example.ezbluetooth.transport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.example.ezbluetooth.exec.ServiceScheduler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ *  Resumption of {@link ResumableTransport} connections over {@link LoopbackTransport} links dropped on purpose.
+ */
+public class ResumableTransportTest {
+
+    private static final UUID SVC_UUID = UUID.fromString("3c1e9b4e-4d2a-4a49-9a59-07b0c1c0a019");
+    private static final String ADDRESS = "00:00:00:00:00:01";
+    private static final int RETRANSMIT_BUFFER = 16 * 1024;
+
+    private LoopbackTransport mLoopback;
+    private DroppingTransport mDropping;
+    private ServerChannel mServerChannel;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() throws Exception {
+        mLoopback = new LoopbackTransport();
+        mDropping = new DroppingTransport(mLoopback);
+        mExecutor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if(mServerChannel != null) {
+            mServerChannel.close();
+        }
+        mExecutor.shutdownNow();
+    }
+
+    @Test(timeout = 20000)
+    public void droppedLinks_replayOnlyWhatWasNotAcked() throws Exception {
+        final ResumableTransport server = new ResumableTransport(mLoopback, RETRANSMIT_BUFFER, 5000, 10, 50);
+        final ResumableTransport client = new ResumableTransport(mDropping, RETRANSMIT_BUFFER, 5000, 10, 50);
+        mServerChannel = server.listen("resumable", SVC_UUID);
+        final Channel channel = client.connect(ADDRESS, SVC_UUID);
+        final Channel remote = mServerChannel.accept();
+        final Future<byte[]> received = mExecutor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return readAll(remote.getInputStream());
+            }
+        });
+
+        final byte[] data = new byte[512 * 1024];
+        for(int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        final OutputStream os = channel.getOutputStream();
+        final int drops = 4;
+        final int dropEvery = data.length / (drops + 1);
+        for(int off = 0; off < data.length; off += 1024) {
+            os.write(data, off, 1024);
+            if((off > 0) && (off % dropEvery < 1024) && (mDropping.connects.get() <= drops)) {
+                mDropping.drop();
+            }
+        }
+        channel.close();
+
+        assertArrayEquals("data is lost or duplicated across drops", data, received.get(10, TimeUnit.SECONDS));
+        assertEquals(drops + 1, mDropping.connects.get());
+        assertEquals(drops, client.getResumeCount());
+        /**
+         *  never more than the retransmit buffer per drop, far less than everything sent
+         */
+        assertTrue(String.format("%d bytes replayed", client.getReplayedBytes()), client.getReplayedBytes() <= drops * RETRANSMIT_BUFFER);
+        remote.close();
+    }
+
+    @Test(timeout = 20000)
+    public void linkNotBackInTime_failsTheChannel() throws Exception {
+        final ResumableTransport server = new ResumableTransport(mLoopback, RETRANSMIT_BUFFER, 300, 10, 50);
+        final ResumableTransport client = new ResumableTransport(mDropping, RETRANSMIT_BUFFER, 300, 10, 50);
+        mServerChannel = server.listen("resumable", SVC_UUID);
+        final Channel channel = client.connect(ADDRESS, SVC_UUID);
+        final Channel remote = mServerChannel.accept();
+
+        mDropping.isRefusing = true;
+        mDropping.drop();
+        final long start = System.nanoTime();
+        try {
+            readAll(channel.getInputStream());
+            fail("channel ended normally without its peer");
+        } catch (IOException expected) {
+        }
+        try {
+            readAll(remote.getInputStream());
+            fail("channel ended normally without its peer");
+        } catch (IOException expected) {
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+        assertFalse(channel.isConnected());
+        assertFalse(remote.isConnected());
+        assertTrue(mDropping.connects.get() > 1);
+    }
+
+    @Test(timeout = 20000)
+    public void peerNotSayingHello_isClosedAfterTheHelloTimeout() throws Exception {
+        final ResumableTransport server = new ResumableTransport(mLoopback, RETRANSMIT_BUFFER, 5000, 10, 50, 200, new ServiceScheduler());
+        mServerChannel = server.listen("resumable", SVC_UUID);
+        final Channel silent = mLoopback.connect(ADDRESS, SVC_UUID);
+        final long start = System.nanoTime();
+        try {
+            assertEquals(-1, silent.getInputStream().read());
+        } catch (IOException expected) {
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+
+        /**
+         *  others are accepted all along
+         */
+        final ResumableTransport client = new ResumableTransport(mLoopback, RETRANSMIT_BUFFER, 5000, 10, 50);
+        final Channel channel = client.connect(ADDRESS, SVC_UUID);
+        assertTrue(mServerChannel.accept().isConnected());
+        channel.close();
+    }
+
+    @Test(timeout = 20000)
+    public void freshHelloWithALiveToken_isReset() throws Exception {
+        final ResumableTransport server = new ResumableTransport(mLoopback, RETRANSMIT_BUFFER, 5000, 10, 50);
+        mServerChannel = server.listen("resumable", SVC_UUID);
+        final UUID token = UUID.randomUUID();
+        final Channel first = mLoopback.connect(ADDRESS, SVC_UUID);
+        ResumableChannel.writeHello(first.getOutputStream(), 0, token, 0);
+        assertNotNull(ResumableChannel.readHello(new DataInputStream(first.getInputStream())));
+        final Channel live = mServerChannel.accept();
+
+        final Channel second = mLoopback.connect(ADDRESS, SVC_UUID);
+        ResumableChannel.writeHello(second.getOutputStream(), 0, token, 0);
+        assertNull("live session is replaced", ResumableChannel.readHello(new DataInputStream(second.getInputStream())));
+        assertTrue(live.isConnected());
+        live.close();
+        first.close();
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while((read = is.read(buffer)) >= 0) {
+            bos.write(buffer, 0, read);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     *  keeps the latest physical channel, so that the test can cut the link under the session
+     */
+    private static class DroppingTransport implements Transport {
+        private final Transport mTransport;
+        final AtomicInteger connects = new AtomicInteger();
+        volatile boolean isRefusing;
+        private volatile Channel mLatest;
+
+        DroppingTransport(Transport transport) {
+            mTransport = transport;
+        }
+
+        void drop() throws IOException {
+            mLatest.close();
+        }
+
+        @Override
+        public ServerChannel listen(String serviceName, UUID serviceUuid) throws IOException {
+            return mTransport.listen(serviceName, serviceUuid);
+        }
+
+        @Override
+        public Channel connect(String address, UUID serviceUuid) throws IOException {
+            connects.incrementAndGet();
+            if(isRefusing) {
+                throw new IOException("Link is down");
+            }
+            final Channel channel = mTransport.connect(address, serviceUuid);
+            mLatest = channel;
+            return channel;
+        }
+    }
+}
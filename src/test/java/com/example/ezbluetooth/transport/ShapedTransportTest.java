@@ -0,0 +1,172 @@
+package com.example.ezbluetooth.transport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ *  Delivery of {@link ShapedTransport} over {@link LoopbackTransport}.
+ */
+public class ShapedTransportTest {
+
+    private static final UUID SVC_UUID = UUID.fromString("3c1e9b4e-4d2a-4a49-9a59-07b0c1c0a009");
+
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() throws Exception {
+        mExecutor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void close_deliversChunksInFlight() throws Exception {
+        final ShapedTransport transport = new ShapedTransport(new LoopbackTransport(), 64 * 1024, 100);
+        final ServerChannel serverChannel = transport.listen("shaped", SVC_UUID);
+        final Channel client = transport.connect("00:00:00:00:00:01", SVC_UUID);
+        final Channel server = serverChannel.accept();
+        final Future<byte[]> received = mExecutor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return readAll(server.getInputStream());
+            }
+        });
+
+        final byte[] data = new byte[16 * 1024];
+        for(int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        final OutputStream os = client.getOutputStream();
+        for(int off = 0; off < data.length; off += 1024) {
+            os.write(data, off, 1024);
+        }
+        /**
+         *  every chunk is still within its latency here
+         */
+        client.close();
+        assertArrayEquals(data, received.get(5, TimeUnit.SECONDS));
+        server.close();
+        serverChannel.close();
+    }
+
+    @Test(timeout = 10000)
+    public void flush_isForwardedAfterPrecedingChunks() throws Exception {
+        final AtomicInteger flushes = new AtomicInteger();
+        final AtomicInteger writtenAtFlush = new AtomicInteger(-1);
+        final AtomicInteger written = new AtomicInteger();
+        final Transport recording = new Transport() {
+            @Override
+            public ServerChannel listen(String serviceName, UUID serviceUuid) throws IOException {
+                throw new IOException("Not supported");
+            }
+
+            @Override
+            public Channel connect(String address, UUID serviceUuid) throws IOException {
+                return new RecordingChannel(new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                        written.incrementAndGet();
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                        written.addAndGet(len);
+                    }
+
+                    @Override
+                    public void flush() {
+                        writtenAtFlush.set(written.get());
+                        flushes.incrementAndGet();
+                    }
+                });
+            }
+        };
+        final Channel channel = new ShapedTransport(recording, ShapedTransport.UNLIMITED_BANDWIDTH, 50)
+                .connect("00:00:00:00:00:01", SVC_UUID);
+        final OutputStream os = channel.getOutputStream();
+        os.write(new byte[300]);
+        os.flush();
+        os.write(new byte[100]);
+        assertEquals("flush overtook the link", 0, flushes.get());
+        channel.close();
+        assertEquals(1, flushes.get());
+        assertEquals(300, writtenAtFlush.get());
+        assertEquals(400, written.get());
+    }
+
+    @Test(timeout = 10000)
+    public void closeWithoutLinger_dropsChunksInFlight() throws Exception {
+        final ShapedTransport transport = new ShapedTransport(new LoopbackTransport(), ShapedTransport.UNLIMITED_BANDWIDTH, 60000, ShapedTransport.NO_LINGER);
+        final ServerChannel serverChannel = transport.listen("shaped", SVC_UUID);
+        final Channel client = transport.connect("00:00:00:00:00:01", SVC_UUID);
+        final Channel server = serverChannel.accept();
+        client.getOutputStream().write(new byte[1024]);
+        /**
+         *  returns long before the chunk is due
+         */
+        client.close();
+        assertEquals(0, readAll(server.getInputStream()).length);
+        server.close();
+        serverChannel.close();
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while((read = is.read(buffer)) > 0) {
+            bos.write(buffer, 0, read);
+        }
+        return bos.toByteArray();
+    }
+
+    private static class RecordingChannel implements Channel {
+        private final OutputStream mOutputStream;
+
+        RecordingChannel(OutputStream os) {
+            mOutputStream = os;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            throw new IOException("Not supported");
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mOutputStream;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}